@@ -0,0 +1,236 @@
+package automaton;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import dbtb.markov.BidirectionalVariableOrderPrefixIDMap;
+import dbtb.markov.Token;
+
+/**
+ * An {@link Automaton} in primitive arrays: states are numbered 0..n-1 (q0 is 0), the transitions out of each state
+ * are a contiguous range of (label, target) pairs sorted by label (compressed sparse rows), and the accepting states
+ * are a BitSet. The transitions into each state (the reverse rows) are built on first use.
+ *
+ * Each state also keeps the number it had in the automaton it was converted from (see {@link #getStateID}), so that
+ * states can be reported as before.
+ */
+public class CompactAutomaton<T extends Token> {
+
+	public final BidirectionalVariableOrderPrefixIDMap<T> sigma;
+
+	private final int stateCount;
+	private final int[] stateIDs;
+	private final int[] offsets;
+	private final int[] labels;
+	private final int[] targets;
+	private final BitSet acceptingStates;
+
+	private int[] reverseOffsets = null;
+	private int[] reverseSources;
+	private int[] reverseLabels;
+
+	/**
+	 * @param offsets the transitions out of state q are offsets[q]..offsets[q+1]-1, sorted by label
+	 * @param stateIDs the number each state had before, or null if the states keep their numbers
+	 */
+	public CompactAutomaton(BidirectionalVariableOrderPrefixIDMap<T> sigma, int[] offsets, int[] labels, int[] targets, BitSet acceptingStates, int[] stateIDs) {
+		this.sigma = sigma;
+		this.stateCount = offsets.length - 1;
+		this.offsets = offsets;
+		this.labels = labels;
+		this.targets = targets;
+		this.acceptingStates = acceptingStates;
+		this.stateIDs = stateIDs;
+	}
+
+	/**
+	 * Converts automaton, numbering q0 0 and the other states in the order they are first seen in delta
+	 */
+	public CompactAutomaton(Automaton<T> automaton) {
+		this.sigma = automaton.sigma;
+
+		final Map<Integer, Integer> stateNumbers = new HashMap<Integer, Integer>();
+		final List<Integer> ids = new ArrayList<Integer>();
+		number(stateNumbers, ids, 0);
+		int transitionCount = 0;
+		for (Entry<Integer, Map<Integer, Integer>> transitionsFromQ : automaton.delta.entrySet()) {
+			number(stateNumbers, ids, transitionsFromQ.getKey());
+			for (Integer target : transitionsFromQ.getValue().values()) {
+				number(stateNumbers, ids, target);
+			}
+			transitionCount += transitionsFromQ.getValue().size();
+		}
+		for (Integer acceptingState : automaton.acceptingStates) {
+			number(stateNumbers, ids, acceptingState);
+		}
+
+		this.stateCount = ids.size();
+		this.stateIDs = new int[stateCount];
+		for (int q = 0; q < stateCount; q++) {
+			stateIDs[q] = ids.get(q);
+		}
+
+		this.offsets = new int[stateCount + 1];
+		this.labels = new int[transitionCount];
+		this.targets = new int[transitionCount];
+		final long[] row = new long[transitionCount];
+		Map<Integer, Integer> transitionsFromQ;
+		int k = 0, rowSize;
+		for (int q = 0; q < stateCount; q++) {
+			offsets[q] = k;
+			transitionsFromQ = automaton.delta.get(stateIDs[q]);
+			if (transitionsFromQ == null) continue;
+
+			// sort the row by label, with targets packed below the labels
+			rowSize = 0;
+			for (Entry<Integer, Integer> transition : transitionsFromQ.entrySet()) {
+				row[rowSize++] = ((long) transition.getKey() << 32) | (stateNumbers.get(transition.getValue()) & 0xffffffffL);
+			}
+			Arrays.sort(row, 0, rowSize);
+			for (int j = 0; j < rowSize; j++) {
+				labels[k] = (int) (row[j] >> 32);
+				targets[k++] = (int) row[j];
+			}
+		}
+		offsets[stateCount] = k;
+
+		this.acceptingStates = new BitSet(stateCount);
+		for (Integer acceptingState : automaton.acceptingStates) {
+			acceptingStates.set(stateNumbers.get(acceptingState));
+		}
+	}
+
+	private static void number(Map<Integer, Integer> stateNumbers, List<Integer> ids, Integer state) {
+		if (!stateNumbers.containsKey(state)) {
+			stateNumbers.put(state, ids.size());
+			ids.add(state);
+		}
+	}
+
+	public int getStateCount() {
+		return stateCount;
+	}
+
+	public int getTransitionCount() {
+		return labels.length;
+	}
+
+	/**
+	 * @return the number state q had in the automaton this was converted from
+	 */
+	public int getStateID(int q) {
+		return stateIDs == null ? q : stateIDs[q];
+	}
+
+	public int transitionStart(int q) {
+		return offsets[q];
+	}
+
+	public int transitionEnd(int q) {
+		return offsets[q + 1];
+	}
+
+	public int labelAt(int k) {
+		return labels[k];
+	}
+
+	public int targetAt(int k) {
+		return targets[k];
+	}
+
+	/**
+	 * @return the state reached from q on label, or -1 if there is none
+	 */
+	public int next(int q, int label) {
+		final int k = Arrays.binarySearch(labels, offsets[q], offsets[q + 1], label);
+		return k < 0 ? -1 : targets[k];
+	}
+
+	public boolean isAccepting(int q) {
+		return acceptingStates.get(q);
+	}
+
+	/**
+	 * @return the accepting states (not a copy)
+	 */
+	public BitSet getAcceptingStates() {
+		return acceptingStates;
+	}
+
+	/**
+	 * The transitions into state q are incomingStart(q)..incomingEnd(q)-1, in order of source state
+	 */
+	public int incomingStart(int q) {
+		buildReverse();
+		return reverseOffsets[q];
+	}
+
+	public int incomingEnd(int q) {
+		buildReverse();
+		return reverseOffsets[q + 1];
+	}
+
+	public int sourceAt(int k) {
+		return reverseSources[k];
+	}
+
+	public int incomingLabelAt(int k) {
+		return reverseLabels[k];
+	}
+
+	private synchronized void buildReverse() {
+		if (reverseOffsets != null) return;
+
+		final int[] reverseOffsets = new int[stateCount + 1];
+		for (int k = 0; k < targets.length; k++) {
+			reverseOffsets[targets[k] + 1]++;
+		}
+		for (int q = 0; q < stateCount; q++) {
+			reverseOffsets[q + 1] += reverseOffsets[q];
+		}
+		final int[] next = Arrays.copyOf(reverseOffsets, stateCount);
+		reverseSources = new int[targets.length];
+		reverseLabels = new int[targets.length];
+		for (int q = 0; q < stateCount; q++) {
+			for (int k = offsets[q]; k < offsets[q + 1]; k++) {
+				reverseSources[next[targets[k]]] = q;
+				reverseLabels[next[targets[k]]++] = labels[k];
+			}
+		}
+		this.reverseOffsets = reverseOffsets;
+	}
+
+	/**
+	 * @return this automaton with maps for delta and a set of accepting states, using the states' original numbers
+	 */
+	public Automaton<T> toAutomaton() {
+		final Map<Integer, Map<Integer, Integer>> delta = new HashMap<Integer, Map<Integer, Integer>>();
+		Map<Integer, Integer> transitionsFromQ;
+		for (int q = 0; q < stateCount; q++) {
+			if (offsets[q] == offsets[q + 1]) continue;
+			transitionsFromQ = new HashMap<Integer, Integer>();
+			for (int k = offsets[q]; k < offsets[q + 1]; k++) {
+				transitionsFromQ.put(labels[k], getStateID(targets[k]));
+			}
+			delta.put(getStateID(q), transitionsFromQ);
+		}
+
+		final Set<Integer> accepting = new HashSet<Integer>();
+		for (int q = acceptingStates.nextSetBit(0); q >= 0; q = acceptingStates.nextSetBit(q + 1)) {
+			accepting.add(getStateID(q));
+		}
+		return new Automaton<T>(sigma, delta, accepting);
+	}
+
+	@Override
+	public String toString() {
+		return sigma + ", " + stateCount + " states, " + labels.length + " transitions, " + acceptingStates;
+	}
+}
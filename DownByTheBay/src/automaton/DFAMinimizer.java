@@ -0,0 +1,327 @@
+package automaton;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import dbtb.markov.BidirectionalVariableOrderPrefixIDMap;
+import dbtb.markov.Token;
+
+/**
+ * Minimizes a (partial) DFA by partition refinement, following Valmari's "Fast brief practical DFA minimization"
+ * (2012), a variant of Hopcroft's algorithm that works on transition lists rather than a complete transition table,
+ * so its cost is O(m log n) in the number of transitions m rather than in the number of states times the size of
+ * sigma.
+ *
+ * The transitions of the automaton (see {@link CompactAutomaton}) are copied into parallel int arrays of tails,
+ * labels and heads. States that cannot be reached from q0 or cannot reach an accepting state are dropped. The
+ * remaining states are kept in a partition of blocks, and the transitions in a partition of cords (initially one
+ * per label). Each cord splits the blocks by whether their states have a transition in it, and each new block splits
+ * the cords by whether their transitions lead into it, until neither partition changes.
+ */
+public class DFAMinimizer {
+
+	private final int stateCount;
+	private int transitionCount;
+	private final int[] tails;
+	private final int[] labels;
+	private final int[] heads;
+
+	// transitions grouped by tail or head (see makeAdjacent)
+	private final int[] adjacent;
+	private final int[] offsets;
+
+	private final Partition blocks;
+	private Partition cords;
+	private int reached = 0;
+
+	/**
+	 * @return an automaton over the same sigma accepting the same sequences with as few states as possible. q0 is
+	 * still state 0 and the other states are numbered from 1. If no sequence is accepted, delta and the accepting
+	 * states are empty.
+	 */
+	public static <T extends Token> Automaton<T> minimize(Automaton<T> automaton) {
+		return minimize(new CompactAutomaton<T>(automaton)).toAutomaton();
+	}
+
+	/**
+	 * @return a compact automaton over the same sigma accepting the same sequences with as few states as possible (q0
+	 * is still state 0). If no sequence is accepted, it has only q0, which has no transitions and is not accepting.
+	 */
+	public static <T extends Token> CompactAutomaton<T> minimize(CompactAutomaton<T> automaton) {
+		final int transitionCount = automaton.getTransitionCount();
+		final int[] tails = new int[transitionCount], labels = new int[transitionCount], heads = new int[transitionCount];
+		for (int q = 0; q < automaton.getStateCount(); q++) {
+			for (int k = automaton.transitionStart(q); k < automaton.transitionEnd(q); k++) {
+				tails[k] = q;
+				labels[k] = automaton.labelAt(k);
+				heads[k] = automaton.targetAt(k);
+			}
+		}
+
+		final DFAMinimizer minimizer = new DFAMinimizer(automaton.getStateCount(), tails, labels, heads);
+		final int acceptingCount = minimizer.removeUselessStates(automaton.getAcceptingStates());
+		if (acceptingCount == 0) {
+			return new CompactAutomaton<T>(automaton.sigma, new int[2], new int[0], new int[0], new BitSet(), null);
+		}
+		minimizer.refine(acceptingCount);
+		return minimizer.collect(automaton.sigma, acceptingCount);
+	}
+
+	private DFAMinimizer(int stateCount, int[] tails, int[] labels, int[] heads) {
+		this.stateCount = stateCount;
+		this.transitionCount = tails.length;
+		this.tails = tails;
+		this.labels = labels;
+		this.heads = heads;
+		this.adjacent = new int[transitionCount];
+		this.offsets = new int[stateCount + 1];
+		this.blocks = new Partition(stateCount);
+	}
+
+	/**
+	 * Drops the states (and their transitions) that are not reachable from q0 or cannot reach an accepting state, and
+	 * moves the accepting states to the front of the first block
+	 *
+	 * @return the number of accepting states left, or 0 if q0 was dropped (i.e., no sequence is accepted)
+	 */
+	private int removeUselessStates(BitSet acceptingStates) {
+		reach(0);
+		removeUnreached(tails, heads);
+
+		for (int q = acceptingStates.nextSetBit(0); q >= 0; q = acceptingStates.nextSetBit(q + 1)) {
+			if (blocks.location[q] < blocks.past[0]) {
+				reach(q);
+			}
+		}
+		final int acceptingCount = reached;
+		removeUnreached(heads, tails);
+
+		return blocks.location[0] < blocks.past[0] ? acceptingCount : 0;
+	}
+
+	private void reach(int q) {
+		final int i = blocks.location[q];
+		if (i >= reached) {
+			blocks.elements[i] = blocks.elements[reached];
+			blocks.location[blocks.elements[i]] = i;
+			blocks.elements[reached] = q;
+			blocks.location[q] = reached++;
+		}
+	}
+
+	/**
+	 * Reaches every state reachable from the states reached so far along transitions from -> to, drops the
+	 * transitions out of states that were not reached, and shrinks the first block to the reached states
+	 */
+	private void removeUnreached(int[] from, int[] to) {
+		makeAdjacent(from);
+		int q;
+		for (int i = 0; i < reached; i++) {
+			q = blocks.elements[i];
+			for (int j = offsets[q]; j < offsets[q + 1]; j++) {
+				reach(to[adjacent[j]]);
+			}
+		}
+
+		int kept = 0;
+		for (int t = 0; t < transitionCount; t++) {
+			if (blocks.location[from[t]] < reached) {
+				tails[kept] = tails[t];
+				labels[kept] = labels[t];
+				heads[kept++] = heads[t];
+			}
+		}
+		transitionCount = kept;
+		blocks.past[0] = reached;
+		reached = 0;
+	}
+
+	/**
+	 * Groups the transitions by state: those with endpoint q (in endpoints) are adjacent[offsets[q]..offsets[q+1])
+	 */
+	private void makeAdjacent(int[] endpoints) {
+		Arrays.fill(offsets, 0);
+		for (int t = 0; t < transitionCount; t++) {
+			offsets[endpoints[t]]++;
+		}
+		for (int q = 0; q < stateCount; q++) {
+			offsets[q + 1] += offsets[q];
+		}
+		for (int t = transitionCount - 1; t >= 0; t--) {
+			adjacent[--offsets[endpoints[t]]] = t;
+		}
+	}
+
+	private void refine(int acceptingCount) {
+		// split the accepting states (already at the front of the first block) from the rest
+		blocks.marked[0] = acceptingCount;
+		blocks.touched[blocks.touchedCount++] = 0;
+		blocks.split();
+
+		// one cord per label
+		cords = new Partition(transitionCount);
+		if (transitionCount > 0) {
+			final long[] byLabel = new long[transitionCount];
+			for (int t = 0; t < transitionCount; t++) {
+				byLabel[t] = ((long) labels[t] << 32) | t;
+			}
+			Arrays.sort(byLabel);
+			cords.setCount = 0;
+			int label = labels[(int) byLabel[0]], t;
+			for (int i = 0; i < transitionCount; i++) {
+				t = (int) byLabel[i];
+				cords.elements[i] = t;
+				if (labels[t] != label) {
+					label = labels[t];
+					cords.past[cords.setCount++] = i;
+					cords.first[cords.setCount] = i;
+					cords.marked[cords.setCount] = 0;
+				}
+				cords.setOf[t] = cords.setCount;
+				cords.location[t] = i;
+			}
+			cords.past[cords.setCount++] = transitionCount;
+		}
+
+		makeAdjacent(heads);
+		int b = 1, c = 0, q;
+		while (c < cords.setCount) {
+			for (int i = cords.first[c]; i < cords.past[c]; i++) {
+				blocks.mark(tails[cords.elements[i]]);
+			}
+			blocks.split();
+			c++;
+			while (b < blocks.setCount) {
+				for (int i = blocks.first[b]; i < blocks.past[b]; i++) {
+					q = blocks.elements[i];
+					for (int j = offsets[q]; j < offsets[q + 1]; j++) {
+						cords.mark(adjacent[j]);
+					}
+				}
+				cords.split();
+				b++;
+			}
+		}
+	}
+
+	/**
+	 * @return the automaton with one state per block (q0's block numbered 0), with the transitions of the first state in each block
+	 */
+	private <T extends Token> CompactAutomaton<T> collect(BidirectionalVariableOrderPrefixIDMap<T> sigma, int acceptingCount) {
+		final int blockCount = blocks.setCount;
+		final int[] blockNumbers = new int[blockCount];
+		final int initialBlock = blocks.setOf[0];
+		final BitSet acceptingStates = new BitSet(blockCount);
+		for (int b = 0, next = 1; b < blockCount; b++) {
+			blockNumbers[b] = b == initialBlock ? 0 : next++;
+			if (blocks.first[b] < acceptingCount) {
+				acceptingStates.set(blockNumbers[b]);
+			}
+		}
+
+		// the transitions of one state per block represent the block's
+		final int[] offsets = new int[blockCount + 1];
+		int outTransitionCount = 0;
+		for (int t = 0; t < transitionCount; t++) {
+			if (isRepresentative(tails[t])) {
+				offsets[blockNumbers[blocks.setOf[tails[t]]] + 1]++;
+				outTransitionCount++;
+			}
+		}
+		for (int b = 0; b < blockCount; b++) {
+			offsets[b + 1] += offsets[b];
+		}
+
+		// fill each row with (label, target) pairs packed into longs, then sort it by label
+		final long[] rows = new long[outTransitionCount];
+		final int[] next = Arrays.copyOf(offsets, blockCount);
+		for (int t = 0; t < transitionCount; t++) {
+			if (isRepresentative(tails[t])) {
+				rows[next[blockNumbers[blocks.setOf[tails[t]]]]++] = ((long) labels[t] << 32) | blockNumbers[blocks.setOf[heads[t]]];
+			}
+		}
+		final int[] outLabels = new int[outTransitionCount], outTargets = new int[outTransitionCount];
+		for (int b = 0; b < blockCount; b++) {
+			Arrays.sort(rows, offsets[b], offsets[b + 1]);
+		}
+		for (int k = 0; k < outTransitionCount; k++) {
+			outLabels[k] = (int) (rows[k] >> 32);
+			outTargets[k] = (int) rows[k];
+		}
+		return new CompactAutomaton<T>(sigma, offsets, outLabels, outTargets, acceptingStates, null);
+	}
+
+	private boolean isRepresentative(int q) {
+		return blocks.location[q] == blocks.first[blocks.setOf[q]];
+	}
+
+	/**
+	 * A partition of the elements 0..n-1 into sets, each a contiguous range first[s]..past[s]-1 of elements (where
+	 * location is the inverse of elements). Marked elements of a set are moved to the front of its range, and split
+	 * then moves the smaller of the marked and unmarked parts of each touched set into a new set.
+	 */
+	private static class Partition {
+		private int setCount;
+		private final int[] elements;
+		private final int[] location;
+		private final int[] setOf;
+		private final int[] first;
+		private final int[] past;
+
+		private final int[] marked;
+		private final int[] touched;
+		private int touchedCount = 0;
+
+		private Partition(int n) {
+			this.setCount = n > 0 ? 1 : 0;
+			this.elements = new int[n];
+			this.location = new int[n];
+			this.setOf = new int[n];
+			this.first = new int[n];
+			this.past = new int[n];
+			this.marked = new int[n + 1];
+			this.touched = new int[n + 1];
+			for (int i = 0; i < n; i++) {
+				elements[i] = location[i] = i;
+			}
+			if (n > 0) {
+				first[0] = 0;
+				past[0] = n;
+			}
+		}
+
+		private void mark(int e) {
+			final int s = setOf[e], i = location[e], j = first[s] + marked[s];
+			elements[i] = elements[j];
+			location[elements[i]] = i;
+			elements[j] = e;
+			location[e] = j;
+			if (marked[s]++ == 0) {
+				touched[touchedCount++] = s;
+			}
+		}
+
+		private void split() {
+			int s, j;
+			while (touchedCount > 0) {
+				s = touched[--touchedCount];
+				j = first[s] + marked[s];
+				if (j == past[s]) {
+					marked[s] = 0;
+					continue;
+				}
+				if (marked[s] <= past[s] - j) {
+					first[setCount] = first[s];
+					past[setCount] = first[s] = j;
+				} else {
+					past[setCount] = past[s];
+					first[setCount] = past[s] = j;
+				}
+				for (int i = first[setCount]; i < past[setCount]; i++) {
+					setOf[elements[i]] = setCount;
+				}
+				marked[s] = marked[setCount++] = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,348 @@
+package automaton;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import automaton.RegularConstraintApplier.StateToken;
+import dbtb.constraint.ConditionedConstraint;
+import dbtb.constraint.Constraint;
+import dbtb.constraint.StateConstraint;
+import dbtb.constraint.TransitionalConstraint;
+import dbtb.markov.BidirectionalVariableOrderPrefixIDMap;
+import dbtb.markov.CompressedSparseRowMatrix;
+import dbtb.markov.NHMMSupport;
+import dbtb.markov.SparseVariableOrderMarkovModel;
+import dbtb.markov.Token;
+import dbtb.markov.UnsatisfiableConstraintSetException;
+
+/**
+ * Builds the support of the NHMM over the product of a Markov model M and an automaton A one position (layer) at a
+ * time, rather than building the full product as a Markov model first. A product state (a, q) is M's state a read
+ * into automaton state q; it is only created if it is reachable from q0 at some position and q can still reach an
+ * accepting state in exactly the remaining number of steps. A precheck first propagates the reachable product states
+ * through the state constraints alone, so that an unsatisfiable template is rejected before any transitional
+ * constraint is evaluated. The transitional constraints are then applied as each layer is expanded, and a backward
+ * pass drops the states and transitions that cannot reach the last layer, so only the product states on some
+ * sequence of full length end up in the NHMM.
+ */
+public class LayeredProductBuilder<T extends Token> implements NHMMSupport {
+
+	private final SparseVariableOrderMarkovModel<T> model;
+	private final CompressedSparseRowMatrix matrix;
+	private final CompactAutomaton<T> automaton;
+	private final int order;
+	private final int positionCount;
+
+	private final BidirectionalVariableOrderPrefixIDMap<StateToken<T>> stateIndex;
+	private final Map<Long, Integer> productStates = new HashMap<Long, Integer>();
+	private int[] labelOf = new int[16];
+	private int[] automatonStateOf = new int[16];
+
+	private final BitSet priorStates = new BitSet();
+	private final List<Layer> layers;
+
+	public LayeredProductBuilder(SparseVariableOrderMarkovModel<T> M, Automaton<T> A, int length,
+			List<List<ConditionedConstraint<StateToken<T>>>> constraints) throws UnsatisfiableConstraintSetException {
+		this(M, new CompactAutomaton<T>(A), length, constraints);
+	}
+
+	/**
+	 * Product states are made of A's state numbers (see {@link CompactAutomaton#getStateID}), as with an {@link Automaton}
+	 */
+	public LayeredProductBuilder(SparseVariableOrderMarkovModel<T> M, CompactAutomaton<T> A, int length,
+			List<List<ConditionedConstraint<StateToken<T>>>> constraints) throws UnsatisfiableConstraintSetException {
+		assert (A.sigma == M.stateIndex);
+		this.model = M;
+		final CompressedSparseRowMatrix frozen = M.getFrozenLogTransitions();
+		this.matrix = frozen != null ? frozen : new CompressedSparseRowMatrix(M.logTransitions, M.stateIndex.getPrefixCount());
+		this.automaton = A;
+		this.order = M.stateIndex.getOrder();
+		this.positionCount = length > 1 ? Math.max(0, length - order) : 0;
+		this.stateIndex = new BidirectionalVariableOrderPrefixIDMap<StateToken<T>>(order);
+		this.layers = new ArrayList<Layer>(positionCount);
+
+		if (length <= 1) return;
+
+		final List<BitSet> coReachable = computeCoReachableAutomatonStates();
+		computePriorStates(constraints, coReachable.get(positionCount));
+		forward(constraints, coReachable, precheck(constraints, coReachable));
+		backward();
+	}
+
+	public BidirectionalVariableOrderPrefixIDMap<StateToken<T>> getStateIndex() {
+		return stateIndex;
+	}
+
+	public int getPositionCount() {
+		return positionCount;
+	}
+
+	public BitSet getPriorStates() {
+		return priorStates;
+	}
+
+	public double getLogPrior(int stateIdx) {
+		return model.logPriors.get(labelOf[stateIdx]);
+	}
+
+	public int getTransitionCount(int position) {
+		return layers.get(position).size;
+	}
+
+	public int getFromState(int position, int transition) {
+		return layers.get(position).from[transition];
+	}
+
+	public int getToState(int position, int transition) {
+		return layers.get(position).to[transition];
+	}
+
+	public double getLogProbability(int position, int transition) {
+		return layers.get(position).logProbability[transition];
+	}
+
+	/**
+	 * @return for r from 0 to positionCount, the automaton states from which an accepting state can be reached in exactly r steps
+	 */
+	private List<BitSet> computeCoReachableAutomatonStates() {
+		final List<BitSet> coReachable = new ArrayList<BitSet>(positionCount + 1);
+		BitSet states = automaton.getAcceptingStates(), previous;
+		coReachable.add(states);
+		for (int r = 1; r <= positionCount; r++) {
+			previous = states;
+			states = new BitSet(automaton.getStateCount());
+			for (int q = previous.nextSetBit(0); q >= 0; q = previous.nextSetBit(q + 1)) {
+				for (int k = automaton.incomingStart(q); k < automaton.incomingEnd(q); k++) {
+					states.set(automaton.sourceAt(k));
+				}
+			}
+			coReachable.add(states);
+		}
+		return coReachable;
+	}
+
+	/**
+	 * The prior states are the labels a with a prior in M read from q0, in states that can still accept
+	 */
+	private void computePriorStates(List<List<ConditionedConstraint<StateToken<T>>>> constraints, BitSet coReachable) {
+		for (int i = 0; i < order; i++) {
+			for (ConditionedConstraint<StateToken<T>> conditionedConstraint : constraints.get(i)) {
+				if (conditionedConstraint.getConstraint() instanceof TransitionalConstraint) {
+					throw new RuntimeException("Can't have dynamic constaints on position before order length");
+				}
+			}
+		}
+
+		final BidirectionalVariableOrderPrefixIDMap<StateToken<T>>.PrefixWindow state = stateIndex.newWindow();
+		int stateIdx;
+		boolean satisfied;
+		for (int k = automaton.transitionStart(0); k < automaton.transitionEnd(0); k++) {
+			if (!model.logPriors.containsKey(automaton.labelAt(k)) || !coReachable.get(automaton.targetAt(k))) continue;
+
+			stateIdx = getOrAddState(automaton.labelAt(k), automaton.targetAt(k));
+			state.moveTo(stateIdx);
+			satisfied = true;
+			for (int i = 0; i < order && satisfied; i++) {
+				satisfied = satisfiesStateConstraints(constraints.get(i), state, i);
+			}
+			if (satisfied) {
+				priorStates.set(stateIdx);
+			}
+		}
+	}
+
+	/**
+	 * Propagates the reachable product states forward using only the automaton, the base model's sparsity pattern and
+	 * the state constraints, without evaluating transitional constraints or recording transitions.
+	 *
+	 * @return for each position, the product states that satisfy its state constraints and are reachable ignoring
+	 * transitional constraints (every state the forward pass can reach there)
+	 * @throws UnsatisfiableConstraintSetException at the first position at which no state is reachable
+	 */
+	private List<BitSet> precheck(List<List<ConditionedConstraint<StateToken<T>>>> constraints, List<BitSet> coReachable) throws UnsatisfiableConstraintSetException {
+		final BidirectionalVariableOrderPrefixIDMap<StateToken<T>>.PrefixWindow toState = stateIndex.newWindow();
+		final List<BitSet> satisfyingByPosition = new ArrayList<BitSet>(positionCount);
+		BitSet fromStates = priorStates, checked, satisfying, coReachableAtPos;
+		List<ConditionedConstraint<StateToken<T>>> constraintsAtPos;
+		int q, label, qTo, toStateIdx;
+		for (int i = 0; i < positionCount; i++) {
+			constraintsAtPos = constraints.get(i + order);
+			coReachableAtPos = coReachable.get(positionCount - i - 1);
+			checked = new BitSet();
+			satisfying = new BitSet();
+			for (int fromStateIdx = fromStates.nextSetBit(0); fromStateIdx >= 0; fromStateIdx = fromStates.nextSetBit(fromStateIdx + 1)) {
+				q = automatonStateOf[fromStateIdx];
+				label = labelOf[fromStateIdx];
+				for (int k = matrix.rowStart(label); k < matrix.rowEnd(label); k++) {
+					qTo = automaton.next(q, matrix.columnAt(k));
+					if (qTo == -1 || !coReachableAtPos.get(qTo)) continue;
+
+					toStateIdx = getOrAddState(matrix.columnAt(k), qTo);
+					if (!checked.get(toStateIdx)) {
+						checked.set(toStateIdx);
+						toState.moveTo(toStateIdx);
+						if (satisfiesStateConstraints(constraintsAtPos, toState, order - 1)) {
+							satisfying.set(toStateIdx);
+						}
+					}
+				}
+			}
+
+			if (satisfying.isEmpty()) {
+				throw unsatisfiable(i);
+			}
+			satisfyingByPosition.add(satisfying);
+			fromStates = satisfying;
+		}
+		return satisfyingByPosition;
+	}
+
+	private static UnsatisfiableConstraintSetException unsatisfiable(int position) {
+		return new UnsatisfiableConstraintSetException("Not satisfiable, given length constraint (no seq of length " + position + " can be made)", position);
+	}
+
+	/**
+	 * @param satisfyingByPosition the states at each position that satisfy its state constraints (see {@link #precheck})
+	 */
+	private void forward(List<List<ConditionedConstraint<StateToken<T>>>> constraints, List<BitSet> coReachable, List<BitSet> satisfyingByPosition) throws UnsatisfiableConstraintSetException {
+		final BidirectionalVariableOrderPrefixIDMap<StateToken<T>>.PrefixWindow fromState = stateIndex.newWindow(), toState = stateIndex.newWindow();
+		BitSet fromStates = priorStates, toStates, satisfying, coReachableAtPos;
+		List<ConditionedConstraint<StateToken<T>>> constraintsAtPos;
+		Layer layer;
+		int q, label, qTo, toStateIdx;
+		for (int i = 0; i < positionCount; i++) {
+			constraintsAtPos = constraints.get(i + order);
+			coReachableAtPos = coReachable.get(positionCount - i - 1);
+			satisfying = satisfyingByPosition.get(i);
+			layer = new Layer();
+			toStates = new BitSet();
+			for (int fromStateIdx = fromStates.nextSetBit(0); fromStateIdx >= 0; fromStateIdx = fromStates.nextSetBit(fromStateIdx + 1)) {
+				q = automatonStateOf[fromStateIdx];
+				if (automaton.transitionStart(q) == automaton.transitionEnd(q)) continue;
+
+				fromState.moveTo(fromStateIdx);
+				label = labelOf[fromStateIdx];
+				for (int k = matrix.rowStart(label); k < matrix.rowEnd(label); k++) {
+					qTo = automaton.next(q, matrix.columnAt(k));
+					if (qTo == -1 || !coReachableAtPos.get(qTo)) continue;
+
+					toStateIdx = getOrAddState(matrix.columnAt(k), qTo);
+					if (!satisfying.get(toStateIdx)) continue;
+
+					toState.moveTo(toStateIdx);
+					if (satisfiesTransitionalConstraints(constraintsAtPos, fromState, toState)) {
+						layer.add(fromStateIdx, toStateIdx, matrix.valueAt(k));
+						toStates.set(toStateIdx);
+					}
+				}
+			}
+
+			if (toStates.isEmpty()) {
+				throw unsatisfiable(i);
+			}
+			layers.add(layer);
+			fromStates = toStates;
+		}
+	}
+
+	/**
+	 * Drops the transitions into states that cannot reach the last layer, and then the prior states that are left without any
+	 */
+	private void backward() {
+		if (positionCount == 0) return;
+
+		BitSet coReachable = null, fromStates;
+		Layer layer;
+		for (int i = positionCount - 1; i >= 0; i--) {
+			layer = layers.get(i);
+			fromStates = new BitSet();
+			int kept = 0;
+			for (int e = 0; e < layer.size; e++) {
+				if (coReachable == null || coReachable.get(layer.to[e])) {
+					fromStates.set(layer.from[e]);
+					layer.from[kept] = layer.from[e];
+					layer.to[kept] = layer.to[e];
+					layer.logProbability[kept++] = layer.logProbability[e];
+				}
+			}
+			layer.size = kept;
+			layer.trim();
+			coReachable = fromStates;
+		}
+		priorStates.and(coReachable);
+	}
+
+	private int getOrAddState(int label, int automatonState) {
+		final Long key = ((long) label << 32) | (automatonState & 0xffffffffL);
+		Integer stateIdx = productStates.get(key);
+		if (stateIdx == null) {
+			stateIdx = stateIndex.addPrefix(RegularConstraintApplier.createStateTokenPrefix(model.stateIndex.getPrefixForID(label), automaton.getStateID(automatonState)));
+			productStates.put(key, stateIdx);
+			if (stateIdx >= labelOf.length) {
+				labelOf = Arrays.copyOf(labelOf, Math.max(stateIdx + 1, labelOf.length * 2));
+				automatonStateOf = Arrays.copyOf(automatonStateOf, labelOf.length);
+			}
+			labelOf[stateIdx] = label;
+			automatonStateOf[stateIdx] = automatonState;
+		}
+		return stateIdx;
+	}
+
+	private boolean satisfiesStateConstraints(List<ConditionedConstraint<StateToken<T>>> constraintsAtPos, BidirectionalVariableOrderPrefixIDMap<StateToken<T>>.PrefixWindow state, int tokenIdx) {
+		Constraint<StateToken<T>> constraint;
+		for (ConditionedConstraint<StateToken<T>> conditionedConstraint : constraintsAtPos) {
+			constraint = conditionedConstraint.getConstraint();
+			if (constraint instanceof StateConstraint) {
+				if (((StateConstraint<StateToken<T>>) constraint).isSatisfiedBy(state, tokenIdx) ^ conditionedConstraint.getDesiredConditionState()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean satisfiesTransitionalConstraints(List<ConditionedConstraint<StateToken<T>>> constraintsAtPos, BidirectionalVariableOrderPrefixIDMap<StateToken<T>>.PrefixWindow fromState,
+			BidirectionalVariableOrderPrefixIDMap<StateToken<T>>.PrefixWindow toState) {
+		Constraint<StateToken<T>> constraint;
+		for (ConditionedConstraint<StateToken<T>> conditionedConstraint : constraintsAtPos) {
+			constraint = conditionedConstraint.getConstraint();
+			if (constraint instanceof TransitionalConstraint) {
+				if (((TransitionalConstraint<StateToken<T>>) constraint).isSatisfiedBy(fromState, toState) ^ conditionedConstraint.getDesiredConditionState()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The transitions of one layer as parallel arrays, grouped by from-state
+	 */
+	private static class Layer {
+		private int[] from = new int[16];
+		private int[] to = new int[16];
+		private double[] logProbability = new double[16];
+		private int size = 0;
+
+		private void add(int fromStateIdx, int toStateIdx, double logProb) {
+			if (size == from.length) {
+				from = Arrays.copyOf(from, size * 2);
+				to = Arrays.copyOf(to, size * 2);
+				logProbability = Arrays.copyOf(logProbability, size * 2);
+			}
+			from[size] = fromStateIdx;
+			to[size] = toStateIdx;
+			logProbability[size++] = logProb;
+		}
+
+		private void trim() {
+			from = Arrays.copyOf(from, size);
+			to = Arrays.copyOf(to, size);
+			logProbability = Arrays.copyOf(logProbability, size);
+		}
+	}
+}
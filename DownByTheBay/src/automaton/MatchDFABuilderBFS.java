@@ -28,12 +28,11 @@ import dbtb.markov.SparseVariableOrderNHMMMultiThreaded;
 import dbtb.markov.Token;
 import dbtb.markov.UnsatisfiableConstraintSetException;
 import dbtb.utils.Pair;
-import dbtb.utils.Triple;
 import dbtb.utils.Utils;
 
 public class MatchDFABuilderBFS {
 
-	public static <T extends Token> Automaton<T> buildEfficiently(int[] matchConstraintList, boolean[] matchConstraintOutcomeList, SparseVariableOrderMarkovModel<T> markovModel) {
+	public static <T extends Token> CompactAutomaton<T> buildEfficiently(int[] matchConstraintList, boolean[] matchConstraintOutcomeList, SparseVariableOrderMarkovModel<T> markovModel) {
 		List<List<ConditionedConstraint<T>>> controlConstraints = new ArrayList<List<ConditionedConstraint<T>>>();
 		
 		for (int i = 0; i < matchConstraintList.length; i++) {
@@ -43,7 +42,7 @@ public class MatchDFABuilderBFS {
 		return buildEfficiently(matchConstraintList, matchConstraintOutcomeList, markovModel, controlConstraints);
 	}
 
-	public static <T extends Token> Automaton<T> buildEfficiently(int[] matchConstraintList, boolean[] matchConstraintOutcomeList, SparseVariableOrderMarkovModel<T> markovModel, List<List<ConditionedConstraint<T>>> controlConstraints) {
+	public static <T extends Token> CompactAutomaton<T> buildEfficiently(int[] matchConstraintList, boolean[] matchConstraintOutcomeList, SparseVariableOrderMarkovModel<T> markovModel, List<List<ConditionedConstraint<T>>> controlConstraints) {
 		int[][] newMatchConstraintList = new int[1][];
 		newMatchConstraintList[0] = matchConstraintList;
 		boolean[][] newMatchConstraintOutcomeList = new boolean[1][];
@@ -52,7 +51,7 @@ public class MatchDFABuilderBFS {
 	}
 	
 	
-	public static <T extends Token> Automaton<T> buildEfficiently(int[] matchConstraintList, boolean[] matchConstraintOutcomeList, 
+	public static <T extends Token> CompactAutomaton<T> buildEfficiently(int[] matchConstraintList, boolean[] matchConstraintOutcomeList, 
 			List<Comparator<T>> equivalenceRelations, SparseVariableOrderMarkovModel<T> markovModel) {
 		
 		int[][] newMatchConstraintList = new int[1][];
@@ -70,7 +69,7 @@ public class MatchDFABuilderBFS {
 		return buildEfficiently(newMatchConstraintList, newMatchConstraintOutcomeList, equivalenceRelations, markovModel, controlConstraints);
 	}
 
-	public static <T extends Token> Automaton<T> buildEfficiently(int[][] matchConstraintList, boolean[][] matchConstraintOutcomeList, 
+	public static <T extends Token> CompactAutomaton<T> buildEfficiently(int[][] matchConstraintList, boolean[][] matchConstraintOutcomeList, 
 			List<Comparator<T>> equivalenceRelations, SparseVariableOrderMarkovModel<T> markovModel) {
 		List<List<ConditionedConstraint<T>>> controlConstraints = new ArrayList<List<ConditionedConstraint<T>>>();
 		
@@ -80,7 +79,7 @@ public class MatchDFABuilderBFS {
 		return buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, markovModel, controlConstraints);
 	}
 	
-	public static <T extends Token> Automaton<T> buildEfficiently(int[][] matchConstraintList, boolean[][] matchConstraintOutcomeList, List<Comparator<T>> equivalenceRelations, SparseVariableOrderMarkovModel<T> markovModel, List<List<ConditionedConstraint<T>>> controlConstraints) {
+	public static <T extends Token> CompactAutomaton<T> buildEfficiently(int[][] matchConstraintList, boolean[][] matchConstraintOutcomeList, List<Comparator<T>> equivalenceRelations, SparseVariableOrderMarkovModel<T> markovModel, List<List<ConditionedConstraint<T>>> controlConstraints) {
 		if (markovModel.order != 1) throw new RuntimeException("Markov order other than 1 not supported. See other implementations.");
 		Map<Integer, Map<Integer, Integer>> delta = new HashMap<Integer, Map<Integer, Integer>>();
 		Set<Integer> acceptingStates = new HashSet<Integer>();
@@ -270,7 +269,8 @@ public class MatchDFABuilderBFS {
 		
 		acceptingStates.add(Integer.MAX_VALUE);
 		
-		return new Automaton<T>(markovModel.stateIndex,delta,acceptingStates);
+		// states are only merged above when they have the same constraints and labels, so merge the rest with the same futures
+		return DFAMinimizer.minimize(new CompactAutomaton<T>(new Automaton<T>(markovModel.stateIndex,delta,acceptingStates)));
 	}
 	
 	/**
@@ -310,55 +310,6 @@ public class MatchDFABuilderBFS {
 		return true;
 	}
 
-
-	private static void combineEquivalentStates(int i,
-			Map<Integer, Map<Integer, Integer>> delta,
-			Map<Integer, Map<Integer, Map<Map<Integer, Integer>, Integer>>> stateDictionary,
-			Map<Integer, Triple<Integer, Map<Integer, Set<Integer>>, Map<Integer, Integer>>> stateInfo, TreeSet<Integer> statesToRemove) {
-		
-		Map<Map<Integer, Integer>, Integer> stateEquivalenceClasses = new HashMap<Map<Integer, Integer>, Integer>();
-		for (Map<Map<Integer, Integer>, Integer> stateDictionaryAtI : stateDictionary.get(i).values()) {
-			for (Integer qIdx : stateDictionaryAtI.values()) {
-				if (statesToRemove.contains(qIdx)) continue;
-				// for each state q in the layer i
-				// for each stateEquivalanceClass c, represented by state c_q
-				Map<Integer, Integer> qOutEdges = delta.get(qIdx);
-				Integer stateEquivalenceClass = stateEquivalenceClasses.get(qOutEdges);
-				if (stateEquivalenceClass == null) {
-					stateEquivalenceClasses.put(qOutEdges, qIdx);
-				} else {
-//					System.out.println("Combining state " + qIdx + " into " + stateEquivalenceClass);
-					// if q belongs to c
-					// point all of q's in-edges to c_q in delta and in stateInfo
-					Map<Integer, Set<Integer>> cQToEdges = stateInfo.get(stateEquivalenceClass).getSecond();
-					final Triple<Integer, Map<Integer, Set<Integer>>, Map<Integer, Integer>> qToEdgesAndConstraints = stateInfo.get(qIdx);
-					Map<Integer, Set<Integer>> qToEdges = qToEdgesAndConstraints.getSecond();
-					for (Integer prevQ : qToEdges.keySet()) {
-						Set<Integer> labelsFromPrevQ = cQToEdges.get(prevQ);
-						final Set<Integer> qToEdgeLabels = qToEdges.get(prevQ);
-						for (Integer qToEdgeLabel : qToEdgeLabels) {
-							Utils.setValueForKeys(delta, prevQ, qToEdgeLabel, stateEquivalenceClass);
-							// update stateDictionary
-//							Utils.setValueForKeys(stateDictionary, i, qToEdgeLabel, qConstraints, stateEquivalenceClass);
-						}
-						if (labelsFromPrevQ == null) {
-							cQToEdges.put(prevQ, qToEdgeLabels);
-						} else {
-							labelsFromPrevQ.addAll(qToEdgeLabels);
-						}
-					}
-					
-					// remove all of q's out edges from delta and stateInfo
-					Map<Integer, Integer> qFromEdges = delta.remove(qIdx);
-					for (Integer qFromEdgeState : qFromEdges.values()) {
-						stateInfo.get(qFromEdgeState).getSecond().remove(qIdx);
-					}
-				}
-			}
-
-		}
-	}
-
 	private static <T extends Token> int[][] computeEquivalenceClasses(BidirectionalVariableOrderPrefixIDMap<T> stateIndex, List<Comparator<T>> equivalenceRelations, int numRelations) {
 		
 		List<LinkedList<T>> idToPrefixMap = stateIndex.getIDToPrefixMap();		
@@ -448,7 +399,7 @@ public class MatchDFABuilderBFS {
 		
 		boolean[] matchConstraintOutcomeList = new boolean[matchConstraintList.length];
 		Arrays.fill(matchConstraintOutcomeList, true);
-		Automaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
+		CompactAutomaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
 		
 		final ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>> constraints = new ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>>();
 		for (int i = 0; i < length; i++) {
@@ -462,7 +413,7 @@ public class MatchDFABuilderBFS {
 			System.out.println("\t\t" + generate + "\tProb:" + NHMM.probabilityOfSequence(generate.toArray(new Token[0])));
 		}
 		
-		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A, length, constraints);
+		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A.toAutomaton(), length, constraints);
 		System.out.println("Factor Graph:");
 		for (int i = 0; i < 20; i++) {
 			final Pair<List<StateToken<SyllableToken>>,Double> generate = factorGraph.generate(length);
@@ -512,7 +463,7 @@ public class MatchDFABuilderBFS {
 		boolean[] matchConstraintOutcomeList = new boolean[matchConstraintList.length];
 		Arrays.fill(matchConstraintOutcomeList, true);
 		
-		Automaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
+		CompactAutomaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
 		
 		final ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>> constraints = new ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>>();
 		for (int i = 0; i < length; i++) {
@@ -526,7 +477,7 @@ public class MatchDFABuilderBFS {
 			System.out.println("\t\t" + generate + "\tProb:" + NHMM.probabilityOfSequence(generate.toArray(new Token[0])));
 		}
 		
-		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A, length, constraints);
+		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A.toAutomaton(), length, constraints);
 		System.out.println("Factor Graph:");
 		for (int i = 0; i < 20; i++) {
 			final Pair<List<StateToken<SyllableToken>>,Double> generate = factorGraph.generate(length);
@@ -576,7 +527,7 @@ public class MatchDFABuilderBFS {
 		boolean[] matchConstraintOutcomeList = new boolean[matchConstraintList.length];
 		Arrays.fill(matchConstraintOutcomeList, true);
 		
-		Automaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
+		CompactAutomaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
 		
 		final ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>> constraints = new ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>>();
 		for (int i = 0; i < length; i++) {
@@ -590,7 +541,7 @@ public class MatchDFABuilderBFS {
 			System.out.println("\t\t" + generate + "\tProb:" + NHMM.probabilityOfSequence(generate.toArray(new Token[0])));
 		}
 		
-		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A, length, constraints);
+		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A.toAutomaton(), length, constraints);
 		System.out.println("Factor Graph:");
 		for (int i = 0; i < 20; i++) {
 			final Pair<List<StateToken<SyllableToken>>,Double> generate = factorGraph.generate(length);
@@ -636,14 +587,14 @@ public class MatchDFABuilderBFS {
 		boolean[] matchConstraintOutcomeList = new boolean[matchConstraintList.length];
 		Arrays.fill(matchConstraintOutcomeList, true);
 		
-		Automaton<CharacterToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, M);
+		CompactAutomaton<CharacterToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, M);
 		
 		System.out.println("A.sigma:");
 		System.out.println(A.sigma.getIDToPrefixMap());
 		System.out.println("A.delta:");
-		System.out.println(A.delta);
+		System.out.println(A.toAutomaton().delta);
 		System.out.println("A.acceptingStates:");
-		System.out.println(A.acceptingStates);
+		System.out.println(A.toAutomaton().acceptingStates);
 	}
 	
 	private static void runExample5() throws UnsatisfiableConstraintSetException, InterruptedException {
@@ -684,14 +635,14 @@ public class MatchDFABuilderBFS {
 		boolean[] matchConstraintOutcomeList = new boolean[matchConstraintList.length];
 		Arrays.fill(matchConstraintOutcomeList, true);
 		
-		Automaton<CharacterToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, M);
+		CompactAutomaton<CharacterToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, M);
 		
 		System.out.println("A.sigma:");
 		System.out.println(A.sigma.getIDToPrefixMap());
 		System.out.println("A.delta:");
-		System.out.println(A.delta);
+		System.out.println(A.toAutomaton().delta);
 		System.out.println("A.acceptingStates:");
-		System.out.println(A.acceptingStates);
+		System.out.println(A.toAutomaton().acceptingStates);
 	}
 	
 	private static void runExample6() throws UnsatisfiableConstraintSetException, InterruptedException {
@@ -738,14 +689,14 @@ public class MatchDFABuilderBFS {
 		boolean[] matchConstraintOutcomeList = new boolean[matchConstraintList.length];
 		Arrays.fill(matchConstraintOutcomeList, true);
 		
-		Automaton<CharacterToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, M, controlConstraints);
+		CompactAutomaton<CharacterToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, M, controlConstraints);
 		
 		System.out.println("A.sigma:");
 		System.out.println(A.sigma.getIDToPrefixMap());
 		System.out.println("A.delta:");
-		System.out.println(A.delta);
+		System.out.println(A.toAutomaton().delta);
 		System.out.println("A.acceptingStates:");
-		System.out.println(A.acceptingStates);
+		System.out.println(A.toAutomaton().acceptingStates);
 	}
 	
 	private static void runExample7() throws UnsatisfiableConstraintSetException, InterruptedException {
@@ -794,14 +745,14 @@ public class MatchDFABuilderBFS {
 			Arrays.fill(bs, true);
 		}
 		
-		Automaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
+		CompactAutomaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
 		
 		System.out.println("A.sigma:");
 		System.out.println(A.sigma.getIDToPrefixMap());
 		System.out.println("A.delta:");
-		System.out.println(A.delta);
+		System.out.println(A.toAutomaton().delta);
 		System.out.println("A.acceptingStates:");
-		System.out.println(A.acceptingStates);
+		System.out.println(A.toAutomaton().acceptingStates);
 		
 		final ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>> constraints = new ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>>();
 		for (int i = 0; i < length; i++) {
@@ -815,7 +766,7 @@ public class MatchDFABuilderBFS {
 			System.out.println("\t\t" + generate + "\tProb:" + NHMM.probabilityOfSequence(generate.toArray(new Token[0])));
 		}
 		
-		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A, length, constraints);
+		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A.toAutomaton(), length, constraints);
 		System.out.println("Factor Graph:");
 		for (int i = 0; i < 20; i++) {
 			final Pair<List<StateToken<SyllableToken>>,Double> generate = factorGraph.generate(length);
@@ -869,14 +820,14 @@ public class MatchDFABuilderBFS {
 			Arrays.fill(bs, true);
 		}
 		
-		Automaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
+		CompactAutomaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
 		
 		System.out.println("A.sigma:");
 		System.out.println(A.sigma.getIDToPrefixMap());
 		System.out.println("A.delta:");
-		System.out.println(A.delta);
+		System.out.println(A.toAutomaton().delta);
 		System.out.println("A.acceptingStates:");
-		System.out.println(A.acceptingStates);
+		System.out.println(A.toAutomaton().acceptingStates);
 		
 		final ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>> constraints = new ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>>();
 		for (int i = 0; i < length; i++) {
@@ -890,7 +841,7 @@ public class MatchDFABuilderBFS {
 			System.out.println("\t\t" + generate + "\tProb:" + NHMM.probabilityOfSequence(generate.toArray(new Token[0])));
 		}
 		
-		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A, length, constraints);
+		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A.toAutomaton(), length, constraints);
 		System.out.println("Factor Graph:");
 		for (int i = 0; i < 20; i++) {
 			final Pair<List<StateToken<SyllableToken>>,Double> generate = factorGraph.generate(length);
@@ -1,5 +1,6 @@
 package automaton;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -10,13 +11,14 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-
-import org.apache.commons.lang3.time.StopWatch;
-
 import java.util.Set;
 import java.util.SortedSet;
-import java.util.Stack;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import automaton.RegularConstraintApplier.StateToken;
 import dbtb.constraint.ConditionedConstraint;
@@ -28,6 +30,7 @@ import dbtb.markov.BidirectionalVariableOrderPrefixIDMap;
 import dbtb.markov.SparseVariableOrderMarkovModel;
 import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken;
 import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken.CharacterTokenConstraint;
+import dbtb.markov.SharedPool;
 import dbtb.markov.SparseVariableOrderNHMMMultiThreaded;
 import dbtb.markov.Token;
 import dbtb.markov.UnsatisfiableConstraintSetException;
@@ -37,7 +40,7 @@ import dbtb.utils.Utils;
 
 public class MatchDFABuilderDFS {
 
-	public static <T extends Token> Automaton<T> buildEfficiently(int[] matchConstraintList, boolean[] matchConstraintOutcomeList, SparseVariableOrderMarkovModel<T> markovModel) {
+	public static <T extends Token> CompactAutomaton<T> buildEfficiently(int[] matchConstraintList, boolean[] matchConstraintOutcomeList, SparseVariableOrderMarkovModel<T> markovModel) {
 		List<List<ConditionedConstraint<T>>> controlConstraints = new ArrayList<List<ConditionedConstraint<T>>>();
 		
 		for (int i = 0; i < matchConstraintList.length; i++) {
@@ -47,7 +50,7 @@ public class MatchDFABuilderDFS {
 		return buildEfficiently(matchConstraintList, matchConstraintOutcomeList, markovModel, controlConstraints);
 	}
 
-	public static <T extends Token> Automaton<T> buildEfficiently(int[] matchConstraintList, boolean[] matchConstraintOutcomeList, SparseVariableOrderMarkovModel<T> markovModel, List<List<ConditionedConstraint<T>>> controlConstraints) {
+	public static <T extends Token> CompactAutomaton<T> buildEfficiently(int[] matchConstraintList, boolean[] matchConstraintOutcomeList, SparseVariableOrderMarkovModel<T> markovModel, List<List<ConditionedConstraint<T>>> controlConstraints) {
 		int[][] newMatchConstraintList = new int[1][];
 		newMatchConstraintList[0] = matchConstraintList;
 		boolean[][] newMatchConstraintOutcomeList = new boolean[1][];
@@ -56,7 +59,7 @@ public class MatchDFABuilderDFS {
 	}
 	
 	
-	public static <T extends Token> Automaton<T> buildEfficiently(int[] matchConstraintList, boolean[] matchConstraintOutcomeList, 
+	public static <T extends Token> CompactAutomaton<T> buildEfficiently(int[] matchConstraintList, boolean[] matchConstraintOutcomeList, 
 			List<Comparator<T>> equivalenceRelations, SparseVariableOrderMarkovModel<T> markovModel) {
 		
 		int[][] newMatchConstraintList = new int[1][];
@@ -74,7 +77,7 @@ public class MatchDFABuilderDFS {
 		return buildEfficiently(newMatchConstraintList, newMatchConstraintOutcomeList, equivalenceRelations, markovModel, controlConstraints);
 	}
 
-	public static <T extends Token> Automaton<T> buildEfficiently(int[][] matchConstraintList, boolean[][] matchConstraintOutcomeList, 
+	public static <T extends Token> CompactAutomaton<T> buildEfficiently(int[][] matchConstraintList, boolean[][] matchConstraintOutcomeList, 
 			List<Comparator<T>> equivalenceRelations, SparseVariableOrderMarkovModel<T> markovModel) {
 		List<List<ConditionedConstraint<T>>> controlConstraints = new ArrayList<List<ConditionedConstraint<T>>>();
 		
@@ -84,7 +87,16 @@ public class MatchDFABuilderDFS {
 		return buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, markovModel, controlConstraints);
 	}
 	
-	public static <T extends Token> Automaton<T> buildEfficiently(int[][] matchConstraintList, boolean[][] matchConstraintOutcomeList, List<Comparator<T>> equivalenceRelations, SparseVariableOrderMarkovModel<T> markovModel, List<List<ConditionedConstraint<T>>> controlConstraints) {
+	public static <T extends Token> CompactAutomaton<T> buildEfficiently(int[][] matchConstraintList, boolean[][] matchConstraintOutcomeList, List<Comparator<T>> equivalenceRelations, SparseVariableOrderMarkovModel<T> markovModel, List<List<ConditionedConstraint<T>>> controlConstraints) {
+		return buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, markovModel, controlConstraints, SharedPool.get());
+	}
+
+	/**
+	 * Searches depth first on pool, starting one task per root state (see {@link SearchTask}), and merges the tries of
+	 * solutions built by the tasks into one DFA. All tasks stop once 40% of memory is used or after 20 s, keeping the
+	 * solutions found so far.
+	 */
+	public static <T extends Token> CompactAutomaton<T> buildEfficiently(int[][] matchConstraintList, boolean[][] matchConstraintOutcomeList, List<Comparator<T>> equivalenceRelations, SparseVariableOrderMarkovModel<T> markovModel, List<List<ConditionedConstraint<T>>> controlConstraints, ForkJoinPool pool) {
 		if (markovModel.order != 1) throw new RuntimeException("Markov order other than 1 not supported. See other implementations.");
 		Map<Integer, Map<Integer, Integer>> delta = new HashMap<Integer, Map<Integer, Integer>>();
 		Set<Integer> acceptingStates = new HashSet<Integer>();
@@ -106,160 +118,227 @@ public class MatchDFABuilderDFS {
 		}
 
 		int[][] equivalenceClassMap = computeEquivalenceClasses(markovModel.stateIndex, equivalenceRelations, matchConstraintList.length);
+		final Search<T> search = new Search<T>(markovModel, controlConstraints, dfsMatchConstraintList, dfsMatchConstraintOutcomeList, 
+				equivalenceClassMap, matchConstraintList[0].length, 20000);
 
-		// 0-based depth and Markov state
-		Stack<Pair<Integer,Integer>> visitStack = new Stack<Pair<Integer,Integer>>();
-		Stack<Integer> pathStack = new Stack<Integer>();
-		Stack<Integer> currentPathStateStack = new Stack<Integer>();
-		currentPathStateStack.push(0);
-		delta.put(0, new HashMap<Integer,Integer>());
-		
-		List<ConditionedConstraint<T>> controlConstraintsAti = controlConstraints.get(0);
 		final List<Integer> initialStates = new ArrayList<Integer>(markovModel.logPriors.keySet());
 		Collections.shuffle(initialStates);
+		final List<SearchTask<T>> tasks = new ArrayList<SearchTask<T>>();
 		for (Integer state : initialStates) {
-			boolean keep = true;
-			for (ConditionedConstraint<T> conditionedConstraint : controlConstraintsAti) {
-				final Constraint<T> constraint = conditionedConstraint.getConstraint();
-				final LinkedList<T> prefixForID = markovModel.stateIndex.getPrefixForID(state);
-				if (constraint instanceof StateConstraint && ((StateConstraint<T>)constraint).isSatisfiedBy(prefixForID, 0) != conditionedConstraint.getDesiredConditionState()) {
-					keep = false;
-					break;
-				}
+			if (search.satisfiesControlConstraints(0, state)) {
+				tasks.add(new SearchTask<T>(search, new int[0], state));
 			}
-			if (keep) {
-				visitStack.push(new Pair<Integer,Integer>(0, state));
+		}
+		
+		final List<Map<Integer, Map<Integer, Integer>>> tries = pool.invoke(new RecursiveTask<List<Map<Integer, Map<Integer, Integer>>>>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected List<Map<Integer, Map<Integer, Integer>>> compute() {
+				final List<Map<Integer, Map<Integer, Integer>>> tries = new ArrayList<Map<Integer, Map<Integer, Integer>>>();
+				for (SearchTask<T> task : invokeAll(tasks)) {
+					tries.addAll(task.join());
+				}
+				return tries;
 			}
-		}		
+		});
 		
-		Map<Integer, Map<Integer, Double>> validMarkovTransitions = markovModel.logTransitions;
+		delta.put(0, new HashMap<Integer,Integer>());
+		for (int i = 0; i < tries.size(); i++) {
+			nextStateID = mergeTrie(delta, 0, tries.get(i), 0, nextStateID);
+			tries.set(i, null);
+		}
+		
+		if (delta.size() == 0) {
+			throw new RuntimeException("Unsatisfiable");
+		}
 		
-		Integer currentDepth, currentMarkovState;
-		Pair<Integer, Integer> currentDepthAndState;
-		int equivalenceClassAtMatchPos;
+		System.out.println("" + search.solutions.get() + " solutions found via DFS");
 		
-		StopWatch watch = new StopWatch();
-		watch.start();
-		int solutions = 0;
+		acceptingStates.add(Integer.MAX_VALUE);
 		
-		while(!visitStack.isEmpty()) {
-			currentDepthAndState = visitStack.pop();
-//			System.out.println("Popped Depth and State: " + currentDepthAndState);
-			currentDepth = currentDepthAndState.getFirst();
-			final int nextDepth = currentDepth+1;
-			currentMarkovState = currentDepthAndState.getSecond();
-			
-			//pop visited path to get to currentDepth
-			while(pathStack.size() > currentDepth) {
-				pathStack.pop();
-				if (pathStack.size() < currentPathStateStack.size()-1)
-					currentPathStateStack.pop();
+		// the DFA is a trie of the solutions found, so condense it by merging states with the same futures
+		return DFAMinimizer.minimize(new CompactAutomaton<T>(new Automaton<T>(markovModel.stateIndex,delta,acceptingStates)));
+	}
+
+	/**
+	 * Adds the sequences in trie below its state q to delta below state p, following the states delta already has for
+	 * common prefixes. Integer.MAX_VALUE is the accepting state of both.
+	 * 
+	 * @return the next unused state ID in delta
+	 */
+	private static int mergeTrie(Map<Integer, Map<Integer, Integer>> delta, int p, Map<Integer, Map<Integer, Integer>> trie, int q, int nextStateID) {
+		final Map<Integer, Integer> fromP = delta.get(p);
+		Integer toP;
+		for (Entry<Integer, Integer> transition : trie.get(q).entrySet()) {
+			if (transition.getValue() == Integer.MAX_VALUE) {
+				fromP.put(transition.getKey(), Integer.MAX_VALUE);
+				continue;
+			}
+			toP = fromP.get(transition.getKey());
+			if (toP == null) {
+				toP = nextStateID++;
+				fromP.put(transition.getKey(), toP);
+				delta.put(toP, new HashMap<Integer, Integer>());
+			}
+			nextStateID = mergeTrie(delta, toP, trie, transition.getValue(), nextStateID);
+		}
+		return nextStateID;
+	}
+
+	/**
+	 * What the tasks of one search share: the constraints, the time and memory limits, and the number of solutions found
+	 */
+	private static class Search<T extends Token> {
+		private final SparseVariableOrderMarkovModel<T> markovModel;
+		private final List<List<ConditionedConstraint<T>>> controlConstraints;
+		private final int[][] dfsMatchConstraintList;
+		private final boolean[][] dfsMatchConstraintOutcomeList;
+		private final int[][] equivalenceClassMap;
+		private final int length;
+		private final long deadline;
+		private final AtomicBoolean limitReached = new AtomicBoolean(false);
+		private final AtomicInteger solutions = new AtomicInteger(0);
+
+		private Search(SparseVariableOrderMarkovModel<T> markovModel, List<List<ConditionedConstraint<T>>> controlConstraints, int[][] dfsMatchConstraintList, 
+				boolean[][] dfsMatchConstraintOutcomeList, int[][] equivalenceClassMap, int length, long timeLimitInMS) {
+			this.markovModel = markovModel;
+			this.controlConstraints = controlConstraints;
+			this.dfsMatchConstraintList = dfsMatchConstraintList;
+			this.dfsMatchConstraintOutcomeList = dfsMatchConstraintOutcomeList;
+			this.equivalenceClassMap = equivalenceClassMap;
+			this.length = length;
+			this.deadline = System.currentTimeMillis() + timeLimitInMS;
+		}
+
+		private boolean satisfiesControlConstraints(int depth, int state) {
+			for (ConditionedConstraint<T> conditionedConstraint : controlConstraints.get(depth)) {
+				final Constraint<T> constraint = conditionedConstraint.getConstraint();
+				final LinkedList<T> prefixForID = markovModel.stateIndex.getPrefixForID(state);
+				if (constraint instanceof StateConstraint && ((StateConstraint<T>)constraint).isSatisfiedBy(prefixForID, 0) != conditionedConstraint.getDesiredConditionState()) {
+					return false;
+				}
 			}
+			return true;
+		}
+
+		/**
+		 * @param path the states at depths 0 to depth-1
+		 */
+		private boolean satisfiesMatchConstraints(int[] path, int depth, int state) {
+			int equivalenceClassAtMatchPos;
+			for (int j = 0; j < dfsMatchConstraintList.length; j++) {
+				if (dfsMatchConstraintList[j][depth] != -1) {
+					equivalenceClassAtMatchPos = equivalenceClassMap[j][path[dfsMatchConstraintList[j][depth]]];
+					if ((equivalenceClassAtMatchPos == equivalenceClassMap[j][state]) != dfsMatchConstraintOutcomeList[j][depth]) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		private boolean isLimitReached() {
+			if (limitReached.get()) return true;
+			if (computePercentTotalMemoryUsed() > 40 || System.currentTimeMillis() > deadline) {
+				if (limitReached.compareAndSet(false, true)) {
+					System.out.println("Time or memory limit reached");
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Searches depth first below a prefix and a state following it, building a trie of the solutions found (whose
+	 * state 0 is the empty prefix, so the tries of all tasks can be merged from their roots). Whenever the pool's other
+	 * workers run out of queued tasks, the shallowest subtree still waiting on this task's stack is forked off as a new
+	 * task, so a deep search from one root state is spread over the pool as well.
+	 */
+	private static class SearchTask<T extends Token> extends RecursiveTask<List<Map<Integer, Map<Integer, Integer>>>> {
+		private static final long serialVersionUID = 1L;
+
+		// forked subtrees must have at least this many positions left, so that tasks are worth their overhead
+		private static final int MIN_SPLIT_DEPTH = 3;
+
+		private final Search<T> search;
+		private final int[] prefix;
+		private final int state;
+
+		private SearchTask(Search<T> search, int[] prefix, int state) {
+			this.search = search;
+			this.prefix = prefix;
+			this.state = state;
+		}
+
+		@Override
+		protected List<Map<Integer, Map<Integer, Integer>>> compute() {
+			final int length = search.length;
+			final Map<Integer, Map<Integer, Double>> validMarkovTransitions = search.markovModel.logTransitions;
+			final int[] path = Arrays.copyOf(prefix, length);
 			
-			pathStack.push(currentMarkovState);
-//			System.out.println("visitStack: " + visitStack);
-//			System.out.println("pathStack: " + pathStack);
-			final Map<Integer, Double> validMarkovTransitionsFromLabel = validMarkovTransitions.get(currentMarkovState);
+			// trieStates[i] is the state of the trie reached by path[0..i-1], for i up to trieDepth
+			final Map<Integer, Map<Integer, Integer>> trie = new HashMap<Integer, Map<Integer, Integer>>();
+			trie.put(0, new HashMap<Integer, Integer>());
+			final int[] trieStates = new int[length];
+			int trieDepth = 0, nextStateID = 1;
+
+			// 0-based depth and Markov state
+			final ArrayDeque<Pair<Integer,Integer>> visitStack = new ArrayDeque<Pair<Integer,Integer>>();
+			visitStack.push(new Pair<Integer,Integer>(prefix.length, state));
+			final List<SearchTask<T>> forked = new ArrayList<SearchTask<T>>();
 			
-			controlConstraintsAti = controlConstraints.get(nextDepth);
-			final List<Integer> nextStates = validMarkovTransitionsFromLabel == null ? new ArrayList<Integer>() : new ArrayList<Integer>(validMarkovTransitionsFromLabel.keySet());
-			Collections.shuffle(nextStates);
-			for (Integer validMarkovTransition : nextStates) {
-				boolean keep = true;
-				//control constraints
-				for (ConditionedConstraint<T> conditionedConstraint : controlConstraintsAti) {
-//					System.out.println("Checking control constraint");
-					final Constraint<T> constraint = conditionedConstraint.getConstraint();
-					final LinkedList<T> prefixForID = markovModel.stateIndex.getPrefixForID(validMarkovTransition);
-					if (constraint instanceof StateConstraint && ((StateConstraint<T>)constraint).isSatisfiedBy(prefixForID, 0) != conditionedConstraint.getDesiredConditionState()) {
-						keep = false;
-						break;
-					}
+			Pair<Integer, Integer> currentDepthAndState;
+			int currentDepth, nextDepth;
+			Map<Integer, Integer> fromMap;
+			while (!visitStack.isEmpty() && !search.isLimitReached()) {
+				if (visitStack.size() > 1 && visitStack.peekLast().getFirst() + MIN_SPLIT_DEPTH < length && getSurplusQueuedTaskCount() == 0) {
+					currentDepthAndState = visitStack.pollLast();
+					final SearchTask<T> task = new SearchTask<T>(search, Arrays.copyOf(path, currentDepthAndState.getFirst()), currentDepthAndState.getSecond());
+					task.fork();
+					forked.add(task);
 				}
 				
-				//match constraints
-				for (int j = 0; j < dfsMatchConstraintList.length; j++) {
-					if (dfsMatchConstraintList[j][nextDepth] != -1) {
-//						System.out.println("Checking match constraint");
-						equivalenceClassAtMatchPos = equivalenceClassMap[j][pathStack.elementAt(dfsMatchConstraintList[j][nextDepth])];
-						if ((equivalenceClassAtMatchPos == equivalenceClassMap[j][validMarkovTransition]) != dfsMatchConstraintOutcomeList[j][nextDepth]) {
-//							System.out.println("" + dfsMatchConstraintList[j][nextDepth] + "≠" + nextDepth);
-							keep = false;
-							break;
-						}
-					}
-				}
-				if (keep) {
-					final Pair<Integer, Integer> nextDepthAndState = new Pair<Integer,Integer>(nextDepth, validMarkovTransition);
-					if (nextDepth+1 == matchConstraintList[0].length) {
-
-//						System.out.println("Solution found: " + pathStack + " " + validMarkovTransition);
-						solutions++;
-//						System.out.println("Before adding solution, current state stack is " + currentPathStateStack);
-//						System.out.println("Before adding solution, delta is " + delta);
-						// Each time a solution is found it is folded into the DFA (keep a reverse delta)
-//						addSolutionToDFA(pathStack,delta,invDelta);
-						
-						int lastStateInDelta = currentPathStateStack.peek();
-//						System.out.println("Last State in Delta = " + lastStateInDelta);
-						
-						// add the solution to the DFA and update book keeping
-						Map<Integer, Integer> fromMap = delta.get(lastStateInDelta);
-						Integer nextLabel;
-						for (int i = currentPathStateStack.size()-1; i < pathStack.size(); i++) {
-							nextLabel = pathStack.get(i);
-//							System.out.println("Next label = " + nextLabel);
-							
-							// make new state
-							lastStateInDelta = nextStateID++;
-//							System.out.println("Created new state = " + lastStateInDelta);
-							
-							// insert new state into stack of states in the current path that have been put into delta
-							currentPathStateStack.add(lastStateInDelta);
-							
-							// put path to new state in delta
-							fromMap.put(nextLabel, lastStateInDelta);
-
-							// make new delta sub-map for new state and insert
+				currentDepthAndState = visitStack.pop();
+				currentDepth = currentDepthAndState.getFirst();
+				nextDepth = currentDepth+1;
+				path[currentDepth] = currentDepthAndState.getSecond();
+				trieDepth = Math.min(trieDepth, currentDepth);
+				
+				final Map<Integer, Double> validMarkovTransitionsFromLabel = validMarkovTransitions.get(path[currentDepth]);
+				final List<Integer> nextStates = validMarkovTransitionsFromLabel == null ? new ArrayList<Integer>() : new ArrayList<Integer>(validMarkovTransitionsFromLabel.keySet());
+				Collections.shuffle(nextStates, ThreadLocalRandom.current());
+				for (Integer validMarkovTransition : nextStates) {
+					if (!search.satisfiesControlConstraints(nextDepth, validMarkovTransition) || !search.satisfiesMatchConstraints(path, nextDepth, validMarkovTransition)) continue;
+					
+					if (nextDepth+1 == length) {
+						search.solutions.incrementAndGet();
+						// the search never returns to a prefix it has left, so the trie has no states for path past trieDepth yet
+						fromMap = trie.get(trieStates[trieDepth]);
+						for (; trieDepth <= currentDepth; trieDepth++) {
+							trieStates[trieDepth+1] = nextStateID;
+							fromMap.put(path[trieDepth], nextStateID);
 							fromMap = new HashMap<Integer, Integer>();
-							delta.put(lastStateInDelta, fromMap);
+							trie.put(nextStateID++, fromMap);
 						}
-						nextLabel = validMarkovTransition;
-//						System.out.println("Last label = " + nextLabel);
-						lastStateInDelta = Integer.MAX_VALUE;
-//						System.out.println("Accepting state = " + lastStateInDelta);
-						// put path to new state in delta
-						fromMap.put(nextLabel, lastStateInDelta);
-
-						
-//						System.out.println("After adding solution, current state stack is " + currentPathStateStack);
-//						System.out.println("After adding solution, delta is " + delta);
-
+						fromMap.put(validMarkovTransition, Integer.MAX_VALUE);
 					} else {
-//						System.out.println("Pushing " + nextDepthAndState);
-						visitStack.push(nextDepthAndState);
+						visitStack.push(new Pair<Integer,Integer>(nextDepth, validMarkovTransition));
 					}
 				}
 			}
 			
-			if (computePercentTotalMemoryUsed() > 40 || watch.getTime() > 20000) {
-				System.out.println("Time or memory limit reached");
-				break;
+			final List<Map<Integer, Map<Integer, Integer>>> tries = new ArrayList<Map<Integer, Map<Integer, Integer>>>();
+			if (!trie.get(0).isEmpty()) {
+				tries.add(trie);
 			}
+			for (SearchTask<T> task : forked) {
+				tries.addAll(task.join());
+			}
+			return tries;
 		}
-		
-		if (delta.size() == 0) {
-			throw new RuntimeException("Unsatisfiable");
-		}
-		
-		System.out.println("" + solutions + " solutions found via DFS");
-		
-		acceptingStates.add(Integer.MAX_VALUE);
-		
-		//Before returning (or when memory becomes an issue) the DFA it needs to be condensed by looking for identical states (same outgoing edge set) at each layer 
-		return new Automaton<T>(markovModel.stateIndex,delta,acceptingStates);
 	}
-
 	
 	public static double computePercentTotalMemoryUsed() {
 		return (100.0*(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()))/Runtime.getRuntime().maxMemory();
@@ -421,7 +500,7 @@ public class MatchDFABuilderDFS {
 		
 		boolean[] matchConstraintOutcomeList = new boolean[matchConstraintList.length];
 		Arrays.fill(matchConstraintOutcomeList, true);
-		Automaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
+		CompactAutomaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
 		
 		final ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>> constraints = new ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>>();
 		for (int i = 0; i < length; i++) {
@@ -435,7 +514,7 @@ public class MatchDFABuilderDFS {
 			System.out.println("\t\t" + generate + "\tProb:" + NHMM.probabilityOfSequence(generate.toArray(new Token[0])));
 		}
 		
-		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A, length, constraints);
+		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A.toAutomaton(), length, constraints);
 		System.out.println("Factor Graph:");
 		for (int i = 0; i < 20; i++) {
 			final Pair<List<StateToken<SyllableToken>>,Double> generate = factorGraph.generate(length);
@@ -485,7 +564,7 @@ public class MatchDFABuilderDFS {
 		boolean[] matchConstraintOutcomeList = new boolean[matchConstraintList.length];
 		Arrays.fill(matchConstraintOutcomeList, true);
 		
-		Automaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
+		CompactAutomaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
 		
 		final ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>> constraints = new ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>>();
 		for (int i = 0; i < length; i++) {
@@ -499,7 +578,7 @@ public class MatchDFABuilderDFS {
 			System.out.println("\t\t" + generate + "\tProb:" + NHMM.probabilityOfSequence(generate.toArray(new Token[0])));
 		}
 		
-		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A, length, constraints);
+		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A.toAutomaton(), length, constraints);
 		System.out.println("Factor Graph:");
 		for (int i = 0; i < 20; i++) {
 			final Pair<List<StateToken<SyllableToken>>,Double> generate = factorGraph.generate(length);
@@ -549,7 +628,7 @@ public class MatchDFABuilderDFS {
 		boolean[] matchConstraintOutcomeList = new boolean[matchConstraintList.length];
 		Arrays.fill(matchConstraintOutcomeList, true);
 		
-		Automaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
+		CompactAutomaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
 		
 		final ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>> constraints = new ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>>();
 		for (int i = 0; i < length; i++) {
@@ -563,7 +642,7 @@ public class MatchDFABuilderDFS {
 			System.out.println("\t\t" + generate + "\tProb:" + NHMM.probabilityOfSequence(generate.toArray(new Token[0])));
 		}
 		
-		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A, length, constraints);
+		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A.toAutomaton(), length, constraints);
 		System.out.println("Factor Graph:");
 		for (int i = 0; i < 20; i++) {
 			final Pair<List<StateToken<SyllableToken>>,Double> generate = factorGraph.generate(length);
@@ -609,14 +688,14 @@ public class MatchDFABuilderDFS {
 		boolean[] matchConstraintOutcomeList = new boolean[matchConstraintList.length];
 		Arrays.fill(matchConstraintOutcomeList, true);
 		
-		Automaton<CharacterToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, M);
+		CompactAutomaton<CharacterToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, M);
 		
 		System.out.println("A.sigma:");
 		System.out.println(A.sigma.getIDToPrefixMap());
 		System.out.println("A.delta:");
-		System.out.println(A.delta);
+		System.out.println(A.toAutomaton().delta);
 		System.out.println("A.acceptingStates:");
-		System.out.println(A.acceptingStates);
+		System.out.println(A.toAutomaton().acceptingStates);
 	}
 	
 	private static void runExample5() throws UnsatisfiableConstraintSetException, InterruptedException {
@@ -657,14 +736,14 @@ public class MatchDFABuilderDFS {
 		boolean[] matchConstraintOutcomeList = new boolean[matchConstraintList.length];
 		Arrays.fill(matchConstraintOutcomeList, true);
 		
-		Automaton<CharacterToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, M);
+		CompactAutomaton<CharacterToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, M);
 		
 		System.out.println("A.sigma:");
 		System.out.println(A.sigma.getIDToPrefixMap());
 		System.out.println("A.delta:");
-		System.out.println(A.delta);
+		System.out.println(A.toAutomaton().delta);
 		System.out.println("A.acceptingStates:");
-		System.out.println(A.acceptingStates);
+		System.out.println(A.toAutomaton().acceptingStates);
 	}
 	
 	private static void runExample6() throws UnsatisfiableConstraintSetException, InterruptedException {
@@ -711,14 +790,14 @@ public class MatchDFABuilderDFS {
 		boolean[] matchConstraintOutcomeList = new boolean[matchConstraintList.length];
 		Arrays.fill(matchConstraintOutcomeList, true);
 		
-		Automaton<CharacterToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, M, controlConstraints);
+		CompactAutomaton<CharacterToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, M, controlConstraints);
 		
 		System.out.println("A.sigma:");
 		System.out.println(A.sigma.getIDToPrefixMap());
 		System.out.println("A.delta:");
-		System.out.println(A.delta);
+		System.out.println(A.toAutomaton().delta);
 		System.out.println("A.acceptingStates:");
-		System.out.println(A.acceptingStates);
+		System.out.println(A.toAutomaton().acceptingStates);
 	}
 	
 	private static void runExample7() throws UnsatisfiableConstraintSetException, InterruptedException {
@@ -767,14 +846,14 @@ public class MatchDFABuilderDFS {
 			Arrays.fill(bs, true);
 		}
 		
-		Automaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
+		CompactAutomaton<SyllableToken> A = buildEfficiently(matchConstraintList, matchConstraintOutcomeList, equivalenceRelations, M);
 		
 		System.out.println("A.sigma:");
 		System.out.println(A.sigma.getIDToPrefixMap());
 		System.out.println("A.delta:");
-		System.out.println(A.delta);
+		System.out.println(A.toAutomaton().delta);
 		System.out.println("A.acceptingStates:");
-		System.out.println(A.acceptingStates);
+		System.out.println(A.toAutomaton().acceptingStates);
 		
 		final ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>> constraints = new ArrayList<List<ConditionedConstraint<StateToken<SyllableToken>>>>();
 		for (int i = 0; i < length; i++) {
@@ -788,7 +867,7 @@ public class MatchDFABuilderDFS {
 			System.out.println("\t\t" + generate + "\tProb:" + NHMM.probabilityOfSequence(generate.toArray(new Token[0])));
 		}
 		
-		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A, length, constraints);
+		FactorGraph<SyllableToken> factorGraph = RegularConstraintApplier.combineAutomataWithMarkovInFactorGraph(M, A.toAutomaton(), length, constraints);
 		System.out.println("Factor Graph:");
 		for (int i = 0; i < 20; i++) {
 			final Pair<List<StateToken<SyllableToken>>,Double> generate = factorGraph.generate(length);
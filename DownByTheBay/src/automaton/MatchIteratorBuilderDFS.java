@@ -98,6 +98,8 @@ public class MatchIteratorBuilderDFS {
 		private SparseVariableOrderMarkovModel<T> markovModel;
 		private List<Comparator<T>> equivalenceRelations;
 		private int timeLimit = -1;
+		// moved from state to state so that checking constraints doesn't allocate per state
+		private final BidirectionalVariableOrderPrefixIDMap<T>.PrefixWindow stateWindow, matchWindow;
 
 		public MatchIterator(int[][] matchConstraintList, boolean[][] matchConstraintOutcomeList, List<Comparator<T>> equivalenceRelations, SparseVariableOrderMarkovModel<T> markovModel, List<List<ConditionedConstraint<T>>> controlConstraints, int timeLimit) {
 			if (markovModel.order > matchConstraintList[0].length) throw new RuntimeException("Markov order (" + markovModel.order + ") is greater than desired sequence length (" + matchConstraintList.length + ")");
@@ -128,13 +130,15 @@ public class MatchIteratorBuilderDFS {
 			this.equivalenceRelations = equivalenceRelations;
 			this.controlConstraints = controlConstraints;
 			this.markovModel = markovModel;
+			this.stateWindow = markovModel.stateIndex.newWindow();
+			this.matchWindow = markovModel.stateIndex.newWindow();
 			
 			List<Integer> initialStates = probabilisticallySortedKeyset(markovModel.logPriors);
 			Collections.reverse(initialStates);
 
 //			Collections.shuffle(initialStates);
 			for (Integer state : initialStates) {
-				final LinkedList<T> prefixForID = markovModel.stateIndex.getPrefixForID(state);
+				final BidirectionalVariableOrderPrefixIDMap<T>.PrefixWindow prefixForID = stateWindow.moveTo(state);
 				boolean keep = true;
 				// initial states have to satisfy control constraints at all positions represented in token
 				for (int i = 0; keep && i < markovModel.order; i++) { 
@@ -209,7 +213,7 @@ public class MatchIteratorBuilderDFS {
 
 //					Collections.shuffle(nextStates);
 					for (Integer validMarkovTransition : nextStates) {
-						final LinkedList<T> prefixForID = markovModel.stateIndex.getPrefixForID(validMarkovTransition);
+						final BidirectionalVariableOrderPrefixIDMap<T>.PrefixWindow prefixForID = stateWindow.moveTo(validMarkovTransition);
 						boolean keep = true;
 						//control constraints
 						for (ConditionedConstraint<T> conditionedConstraint : controlConstraintsAti) {
@@ -227,8 +231,8 @@ public class MatchIteratorBuilderDFS {
 							if (matchConstraintAtPosForSet != -1) {
 								//	System.out.println("Checking match constraint");
 								T prevTokenToMatch = (matchConstraintAtPosForSet < markovModel.order ? 
-										markovModel.stateIndex.getPrefixForID(pathStack.get(0)).get(matchConstraintAtPosForSet) :
-										markovModel.stateIndex.getPrefixForID(pathStack.get(matchConstraintAtPosForSet-markovModel.order+1)).getLast());
+										matchWindow.moveTo(pathStack.get(0)).get(matchConstraintAtPosForSet) :
+										matchWindow.moveTo(pathStack.get(matchConstraintAtPosForSet-markovModel.order+1)).getLast());
 								if (matchConstraintIsSatisfied(equivalenceRelations.get(constraintSet), prevTokenToMatch, prefixForID.getLast()) != dfsMatchConstraintOutcomeList[constraintSet][nextSeqPos]) { // tuple doesn't satisfy match constraint
 									keep = false;
 									break;
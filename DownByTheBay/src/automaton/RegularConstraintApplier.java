@@ -4,16 +4,17 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 
 import org.apache.commons.lang3.time.StopWatch;
 
 import dbtb.constraint.ConditionedConstraint;
-import dbtb.constraint.StatesConstraint;
 import dbtb.data.DataLoader;
 import dbtb.data.SyllableToken;
 import dbtb.markov.BidirectionalVariableOrderPrefixIDMap;
@@ -81,7 +82,7 @@ public class RegularConstraintApplier {
 		
 		final BidirectionalVariableOrderPrefixIDMap<T> oldPrefixMap = M.stateIndex;
 		assert (A.sigma == oldPrefixMap);
-		final Map<Integer, Map<Integer, Double>> oldTransitions = M.logTransitions;
+		final Map<Integer, Map<Integer, Double>> oldIncomingTransitions = incomingTransitions(M.logTransitions);
 		final HashMap<Integer, Double> oldLogPriors = M.logPriors;
 		final Map<Integer, Map<Integer, Integer>> delta = A.delta;
 		
@@ -96,6 +97,7 @@ public class RegularConstraintApplier {
 		
 		Integer fromStateTokenIdx, toStateTokenIdx;
 		Double probability;
+		Map<Integer, Double> predecessors;
 	
 		Map<Integer, Double> g1 = g.get(1);
 		Map<Integer, Integer> deltaInnerMap = delta.get(0); 
@@ -114,18 +116,19 @@ public class RegularConstraintApplier {
 			// for every (q,a') -> ? in delta
 			for (Integer aPrimeIdx : deltaInnerMap.keySet()) {
 				LinkedList<T> aPrime = oldPrefixMap.getPrefixForID(aPrimeIdx);
-				// for every a->? in M's transition matrix
-				for(Integer aIdx: oldTransitions.keySet()) {
-					Map<Integer, Double> transitionsInnerMap = oldTransitions.get(aIdx);
-					// if a->a' is a valid transition
-					probability = transitionsInnerMap.get(aPrimeIdx);
-					if (probability != null) {
-						probability = Math.exp(probability);
-						LinkedList<T> a = oldPrefixMap.getPrefixForID(aIdx);
-						fromStateTokenIdx = newPrefixMap.addPrefix(createStateTokenPrefix(a,qIdx)); // get the id for the from token
+				predecessors = oldIncomingTransitions.get(aPrimeIdx);
+				if (predecessors == null) continue;
+				// the to token is the same for every predecessor; it is added after the first from token so that states are numbered as before
+				toStateTokenIdx = null;
+				// for every a->a' in M's transition matrix
+				for (Entry<Integer, Double> predecessor : predecessors.entrySet()) {
+					probability = Math.exp(predecessor.getValue());
+					LinkedList<T> a = oldPrefixMap.getPrefixForID(predecessor.getKey());
+					fromStateTokenIdx = newPrefixMap.addPrefix(createStateTokenPrefix(a,qIdx)); // get the id for the from token
+					if (toStateTokenIdx == null) {
 						toStateTokenIdx = newPrefixMap.addPrefix(createStateTokenPrefix(aPrime,deltaInnerMap.get(aPrimeIdx))); // and the id for the to token
-						Utils.setValueForKeys(f, fromStateTokenIdx, toStateTokenIdx, probability); // and add it to f
 					}
+					Utils.setValueForKeys(f, fromStateTokenIdx, toStateTokenIdx, probability); // and add it to f
 				}
 			}
 		}
@@ -144,93 +147,49 @@ public class RegularConstraintApplier {
 		return new FactorGraph<T>(f,g,newPrefixMap,length);
 	}
 	
+	/**
+	 * Builds the NHMM over the product of M and A layer by layer (see {@link LayeredProductBuilder}), so that only the
+	 * product states on some sequence of length that A accepts are created
+	 */
 	public static <T extends Token> SparseVariableOrderNHMMMultiThreaded<StateToken<T>> combineAutomataWithMarkov(SparseVariableOrderMarkovModel<T> M, 
 			Automaton<T> A, int length, List<List<ConditionedConstraint<StateToken<T>>>> constraints) throws UnsatisfiableConstraintSetException, InterruptedException {
-		
-		final BidirectionalVariableOrderPrefixIDMap<T> oldPrefixMap = M.stateIndex;
-		assert (A.sigma == oldPrefixMap);
-		final Map<Integer, Map<Integer, Double>> oldTransitions = M.logTransitions;
-		final HashMap<Integer, Double> oldLogPriors = M.logPriors;
-		final Map<Integer, Map<Integer, Integer>> delta = A.delta;
-		
-		BidirectionalVariableOrderPrefixIDMap<StateToken<T>> newPrefixMap = new BidirectionalVariableOrderPrefixIDMap<StateToken<T>>(oldPrefixMap.getOrder()); 
-		Map<Integer,Double> newPriors = new HashMap<Integer, Double>();
-		Map<Integer,Map<Integer, Double>> newTransitions = new HashMap<Integer,Map<Integer,Double>>();
-
-		
-		// A.delta : first index is for label a (in sigma), second index is for state q,  
-		// and resulting value is the index for state q' s.t. ∂(q,a) = q'
-		
-		Integer fromStateTokenIdx, toStateTokenIdx;
-		Double probability;
-		
-		Map<Integer, Integer> deltaInnerMap = delta.get(0); 
-		for (Integer aIdx : deltaInnerMap.keySet()) { // for all transitions in ∂ that have label a
-			if (oldLogPriors.containsKey(aIdx)) {
-				LinkedList<T> a = oldPrefixMap.getPrefixForID(aIdx);
-				Integer qTo = deltaInnerMap.get(aIdx);
-				toStateTokenIdx = newPrefixMap.addPrefix(createStateTokenPrefix(a,qTo));
-				newPriors.put(toStateTokenIdx, Math.exp(oldLogPriors.get(aIdx))); // then the new priors allow a with it's previous prior (to be normalized)
-			}
-		}
-//		Utils.normalize(newPriors);
-		
-		// for every q in delta
-		for (Integer qIdx : delta.keySet()) {
-			deltaInnerMap = delta.get(qIdx);
-			// for every (q,a') -> ? in delta
-			for (Integer aPrimeIdx : deltaInnerMap.keySet()) {
-				LinkedList<T> aPrime = oldPrefixMap.getPrefixForID(aPrimeIdx);
-				// for every a->? in M's transition matrix
-				for(Integer aIdx: oldTransitions.keySet()) {
-					Map<Integer, Double> transitionsInnerMap = oldTransitions.get(aIdx);
-					// if a->a' is a valid transition
-					probability = transitionsInnerMap.get(aPrimeIdx);
-					if (probability != null) {
-						probability = Math.exp(probability);
-						LinkedList<T> a = oldPrefixMap.getPrefixForID(aIdx);
-						fromStateTokenIdx = newPrefixMap.addPrefix(createStateTokenPrefix(a,qIdx)); // get the id for the from token
-						toStateTokenIdx = newPrefixMap.addPrefix(createStateTokenPrefix(aPrime,deltaInnerMap.get(aPrimeIdx))); // and the id for the to token
-						Utils.setValueForKeys(newTransitions, fromStateTokenIdx, toStateTokenIdx, probability);
-					}
+		final LayeredProductBuilder<T> builder = new LayeredProductBuilder<T>(M, A, length, constraints);
+		return new SparseVariableOrderNHMMMultiThreaded<StateToken<T>>(builder.getStateIndex(), M.stateIndex.getOrder(), builder);
+	}
+	
+	/**
+	 * As above, for an automaton already in primitive arrays (e.g. from {@link DFAMinimizer#minimize(CompactAutomaton)})
+	 */
+	public static <T extends Token> SparseVariableOrderNHMMMultiThreaded<StateToken<T>> combineAutomataWithMarkov(SparseVariableOrderMarkovModel<T> M, 
+			CompactAutomaton<T> A, int length, List<List<ConditionedConstraint<StateToken<T>>>> constraints) throws UnsatisfiableConstraintSetException, InterruptedException {
+		final LayeredProductBuilder<T> builder = new LayeredProductBuilder<T>(M, A, length, constraints);
+		return new SparseVariableOrderNHMMMultiThreaded<StateToken<T>>(builder.getStateIndex(), M.stateIndex.getOrder(), builder);
+	}
+	
+	/**
+	 * Indexes transitions by to-state, so that the predecessors of a label can be found without probing every row of
+	 * the transition matrix. Predecessors are kept in the order of the matrix's rows, so that states of the product
+	 * are numbered as they would be by a scan of the rows.
+	 * 
+	 * @return a map from each to-state to a map from each of its from-states to the (log) transition value
+	 */
+	private static Map<Integer, Map<Integer, Double>> incomingTransitions(Map<Integer, Map<Integer, Double>> transitions) {
+		Map<Integer, Map<Integer, Double>> incoming = new HashMap<Integer, Map<Integer, Double>>();
+		Map<Integer, Double> predecessors;
+		for (Entry<Integer, Map<Integer, Double>> row : transitions.entrySet()) {
+			for (Entry<Integer, Double> col : row.getValue().entrySet()) {
+				predecessors = incoming.get(col.getKey());
+				if (predecessors == null) {
+					predecessors = new LinkedHashMap<Integer, Double>();
+					incoming.put(col.getKey(), predecessors);
 				}
+				predecessors.put(row.getKey(), col.getValue());
 			}
 		}
-//		Utils.normalizeByFirstDimension(newTransitions);
-
-//		System.out.println("\nNew Priors");
-//		
-//		for (Integer priorKey : newPriors.keySet()) {
-//			System.out.println(newPrefixMap.getPrefixFinaleForID(priorKey) + " : " + newPriors.get(priorKey));
-//		}
-//		
-//		System.out.println("\nNew Transitions");
-//		int prefixCount = newPrefixMap.getPrefixCount();
-//		for (int i = 0; i < prefixCount; i++) {
-//			Map<Integer, Double> fromMap = newTransitions.get(i);
-//			if (fromMap == null) continue;
-//			for (int j = 0; j < prefixCount; j++) {
-//				Double double1 = fromMap.get(j);
-//				if (double1 != null)
-//					System.out.println("(" + newPrefixMap.getPrefixFinaleForID(i) + ") -> (" + newPrefixMap.getPrefixFinaleForID(j) + ") : " + df2.format(double1));
-//			}
-//		}
-//		System.out.println();
-		
-		
-		SparseVariableOrderMarkovModel<StateToken<T>> combinedMarkovModel = new SparseVariableOrderMarkovModel<StateToken<T>>(newPrefixMap,newPriors,newTransitions);
-//		System.out.println(combinedMarkovModel.toString());
-		List<List<ConditionedConstraint<StateToken<T>>>> newConstraints = modifyConstraints(constraints);
-		
-		// add constraints to start in state reachable from q0 and end in one of accepting states, and generally apply g_i
-		
-//		newConstraints.get(0).add(new ConditionedConstraint<StateToken<T>>(new StatesConstraint<StateToken<T>>(acceptableStartStates)));
-		newConstraints.get(length-1).add(new ConditionedConstraint<StateToken<T>>(new StatesConstraint<StateToken<T>>(A.acceptingStates)));
-		
-		return new SparseVariableOrderNHMMMultiThreaded<StateToken<T>>(combinedMarkovModel, length, newConstraints);
+		return incoming;
 	}
-	
-	private static <T extends Token> LinkedList<StateToken<T>> createStateTokenPrefix(LinkedList<T> token, Integer state) {
+
+	static <T extends Token> LinkedList<StateToken<T>> createStateTokenPrefix(LinkedList<T> token, Integer state) {
 		LinkedList<StateToken<T>> stateTokenPrefix = new LinkedList<StateToken<T>>();
 		
 		for (T tokenElement : token) {
@@ -240,22 +199,6 @@ public class RegularConstraintApplier {
 		return stateTokenPrefix;
 	}
 
-	private static <T extends Token> List<List<ConditionedConstraint<StateToken<T>>>> modifyConstraints(
-			List<List<ConditionedConstraint<StateToken<T>>>> constraints) {
-		List<List<ConditionedConstraint<StateToken<T>>>> newConstraints = new ArrayList<List<ConditionedConstraint<StateToken<T>>>>();
-		
-		for (int i = 0; i < constraints.size(); i++) {
-			List<ConditionedConstraint<StateToken<T>>> newConstraintsForPos = new ArrayList<ConditionedConstraint<StateToken<T>>>();
-			newConstraints.add(newConstraintsForPos);
-			List<ConditionedConstraint<StateToken<T>>> constraintsForPos = constraints.get(i);
-			for (ConditionedConstraint<StateToken<T>> conditionedConstraint : constraintsForPos) {
-				newConstraintsForPos.add(conditionedConstraint);
-			}
-		}
-	
-		return newConstraints;
-	}
-
 	public static void main(String[] args) throws UnsatisfiableConstraintSetException, InterruptedException {
 //		runExample1(); // 4-length 1-order NHMM with regular constraint: {aa+b+}
 //		runExample2(); // dead bear with Ed with bed hair
@@ -25,6 +25,11 @@ public class BinaryRhymeConstraint<T> implements TransitionalConstraint<T> {
 
 	@Override
 	public boolean isSatisfiedBy(LinkedList<T> fromState, LinkedList<T> toState) {
+		return ListTokenWindow.check(this, fromState, toState);
+	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<T> fromState, TokenWindow<T> toState) {
 		T token = toState.getLast();
 		T previousToken = fromState.get(fromState.size() - constraintSylsPrevToRhymeWith);
 		
@@ -9,6 +9,11 @@ public class EndOfWordConstraint<T> implements StateConstraint<T> {
 
 	@Override
 	public boolean isSatisfiedBy(LinkedList<T> state, int i) {
+		return ListTokenWindow.check(this, state, i);
+	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<T> state, int i) {
 		T token = state.get(i);
 		SyllableToken sToken;
 		if (token instanceof StateToken) {
@@ -29,6 +29,11 @@ public class FloatingConstraint<T extends Token> implements TransitionalConstrai
 
 	@Override
 	public boolean isSatisfiedBy(LinkedList<T> fromState, LinkedList<T> toState) {
+		return ListTokenWindow.check(this, fromState, toState);
+	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<T> fromState, TokenWindow<T> toState) {
 		if (staticConstraint.isSatisfiedBy(toState,toState.size()-1)){
 			return true;
 		}
@@ -8,7 +8,6 @@ import java.util.Map;
 
 import dbtb.data.SyllableToken;
 import dbtb.linguistic.syntactic.Pos;
-import dbtb.markov.Token;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
 import edu.stanford.nlp.trees.Tree;
@@ -21,17 +20,22 @@ public class FloatingDBTBPOSSequenceConstraint<T> implements TransitionalConstra
 
 	@Override
 	public boolean isSatisfiedBy(LinkedList<T> fromState, LinkedList<T> toState) {
+		return ListTokenWindow.check(this, fromState, toState);
+	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<T> fromState, TokenWindow<T> toState) {
 		return isSatisfiedByGrammarTreeMethod(fromState, toState);
 //		return isSatisfiedByParseNounPhraseMethod(fromState, toState);
 	}
 
 	LexicalizedParser lp;
-	private boolean isSatisfiedByParseNounPhraseMethod(LinkedList<Token> fromState, LinkedList<Token> toState) {
+	private boolean isSatisfiedByParseNounPhraseMethod(TokenWindow<T> fromState, TokenWindow<T> toState) {
 		List<CoreLabel> rawWords = new ArrayList<CoreLabel>();
 		String word;
 		SyllableToken syllableToken;
-		for (Token token : fromState) {
-			syllableToken = (SyllableToken) token;
+		for (int i = 0; i < fromState.size(); i++) {
+			syllableToken = (SyllableToken) fromState.get(i);
 			word = syllableToken.getStringRepresentationIfFirstSyllable();
 			if (!word.isEmpty()){
 				CoreLabel l = new CoreLabel();
@@ -58,13 +62,13 @@ public class FloatingDBTBPOSSequenceConstraint<T> implements TransitionalConstra
 		return false;
 	}
 
-	private boolean isSatisfiedByGrammarTreeMethod(LinkedList<T> fromState, LinkedList<T> toState) {
+	private boolean isSatisfiedByGrammarTreeMethod(TokenWindow<T> fromState, TokenWindow<T> toState) {
 		SyllableToken lastToken = (SyllableToken) toState.getLast();
 		
 		DBTBGrammarValidator validator = new DBTBGrammarValidator();
 
-		for (T token : fromState) {
-			final SyllableToken syllableToken = (SyllableToken) token;
+		for (int i = 0; i < fromState.size(); i++) {
+			final SyllableToken syllableToken = (SyllableToken) fromState.get(i);
 			final String stringRepresentation = syllableToken.getStringRepresentation();
 			if(stringRepresentation.equals("for") || stringRepresentation.equals("into") || !validator.validate(syllableToken.getPos()))
 				return false;
@@ -25,12 +25,17 @@ public class FloatingHaikuPOSSequenceConstraint<T> implements TransitionalConstr
 
 	@Override
 	public boolean isSatisfiedBy(LinkedList<T> fromState, LinkedList<T> toState) {
+		return ListTokenWindow.check(this, fromState, toState);
+	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<T> fromState, TokenWindow<T> toState) {
 		SyllableToken lastToken = (SyllableToken) toState.getLast();
 		
 		HaikuGrammarValidator validator = new HaikuGrammarValidator(line);
 
-		for (T token : fromState) {
-			final SyllableToken syllableToken = (SyllableToken) token;
+		for (int i = 0; i < fromState.size(); i++) {
+			final SyllableToken syllableToken = (SyllableToken) fromState.get(i);
 			if(!validator.validate(syllableToken.getPos()))
 				return false;
 		}
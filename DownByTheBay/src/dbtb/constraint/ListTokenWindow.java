@@ -0,0 +1,51 @@
+package dbtb.constraint;
+
+import java.util.LinkedList;
+
+/**
+ * Adapts a LinkedList state to a {@link TokenWindow} so that callers of the list-based constraint methods can reach
+ * constraints implemented against windows. Callers that already hold a window (e.g., the NHMM builders' prefix
+ * windows) should call the window-based methods directly and so allocate nothing.
+ */
+public class ListTokenWindow<T> implements TokenWindow<T> {
+
+	private final LinkedList<T> state;
+
+	public ListTokenWindow(LinkedList<T> state) {
+		this.state = state;
+	}
+
+	/**
+	 * @return constraint.isSatisfiedBy(state, i), evaluated through a window over state
+	 */
+	public static <T> boolean check(StateConstraint<T> constraint, LinkedList<T> state, int i) {
+		return constraint.isSatisfiedBy(new ListTokenWindow<T>(state), i);
+	}
+
+	/**
+	 * @return constraint.isSatisfiedBy(fromState, toState), evaluated through windows over the two states
+	 */
+	public static <T> boolean check(TransitionalConstraint<T> constraint, LinkedList<T> fromState, LinkedList<T> toState) {
+		return constraint.isSatisfiedBy(new ListTokenWindow<T>(fromState), new ListTokenWindow<T>(toState));
+	}
+
+	@Override
+	public int size() {
+		return state.size();
+	}
+
+	@Override
+	public T get(int i) {
+		return state.get(i);
+	}
+
+	@Override
+	public T getLast() {
+		return state.getLast();
+	}
+
+	@Override
+	public LinkedList<T> toLinkedList() {
+		return state;
+	}
+}
@@ -28,6 +28,11 @@ public class MatchStressToBeatsConstraint implements TransitionalConstraint<Rhyt
 
 	@Override
 	public boolean isSatisfiedBy(LinkedList<RhythmToken> fromState, LinkedList<RhythmToken> toState) {
+		return ListTokenWindow.check(this, fromState, toState);
+	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<RhythmToken> fromState, TokenWindow<RhythmToken> toState) {
 		if (numberOfStressedSylsToMatch == 0) {
 			return true;
 		}
@@ -37,7 +42,7 @@ public class MatchStressToBeatsConstraint implements TransitionalConstraint<Rhyt
 		
 		int numberOfStressesMatchedToBeats = 0;
 		for (int i = 1; i <= stresses.size(); i++) {
-			final RhythmToken rhythmToken = (toState.size()-i >= 0 ? toState.get(toState.size()-i):fromState.getFirst());
+			final RhythmToken rhythmToken = (toState.size()-i >= 0 ? toState.get(toState.size()-i):fromState.get(0));
 			if (stresses.get(stresses.size() - i) == 1 == (rhythmToken.getOffsetFromDownbeat() % 1.0 < 0.01)) {
 				numberOfStressesMatchedToBeats++;
 				if (numberOfStressesMatchedToBeats >= numberOfStressedSylsToMatch)
@@ -21,6 +21,11 @@ public class PartOfSpeechConstraint<T extends Token> implements StateConstraint<
 
 	@Override
 	public boolean isSatisfiedBy(LinkedList<T> state, int i) {
+		return ListTokenWindow.check(this, state, i);
+	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<T> state, int i) {
 		Token token = state.get(i);
 		if (!(token instanceof SyllableToken)) {
 			return false;
@@ -26,6 +26,11 @@ public class PartsOfSpeechConstraint<T> implements StateConstraint<T> {
 
 	@Override
 	public boolean isSatisfiedBy(LinkedList<T> state, int i) {
+		return ListTokenWindow.check(this, state, i);
+	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<T> state, int i) {
 		T token = state.get(i);
 		Pos tokenPos = null;
 		if (token instanceof StateToken) {
@@ -22,6 +22,11 @@ public class RelativeStressConstraint<T> implements StateConstraint<T> {
 
 	@Override
 	public boolean isSatisfiedBy(LinkedList<T> state, int i) {
+		return ListTokenWindow.check(this, state, i);
+	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<T> state, int i) {
 		if (i - constraintSylsPrevToCompareWith < 0) {
 			throw new RuntimeException("Can't compare stress at position " + i + " in state with that " + constraintSylsPrevToCompareWith + " positions previous");
 		}
@@ -8,6 +8,11 @@ public class RestContraint implements StateConstraint<RhythmToken> {
 
 	@Override
 	public boolean isSatisfiedBy(LinkedList<RhythmToken> state, int i) {
+		return ListTokenWindow.check(this, state, i);
+	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<RhythmToken> state, int i) {
 		return state.get(i).isRest();
 	}
 
@@ -41,4 +41,9 @@ public class SemanticConstraint<T> implements TransitionalConstraint<T> {
 	public boolean isSatisfiedBy(LinkedList<T> fromState, LinkedList<T> token) {
 		return false;
 	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<T> fromState, TokenWindow<T> token) {
+		return false;
+	}
 }
@@ -34,6 +34,11 @@ public class SemanticMeaningConstraint<T> implements StateConstraint<T>{
 
 	@Override
 	public boolean isSatisfiedBy(LinkedList<T> state, int i) {
+		return ListTokenWindow.check(this, state, i);
+	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<T> state, int i) {
 		T token = state.get(i);
 		if (!(token instanceof SyllableToken)) {
 			return false;
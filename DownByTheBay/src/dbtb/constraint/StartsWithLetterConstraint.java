@@ -15,6 +15,11 @@ public class StartsWithLetterConstraint<T> implements StateConstraint<T>  {
 	
 	@Override
 	public boolean isSatisfiedBy(LinkedList<T> state, int i) {
+		return ListTokenWindow.check(this, state, i);
+	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<T> state, int i) {
 		T token = state.get(i);
 		char firstChar = 0;
 		if (token instanceof StateToken) {
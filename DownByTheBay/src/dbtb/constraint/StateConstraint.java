@@ -6,4 +6,12 @@ public interface StateConstraint<T> extends Constraint<T>{
 
 	abstract boolean isSatisfiedBy(LinkedList<T> state, int i);
 
+	/**
+	 * Constraints that only need random access to the state should override this (and have the list-based method
+	 * delegate to it through a {@link ListTokenWindow}) so that callers holding a window need not build a list.
+	 */
+	default boolean isSatisfiedBy(TokenWindow<T> state, int i) {
+		return isSatisfiedBy(state.toLinkedList(), i);
+	}
+
 }
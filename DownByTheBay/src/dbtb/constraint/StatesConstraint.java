@@ -14,14 +14,18 @@ public class StatesConstraint<T extends Token> implements StateConstraint<T> {
 		this.states = states;
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public boolean isSatisfiedBy(LinkedList<T> token, int i) {
+		return ListTokenWindow.check(this, token, i);
+	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<T> token, int i) {
 		T tokenElement = token.get(i);
 		if (!(tokenElement instanceof StateToken)) {
 			return false;
 		} else {
-			Integer state = ((StateToken<T>) tokenElement).state;
+			Integer state = ((StateToken<?>) tokenElement).state;
 			return states.contains(state);
 		}
 	}
@@ -14,8 +14,13 @@ public class TimeSignatureConstraint implements TransitionalConstraint<RhythmTok
 
 	@Override
 	public boolean isSatisfiedBy(LinkedList<RhythmToken> fromState, LinkedList<RhythmToken> token) {
-		for (RhythmToken rhythmToken : fromState) {
-			if (!rhythmToken.getTime().equals(time)) {
+		return ListTokenWindow.check(this, fromState, token);
+	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<RhythmToken> fromState, TokenWindow<RhythmToken> token) {
+		for (int i = 0; i < fromState.size(); i++) {
+			if (!fromState.get(i).getTime().equals(time)) {
 				return false;
 			}
 		}
@@ -0,0 +1,30 @@
+package dbtb.constraint;
+
+import java.util.LinkedList;
+
+/**
+ * A read-only, random-access view of the tokens in a Markov state. Unlike a LinkedList, get(i) is expected to be
+ * constant time, and views over interned states can be reused from one state to the next without allocating.
+ */
+public interface TokenWindow<T> {
+
+	int size();
+
+	T get(int i);
+
+	default T getLast() {
+		return get(size() - 1);
+	}
+
+	/**
+	 * @return the tokens as a list, for constraints that have not been moved to this interface. Implementations may
+	 * return a shared list that must not be modified.
+	 */
+	default LinkedList<T> toLinkedList() {
+		final LinkedList<T> list = new LinkedList<T>();
+		for (int i = 0; i < size(); i++) {
+			list.add(get(i));
+		}
+		return list;
+	}
+}
@@ -8,4 +8,11 @@ public interface TransitionalConstraint<T> extends Constraint<T>{
 
 	boolean isSatisfiedBy(LinkedList<T> fromState, LinkedList<T> token);
 
+	/**
+	 * See {@link StateConstraint#isSatisfiedBy(TokenWindow, int)}
+	 */
+	default boolean isSatisfiedBy(TokenWindow<T> fromState, TokenWindow<T> toState) {
+		return isSatisfiedBy(fromState.toLinkedList(), toState.toLinkedList());
+	}
+
 }
@@ -28,6 +28,11 @@ public class WordsConstraint<T> implements StateConstraint<T> {
 	
 	@Override
 	public boolean isSatisfiedBy(LinkedList<T> state, int i) {
+		return ListTokenWindow.check(this, state, i);
+	}
+
+	@Override
+	public boolean isSatisfiedBy(TokenWindow<T> state, int i) {
 		T token = state.get(i);
 		SyllableToken sToken;
 		if (token instanceof StateToken) {
@@ -1,7 +1,9 @@
 package dbtb.data;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -21,6 +23,9 @@ import dbtb.linguistic.syntactic.Pos;
 import dbtb.linguistic.syntactic.StanfordNlpInterface;
 import dbtb.main.Main;
 import dbtb.markov.BidirectionalVariableOrderPrefixIDMap;
+import dbtb.markov.ModelSnapshot;
+import dbtb.markov.NGramCounts;
+import dbtb.markov.SparseVariableOrderMarkovModel;
 import dbtb.markov.Token;
 import dbtb.utils.Pair;
 import dbtb.utils.Utils;
@@ -45,6 +50,8 @@ public class DataLoader {
 	};
 	
 	public static String trainingSource = "fiction";
+	// when set, loadModel reads and writes model snapshots in this directory rather than always training from the corpus
+	public static String snapshotDir = null;
 	
 	private String[] TRAINING = new String[]{
 			"iced cakes inside The Bake",
@@ -145,6 +152,7 @@ public class DataLoader {
 						Map<Integer, Double> priorCountsForBatch = new HashMap<Integer, Double>();
 						Map<Integer, Map<Integer, Double>> transitionCountsForBatch = new HashMap<Integer, Map<Integer, Double>>();
 						BidirectionalVariableOrderPrefixIDMap<SyllableToken> prefixIDMapForBatch = new BidirectionalVariableOrderPrefixIDMap<SyllableToken>(order);
+						NGramCounts<SyllableToken> nGramCountsForBatch = nGramCounts == null ? null : new NGramCounts<SyllableToken>(order);
 
 						int sentencePronunciationsTrainedOnForBatch = 0;
 						int sentencesTrainedOnForBatch = 0;
@@ -178,16 +186,21 @@ public class DataLoader {
 								Integer fromTokenID, toTokenID;
 								int sentencePronunciationsTrainedOnForSentence = 0;
 								for (List<SyllableToken> trainingSentenceTokens : trainingTokensSentences) {
+									if (nGramCountsForBatch != null) {
+										nGramCountsForBatch.addSequence(trainingSentenceTokens, trainingWeight);
+										sentencePronunciationsTrainedOnForSentence++;
+										continue;
+									}
 									if (trainingSentenceTokens.size() < order) continue;
 	//								LinkedList<Token> prefix = new LinkedList<Token>(Collections.nCopies(order, Token.getStartToken()));
-									LinkedList<SyllableToken> prefix = new LinkedList<SyllableToken>(trainingSentenceTokens.subList(0, order));
+									final int[] tokenIDs = prefixIDMap.addTokens(trainingSentenceTokens);
+									int prefixHash = prefixIDMap.hashPrefix(tokenIDs, 0);
 									//TODO add string associated w/ prefix to set for Word2Vec
-									fromTokenID = prefixIDMap.addPrefix(prefix);
-									for (int j = order; j < trainingSentenceTokens.size(); j++ ) {
-										prefix.removeFirst();
-										prefix.addLast(trainingSentenceTokens.get(j));
+									fromTokenID = prefixIDMap.addPrefix(tokenIDs, 0, prefixHash);
+									for (int j = order; j < tokenIDs.length; j++ ) {
+										prefixHash = prefixIDMap.rollHash(prefixHash, tokenIDs[j-order], tokenIDs[j]);
 										
-										toTokenID = prefixIDMap.addPrefix(prefix);
+										toTokenID = prefixIDMap.addPrefix(tokenIDs, j-order+1, prefixHash);
 										Utils.incrementValueForKeys(transitionCountsForBatch, fromTokenID, toTokenID, trainingWeight);
 										Utils.incrementValueForKey(priorCountsForBatch, fromTokenID, trainingWeight); // we do this for every token 
 	
@@ -221,6 +234,9 @@ public class DataLoader {
 						System.out.println(Thread.currentThread().getName() + " finished training");
 						incrementSentencesAndPronunciationsTrainedOn(sentencesTrainedOnForBatch, sentencePronunciationsTrainedOnForBatch);
 						incrementTransitionsAndPriors(transitionCountsForBatch, priorCountsForBatch);
+						if (nGramCountsForBatch != null) {
+							nGramCounts.addAll(nGramCountsForBatch);
+						}
 					}
 				});
 				t.start();
@@ -430,6 +446,8 @@ public class DataLoader {
 	private Map<Integer, Map<Integer, Double>> transitions = new HashMap<>();
 	private long sentencesTrainedOn = 0;
 	private long sentencePronunciationsTrainedOn = 0;
+	// when non-null, training records n-gram counts for all orders up to order instead of single-order transitions
+	private NGramCounts<SyllableToken> nGramCounts = null;
 	
 	public DataLoader(int markovOrder) {
 		this.order = markovOrder;
@@ -450,6 +468,95 @@ public class DataLoader {
 		return summary;
 	}
 
+	/**
+	 * Trains in a single pass over the corpus, counting the n-grams needed to build a model of any order up to this
+	 * loader's order (see {@link NGramCounts#buildModel(int)}) rather than a single model of this loader's order.
+	 */
+	public NGramCounts<SyllableToken> loadNGramCounts() throws InterruptedException {
+		nGramCounts = new NGramCounts<SyllableToken>(order);
+
+		DataProcessor dp = new DataProcessor();
+		int status = dp.process();
+
+		System.out.println("Trained on " + sentencesTrainedOn + " sentences and " + sentencePronunciationsTrainedOn + " pronunciations for orders up to " + order);
+
+		return nGramCounts;
+	}
+
+	/**
+	 * Trains the model of this loader's order with {@link #loadData()} and freezes it. If {@link #snapshotDir} is set, the
+	 * model is instead loaded from this loader's snapshot file if it exists, and otherwise saved there after training.
+	 */
+	public SparseVariableOrderMarkovModel<SyllableToken> loadModel() throws InterruptedException {
+		SparseVariableOrderMarkovModel<SyllableToken> model = loadSnapshot();
+		if (model != null) {
+			return model;
+		}
+
+		DataSummary<SyllableToken> summary = loadData();
+		model = new SparseVariableOrderMarkovModel<>(summary.statesByIndex, summary.priors, summary.transitions);
+		model.freeze();
+		saveSnapshot(model, sentencesTrainedOn, sentencePronunciationsTrainedOn);
+		return model;
+	}
+
+	/**
+	 * @return the model saved in this loader's snapshot file or null if snapshotDir is not set or there is no such file
+	 * @throws RuntimeException if the snapshot can't be read or wasn't trained with this loader's configuration
+	 */
+	public SparseVariableOrderMarkovModel<SyllableToken> loadSnapshot() {
+		if (snapshotDir == null) {
+			return null;
+		}
+		final File snapshotFile = getSnapshotFile();
+		if (!snapshotFile.exists()) {
+			return null;
+		}
+
+		try {
+			ModelSnapshot<SyllableToken> snapshot = ModelSnapshot.load(snapshotFile, TokenFactory.SYLLABLE_TOKEN_CODEC);
+			snapshot.checkMatches(order, trainingSource, getSnapshotConfiguration());
+			System.out.println("Loaded " + snapshot + " from " + snapshotFile);
+			sentencesTrainedOn = snapshot.getSentencesTrainedOn();
+			sentencePronunciationsTrainedOn = snapshot.getSentencePronunciationsTrainedOn();
+			return snapshot.getModel();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to use model snapshot " + snapshotFile + " (delete it to retrain)", e);
+		}
+	}
+
+	public void saveSnapshot(SparseVariableOrderMarkovModel<SyllableToken> model, long sentencesTrainedOn, long sentencePronunciationsTrainedOn) {
+		if (snapshotDir == null) {
+			return;
+		}
+		final File snapshotFile = getSnapshotFile();
+		try {
+			ModelSnapshot.save(snapshotFile, model, TokenFactory.SYLLABLE_TOKEN_CODEC, trainingSource, getSnapshotConfiguration(), sentencesTrainedOn, sentencePronunciationsTrainedOn);
+			System.out.println("Saved model snapshot to " + snapshotFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public File getSnapshotFile() {
+		return new File(snapshotDir, "syllables-" + trainingSource + "-order" + order + ".dbtb");
+	}
+
+	/**
+	 * @return the training settings, beyond order and training source, that a snapshot must match to be loaded
+	 */
+	public static String getSnapshotConfiguration() {
+		return "syllables maxTokensPerSentence=" + MAX_TOKENS_PER_SENTENCE + (USE_DUMMY_DATA ? " dummyData" : "");
+	}
+
+	public long getSentencesTrainedOn() {
+		return sentencesTrainedOn;
+	}
+
+	public long getSentencePronunciationsTrainedOn() {
+		return sentencePronunciationsTrainedOn;
+	}
+
 	private synchronized void incrementSentencesAndPronunciationsTrainedOn(int sentencesTrainedOn, int sentencePronunciationsTrainedOn) {
 		this.sentencesTrainedOn += sentencesTrainedOn;
 		this.sentencePronunciationsTrainedOn += sentencePronunciationsTrainedOn;
@@ -509,7 +616,7 @@ public class DataLoader {
 				// for each syllable in that pronunciation
 				for (int j = 0; j < pronunciation.size(); j++) {
 					// create a new syllable token
-					final SyllableToken newSyllableToken = new SyllableToken(taggedWord.getFirst(), pronunciation.get(j).getPhonemeEnums(), taggedWord.getSecond(), pronunciation.size(), j, pronunciation.get(j).getStress());
+					final SyllableToken newSyllableToken = TokenFactory.getSyllableToken(taggedWord.getFirst(), pronunciation.get(j).getPhonemeEnums(), taggedWord.getSecond(), pronunciation.size(), j, pronunciation.get(j).getStress());
 					for (int k = i; k < allTokensSentences.size(); k+=pronunciationCount) {
 						// and add it to each original sentence
 						List<SyllableToken> sentenceTokens = allTokensSentences.get(k);
@@ -0,0 +1,52 @@
+package dbtb.data;
+
+import dbtb.markov.NGramCounts;
+import dbtb.markov.SparseVariableOrderMarkovModel;
+
+/**
+ * Provides syllable models of any order up to maxOrder while tagging and syllabifying the corpus at most once.
+ * Each model is built from n-gram counts that are gathered for all orders in a single pass over the corpus the first
+ * time they are needed. If {@link DataLoader#snapshotDir} is set, a model is instead loaded from its snapshot if one
+ * exists, and otherwise a snapshot is saved after it is built.
+ */
+public class MultiOrderDataLoader {
+
+	private final int maxOrder;
+	private DataLoader trainer = null;
+	private NGramCounts<SyllableToken> nGramCounts = null;
+
+	public MultiOrderDataLoader(int maxOrder) {
+		this.maxOrder = maxOrder;
+	}
+
+	public int getMaxOrder() {
+		return maxOrder;
+	}
+
+	public SparseVariableOrderMarkovModel<SyllableToken> loadModel(int order) throws InterruptedException {
+		if (order < 1 || order > maxOrder) {
+			throw new IllegalArgumentException("Order " + order + " is outside of the range 1 to " + maxOrder + " supported by this loader");
+		}
+
+		final DataLoader dl = new DataLoader(order);
+		SparseVariableOrderMarkovModel<SyllableToken> model = dl.loadSnapshot();
+		if (model != null) {
+			return model;
+		}
+
+		model = getNGramCounts().buildModel(order);
+		dl.saveSnapshot(model, trainer.getSentencesTrainedOn(), trainer.getSentencePronunciationsTrainedOn());
+		return model;
+	}
+
+	/**
+	 * @return the n-gram counts for all orders up to maxOrder, training on the corpus if they have not yet been gathered
+	 */
+	public NGramCounts<SyllableToken> getNGramCounts() throws InterruptedException {
+		if (nGramCounts == null) {
+			trainer = new DataLoader(maxOrder);
+			nGramCounts = trainer.loadNGramCounts();
+		}
+		return nGramCounts;
+	}
+}
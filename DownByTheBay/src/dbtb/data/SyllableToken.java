@@ -1,11 +1,17 @@
 package dbtb.data;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import dbtb.linguistic.phonetic.PhonemeEnum;
 import dbtb.linguistic.syntactic.Pos;
 import dbtb.markov.Token;
 
+/**
+ * Immutable syllable token. The normalized string and hash are computed once at construction; use
+ * {@link TokenFactory#getSyllableToken} to obtain a shared instance for each distinct token.
+ */
 public class SyllableToken extends Token {
 
 	@Override
@@ -15,23 +21,18 @@ public class SyllableToken extends Token {
 
 		SyllableToken that = (SyllableToken) o;
 
+		if (hashCode != that.hashCode) return false;
 		if (getCountOfSylsInContext() != that.getCountOfSylsInContext()) return false;
 		if (getPositionInContext() != that.getPositionInContext()) return false;
 		if (getStress() != that.getStress()) return false;
-		if (!getPhonemes().equals(that.getPhonemes())) return false;
 		if (getPos() != that.getPos()) return false;
-		return getStringRepresentation().replaceAll("[^a-zA-Z' ]+", "").toLowerCase().equals(that.getStringRepresentation().replaceAll("[^a-zA-Z' ]+", "").toLowerCase());
+		if (!getPhonemes().equals(that.getPhonemes())) return false;
+		return normalizedStringRepresentation.equals(that.normalizedStringRepresentation);
 	}
 
 	@Override
 	public int hashCode() {
-		int result = getPhonemes().hashCode();
-		result = 31 * result + getPos().hashCode();
-		result = 31 * result + getCountOfSylsInContext();
-		result = 31 * result + getPositionInContext();
-		result = 31 * result + getStress();
-		result = 31 * result + getStringRepresentation().replaceAll("[^a-zA-Z' ]+", "").toLowerCase().hashCode();
-		return result;
+		return hashCode;
 	}
 
 	@Override
@@ -39,72 +40,59 @@ public class SyllableToken extends Token {
 		return ""+ phonemes + stress;// + ", " + pos + ", " + countOfSylsInContext + ", " + positionInContext + ", " + stress;
 	}
 
-	private List<PhonemeEnum> phonemes;
-	private Pos pos;
-	private int countOfSylsInContext;
-	private int positionInContext;
-	private int stress;
-	private String stringRepresentation;
+	private final List<PhonemeEnum> phonemes;
+	private final Pos pos;
+	private final int countOfSylsInContext;
+	private final int positionInContext;
+	private final int stress;
+	private final String stringRepresentation;
+	private final String normalizedStringRepresentation;
+	private final int hashCode;
 	// double uniqueness; future feature
 	// rhyme class; future feature
 
-	public SyllableToken(String stringRepresentation, List<PhonemeEnum> phonemes, Pos pos, int countOfSylsInContext, int positionInContext, int stress) {
-		this.setPhonemes(phonemes);
-		this.setPos(pos);
-		this.setCountOfSylsInContext(countOfSylsInContext);
-		this.setPositionInContext(positionInContext);
-		this.setStress(stress);
-		this.setStringRepresentation(stringRepresentation);
+	SyllableToken(String stringRepresentation, List<PhonemeEnum> phonemes, Pos pos, int countOfSylsInContext, int positionInContext, int stress) {
+		this.phonemes = Collections.unmodifiableList(new ArrayList<PhonemeEnum>(phonemes));
+		this.pos = pos;
+		this.countOfSylsInContext = countOfSylsInContext;
+		this.positionInContext = positionInContext;
+		this.stress = stress;
+		this.stringRepresentation = stringRepresentation;
+		this.normalizedStringRepresentation = TokenFactory.normalize(stringRepresentation);
+
+		int result = this.phonemes.hashCode();
+		result = 31 * result + pos.hashCode();
+		result = 31 * result + countOfSylsInContext;
+		result = 31 * result + positionInContext;
+		result = 31 * result + stress;
+		result = 31 * result + normalizedStringRepresentation.hashCode();
+		this.hashCode = result;
 	}
 
 	public List<PhonemeEnum> getPhonemes() {
 		return phonemes;
 	}
 
-	public void setPhonemes(List<PhonemeEnum> phonemes) {
-		this.phonemes = phonemes;
-	}
-
 	public Pos getPos() {
 		return pos;
 	}
 
-	public void setPos(Pos pos) {
-		this.pos = pos;
-	}
-
 	public int getCountOfSylsInContext() {
 		return countOfSylsInContext;
 	}
 
-	public void setCountOfSylsInContext(int countOfSylsInContext) {
-		this.countOfSylsInContext = countOfSylsInContext;
-	}
-
 	public int getPositionInContext() {
 		return positionInContext;
 	}
 
-	public void setPositionInContext(int positionInContext) {
-		this.positionInContext = positionInContext;
-	}
-
 	public int getStress() {
 		return stress;
 	}
 
-	public void setStress(int stress) {
-		this.stress = stress;
-	}
-
 	public String getStringRepresentation() {
 		return stringRepresentation;
 	}
 
-	public void setStringRepresentation(String stringRepresentation) {
-		this.stringRepresentation = stringRepresentation;
-	}
-
 	public String getStringRepresentationIfFirstSyllable() {
 		if (positionInContext == 0) {
 			return getStringRepresentation();
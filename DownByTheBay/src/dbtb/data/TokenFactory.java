@@ -0,0 +1,150 @@
+package dbtb.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import dbtb.linguistic.phonetic.PhonemeEnum;
+import dbtb.linguistic.phonetic.syllabic.WordSyllables;
+import dbtb.linguistic.syntactic.Pos;
+import dbtb.markov.TokenCodec;
+
+/**
+ * Interns syllable and word tokens so that each distinct token is represented by a single shared
+ * instance. Identical syllables seen across training sentences then share one object, and equal
+ * tokens compare by identity.
+ *
+ * The interned tokens are held until {@link #clear()} is called, so a process that loads a model and
+ * then drops it should clear them to release its vocabulary.
+ */
+public class TokenFactory {
+
+	private static final Pattern NON_WORD_CHARACTERS = Pattern.compile("[^a-zA-Z' ]+");
+
+	private static final ConcurrentMap<SyllableToken, SyllableToken> syllableTokens = new ConcurrentHashMap<SyllableToken, SyllableToken>();
+	private static final ConcurrentMap<WordToken, WordToken> wordTokens = new ConcurrentHashMap<WordToken, WordToken>();
+
+	public static SyllableToken getSyllableToken(String stringRepresentation, List<PhonemeEnum> phonemes, Pos pos, int countOfSylsInContext, int positionInContext, int stress) {
+		return intern(syllableTokens, new SyllableToken(stringRepresentation, phonemes, pos, countOfSylsInContext, positionInContext, stress));
+	}
+
+	public static WordToken getWordToken(String stringRepresentation, WordSyllables pronunciation, Pos pos) {
+		return intern(wordTokens, new WordToken(stringRepresentation, pronunciation, pos));
+	}
+
+	/**
+	 * Writes syllable tokens for model snapshots, storing enums by name; tokens are interned as they are read
+	 */
+	public static final TokenCodec<SyllableToken> SYLLABLE_TOKEN_CODEC = new TokenCodec<SyllableToken>() {
+		@Override
+		public void write(SyllableToken token, DataOutput out) throws IOException {
+			out.writeUTF(token.getStringRepresentation());
+			out.writeShort(token.getPhonemes().size());
+			for (PhonemeEnum phoneme : token.getPhonemes()) {
+				out.writeUTF(phoneme.name());
+			}
+			out.writeUTF(token.getPos().name());
+			out.writeInt(token.getCountOfSylsInContext());
+			out.writeInt(token.getPositionInContext());
+			out.writeInt(token.getStress());
+		}
+
+		@Override
+		public SyllableToken read(DataInput in) throws IOException {
+			final String stringRepresentation = in.readUTF();
+			final int phonemeCount = in.readShort();
+			final List<PhonemeEnum> phonemes = new ArrayList<PhonemeEnum>(phonemeCount);
+			for (int i = 0; i < phonemeCount; i++) {
+				phonemes.add(PhonemeEnum.valueOf(in.readUTF()));
+			}
+			final Pos pos = Pos.valueOf(in.readUTF());
+			final int countOfSylsInContext = in.readInt();
+			final int positionInContext = in.readInt();
+			final int stress = in.readInt();
+			return getSyllableToken(stringRepresentation, phonemes, pos, countOfSylsInContext, positionInContext, stress);
+		}
+	};
+
+	/**
+	 * Writes word tokens for model snapshots; pronunciations (if any) are stored with Java serialization
+	 */
+	public static final TokenCodec<WordToken> WORD_TOKEN_CODEC = new TokenCodec<WordToken>() {
+		@Override
+		public void write(WordToken token, DataOutput out) throws IOException {
+			out.writeBoolean(token.getStringRepresentation() != null);
+			if (token.getStringRepresentation() != null)
+				out.writeUTF(token.getStringRepresentation());
+			out.writeUTF(token.getPos() == null ? "" : token.getPos().name());
+			if (token.getPhonemes() == null) {
+				out.writeInt(-1);
+			} else {
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				final ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+				objectOut.writeObject(token.getPhonemes());
+				objectOut.close();
+				out.writeInt(bytes.size());
+				out.write(bytes.toByteArray());
+			}
+		}
+
+		@Override
+		public WordToken read(DataInput in) throws IOException {
+			final String stringRepresentation = in.readBoolean() ? in.readUTF() : null;
+			final String posName = in.readUTF();
+			final Pos pos = posName.isEmpty() ? null : Pos.valueOf(posName);
+			final int pronunciationLength = in.readInt();
+			WordSyllables pronunciation = null;
+			if (pronunciationLength >= 0) {
+				final byte[] bytes = new byte[pronunciationLength];
+				in.readFully(bytes);
+				final ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes));
+				try {
+					pronunciation = (WordSyllables) objectIn.readObject();
+				} catch (ClassNotFoundException e) {
+					throw new IOException(e);
+				} finally {
+					objectIn.close();
+				}
+			}
+			return getWordToken(stringRepresentation, pronunciation, pos);
+		}
+	};
+
+	public static int getInternedSyllableTokenCount() {
+		return syllableTokens.size();
+	}
+
+	public static int getInternedWordTokenCount() {
+		return wordTokens.size();
+	}
+
+	/**
+	 * Forgets all interned tokens. Tokens made afterwards are new instances, equal to but not identical with
+	 * earlier ones, so models whose tokens should share instances should be loaded between clears.
+	 */
+	public static void clear() {
+		syllableTokens.clear();
+		wordTokens.clear();
+	}
+
+	/**
+	 * @return the string as compared by token equality: lower case and stripped of all but letters, apostrophes and spaces
+	 */
+	static String normalize(String stringRepresentation) {
+		return NON_WORD_CHARACTERS.matcher(stringRepresentation).replaceAll("").toLowerCase();
+	}
+
+	private static <T> T intern(ConcurrentMap<T, T> tokens, T token) {
+		final T existing = tokens.putIfAbsent(token, token);
+		return existing == null ? token : existing;
+	}
+}
@@ -1,7 +1,9 @@
 package dbtb.data;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -16,6 +18,8 @@ import dbtb.linguistic.syntactic.Pos;
 import dbtb.linguistic.syntactic.StanfordNlpInterface;
 import dbtb.main.Main;
 import dbtb.markov.BidirectionalVariableOrderPrefixIDMap;
+import dbtb.markov.ModelSnapshot;
+import dbtb.markov.SparseVariableOrderMarkovModel;
 import dbtb.markov.Token;
 import dbtb.utils.Pair;
 import dbtb.utils.Utils;
@@ -40,6 +44,8 @@ public class WordDataLoader {
 	};
 	
 	public static String trainingSource = "fiction";
+	// when set, loadModel reads and writes model snapshots in this directory rather than always training from the corpus
+	public static String snapshotDir = null;
 	
 	private String[] TRAINING = new String[]{
 			"iced cakes inside The Bake",
@@ -170,14 +176,14 @@ public class WordDataLoader {
 								// Start synchronization
 								if (trainingSentenceTokens.size() < order) continue;
 								Integer fromTokenID, toTokenID;
-								LinkedList<WordToken> prefix = new LinkedList<WordToken>(trainingSentenceTokens.subList(0, order));
+								final int[] tokenIDs = prefixIDMap.addTokens(trainingSentenceTokens);
+								int prefixHash = prefixIDMap.hashPrefix(tokenIDs, 0);
 								//TODO add string associated w/ prefix to set for Word2Vec
-								fromTokenID = prefixIDMap.addPrefix(prefix);
-								for (int j = order; j < trainingSentenceTokens.size(); j++ ) {
-									prefix.removeFirst();
-									prefix.addLast(trainingSentenceTokens.get(j));
+								fromTokenID = prefixIDMap.addPrefix(tokenIDs, 0, prefixHash);
+								for (int j = order; j < tokenIDs.length; j++ ) {
+									prefixHash = prefixIDMap.rollHash(prefixHash, tokenIDs[j-order], tokenIDs[j]);
 									
-									toTokenID = prefixIDMap.addPrefix(prefix);
+									toTokenID = prefixIDMap.addPrefix(tokenIDs, j-order+1, prefixHash);
 									Utils.incrementValueForKeys(transitionCountsForBatch, fromTokenID, toTokenID, trainingWeight);
 									Utils.incrementValueForKey(priorCountsForBatch, fromTokenID, trainingWeight); // we do this for every token 
 
@@ -433,6 +439,75 @@ public class WordDataLoader {
 		return summary;
 	}
 
+	/**
+	 * Trains the model of this loader's order with {@link #loadData()} and freezes it. If {@link #snapshotDir} is set, the
+	 * model is instead loaded from this loader's snapshot file if it exists, and otherwise saved there after training.
+	 */
+	public SparseVariableOrderMarkovModel<WordToken> loadModel() throws InterruptedException {
+		SparseVariableOrderMarkovModel<WordToken> model = loadSnapshot();
+		if (model != null) {
+			return model;
+		}
+
+		DataSummary<WordToken> summary = loadData();
+		model = new SparseVariableOrderMarkovModel<>(summary.statesByIndex, summary.priors, summary.transitions);
+		model.freeze();
+		saveSnapshot(model, sentencesTrainedOn);
+		return model;
+	}
+
+	/**
+	 * @return the model saved in this loader's snapshot file or null if snapshotDir is not set or there is no such file
+	 * @throws RuntimeException if the snapshot can't be read or wasn't trained with this loader's configuration
+	 */
+	public SparseVariableOrderMarkovModel<WordToken> loadSnapshot() {
+		if (snapshotDir == null) {
+			return null;
+		}
+		final File snapshotFile = getSnapshotFile();
+		if (!snapshotFile.exists()) {
+			return null;
+		}
+
+		try {
+			ModelSnapshot<WordToken> snapshot = ModelSnapshot.load(snapshotFile, TokenFactory.WORD_TOKEN_CODEC);
+			snapshot.checkMatches(order, trainingSource, getSnapshotConfiguration());
+			System.out.println("Loaded " + snapshot + " from " + snapshotFile);
+			sentencesTrainedOn = snapshot.getSentencesTrainedOn();
+			return snapshot.getModel();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to use model snapshot " + snapshotFile + " (delete it to retrain)", e);
+		}
+	}
+
+	private void saveSnapshot(SparseVariableOrderMarkovModel<WordToken> model, long sentencesTrainedOn) {
+		if (snapshotDir == null) {
+			return;
+		}
+		final File snapshotFile = getSnapshotFile();
+		try {
+			ModelSnapshot.save(snapshotFile, model, TokenFactory.WORD_TOKEN_CODEC, trainingSource, getSnapshotConfiguration(), sentencesTrainedOn, sentencesTrainedOn); // one pronunciation per sentence
+			System.out.println("Saved model snapshot to " + snapshotFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public File getSnapshotFile() {
+		return new File(snapshotDir, "words-" + trainingSource + "-order" + order + (includePronunciation ? "-pron" : "") + ".dbtb");
+	}
+
+	/**
+	 * @return the training settings, beyond order and training source, that a snapshot must match to be loaded
+	 */
+	public static String getSnapshotConfiguration() {
+		return "words maxTokensPerSentence=" + MAX_TOKENS_PER_SENTENCE + " includePronunciation=" + includePronunciation + (USE_DUMMY_DATA ? " dummyData" : "");
+	}
+
+	public long getSentencesTrainedOn() {
+		return sentencesTrainedOn;
+	}
+
 	private synchronized void incrementSentencesAndPronunciationsTrainedOn(int sentencesTrainedOn) {
 		this.sentencesTrainedOn += sentencesTrainedOn;
 	}
@@ -485,7 +560,7 @@ public class WordDataLoader {
 				pronunciation = pronunciations.get(0); 
 			}
 			// create a new word token
-			final WordToken newWordToken = new WordToken(taggedWord.getFirst(), pronunciation, taggedWord.getSecond());
+			final WordToken newWordToken = TokenFactory.getWordToken(taggedWord.getFirst(), pronunciation, taggedWord.getSecond());
 			allTokensSentences.add(newWordToken);
 		}
 		return allTokensSentences;
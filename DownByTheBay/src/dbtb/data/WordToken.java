@@ -8,6 +8,10 @@ import dbtb.linguistic.phonetic.syllabic.WordSyllables;
 import dbtb.linguistic.syntactic.Pos;
 import dbtb.markov.Token;
 
+/**
+ * Immutable word token. The normalized string and hash are computed once at construction; use
+ * {@link TokenFactory#getWordToken} to obtain a shared instance for each distinct token.
+ */
 public class WordToken extends Token {
 
 	@Override
@@ -15,26 +19,31 @@ public class WordToken extends Token {
 		return stringRepresentation;
 	}
 
-	private List<Syllable> phonemes;
-	private Pos pos;
-	private String stringRepresentation;
+	private final List<Syllable> phonemes;
+	private final Pos pos;
+	private final String stringRepresentation;
+	private final String normalizedStringRepresentation;
+	private final int hashCode;
 	// double uniqueness; future feature
 	// rhyme class; future feature
 
-	public WordToken(String stringRepresentation, WordSyllables pronunciation, Pos pos) {
-		this.setPhonemes(pronunciation);
-		this.setPos(pos);
-		this.setStringRepresentation(stringRepresentation);
-	}
+	WordToken(String stringRepresentation, WordSyllables pronunciation, Pos pos) {
+		this.phonemes = pronunciation;
+		this.pos = pos;
+		this.stringRepresentation = stringRepresentation;
+		this.normalizedStringRepresentation = stringRepresentation == null ? null : TokenFactory.normalize(stringRepresentation);
 
-	@Override
-	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
 //		result = prime * result + ((phonemes == null) ? 0 : phonemes.hashCode());
 		result = prime * result + ((pos == null) ? 0 : pos.hashCode());
-		result = prime * result + ((stringRepresentation == null) ? 0 : stringRepresentation.replaceAll("[^a-zA-Z' ]+", "").toLowerCase().hashCode());
-		return result;
+		result = prime * result + ((normalizedStringRepresentation == null) ? 0 : normalizedStringRepresentation.hashCode());
+		this.hashCode = result;
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
 	}
 
 	@Override
@@ -46,6 +55,8 @@ public class WordToken extends Token {
 		if (getClass() != obj.getClass())
 			return false;
 		WordToken other = (WordToken) obj;
+		if (hashCode != other.hashCode)
+			return false;
 //		if (phonemes == null) {
 //			if (other.phonemes != null)
 //				return false;
@@ -53,10 +64,10 @@ public class WordToken extends Token {
 //			return false;
 		if (pos != other.pos)
 			return false;
-		if (stringRepresentation == null) {
-			if (other.stringRepresentation != null)
+		if (normalizedStringRepresentation == null) {
+			if (other.normalizedStringRepresentation != null)
 				return false;
-		} else if (!stringRepresentation.replaceAll("[^a-zA-Z' ]+", "").toLowerCase().equals(other.stringRepresentation.replaceAll("[^a-zA-Z' ]+", "").toLowerCase()))
+		} else if (!normalizedStringRepresentation.equals(other.normalizedStringRepresentation))
 			return false;
 		return true;
 	}
@@ -65,23 +76,11 @@ public class WordToken extends Token {
 		return phonemes;
 	}
 
-	public void setPhonemes(WordSyllables pronunciation) {
-		this.phonemes = pronunciation;
-	}
-
 	public Pos getPos() {
 		return pos;
 	}
 
-	public void setPos(Pos pos) {
-		this.pos = pos;
-	}
-
 	public String getStringRepresentation() {
 		return stringRepresentation;
 	}
-
-	public void setStringRepresentation(String stringRepresentation) {
-		this.stringRepresentation = stringRepresentation;
-	}
 }
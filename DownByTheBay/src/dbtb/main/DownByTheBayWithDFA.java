@@ -7,7 +7,7 @@ import java.util.List;
 
 import org.apache.commons.lang3.time.StopWatch;
 
-import automaton.Automaton;
+import automaton.CompactAutomaton;
 import automaton.MatchDFABuilderDFS;
 import automaton.RegularConstraintApplier;
 import automaton.RegularConstraintApplier.StateToken;
@@ -20,8 +20,8 @@ import dbtb.constraint.PartsOfSpeechConstraint;
 import dbtb.constraint.StartOfWordConstraint;
 import dbtb.constraint.WordsConstraint;
 import dbtb.data.DataLoader;
+import dbtb.data.MultiOrderDataLoader;
 import dbtb.data.SyllableToken;
-import dbtb.data.DataLoader.DataSummary;
 import dbtb.linguistic.syntactic.Pos;
 import dbtb.markov.SparseVariableOrderMarkovModel;
 import dbtb.markov.SparseVariableOrderNHMMMultiThreaded;
@@ -31,6 +31,8 @@ import dbtb.markov.UnsatisfiableConstraintSetException;
 public class DownByTheBayWithDFA {
 
 	static int markovOrder;
+	// highest order any template may use; all orders up to this are trained in one pass over the corpus
+	final static int MAX_MARKOV_ORDER = 4;
 	
 //	final static int HAVE = 0, YOU = 1, EV = 2, ER = 3, SEEN = 4, 
 		final static int A = 0, LLA = 1, MA = 2,
@@ -45,6 +47,9 @@ public class DownByTheBayWithDFA {
 		if (args.length > 0) {
 			DataLoader.trainingSource = args[0];
 		}
+		if (args.length > 1) {
+			DataLoader.snapshotDir = args[1];
+		}
 
 		int[] rhythmicSuperTemplate = new int[]{-1,1,-1,1,-1,1,-1,1,-1,1,-1};
 		
@@ -75,6 +80,7 @@ public class DownByTheBayWithDFA {
 		};
 		
 		int prevOrder = -1;
+		MultiOrderDataLoader dataLoader = new MultiOrderDataLoader(MAX_MARKOV_ORDER);
 		SparseVariableOrderMarkovModel<SyllableToken> markovModel = null;
 		for (int[] rhythmicTemplate : allRhythmicTemplates) {
 			memoryCheck();
@@ -134,15 +140,12 @@ public class DownByTheBayWithDFA {
 				markovModel = null; // allow this to get cleaned by the garbage collector before building the next model
 				memoryCheck();
 				watch.start();
-				DataLoader dl = new DataLoader(markovOrder);
-				DataSummary summary = dl.loadData();
+				markovModel = dataLoader.loadModel(markovOrder);
 				System.out.println("Data loaded for Main.java");
 				watch.stop();
 				System.out.println("Time to train on data:" + watch.getTime());
 				watch.reset();
 				memoryCheck();
-				markovModel = new SparseVariableOrderMarkovModel<>(summary.statesByIndex, summary.priors, summary.transitions);
-				System.out.println("Creating Markov Model");
 			}
 
 			System.out.println("For Rhythmic Template: " + Arrays.toString(rhythmicTemplate));
@@ -163,7 +166,7 @@ public class DownByTheBayWithDFA {
 				boolean[] matchConstraintOutcomeList = new boolean[]{true,true,true,true,true,true};
 				int length = matchConstraintList.length;
 				
-				Automaton<SyllableToken> A = MatchDFABuilderDFS.buildEfficiently(matchConstraintList, matchConstraintOutcomeList, markovModel);
+				CompactAutomaton<SyllableToken> A = MatchDFABuilderDFS.buildEfficiently(matchConstraintList, matchConstraintOutcomeList, markovModel);
 				
 				constrainedMarkovModel = RegularConstraintApplier.combineAutomataWithMarkov(markovModel, A, length, constraints);
 				
@@ -188,9 +191,10 @@ public class DownByTheBayWithDFA {
 				}
 			}
 			
-			for (int i = 0; i < 20; i++) {
-				// generate a sequence of syllable tokens that meet the constraints
-				List<StateToken<SyllableToken>> generatedSequence = constrainedMarkovModel.generate(templateLength);
+			final long seed = System.nanoTime();
+			System.out.println("Generating with seed " + seed);
+			// generate sequences of syllable tokens that meet the constraints
+			for (List<StateToken<SyllableToken>> generatedSequence : constrainedMarkovModel.generateBatch(templateLength, 20, seed)) {
 //			for(List<StateToken<SyllableToken>> generatedSequence : constrainedMarkovModel.generateFromAllPriors(templateLength)) {
 				// convert the sequence of syllable tokens to a human-readable string
 				System.out.print("\tHave you ever seen ");
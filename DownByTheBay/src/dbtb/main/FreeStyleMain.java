@@ -13,9 +13,8 @@ import dbtb.constraint.SemanticMeaningConstraint;
 import dbtb.constraint.StartOfWordConstraint;
 import dbtb.data.DataLoader;
 import dbtb.data.SyllableToken;
-import dbtb.data.DataLoader.DataSummary;
+import dbtb.markov.ImplicitSparseVariableOrderNHMM;
 import dbtb.markov.SparseVariableOrderMarkovModel;
-import dbtb.markov.SparseVariableOrderNHMMMultiThreaded;
 import dbtb.markov.Token;
 import dbtb.markov.UnsatisfiableConstraintSetException;
 
@@ -57,11 +56,8 @@ public class FreeStyleMain {
 		for(Integer position: new Integer[]{LINE1_LEN-1,(LINE1_LEN+LINE2_LEN)-1,(LINE1_LEN+LINE2_LEN+LINE3_LEN)-1,(LINE1_LEN+LINE2_LEN+LINE3_LEN+LINE4_LEN)-1})
 			constraints.get(position).add(new ConditionedConstraint<>(new AbsoluteStressConstraint<>(1)));
 		
-		DataLoader dl = new DataLoader(markovOrder);
-		DataSummary summary = dl.loadData();
+		SparseVariableOrderMarkovModel<SyllableToken> markovModel = new DataLoader(markovOrder).loadModel();
 		System.out.println("Data loaded for HaikuMain.java");
-		SparseVariableOrderMarkovModel<SyllableToken> markovModel = new SparseVariableOrderMarkovModel<>(summary.statesByIndex, summary.priors, summary.transitions);
-		System.out.println("Creating Markov Model");
 
 		// create a constrained markov model of length rhythmicSuperTemplate.length and with constraints in constraints
 		try {
@@ -72,7 +68,7 @@ public class FreeStyleMain {
 					System.out.println("\t\t" + constraint);
 				}
 			}
-			SparseVariableOrderNHMMMultiThreaded<SyllableToken> constrainedMarkovModel = new SparseVariableOrderNHMMMultiThreaded<>(markovModel, TOT_LEN, constraints);
+			ImplicitSparseVariableOrderNHMM<SyllableToken> constrainedMarkovModel = new ImplicitSparseVariableOrderNHMM<>(markovModel, TOT_LEN, constraints);
 			System.out.println();
 
 			for (int i = 0; i < 8; i++) {
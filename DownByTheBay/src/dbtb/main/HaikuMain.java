@@ -19,10 +19,9 @@ import dbtb.constraint.SemanticMeaningConstraint;
 import dbtb.constraint.StartOfWordConstraint;
 import dbtb.data.DataLoader;
 import dbtb.data.SyllableToken;
-import dbtb.data.DataLoader.DataSummary;
 import dbtb.linguistic.syntactic.Pos;
+import dbtb.markov.ImplicitSparseVariableOrderNHMM;
 import dbtb.markov.SparseVariableOrderMarkovModel;
-import dbtb.markov.SparseVariableOrderNHMMMultiThreaded;
 import dbtb.markov.UnsatisfiableConstraintSetException;
 import dbtb.semantic.word2vec.BadW2vInputException;
 
@@ -139,11 +138,8 @@ public class HaikuMain {
 //			constraints.get(i).add(new ConditionedConstraint<>(new WordsConstraint<>(haikuWords, false)));
 //		}
 		
-		DataLoader dl = new DataLoader(markovOrder);
-		DataSummary summary = dl.loadData();
+		SparseVariableOrderMarkovModel<SyllableToken> markovModel = new DataLoader(markovOrder).loadModel();
 		System.out.println("Data loaded for HaikuMain.java");
-		SparseVariableOrderMarkovModel<SyllableToken> markovModel = new SparseVariableOrderMarkovModel<>(summary.statesByIndex, summary.priors, summary.transitions);
-		System.out.println("Creating Markov Model");
 
 		// create a constrained markov model of length rhythmicSuperTemplate.length and with constraints in constraints
 		try {
@@ -155,7 +151,7 @@ public class HaikuMain {
 					System.out.println("\t\t" + constraint);
 				}
 			}
-			SparseVariableOrderNHMMMultiThreaded<SyllableToken> constrainedMarkovModel = new SparseVariableOrderNHMMMultiThreaded<>(markovModel, HAIKU_LEN, constraints);
+			ImplicitSparseVariableOrderNHMM<SyllableToken> constrainedMarkovModel = new ImplicitSparseVariableOrderNHMM<>(markovModel, HAIKU_LEN, constraints);
 //			SparseVariableOrderNHMMMultiThreaded<SyllableToken> constrainedMarkovModel5 = new SparseVariableOrderNHMMMultiThreaded<>(markovModel, 5, constraints.subList(0, 5));
 //			SparseVariableOrderNHMMMultiThreaded<SyllableToken> constrainedMarkovModel7 = new SparseVariableOrderNHMMMultiThreaded<>(markovModel, 7, constraints.subList(5, 12));
 //			SparseVariableOrderNHMMMultiThreaded<SyllableToken> constrainedMarkovModel52 = new SparseVariableOrderNHMMMultiThreaded<>(markovModel, 5, constraints.subList(12, constraints.size()));
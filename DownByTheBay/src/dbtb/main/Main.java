@@ -142,6 +142,7 @@ public class Main {
 				watch.reset();
 				memoryCheck();
 				markovModel = new SparseVariableOrderMarkovModel<>(summary.statesByIndex, summary.priors, summary.transitions);
+				markovModel.freeze();
 				System.out.println("Creating Markov Model");
 			}
 
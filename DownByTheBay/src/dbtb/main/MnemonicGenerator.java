@@ -13,7 +13,6 @@ import dbtb.constraint.ConditionedConstraint;
 import dbtb.constraint.PartsOfSpeechConstraint;
 import dbtb.constraint.StartsWithLetterConstraint;
 import dbtb.data.WordDataLoader;
-import dbtb.data.WordDataLoader.DataSummary;
 import dbtb.data.WordToken;
 import dbtb.linguistic.syntactic.Pos;
 import dbtb.markov.SparseVariableOrderMarkovModel;
@@ -37,6 +36,9 @@ public class MnemonicGenerator {
 		if (args.length > 0) {
 			WordDataLoader.trainingSource = args[0];
 		}
+		if (args.length > 1) {
+			WordDataLoader.snapshotDir = args[1];
+		}
 
 		Map<String, String> problems = new HashMap<String, String>();
 		problems.put("Dante’s 9 circles of hell", "Limbo, Lust, Gluttony, Greed, Anger, Heresy, Violence, Fraud, Treachery");
@@ -66,13 +68,11 @@ public class MnemonicGenerator {
 		
 		StopWatch watch = new StopWatch();
 		watch.start();
-		WordDataLoader dl = new WordDataLoader(markovOrder);
-		DataSummary summary = dl.loadData();
+		markovModel = new WordDataLoader(markovOrder).loadModel();
 //			System.out.println("Data loaded for Main.java");
 		watch.stop();
 //			System.out.println("Time to train on data:" + watch.getTime());
 		watch.reset();
-		markovModel = new SparseVariableOrderMarkovModel<>(summary.statesByIndex, summary.priors, summary.transitions);
 
 		final HashSet<Pos> disallowedPosAtPhraseEnd = new HashSet<Pos>(Arrays.asList(Pos.DT, Pos.IN, Pos.CC, Pos.TO, Pos.PRP$, Pos.WP$, Pos.WRB));
 		
@@ -130,9 +130,10 @@ public class MnemonicGenerator {
 //				}
 //			}
 			
-			for (int i = 0; i < 100; i++) {
-				// generate a sequence of syllable tokens that meet the constraints
-				List<WordToken> generatedSequence = constrainedMarkovModel.generate(problem.length);
+			final long seed = System.nanoTime();
+			System.out.println("Generating with seed " + seed);
+			// generate sequences of syllable tokens that meet the constraints
+			for (List<WordToken> generatedSequence : constrainedMarkovModel.generateBatch(problem.length, 100, seed)) {
 //			for(List<WordToken> generatedSequence : constrainedMarkovModel.generateFromAllPriors(problem.length)) {
 				// convert the sequence of syllable tokens to a human-readable string
 				for (WordToken syllableToken : generatedSequence) {
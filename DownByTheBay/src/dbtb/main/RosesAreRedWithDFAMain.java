@@ -4,7 +4,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-import automaton.Automaton;
+import automaton.CompactAutomaton;
 import automaton.MatchDFABuilderDFS;
 import automaton.RegularConstraintApplier;
 import automaton.RegularConstraintApplier.StateToken;
@@ -85,7 +85,7 @@ public class RosesAreRedWithDFAMain {
 			boolean[] matchConstraintOutcomeList = new boolean[length];
 			Arrays.fill(matchConstraintOutcomeList, true);
 			
-			Automaton<SyllableToken> A = MatchDFABuilderDFS.buildEfficiently(matchConstraintList,matchConstraintOutcomeList, M);
+			CompactAutomaton<SyllableToken> A = MatchDFABuilderDFS.buildEfficiently(matchConstraintList,matchConstraintOutcomeList, M);
 			
 			SparseVariableOrderNHMMMultiThreaded<StateToken<SyllableToken>> constrainedMarkovModel = RegularConstraintApplier.combineAutomataWithMarkov(M, A, length, constraints);
 			
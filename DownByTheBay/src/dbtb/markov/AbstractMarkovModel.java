@@ -1,10 +1,96 @@
 package dbtb.markov;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 public abstract class AbstractMarkovModel<T> {
 
+	private static final int MIN_SEQUENCES_PER_TASK = 256;
+	private static final int MIN_GENERATED_PER_TASK = 16;
+
 	abstract public double probabilityOfSequence(T[] seq);
-	
+
 	abstract public List<T> generate(int length);
-	
+
+	/**
+	 * @return the log probability of the sequence of states with the given IDs (negative infinity if it is impossible)
+	 */
+	abstract public double logProbability(int[] stateIDs);
+
+	/**
+	 * @return the log probability of each sequence of state IDs (see {@link #logProbability(int[])}), in order
+	 */
+	public double[] logProbabilities(List<int[]> stateIDSequences) {
+		final double[] logProbabilities = new double[stateIDSequences.size()];
+		for (int i = 0; i < logProbabilities.length; i++) {
+			logProbabilities[i] = logProbability(stateIDSequences.get(i));
+		}
+		return logProbabilities;
+	}
+
+	/**
+	 * Scores the sequences in up to parallelism contiguous chunks on executor (the calling thread scores the last one).
+	 * The model must not be modified while scoring.
+	 */
+	public double[] logProbabilities(final List<int[]> stateIDSequences, ExecutorService executor, int parallelism) throws InterruptedException {
+		final double[] logProbabilities = new double[stateIDSequences.size()];
+		Chunks.run(logProbabilities.length, executor, Math.max(1, parallelism), MIN_SEQUENCES_PER_TASK, new Chunks.Chunk<Void>() {
+			@Override
+			public Void run(int start, int end) {
+				for (int i = start; i < end; i++) {
+					logProbabilities[i] = logProbability(stateIDSequences.get(i));
+				}
+				return null;
+			}
+		});
+		return logProbabilities;
+	}
+
+	/**
+	 * Generates a sequence drawing all of its randomness from random. Implementations must not use any
+	 * shared random state so that concurrent calls with distinct streams are independent and reproducible.
+	 */
+	abstract protected List<T> generate(int length, SplittableRandom random);
+
+	/**
+	 * Generates count sequences in parallel on the shared pool (see
+	 * {@link SharedPool}) and {@link #generateBatch(int, int, long, ExecutorService, int)}.
+	 */
+	public List<List<T>> generateBatch(int length, int count, long seed) throws InterruptedException {
+		final ForkJoinPool pool = SharedPool.get();
+		return generateBatch(length, count, seed, pool, pool.getParallelism());
+	}
+
+	/**
+	 * Generates count sequences in up to parallelism contiguous chunks on executor (the calling thread generates the
+	 * last one). Sequence i is drawn from the i-th SplittableRandom split from seed, so the output depends only on the
+	 * seed, not on the executor, the parallelism or how threads are scheduled.
+	 */
+	public List<List<T>> generateBatch(final int length, int count, long seed, ExecutorService executor, int parallelism) throws InterruptedException {
+		final SplittableRandom seedStream = new SplittableRandom(seed);
+		final SplittableRandom[] randoms = new SplittableRandom[count];
+		for (int i = 0; i < count; i++) {
+			randoms[i] = seedStream.split();
+		}
+
+		final List<List<List<T>>> chunks = Chunks.run(count, executor, Math.max(1, parallelism), MIN_GENERATED_PER_TASK, new Chunks.Chunk<List<List<T>>>() {
+			@Override
+			public List<List<T>> run(int start, int end) {
+				final List<List<T>> chunk = new ArrayList<List<T>>(end - start);
+				for (int i = start; i < end; i++) {
+					chunk.add(generate(length, randoms[i]));
+				}
+				return chunk;
+			}
+		});
+
+		final List<List<T>> batch = new ArrayList<List<T>>(count);
+		for (List<List<T>> chunk : chunks) {
+			batch.addAll(chunk);
+		}
+		return batch;
+	}
+
 }
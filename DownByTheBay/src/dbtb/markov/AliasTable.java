@@ -0,0 +1,128 @@
+package dbtb.markov;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Walker/Vose alias table for drawing from a fixed discrete distribution in O(1) time.
+ * Construction is O(n) and evaluates each (log) weight once; sampling uses a single uniform
+ * value and no transcendental functions.
+ */
+public class AliasTable {
+
+	private final int[] outcomes;
+	private final double[] probability;
+	private final int[] alias;
+
+	/**
+	 * @param outcomes the values to be sampled
+	 * @param logWeights unnormalized log weights, parallel to outcomes
+	 */
+	public AliasTable(int[] outcomes, double[] logWeights) {
+		final int n = outcomes.length;
+		if (n == 0 || logWeights.length != n) {
+			throw new IllegalArgumentException("Alias table requires a non-empty set of outcomes with one weight each");
+		}
+		this.outcomes = outcomes;
+		this.probability = new double[n];
+		this.alias = new int[n];
+
+		double maxLogWeight = Double.NEGATIVE_INFINITY;
+		for (double logWeight : logWeights) {
+			maxLogWeight = Math.max(maxLogWeight, logWeight);
+		}
+		if (maxLogWeight == Double.NEGATIVE_INFINITY) {
+			throw new IllegalArgumentException("Alias table requires at least one outcome with non-zero weight");
+		}
+
+		double sum = 0.;
+		for (int i = 0; i < n; i++) {
+			probability[i] = Math.exp(logWeights[i] - maxLogWeight);
+			sum += probability[i];
+		}
+
+		// scale so that the average bucket holds exactly 1
+		final int[] small = new int[n], large = new int[n];
+		int smallCount = 0, largeCount = 0;
+		for (int i = 0; i < n; i++) {
+			probability[i] = probability[i] * n / sum;
+			if (probability[i] < 1.)
+				small[smallCount++] = i;
+			else
+				large[largeCount++] = i;
+		}
+
+		int less, more;
+		while (smallCount > 0 && largeCount > 0) {
+			less = small[--smallCount];
+			more = large[--largeCount];
+			alias[less] = more;
+			probability[more] = (probability[more] + probability[less]) - 1.;
+			if (probability[more] < 1.)
+				small[smallCount++] = more;
+			else
+				large[largeCount++] = more;
+		}
+
+		// anything left over is (up to rounding error) a full bucket
+		while (largeCount > 0) {
+			more = large[--largeCount];
+			probability[more] = 1.;
+			alias[more] = more;
+		}
+		while (smallCount > 0) {
+			less = small[--smallCount];
+			probability[less] = 1.;
+			alias[less] = less;
+		}
+	}
+
+	/**
+	 * @return an alias table over the keys of logWeights or null if logWeights is null or empty
+	 */
+	public static AliasTable fromLogWeights(Map<Integer, Double> logWeights) {
+		if (logWeights == null || logWeights.isEmpty()) return null;
+
+		final int[] outcomes = new int[logWeights.size()];
+		final double[] weights = new double[outcomes.length];
+		int i = 0;
+		for (Entry<Integer, Double> entry : logWeights.entrySet()) {
+			outcomes[i] = entry.getKey();
+			weights[i++] = entry.getValue();
+		}
+
+		return new AliasTable(outcomes, weights);
+	}
+
+	/**
+	 * @return an alias table over row of the given matrix or null if the row is empty
+	 */
+	public static AliasTable fromRow(CompressedSparseRowMatrix matrix, int row) {
+		final int start = matrix.rowStart(row), size = matrix.rowSize(row);
+		if (size == 0) return null;
+
+		final int[] outcomes = new int[size];
+		final double[] weights = new double[size];
+		for (int i = 0; i < size; i++) {
+			outcomes[i] = matrix.columnAt(start + i);
+			weights[i] = matrix.valueAt(start + i);
+		}
+
+		return new AliasTable(outcomes, weights);
+	}
+
+	/**
+	 * @param uniform a value drawn uniformly from [0,1)
+	 * @return the sampled outcome
+	 */
+	public int sample(double uniform) {
+		final double scaled = uniform * outcomes.length;
+		int bucket = (int) scaled;
+		if (bucket >= outcomes.length) bucket = outcomes.length - 1; // guards against rounding up
+		return (scaled - bucket) < probability[bucket] ? outcomes[bucket] : outcomes[alias[bucket]];
+	}
+
+	public int size() {
+		return outcomes.length;
+	}
+}
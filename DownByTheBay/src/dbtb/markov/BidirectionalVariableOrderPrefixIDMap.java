@@ -1,21 +1,53 @@
 package dbtb.markov;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
+import dbtb.constraint.TokenWindow;
+
+/**
+ * Assigns consecutive integer IDs to prefixes (states) of a fixed order. Each distinct token is interned
+ * to an int token ID and each prefix is stored as a packed run of order token IDs together with its
+ * precomputed hash, so lookups hash and compare ints rather than walking token lists. Hashes are
+ * polynomial in the token IDs, which lets a window sliding one token to the right update its hash in
+ * constant time via {@link #rollHash(int, int, int)}. Prefixes are returned as lists built on demand from
+ * their token IDs.
+ *
+ * Lookups, including those made by the add methods for tokens and prefixes that are already present, take no
+ * lock. Additions lock only to insert. The prefix table is replaced rather than grown in place, and a prefix's
+ * slot is published only after its token IDs and hash are written, so lookups may run concurrently with additions.
+ */
 public class BidirectionalVariableOrderPrefixIDMap<T extends Token> {
 
-	private int order;
-	private int nextID = 0;
-	
-	@SuppressWarnings("unchecked")
+	private static final int HASH_MULTIPLIER = 0x01000193;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final int order;
+	private volatile int nextID = 0;
+
+	// HASH_MULTIPLIER^(order-1), the weight of the oldest token in a prefix hash
+	private final int oldestTokenWeight;
+
+	private final ConcurrentHashMap<T, Integer> tokenToIDMap = new ConcurrentHashMap<T, Integer>();
+	private volatile Object[] iDToTokenMap = new Object[INITIAL_CAPACITY];
+	private volatile int tokenCount = 0;
+
+	private volatile Table table;
+
 	public BidirectionalVariableOrderPrefixIDMap(int order) {
 		this.order = order;
+		int weight = 1;
+		for (int i = 1; i < order; i++) {
+			weight *= HASH_MULTIPLIER;
+		}
+		this.oldestTokenWeight = weight;
+		this.table = new Table(new int[INITIAL_CAPACITY * order], new int[INITIAL_CAPACITY]);
 	}
-	
+
 	public int getOrder() {
 		return this.order;
 	}
@@ -24,11 +56,8 @@ public class BidirectionalVariableOrderPrefixIDMap<T extends Token> {
 		return nextID;
 	}
 
-	private Map<LinkedList<T>, Integer> prefixToIDMap = new HashMap<LinkedList<T>, Integer>();
-	private List<LinkedList<T>> iDToPrefixMap = new ArrayList<LinkedList<T>>(prefixToIDMap.size());
-	
 	/**
-	 * 
+	 *
 	 * @param prefix
 	 * @return Integer ID associated with prefix in this Map
 	 */
@@ -36,40 +65,339 @@ public class BidirectionalVariableOrderPrefixIDMap<T extends Token> {
 		if(prefix.size() != order) {
 			throw new RuntimeException("Tried to add prefix \"" + prefix + "\" that does not match order of " + order);
 		}
-		Integer id = prefixToIDMap.get(prefix);
-		
-		if (id == null) {
-			final LinkedList<T> prefixCopy = new LinkedList<T>(prefix);
-			synchronized(this) {
-				 id = prefixToIDMap.putIfAbsent(prefixCopy, nextID);
-				 if (id == null) {
-					 iDToPrefixMap.add(prefixCopy);
-					 id = nextID++;
-				 }
-			}
+
+		final int[] tokenIDs = addTokens(prefix);
+		return addPrefix(tokenIDs, 0, hashPrefix(tokenIDs, 0));
+	}
+
+	/**
+	 * @return ID of the prefix made up of the order token IDs starting at tokenIDs[offset], adding it if necessary
+	 */
+	public int addPrefix(int[] tokenIDs, int offset) {
+		return addPrefix(tokenIDs, offset, hashPrefix(tokenIDs, offset));
+	}
+
+	/**
+	 * @param hash the hash of the prefix as computed by {@link #hashPrefix(int[], int)} or {@link #rollHash(int, int, int)}
+	 * @return ID of the prefix made up of the order token IDs starting at tokenIDs[offset], adding it if necessary
+	 */
+	public int addPrefix(int[] tokenIDs, int offset, int hash) {
+		final int id = getIDForPrefix(tokenIDs, offset, hash);
+		return id != -1 ? id : insertPrefix(tokenIDs, offset, hash);
+	}
+
+	private synchronized int insertPrefix(int[] tokenIDs, int offset, int hash) {
+		Table table = this.table;
+		int slot = findSlot(table, tokenIDs, offset, hash);
+		final int existing = table.slots.get(slot);
+		if (existing != 0) {
+			return existing - 1;
 		}
-		
+
+		final int id = nextID;
+		if (id == table.prefixHashes.length) {
+			table = grow(table, id);
+			this.table = table;
+			slot = findSlot(table, tokenIDs, offset, hash);
+		}
+		System.arraycopy(tokenIDs, offset, table.prefixTokenIDs, id * order, order);
+		table.prefixHashes[id] = hash;
+		table.slots.set(slot, id + 1);
+		nextID = id + 1;
+
 		return id;
 	}
 
 	public Integer getIDForPrefix(LinkedList<Token> prefix) {
-		return prefixToIDMap.get(prefix);
+		if (prefix.size() != order) return null;
+
+		final int[] tokenIDs = new int[order];
+		int i = 0;
+		for (Token token : prefix) {
+			tokenIDs[i] = getTokenID(token);
+			if (tokenIDs[i++] == -1) return null;
+		}
+
+		final int id = getIDForPrefix(tokenIDs, 0, hashPrefix(tokenIDs, 0));
+		return id == -1 ? null : id;
+	}
+
+	/**
+	 * @return ID of the prefix made up of the order token IDs starting at tokenIDs[offset] or -1 if it has not been added
+	 */
+	public int getIDForPrefix(int[] tokenIDs, int offset, int hash) {
+		final Table table = this.table;
+		return table.slots.get(findSlot(table, tokenIDs, offset, hash)) - 1;
+	}
+
+	/**
+	 * @return the IDs of the seq.length-order+1 prefixes of consecutive tokens in seq (i.e., the states of seq), or null if
+	 * seq is shorter than order or any of them has not been added
+	 */
+	public int[] getIDsForSequence(Token[] seq) {
+		if (seq.length < order) return null;
+
+		final int[] tokenIDs = new int[seq.length];
+		for (int i = 0; i < seq.length; i++) {
+			tokenIDs[i] = getTokenID(seq[i]);
+			if (tokenIDs[i] == -1)
+				return null;
+		}
+
+		final int[] prefixIDs = new int[seq.length - order + 1];
+		int prefixHash = hashPrefix(tokenIDs, 0);
+		for (int i = 0; i < prefixIDs.length; i++) {
+			if (i > 0) {
+				prefixHash = rollHash(prefixHash, tokenIDs[i-1], tokenIDs[i-1+order]);
+			}
+			prefixIDs[i] = getIDForPrefix(tokenIDs, i, prefixHash);
+			if (prefixIDs[i] == -1)
+				return null;
+		}
+		return prefixIDs;
+	}
+
+	/**
+	 * @return the token ID for token, interning it if necessary
+	 */
+	public int addToken(T token) {
+		final Integer id = tokenToIDMap.get(token);
+		return id != null ? id : insertToken(token);
+	}
+
+	private synchronized int insertToken(T token) {
+		final Integer existing = tokenToIDMap.get(token);
+		if (existing != null) {
+			return existing;
+		}
+
+		final int id = tokenCount;
+		Object[] tokens = iDToTokenMap;
+		if (id == tokens.length) {
+			tokens = Arrays.copyOf(tokens, id * 2);
+			iDToTokenMap = tokens;
+		}
+		tokens[id] = token;
+		tokenCount = id + 1;
+		tokenToIDMap.put(token, id);
+		return id;
+	}
+
+	/**
+	 * @return the token IDs for tokens (in order), interning any that are new
+	 */
+	public int[] addTokens(List<T> tokens) {
+		final int[] tokenIDs = new int[tokens.size()];
+		int i = 0;
+		for (T token : tokens) {
+			tokenIDs[i++] = addToken(token);
+		}
+		return tokenIDs;
+	}
+
+	/**
+	 * @return the token ID for token or -1 if it does not appear in any prefix
+	 */
+	public int getTokenID(Object token) {
+		final Integer id = token == null ? null : tokenToIDMap.get(token);
+		return id == null ? -1 : id;
 	}
 
 	@SuppressWarnings("unchecked")
+	public T getToken(int tokenID) {
+		return (T) iDToTokenMap[tokenID];
+	}
+
+	public int getTokenCount() {
+		return tokenCount;
+	}
+
+	/**
+	 * @return the token ID at position i (0 being the oldest) of the prefix with the given ID
+	 */
+	public int getTokenIDInPrefix(int prefixID, int i) {
+		return table.prefixTokenIDs[prefixID * order + i];
+	}
+
+	/**
+	 * @return the hash of the order token IDs starting at tokenIDs[offset]
+	 */
+	public int hashPrefix(int[] tokenIDs, int offset) {
+		int hash = 0;
+		for (int i = offset; i < offset + order; i++) {
+			hash = hash * HASH_MULTIPLIER + tokenIDs[i];
+		}
+		return hash;
+	}
+
+	/**
+	 * @return the hash of the prefix obtained by dropping removedTokenID from the front of the prefix
+	 * hashed by hash and appending addedTokenID to its end
+	 */
+	public int rollHash(int hash, int removedTokenID, int addedTokenID) {
+		return (hash - removedTokenID * oldestTokenWeight) * HASH_MULTIPLIER + addedTokenID;
+	}
+
+	/**
+	 * @return the slot holding the given prefix or, if it is absent, the empty slot where it belongs
+	 */
+	private int findSlot(Table table, int[] tokenIDs, int offset, int hash) {
+		final AtomicIntegerArray slots = table.slots;
+		final int mask = slots.length() - 1;
+		int slot = mix(hash) & mask;
+		int candidate;
+		while ((candidate = slots.get(slot)) != 0) {
+			if (table.prefixHashes[candidate - 1] == hash && prefixEquals(table, candidate - 1, tokenIDs, offset)) {
+				break;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private boolean prefixEquals(Table table, int id, int[] tokenIDs, int offset) {
+		final int start = id * order;
+		for (int i = 0; i < order; i++) {
+			if (table.prefixTokenIDs[start + i] != tokenIDs[offset + i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return a copy of table, which holds prefixCount prefixes, with twice the capacity
+	 */
+	private Table grow(Table table, int prefixCount) {
+		final Table grown = new Table(Arrays.copyOf(table.prefixTokenIDs, table.prefixTokenIDs.length * 2), Arrays.copyOf(table.prefixHashes, table.prefixHashes.length * 2));
+		final int mask = grown.slots.length() - 1;
+		int slot;
+		for (int id = 0; id < prefixCount; id++) {
+			slot = mix(grown.prefixHashes[id]) & mask;
+			while (grown.slots.get(slot) != 0) {
+				slot = (slot + 1) & mask;
+			}
+			grown.slots.set(slot, id + 1);
+		}
+		return grown;
+	}
+
+	// spreads the polynomial hash, whose low bits depend mostly on the newest token
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
 	public T getPrefixFinaleForID(int toStateIdx) {
-		return (T) getPrefixForID(toStateIdx).getLast();
+		return getToken(table.prefixTokenIDs[toStateIdx * order + order - 1]);
 	}
-	
+
+	/**
+	 * @return a new list of the tokens of the prefix with the given ID
+	 */
 	public LinkedList<T> getPrefixForID(int toStateIdx) {
-		return getIDToPrefixMap().get(toStateIdx);
+		final int[] prefixTokenIDs = table.prefixTokenIDs;
+		final LinkedList<T> prefix = new LinkedList<T>();
+		for (int i = toStateIdx * order; i < (toStateIdx + 1) * order; i++) {
+			prefix.add(getToken(prefixTokenIDs[i]));
+		}
+		return prefix;
 	}
 
+	/**
+	 * @return a read-only view of the prefixes by ID, each built on demand by {@link #getPrefixForID(int)}
+	 */
 	public List<LinkedList<T>> getIDToPrefixMap() {
-		return iDToPrefixMap;
+		return new AbstractList<LinkedList<T>>() {
+			@Override
+			public LinkedList<T> get(int index) {
+				if (index < 0 || index >= nextID) {
+					throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + nextID);
+				}
+				return getPrefixForID(index);
+			}
+
+			@Override
+			public int size() {
+				return nextID;
+			}
+		};
 	}
 
 	public boolean isEmpty() {
 		return nextID == 0;
 	}
+
+	/**
+	 * @return a window that can be moved over the tokens of one prefix at a time
+	 */
+	public PrefixWindow newWindow() {
+		return new PrefixWindow();
+	}
+
+	/**
+	 * A reusable {@link TokenWindow} over the packed token IDs of the prefixes in this map. Moving it to another
+	 * prefix does not allocate, so a thread can keep one and evaluate constraints against many states.
+	 */
+	public class PrefixWindow implements TokenWindow<T> {
+
+		private int prefixID = -1;
+		private int offset = 0;
+
+		private PrefixWindow() {
+		}
+
+		public PrefixWindow moveTo(int prefixID) {
+			this.prefixID = prefixID;
+			this.offset = prefixID * order;
+			return this;
+		}
+
+		public int getPrefixID() {
+			return prefixID;
+		}
+
+		@Override
+		public int size() {
+			return order;
+		}
+
+		@Override
+		public T get(int i) {
+			if (i < 0 || i >= order) {
+				throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + order);
+			}
+			return getToken(table.prefixTokenIDs[offset + i]);
+		}
+
+		@Override
+		public T getLast() {
+			return getToken(table.prefixTokenIDs[offset + order - 1]);
+		}
+
+		@Override
+		public LinkedList<T> toLinkedList() {
+			return getPrefixForID(prefixID);
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(toLinkedList());
+		}
+	}
+
+	/**
+	 * The packed prefixes and the open-addressed index over them (with linear probing; each slot holds a prefix ID + 1,
+	 * 0 being empty). Slots are at least twice the prefix capacity.
+	 */
+	private static class Table {
+		// token IDs of prefix i are at [i*order, (i+1)*order)
+		private final int[] prefixTokenIDs;
+		private final int[] prefixHashes;
+		private final AtomicIntegerArray slots;
+
+		private Table(int[] prefixTokenIDs, int[] prefixHashes) {
+			this.prefixTokenIDs = prefixTokenIDs;
+			this.prefixHashes = prefixHashes;
+			this.slots = new AtomicIntegerArray(prefixHashes.length * 2);
+		}
+	}
 }
@@ -0,0 +1,59 @@
+package dbtb.markov;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a range of work into contiguous chunks run on an executor, returning their results in order so that
+ * merging them gives the same answer as running the whole range on one thread.
+ */
+class Chunks {
+
+	interface Chunk<R> {
+		R run(int start, int end);
+	}
+
+	/**
+	 * Splits [0, size) into up to parallelism chunks of at least minChunkSize, returning their results in order. All
+	 * but the last chunk are run on executor and the calling thread runs the last one rather than waiting idle (so it
+	 * runs everything if executor is null or there is too little work).
+	 */
+	static <R> List<R> run(int size, ExecutorService executor, int parallelism, int minChunkSize, final Chunk<R> chunk) throws InterruptedException {
+		final int taskCount = executor == null ? 1 : Math.min(parallelism, Math.max(1, size / minChunkSize));
+		final List<R> results = new ArrayList<R>(taskCount);
+		if (taskCount == 1) {
+			results.add(chunk.run(0, size));
+			return results;
+		}
+
+		final List<Future<R>> tasks = new ArrayList<Future<R>>(taskCount - 1);
+		for (int t = 0; t < taskCount - 1; t++) {
+			final int start = (int) ((long) size * t / taskCount);
+			final int end = (int) ((long) size * (t + 1) / taskCount);
+			tasks.add(executor.submit(new Callable<R>() {
+				@Override
+				public R call() {
+					return chunk.run(start, end);
+				}
+			}));
+		}
+		final R last = chunk.run((int) ((long) size * (taskCount - 1) / taskCount), size);
+
+		for (Future<R> task : tasks) {
+			try {
+				results.add(task.get());
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		results.add(last);
+		return results;
+	}
+}
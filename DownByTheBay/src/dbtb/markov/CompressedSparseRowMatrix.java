@@ -0,0 +1,424 @@
+package dbtb.markov;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable compressed-sparse-row storage for a (log) transition matrix. The entries for row r
+ * are found at indices rowStart(r) (inclusive) through rowEnd(r) (exclusive) of the column and
+ * value arrays, with columns sorted ascending within each row. Rows can thus be read with
+ * plain int/double accesses and single entries found by binary search.
+ *
+ * The arrays are held as Int/DoubleBuffers so that a matrix can either wrap heap arrays or be read
+ * directly from a memory-mapped model snapshot (see {@link ModelSnapshot}).
+ *
+ * Values may be stored at lower precision (see {@link Storage} and {@link #withStorage}), in which case they are
+ * decoded to doubles as they are read.
+ */
+public class CompressedSparseRowMatrix {
+
+	/**
+	 * How the values of a matrix are stored
+	 */
+	public enum Storage {
+		/** 8 bytes per value, exact */
+		DOUBLE,
+		/** 4 bytes per value, with about 7 significant digits */
+		FLOAT,
+		/**
+		 * 2 bytes per value: a code into a codebook of up to 65536 values for the whole matrix. If the matrix has no more
+		 * distinct values than that, the codebook holds them exactly; otherwise it is an evenly spaced grid between the
+		 * smallest and largest value, so a log value is off by at most (max - min) / 131070.
+		 */
+		QUANTIZED_16
+	}
+
+	private static final int CODEBOOK_SIZE = 1 << 16;
+
+	private final IntBuffer rowOffsets;
+	private final IntBuffer columns;
+	private final Storage storage;
+	private final DoubleBuffer values; // if storage is DOUBLE
+	private final FloatBuffer floatValues; // if storage is FLOAT
+	private final ShortBuffer codes; // if storage is QUANTIZED_16
+	private final double[] codebook; // if storage is QUANTIZED_16
+	private final int nonEmptyRowCount;
+
+	/**
+	 * @param rows the matrix as nested maps (from row to column to value)
+	 * @param rowCount the number of rows to allocate; rows not in rows (or at or beyond rowCount) are empty
+	 */
+	public CompressedSparseRowMatrix(Map<Integer, Map<Integer, Double>> rows, int rowCount) {
+		final int[] rowOffsets = new int[rowCount + 1];
+
+		int nonZeroCount = 0;
+		for (Entry<Integer, Map<Integer, Double>> row : rows.entrySet()) {
+			if (row.getKey() < rowCount && row.getValue() != null) {
+				rowOffsets[row.getKey() + 1] = row.getValue().size();
+				nonZeroCount += row.getValue().size();
+			}
+		}
+
+		int nonEmptyRowCount = 0;
+		for (int i = 0; i < rowCount; i++) {
+			if (rowOffsets[i + 1] > 0)
+				nonEmptyRowCount++;
+			rowOffsets[i + 1] += rowOffsets[i];
+		}
+		this.nonEmptyRowCount = nonEmptyRowCount;
+
+		final int[] columns = new int[nonZeroCount];
+		final double[] values = new double[nonZeroCount];
+
+		int k;
+		for (Entry<Integer, Map<Integer, Double>> row : rows.entrySet()) {
+			if (row.getKey() >= rowCount || row.getValue() == null) continue;
+			k = rowOffsets[row.getKey()];
+			for (Integer column : row.getValue().keySet()) {
+				columns[k++] = column;
+			}
+			Arrays.sort(columns, rowOffsets[row.getKey()], k);
+			for (k = rowOffsets[row.getKey()]; k < rowOffsets[row.getKey() + 1]; k++) {
+				values[k] = row.getValue().get(columns[k]);
+			}
+		}
+
+		this.rowOffsets = IntBuffer.wrap(rowOffsets);
+		this.columns = IntBuffer.wrap(columns);
+		this.storage = Storage.DOUBLE;
+		this.values = DoubleBuffer.wrap(values);
+		this.floatValues = null;
+		this.codes = null;
+		this.codebook = null;
+	}
+
+	/**
+	 * Wraps existing CSR buffers (e.g., mapped from a snapshot) without copying them. rowOffsets must have
+	 * one more entry than there are rows and columns must be sorted ascending within each row.
+	 */
+	CompressedSparseRowMatrix(IntBuffer rowOffsets, IntBuffer columns, DoubleBuffer values) {
+		if (rowOffsets.limit() == 0 || columns.limit() != values.limit() || rowOffsets.get(rowOffsets.limit() - 1) != columns.limit()) {
+			throw new IllegalArgumentException("Inconsistent CSR buffers");
+		}
+		this.rowOffsets = rowOffsets;
+		this.columns = columns;
+		this.storage = Storage.DOUBLE;
+		this.values = values;
+		this.floatValues = null;
+		this.codes = null;
+		this.codebook = null;
+
+		int nonEmptyRowCount = 0;
+		for (int i = 0; i < rowOffsets.limit() - 1; i++) {
+			if (rowOffsets.get(i + 1) > rowOffsets.get(i))
+				nonEmptyRowCount++;
+		}
+		this.nonEmptyRowCount = nonEmptyRowCount;
+	}
+
+	private CompressedSparseRowMatrix(CompressedSparseRowMatrix matrix, Storage storage, FloatBuffer floatValues, ShortBuffer codes, double[] codebook) {
+		this.rowOffsets = matrix.rowOffsets;
+		this.columns = matrix.columns;
+		this.nonEmptyRowCount = matrix.nonEmptyRowCount;
+		this.storage = storage;
+		this.values = null;
+		this.floatValues = floatValues;
+		this.codes = codes;
+		this.codebook = codebook;
+	}
+
+	/**
+	 * @return a matrix with the same entries (sharing this matrix's row offsets and columns) whose values are stored as
+	 * storage, or this matrix if they already are. Values are re-encoded from this matrix's (possibly already rounded) values.
+	 */
+	public CompressedSparseRowMatrix withStorage(Storage storage) {
+		if (storage == this.storage) return this;
+
+		final int nonZeroCount = getNonZeroCount();
+		switch (storage) {
+		case DOUBLE:
+			return new CompressedSparseRowMatrix(rowOffsets, columns, getValues());
+		case FLOAT:
+			final float[] floats = new float[nonZeroCount];
+			for (int k = 0; k < nonZeroCount; k++) {
+				floats[k] = (float) valueAt(k);
+			}
+			return new CompressedSparseRowMatrix(this, storage, FloatBuffer.wrap(floats), null, null);
+		case QUANTIZED_16:
+			final double[] codebook = buildCodebook();
+			final short[] codes = new short[nonZeroCount];
+			for (int k = 0; k < nonZeroCount; k++) {
+				codes[k] = (short) encode(codebook, valueAt(k));
+			}
+			return new CompressedSparseRowMatrix(this, storage, null, ShortBuffer.wrap(codes), codebook);
+		default:
+			throw new IllegalArgumentException("Unknown storage " + storage);
+		}
+	}
+
+	/**
+	 * @return the distinct values of this matrix in ascending order if there are at most CODEBOOK_SIZE of them, or
+	 * else CODEBOOK_SIZE evenly spaced values from the smallest (finite) value to the largest
+	 */
+	private double[] buildCodebook() {
+		final double[] sorted = new double[getNonZeroCount()];
+		for (int k = 0; k < sorted.length; k++) {
+			sorted[k] = valueAt(k);
+		}
+		Arrays.sort(sorted);
+
+		int distinct = 0;
+		for (int k = 0; k < sorted.length && distinct <= CODEBOOK_SIZE; k++) {
+			if (k == 0 || Double.compare(sorted[k], sorted[k - 1]) != 0) {
+				sorted[distinct++] = sorted[k];
+			}
+		}
+		if (distinct <= CODEBOOK_SIZE) {
+			return Arrays.copyOf(sorted, distinct);
+		}
+
+		// negative infinity (a zero probability) keeps a code of its own
+		final boolean hasZero = sorted[0] == Double.NEGATIVE_INFINITY;
+		final double min = hasZero ? sorted[1] : sorted[0];
+		double max = Double.NEGATIVE_INFINITY;
+		for (int k = 0; k < getNonZeroCount(); k++) {
+			max = Math.max(max, valueAt(k));
+		}
+		final double[] codebook = new double[CODEBOOK_SIZE];
+		final int first = hasZero ? 1 : 0, levels = CODEBOOK_SIZE - first;
+		if (hasZero) codebook[0] = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < levels; i++) {
+			codebook[first + i] = min + (max - min) * i / (levels - 1);
+		}
+		return codebook;
+	}
+
+	/**
+	 * @return the index of the codebook value nearest to value
+	 */
+	private static int encode(double[] codebook, double value) {
+		final int index = Arrays.binarySearch(codebook, value);
+		if (index >= 0) return index;
+
+		final int above = -index - 1;
+		if (above == 0) return 0;
+		if (above == codebook.length) return codebook.length - 1;
+		return value - codebook[above - 1] <= codebook[above] - value ? above - 1 : above;
+	}
+
+	public Storage getStorage() {
+		return storage;
+	}
+
+	IntBuffer getRowOffsets() {
+		return rowOffsets.duplicate();
+	}
+
+	IntBuffer getColumns() {
+		return columns.duplicate();
+	}
+
+	/**
+	 * @return the values as doubles, decoding them into a new heap buffer if they are not stored as doubles
+	 */
+	DoubleBuffer getValues() {
+		if (storage == Storage.DOUBLE) {
+			return values.duplicate();
+		}
+		final double[] decoded = new double[getNonZeroCount()];
+		for (int k = 0; k < decoded.length; k++) {
+			decoded[k] = valueAt(k);
+		}
+		return DoubleBuffer.wrap(decoded);
+	}
+
+	public int getRowCount() {
+		return rowOffsets.limit() - 1;
+	}
+
+	public int getNonZeroCount() {
+		return columns.limit();
+	}
+
+	public int rowStart(int row) {
+		return row >= 0 && row < rowOffsets.limit() - 1 ? rowOffsets.get(row) : 0;
+	}
+
+	public int rowEnd(int row) {
+		return row >= 0 && row < rowOffsets.limit() - 1 ? rowOffsets.get(row + 1) : 0;
+	}
+
+	public int rowSize(int row) {
+		return rowEnd(row) - rowStart(row);
+	}
+
+	public int columnAt(int index) {
+		return columns.get(index);
+	}
+
+	public double valueAt(int index) {
+		switch (storage) {
+		case FLOAT:
+			return floatValues.get(index);
+		case QUANTIZED_16:
+			return codebook[codes.get(index) & 0xffff];
+		default:
+			return values.get(index);
+		}
+	}
+
+	/**
+	 * @return the index of (row, column) in the column and value arrays or -1 if the entry is zero
+	 */
+	public int indexOf(int row, int column) {
+		return binarySearch(rowStart(row), rowEnd(row), column);
+	}
+
+	/**
+	 * @return the index of column in columns between from (inclusive) and to (exclusive) or -1 if absent
+	 */
+	private int binarySearch(int from, int to, int column) {
+		int low = from, high = to - 1, mid, midColumn;
+		while (low <= high) {
+			mid = (low + high) >>> 1;
+			midColumn = columns.get(mid);
+			if (midColumn < column)
+				low = mid + 1;
+			else if (midColumn > column)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return a read-only Map view of this matrix that boxes keys and values as they are read,
+	 * allowing existing Map-based code to run against the frozen representation
+	 */
+	public Map<Integer, Map<Integer, Double>> asMap() {
+		return new MatrixView();
+	}
+
+	private class MatrixView extends AbstractMap<Integer, Map<Integer, Double>> {
+
+		@Override
+		public Map<Integer, Double> get(Object key) {
+			if (!(key instanceof Integer)) return null;
+			final int row = (Integer) key;
+			return rowSize(row) == 0 ? null : new RowView(row);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof Integer && rowSize((Integer) key) > 0;
+		}
+
+		@Override
+		public int size() {
+			return nonEmptyRowCount;
+		}
+
+		@Override
+		public Set<Entry<Integer, Map<Integer, Double>>> entrySet() {
+			return new AbstractSet<Entry<Integer, Map<Integer, Double>>>() {
+				@Override
+				public Iterator<Entry<Integer, Map<Integer, Double>>> iterator() {
+					return new Iterator<Entry<Integer, Map<Integer, Double>>>() {
+						private int nextRow = advance(0);
+
+						private int advance(int row) {
+							while (row < getRowCount() && rowSize(row) == 0)
+								row++;
+							return row;
+						}
+
+						@Override
+						public boolean hasNext() {
+							return nextRow < getRowCount();
+						}
+
+						@Override
+						public Entry<Integer, Map<Integer, Double>> next() {
+							if (!hasNext()) throw new NoSuchElementException();
+							final int row = nextRow;
+							nextRow = advance(row + 1);
+							return new SimpleImmutableEntry<Integer, Map<Integer, Double>>(row, new RowView(row));
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return nonEmptyRowCount;
+				}
+			};
+		}
+	}
+
+	private class RowView extends AbstractMap<Integer, Double> {
+
+		private final int start, end;
+
+		public RowView(int row) {
+			this.start = rowStart(row);
+			this.end = rowEnd(row);
+		}
+
+		@Override
+		public Double get(Object key) {
+			if (!(key instanceof Integer)) return null;
+			int index = binarySearch(start, end, (Integer) key);
+			return index < 0 ? null : valueAt(index);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof Integer && binarySearch(start, end, (Integer) key) >= 0;
+		}
+
+		@Override
+		public int size() {
+			return end - start;
+		}
+
+		@Override
+		public Set<Entry<Integer, Double>> entrySet() {
+			return new AbstractSet<Entry<Integer, Double>>() {
+				@Override
+				public Iterator<Entry<Integer, Double>> iterator() {
+					return new Iterator<Entry<Integer, Double>>() {
+						private int next = start;
+
+						@Override
+						public boolean hasNext() {
+							return next < end;
+						}
+
+						@Override
+						public Entry<Integer, Double> next() {
+							if (!hasNext()) throw new NoSuchElementException();
+							final int index = next++;
+							return new SimpleImmutableEntry<Integer, Double>(columns.get(index), valueAt(index));
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return end - start;
+				}
+			};
+		}
+	}
+}
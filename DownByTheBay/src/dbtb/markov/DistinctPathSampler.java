@@ -0,0 +1,258 @@
+package dbtb.markov;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SplittableRandom;
+
+/**
+ * Samples the state paths of an NHMM without replacement, so that every path returned is new.
+ *
+ * Returned paths are kept in a trie over state IDs (in parallel primitive arrays, with children in an
+ * open-addressed table keyed by (parent node, state ID), as in {@link NGramCounts}). Each node records the
+ * probability mass, conditioned on reaching it, of the returned paths through it. A step from a node samples a
+ * successor from the model's own sampler and accepts it with probability one minus the removed mass of the child
+ * (always, if the child is not in the trie), which samples exactly from the distribution with those paths removed.
+ * Outside of the trie (i.e., for most steps of most paths) this is just the model's sampler. Where the removed
+ * mass is large, the row is instead scanned once.
+ *
+ * Whether a node is exhausted is tracked separately by counting its exhausted children, so that the iterator ends
+ * exactly when every path has been returned, regardless of rounding in the removed mass.
+ */
+class DistinctPathSampler {
+
+	interface Model {
+		Map<Integer, Double> getLogPriors();
+
+		Map<Integer, Double> getLogTransitions(int position, int fromStateIdx);
+
+		int sampleStartStateIdx(double uniform);
+
+		int sampleNextStateIdx(int fromStateIdx, int position, double uniform);
+
+		/**
+		 * @return whether a path ends once it reaches stateIdx (e.g., because it ends in the end token)
+		 */
+		boolean isFinal(int stateIdx);
+	}
+
+	private static final int ROOT = 0;
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int MAX_REJECTIONS = 16;
+	private static final double MAX_REMOVED_FOR_REJECTION = 0.5;
+
+	private final Model model;
+	private final int length;
+	private final SplittableRandom random;
+
+	private int nodeCount = 1;
+	private double[] removed = new double[INITIAL_CAPACITY];
+	private int[] exhaustedChildren = new int[INITIAL_CAPACITY];
+	private boolean[] exhausted = new boolean[INITIAL_CAPACITY];
+	private int[] stateOf = new int[INITIAL_CAPACITY];
+
+	// children, open-addressed with linear probing; childNodes[i] == 0 marks an empty slot (the root is never a child)
+	private long[] childKeys = new long[INITIAL_CAPACITY * 2];
+	private int[] childNodes = new int[INITIAL_CAPACITY * 2];
+
+	/**
+	 * @param length the number of transitions in a path (at most the length of the model)
+	 */
+	DistinctPathSampler(Model model, int length, long seed) {
+		this.model = model;
+		this.length = length;
+		this.random = new SplittableRandom(seed);
+		if (model.getLogPriors().isEmpty()) {
+			exhausted[ROOT] = true;
+		}
+	}
+
+	/**
+	 * @return the states of a path that has not been returned before, starting with the prior state (fewer than
+	 * length+1 of them if the path reaches a final state early), or null if every path has been returned
+	 */
+	int[] nextPath() {
+		final int[] path = new int[length + 1];
+		if (exhausted[ROOT]) return null;
+
+		int node = ROOT, stateIdx, pathLength = 0;
+		for (int i = -1; i < length; i++) {
+			stateIdx = sampleChild(node, i, i == -1 ? -1 : path[i]);
+			if (stateIdx == -1) {
+				throw new RuntimeException("No allowed transitions from state " + (i == -1 ? "(start)" : path[i]) + " at position " + i);
+			}
+			path[i + 1] = stateIdx;
+			node = node == -1 ? -1 : getChild(node, stateIdx);
+			pathLength = i + 2;
+			if (i >= 0 && model.isFinal(stateIdx)) break;
+		}
+
+		add(path, pathLength);
+		return pathLength == path.length ? path : Arrays.copyOf(path, pathLength);
+	}
+
+	/**
+	 * @return a child of node (at position, after fromStateIdx) drawn with the mass of returned paths removed, or -1 if there is none
+	 */
+	private int sampleChild(int node, int position, int fromStateIdx) {
+		if (node == -1) {
+			// no path through node has been returned
+			return position == -1 ? model.sampleStartStateIdx(random.nextDouble()) : model.sampleNextStateIdx(fromStateIdx, position, random.nextDouble());
+		}
+
+		int stateIdx, child;
+		if (removed[node] <= MAX_REMOVED_FOR_REJECTION) {
+			for (int r = 0; r < MAX_REJECTIONS; r++) {
+				stateIdx = position == -1 ? model.sampleStartStateIdx(random.nextDouble()) : model.sampleNextStateIdx(fromStateIdx, position, random.nextDouble());
+				child = getChild(node, stateIdx);
+				if (child == -1 || (!exhausted[child] && random.nextDouble() < 1. - removed[child])) {
+					return stateIdx;
+				}
+			}
+		}
+
+		final Map<Integer, Double> logWeights = position == -1 ? model.getLogPriors() : model.getLogTransitions(position, fromStateIdx);
+		double total = 0.;
+		for (Entry<Integer, Double> entry : logWeights.entrySet()) {
+			total += remainingWeight(node, entry);
+		}
+		if (total <= 0.) {
+			// the remaining paths' mass underflows (or is lost to rounding), so fall back to any child not yet exhausted
+			return anyRemainingChild(node, logWeights);
+		}
+
+		final double target = random.nextDouble() * total;
+		double cumulative = 0., weight;
+		int last = -1;
+		for (Entry<Integer, Double> entry : logWeights.entrySet()) {
+			weight = remainingWeight(node, entry);
+			if (weight <= 0.) continue;
+			last = entry.getKey();
+			cumulative += weight;
+			if (target < cumulative) {
+				return last;
+			}
+		}
+		return last;
+	}
+
+	private int anyRemainingChild(int node, Map<Integer, Double> logWeights) {
+		int child;
+		for (Integer stateIdx : logWeights.keySet()) {
+			child = getChild(node, stateIdx);
+			if (child == -1 || !exhausted[child]) {
+				return stateIdx;
+			}
+		}
+		return -1;
+	}
+
+	private double remainingWeight(int node, Entry<Integer, Double> entry) {
+		final int child = getChild(node, entry.getKey());
+		if (child == -1) return Math.exp(entry.getValue());
+		if (exhausted[child]) return 0.;
+		return Math.exp(entry.getValue()) * Math.max(0., 1. - removed[child]);
+	}
+
+	/**
+	 * Adds path to the trie, removing its mass from each node on it and marking exhausted nodes
+	 */
+	private void add(int[] path, int pathLength) {
+		final int[] nodes = new int[pathLength];
+		int node = ROOT;
+		for (int j = 0; j < pathLength; j++) {
+			node = getOrAddChild(node, path[j]);
+			nodes[j] = node;
+		}
+
+		// mass of the path conditioned on reaching each node, from the leaf up
+		double mass = 1.;
+		removed[nodes[pathLength - 1]] = 1.;
+		for (int j = pathLength - 1; j >= 1; j--) {
+			mass *= Math.exp(model.getLogTransitions(j - 1, path[j - 1]).get(path[j]));
+			removed[nodes[j - 1]] += mass;
+		}
+		mass *= Math.exp(model.getLogPriors().get(path[0]));
+		removed[ROOT] += mass;
+
+		markExhausted(nodes, pathLength - 1);
+	}
+
+	/**
+	 * Marks nodes[last] exhausted and, in turn, each of its ancestors all of whose children are then exhausted
+	 */
+	private void markExhausted(int[] nodes, int last) {
+		exhausted[nodes[last]] = true;
+		int node, childCount;
+		for (int j = last - 1; j >= -1; j--) {
+			node = j == -1 ? ROOT : nodes[j];
+			childCount = j == -1 ? model.getLogPriors().size() : model.getLogTransitions(j, stateOf[node]).size();
+			if (++exhaustedChildren[node] < childCount) return;
+			exhausted[node] = true;
+		}
+	}
+
+	private int getChild(int node, int stateIdx) {
+		final long key = childKey(node, stateIdx);
+		final int mask = childNodes.length - 1;
+		int slot = slotFor(key, mask);
+		while (childNodes[slot] != 0) {
+			if (childKeys[slot] == key) return childNodes[slot];
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int getOrAddChild(int node, int stateIdx) {
+		final long key = childKey(node, stateIdx);
+		final int mask = childNodes.length - 1;
+		int slot = slotFor(key, mask);
+		while (childNodes[slot] != 0) {
+			if (childKeys[slot] == key) return childNodes[slot];
+			slot = (slot + 1) & mask;
+		}
+
+		final int child = nodeCount++;
+		if (child == removed.length) {
+			removed = Arrays.copyOf(removed, child * 2);
+			exhaustedChildren = Arrays.copyOf(exhaustedChildren, child * 2);
+			exhausted = Arrays.copyOf(exhausted, child * 2);
+			stateOf = Arrays.copyOf(stateOf, child * 2);
+		}
+		stateOf[child] = stateIdx;
+
+		childKeys[slot] = key;
+		childNodes[slot] = child;
+		if (nodeCount * 2 > childNodes.length) {
+			resizeChildren();
+		}
+		return child;
+	}
+
+	private void resizeChildren() {
+		final long[] keys = new long[childKeys.length * 2];
+		final int[] nodes = new int[childNodes.length * 2];
+		final int mask = nodes.length - 1;
+		int slot;
+		for (int i = 0; i < childNodes.length; i++) {
+			if (childNodes[i] == 0) continue;
+			slot = slotFor(childKeys[i], mask);
+			while (nodes[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = childKeys[i];
+			nodes[slot] = childNodes[i];
+		}
+		childKeys = keys;
+		childNodes = nodes;
+	}
+
+	private static long childKey(int node, int stateIdx) {
+		return ((long) node << 32) | (stateIdx & 0xffffffffL);
+	}
+
+	private static int slotFor(long key, int mask) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+}
@@ -0,0 +1,302 @@
+package dbtb.markov;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import dbtb.constraint.ConditionedConstraint;
+import dbtb.constraint.TransitionalConstraint;
+import dbtb.utils.MathUtils;
+
+/**
+ * An NHMM that, rather than copying the (pruned) transition matrix of the base model for every position, keeps
+ * only which states are allowed at each position and the log normalizing constant (alpha) of each allowed state,
+ * reading transition weights from the base model's frozen matrix as they are needed. The probability of a
+ * transition from s at position i to t is then
+ *
+ * <pre>P(t | s) * alpha[i+1][t] / alpha[i][s]</pre>
+ *
+ * which is exactly the value SparseVariableOrderNHMM stores after normalization, so sequences are distributed
+ * identically. Memory is O(length * states) instead of O(length * non-zero transitions). Positions with
+ * transitional constraints additionally keep one bit per base transition, since whether a transition is allowed
+ * there depends on more than its to-state.
+ *
+ * Sampling draws from an alias table over the allowed transitions out of the current state, built the first time
+ * that state is sampled from at that position, so only rows that are actually visited are expanded.
+ */
+public class ImplicitSparseVariableOrderNHMM<T extends Token> extends AbstractMarkovModel<T> {
+
+	private final BidirectionalVariableOrderPrefixIDMap<T> stateIndex;
+	private final CompressedSparseRowMatrix baseLogTransitions; // shared with the base model
+	private final int order;
+	private final List<BitSet> states; // states at position i on some full-length path
+	private final List<BitSet> allowedTransitions; // indices into baseLogTransitions, or null if states suffices at the position
+	private final List<double[]> logAlphas; // log normalizing constant of each from-state for the transition at position i
+	private final HashMap<Integer, Double> logPriors;
+	private volatile AliasTable priorSampler = null;
+	private final List<Map<Integer, AliasTable>> transitionSamplers; // by position, then from-state; filled as rows are sampled
+	private Random rand = new Random();
+
+	/**
+	 * @param model the base model, which must be frozen (see {@link SparseVariableOrderMarkovModel#freeze()}) since its
+	 * matrix is read rather than copied
+	 * @throws IllegalArgumentException if model is not frozen
+	 */
+	public ImplicitSparseVariableOrderNHMM(SparseVariableOrderMarkovModel<T> model, int length, List<List<ConditionedConstraint<T>>> constraints) throws UnsatisfiableConstraintSetException {
+		this(model, new ReachabilityNHMMBuilder<T>(requireFrozen(model), length, constraints), constraints);
+	}
+
+	/**
+	 * See {@link #ImplicitSparseVariableOrderNHMM(SparseVariableOrderMarkovModel, int, List)}
+	 */
+	public ImplicitSparseVariableOrderNHMM(SparseVariableOrderMarkovModel<T> model, int length, List<List<ConditionedConstraint<T>>> constraints,
+			ExecutorService executor, int parallelism) throws UnsatisfiableConstraintSetException, InterruptedException {
+		this(model, new ReachabilityNHMMBuilder<T>(requireFrozen(model), length, constraints, executor, parallelism), constraints);
+	}
+
+	private ImplicitSparseVariableOrderNHMM(SparseVariableOrderMarkovModel<T> model, ReachabilityNHMMBuilder<T> builder, List<List<ConditionedConstraint<T>>> constraints) {
+		this.stateIndex = model.stateIndex;
+		this.order = model.order;
+		this.baseLogTransitions = model.getFrozenLogTransitions();
+
+		final int positionCount = builder.getPositionCount();
+		this.states = new ArrayList<BitSet>(positionCount);
+		this.allowedTransitions = new ArrayList<BitSet>(positionCount);
+		for (int i = 0; i < positionCount; i++) {
+			states.add(builder.getStates(i));
+			if (hasTransitionalConstraint(constraints.get(i + order))) {
+				final BitSet allowed = new BitSet(baseLogTransitions.getNonZeroCount());
+				for (int j = 0; j < builder.getTransitionCount(i); j++) {
+					allowed.set(builder.getMatrixIndex(i, j));
+				}
+				allowedTransitions.add(allowed);
+			} else {
+				allowedTransitions.add(null);
+			}
+		}
+
+		// propagate normalization from right to left
+		final double[][] alphas = new double[positionCount][];
+		double[] buffer = new double[16];
+		int rowStart;
+		for (int i = positionCount - 1; i >= 0; i--) {
+			alphas[i] = new double[baseLogTransitions.getRowCount()];
+			Arrays.fill(alphas[i], Double.NEGATIVE_INFINITY);
+			if (buffer.length < builder.getTransitionCount(i)) {
+				buffer = new double[builder.getTransitionCount(i)];
+			}
+			// transitions are grouped by from-state, so each group is one row to sum
+			rowStart = 0;
+			for (int j = 0; j < builder.getTransitionCount(i); j++) {
+				buffer[j] = builder.getLogProbability(i, j) + nextLogAlpha(alphas, i, builder.getToState(i, j));
+				if (j + 1 == builder.getTransitionCount(i) || builder.getFromState(i, j + 1) != builder.getFromState(i, j)) {
+					alphas[i][builder.getFromState(i, j)] = MathUtils.logSumExp(buffer, rowStart, j + 1);
+					rowStart = j + 1;
+				}
+			}
+		}
+		this.logAlphas = Arrays.asList(alphas);
+		this.transitionSamplers = new ArrayList<Map<Integer, AliasTable>>(positionCount);
+		for (int i = 0; i < positionCount; i++) {
+			this.transitionSamplers.add(new ConcurrentHashMap<Integer, AliasTable>());
+		}
+
+		// propagate normalization to prior
+		this.logPriors = new HashMap<Integer, Double>();
+		final BitSet priorStates = builder.getPriorStates();
+		final double[] priorValues = new double[priorStates.cardinality()];
+		int p = 0;
+		for (int priorStateIdx = priorStates.nextSetBit(0); priorStateIdx >= 0; priorStateIdx = priorStates.nextSetBit(priorStateIdx + 1)) {
+			priorValues[p] = model.logPriors.get(priorStateIdx) + (positionCount == 0 ? 0. : alphas[0][priorStateIdx]);
+			logPriors.put(priorStateIdx, priorValues[p++]);
+		}
+		final double tmpSum = MathUtils.logSumExp(priorValues, 0, p);
+		for (Entry<Integer, Double> row : logPriors.entrySet()) {
+			row.setValue(row.getValue() - tmpSum);
+		}
+	}
+
+	private static <T extends Token> SparseVariableOrderMarkovModel<T> requireFrozen(SparseVariableOrderMarkovModel<T> model) {
+		if (!model.isFrozen()) {
+			throw new IllegalArgumentException("The base model of an implicit NHMM must be frozen");
+		}
+		return model;
+	}
+
+	private static <T extends Token> boolean hasTransitionalConstraint(List<ConditionedConstraint<T>> constraintsAtPos) {
+		for (ConditionedConstraint<T> conditionedConstraint : constraintsAtPos) {
+			if (conditionedConstraint.getConstraint() instanceof TransitionalConstraint) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static double nextLogAlpha(double[][] alphas, int position, int toStateIdx) {
+		return position + 1 < alphas.length ? alphas[position + 1][toStateIdx] : 0.;
+	}
+
+	/**
+	 * @return whether the transition at index k of the base matrix, to toStateIdx, is allowed at position
+	 * (assuming its from-state is allowed at the previous position)
+	 */
+	private boolean isAllowed(int position, int k, int toStateIdx) {
+		final BitSet allowed = allowedTransitions.get(position);
+		return states.get(position).get(toStateIdx) && (allowed == null || allowed.get(k));
+	}
+
+	/**
+	 * @return the normalized log probability of the transition at index k of the base matrix from fromStateIdx at position
+	 */
+	private double logProbability(int position, int fromStateIdx, int k) {
+		final int toStateIdx = baseLogTransitions.columnAt(k);
+		final double next = position + 1 < logAlphas.size() ? logAlphas.get(position + 1)[toStateIdx] : 0.;
+		return baseLogTransitions.valueAt(k) + next - logAlphas.get(position)[fromStateIdx];
+	}
+
+	public double probabilityOfSequence(Token[] seq) {
+		if(seq.length == 0)
+			return Double.NaN;
+
+		final int[] stateIDs = stateIndex.getIDsForSequence(seq);
+		return stateIDs == null ? 0. : Math.exp(logProbability(stateIDs));
+	}
+
+	/**
+	 * @param stateIDs the state at each position, starting with the prior state (see {@link BidirectionalVariableOrderPrefixIDMap#getIDsForSequence})
+	 * @return the log probability of the sequence of states (negative infinity if it is impossible)
+	 */
+	@Override
+	public double logProbability(int[] stateIDs) {
+		if(stateIDs.length == 0)
+			return Double.NaN;
+
+		final Double value = logPriors.get(stateIDs[0]);
+		if (value == null)
+			return Double.NEGATIVE_INFINITY;
+		double logProb = value;
+
+		int k;
+		for (int i = 0; i < stateIDs.length-1; i++) {
+			if (i >= logAlphas.size())
+				return Double.NEGATIVE_INFINITY;
+
+			k = baseLogTransitions.indexOf(stateIDs[i], stateIDs[i+1]);
+			if (k == -1 || !isAllowed(i, k, stateIDs[i+1]))
+				return Double.NEGATIVE_INFINITY;
+
+			logProb += logProbability(i, stateIDs[i], k);
+		}
+
+		return logProb;
+	}
+
+	@Override
+	public List<T> generate(int length) {
+		return generate(length, new SplittableRandom(rand.nextLong()));
+	}
+
+	@Override
+	protected List<T> generate(int length, SplittableRandom random) {
+		AliasTable sampler = priorSampler;
+		if (sampler == null) {
+			sampler = priorSampler = AliasTable.fromLogWeights(logPriors);
+			if (sampler == null) {
+				throw new RuntimeException("No valid start prefix");
+			}
+		}
+		return generateWithPrefixID(length, sampler.sample(random.nextDouble()), random);
+	}
+
+	public List<T> generateWithPrefix(int length, LinkedList<Token> prefix) {
+		final Integer prefixID = stateIndex.getIDForPrefix(prefix);
+		if (prefixID == null || !logPriors.containsKey(prefixID)) {
+			throw new RuntimeException("Unable to generate from prefix:" + prefix + "\nTry generate()?");
+		}
+		return generateWithPrefixID(length, prefixID);
+	}
+
+	public List<T> generateWithPrefixID(int length, int fromStateIdx) {
+		return generateWithPrefixID(length, fromStateIdx, new SplittableRandom(rand.nextLong()));
+	}
+
+	private List<T> generateWithPrefixID(int length, int fromStateIdx, SplittableRandom random) {
+		int toStateIdx;
+		T toState;
+
+		length = Math.min(length, logAlphas.size());
+
+		List<T> newSeq = new ArrayList<T>();
+
+		final Token endToken = Token.getEndToken();
+		for(T token : stateIndex.getPrefixForID(fromStateIdx)) {
+			if (token != endToken)
+				newSeq.add(token);
+		}
+
+		for (int i = 0; i < length; i++) {
+			toStateIdx = sampleNextStateIdx(fromStateIdx, i, random.nextDouble());
+			toState = stateIndex.getPrefixFinaleForID(toStateIdx);
+
+			if(toState == endToken)
+			{
+				return newSeq;
+			}
+
+			newSeq.add(toState);
+			fromStateIdx = toStateIdx;
+		}
+
+		return newSeq;
+	}
+
+	// position represents essentially the fromState position
+	private int sampleNextStateIdx(int fromStateIdx, int position, double uniform) {
+		final Map<Integer, AliasTable> samplersAtPosition = transitionSamplers.get(position);
+		AliasTable sampler = samplersAtPosition.get(fromStateIdx);
+		if (sampler == null) {
+			sampler = newTransitionSampler(fromStateIdx, position);
+			samplersAtPosition.put(fromStateIdx, sampler);
+		}
+		return sampler.sample(uniform);
+	}
+
+	private AliasTable newTransitionSampler(int fromStateIdx, int position) {
+		final int rowStart = baseLogTransitions.rowStart(fromStateIdx), rowEnd = baseLogTransitions.rowEnd(fromStateIdx);
+		final int[] outcomes = new int[rowEnd - rowStart];
+		final double[] logWeights = new double[outcomes.length];
+		int size = 0, toStateIdx;
+		for (int k = rowStart; k < rowEnd; k++) {
+			toStateIdx = baseLogTransitions.columnAt(k);
+			if (!isAllowed(position, k, toStateIdx)) continue;
+
+			outcomes[size] = toStateIdx;
+			logWeights[size++] = logProbability(position, fromStateIdx, k);
+		}
+		if (size == 0) {
+			throw new RuntimeException("No allowed transitions from state " + fromStateIdx + " at position " + position);
+		}
+		return new AliasTable(Arrays.copyOf(outcomes, size), Arrays.copyOf(logWeights, size));
+	}
+
+	public int length() {
+		return logAlphas.size();
+	}
+
+	public List<List<T>> generateFromAllPriors(int length) {
+		System.out.println("Generating from all priors...");
+		List<List<T>> returnList = new ArrayList<List<T>>();
+		for (Integer startPrefixID : logPriors.keySet()) {
+			returnList.add(generateWithPrefixID(length, startPrefixID));
+		}
+		return returnList;
+	}
+}
@@ -0,0 +1,276 @@
+package dbtb.markov;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+
+/**
+ * Enumerates the state paths through an NHMM's per-position log transitions in order of decreasing probability.
+ *
+ * A Viterbi pass first finds the best path to every state at every position. Further paths are found lazily with
+ * the recursive enumeration algorithm (Jimenez and Marzal): the j-th best path to a state is the best of the
+ * candidates (i-th best path to a predecessor + transition), and a predecessor's candidate is only advanced to its
+ * next best path when the current one has been used. Finding the k best paths of n positions therefore costs one
+ * Viterbi pass plus O(k * n * log(in-degree)), and only the states on those paths get candidate queues. The Viterbi
+ * scores are kept per position for the states reachable there only, not for every state of the model.
+ */
+class KBestDecoder {
+
+	private final List<? extends Map<Integer, ? extends Map<Integer, Double>>> logTransitions;
+	private final int length;
+
+	// the states reachable after i transitions with their best paths
+	private final List<Layer> layers;
+	private final List<Map<Integer, List<Integer>>> predecessors;
+	private final List<Map<Integer, Node>> nodes;
+
+	// candidates for the next best path overall, one per final state
+	private final PriorityQueue<Candidate> finalCandidates = new PriorityQueue<Candidate>();
+	private Candidate lastFinalCandidate = null;
+	private double lastLogProbability = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * @param length the number of transitions to decode (at most logTransitions.size())
+	 */
+	KBestDecoder(List<? extends Map<Integer, ? extends Map<Integer, Double>>> logTransitions, Map<Integer, Double> logPriors, int length) {
+		this.logTransitions = logTransitions;
+		this.length = length;
+		this.layers = new ArrayList<Layer>(length + 1);
+		this.predecessors = new ArrayList<Map<Integer, List<Integer>>>(length + 1);
+		this.nodes = new ArrayList<Map<Integer, Node>>(length + 1);
+		for (int i = 0; i <= length; i++) {
+			nodes.add(new HashMap<Integer, Node>());
+		}
+
+		Layer layer = new Layer(logPriors.size());
+		for (Entry<Integer, Double> prior : logPriors.entrySet()) {
+			layer.offer(prior.getKey(), prior.getValue(), -1);
+		}
+		layers.add(layer);
+		predecessors.add(null);
+
+		Map<Integer, List<Integer>> predecessorsAtPos;
+		List<Integer> fromStates;
+		Layer nextLayer;
+		double fromScore;
+		for (int i = 0; i < length; i++) {
+			nextLayer = new Layer(layer.size);
+			predecessorsAtPos = new HashMap<Integer, List<Integer>>();
+			predecessors.add(predecessorsAtPos);
+			for (Entry<Integer, ? extends Map<Integer, Double>> row : logTransitions.get(i).entrySet()) {
+				final int fromStateIdx = row.getKey();
+				fromScore = layer.best(fromStateIdx);
+				if (fromScore == Double.NEGATIVE_INFINITY) continue;
+				for (Entry<Integer, Double> col : row.getValue().entrySet()) {
+					final int toStateIdx = col.getKey();
+					fromStates = predecessorsAtPos.get(toStateIdx);
+					if (fromStates == null) {
+						fromStates = new ArrayList<Integer>();
+						predecessorsAtPos.put(toStateIdx, fromStates);
+					}
+					fromStates.add(fromStateIdx);
+					nextLayer.offer(toStateIdx, fromScore + col.getValue(), fromStateIdx);
+				}
+			}
+			layers.add(nextLayer);
+			layer = nextLayer;
+		}
+
+		for (int j = 0; j < layer.size; j++) {
+			finalCandidates.add(new Candidate(layer.best[j], layer.states[j], 0));
+		}
+	}
+
+	/**
+	 * @return the states (length+1 of them, starting with the prior state) of the next most probable path, or null
+	 * if every path has been returned
+	 */
+	int[] nextPath() {
+		if (lastFinalCandidate != null) {
+			advance(finalCandidates, lastFinalCandidate, length + 1, 0.);
+		}
+		lastFinalCandidate = finalCandidates.poll();
+		if (lastFinalCandidate == null) return null;
+
+		lastLogProbability = lastFinalCandidate.logProbability;
+		final int[] path = new int[length + 1];
+		int stateIdx = lastFinalCandidate.stateIdx, rank = lastFinalCandidate.rank;
+		Path p;
+		for (int i = length; i >= 0; i--) {
+			path[i] = stateIdx;
+			if (rank == 0) {
+				stateIdx = layers.get(i).from(stateIdx);
+			} else {
+				p = nodes.get(i).get(stateIdx).paths.get(rank);
+				stateIdx = p.fromStateIdx;
+				rank = p.fromRank;
+			}
+		}
+		return path;
+	}
+
+	/**
+	 * @return the log probability of the path last returned by nextPath
+	 */
+	double getLastLogProbability() {
+		return lastLogProbability;
+	}
+
+	/**
+	 * @return the log probability of the rank-th best path (0-based) to stateIdx after i transitions, computing it if
+	 * need be, or negative infinity if there are not that many paths
+	 */
+	private double getPath(int i, int stateIdx, int rank) {
+		if (rank == 0) return layers.get(i).best(stateIdx);
+		if (i == 0) return Double.NEGATIVE_INFINITY; // a prior state is the start of exactly one path
+
+		Node node = nodes.get(i).get(stateIdx);
+		if (node == null) {
+			node = new Node();
+			nodes.get(i).put(stateIdx, node);
+			// candidates for the second best path: the best path through every predecessor but the Viterbi one,
+			// and the second best through the Viterbi one
+			final Layer layer = layers.get(i), previousLayer = layers.get(i - 1);
+			final int viterbiFromStateIdx = layer.from(stateIdx);
+			for (Integer fromStateIdx : predecessors.get(i).get(stateIdx)) {
+				if (fromStateIdx != viterbiFromStateIdx) {
+					node.candidates.add(new Candidate(previousLayer.best(fromStateIdx) + transition(i, fromStateIdx, stateIdx), fromStateIdx, 0));
+				}
+			}
+			advance(node.candidates, new Candidate(layer.best(stateIdx), viterbiFromStateIdx, 0), i, transition(i, viterbiFromStateIdx, stateIdx));
+		}
+
+		Candidate candidate;
+		while (node.paths.size() <= rank) {
+			if (node.paths.size() > 1) {
+				final Path last = node.paths.get(node.paths.size() - 1);
+				advance(node.candidates, new Candidate(last.logProbability, last.fromStateIdx, last.fromRank), i, transition(i, last.fromStateIdx, stateIdx));
+			}
+			candidate = node.candidates.poll();
+			if (candidate == null) return Double.NEGATIVE_INFINITY;
+			node.paths.add(new Path(candidate.logProbability, candidate.stateIdx, candidate.rank));
+		}
+		return node.paths.get(rank).logProbability;
+	}
+
+	/**
+	 * Adds to candidates the path that follows used through the same previous state (at position i-1)
+	 */
+	private void advance(PriorityQueue<Candidate> candidates, Candidate used, int i, double logTransition) {
+		final double next = getPath(i - 1, used.stateIdx, used.rank + 1);
+		if (next != Double.NEGATIVE_INFINITY) {
+			candidates.add(new Candidate(next + logTransition, used.stateIdx, used.rank + 1));
+		}
+	}
+
+	private double transition(int i, int fromStateIdx, int toStateIdx) {
+		return logTransitions.get(i - 1).get(fromStateIdx).get(toStateIdx);
+	}
+
+	/**
+	 * The states reachable at one position, each with the log probability of its best path (best) and the previous
+	 * state on that path (from), stored in arrays indexed by the order in which the states were first reached
+	 */
+	private static class Layer {
+		private final Map<Integer, Integer> index;
+		private int[] states;
+		private double[] best;
+		private int[] from;
+		private int size = 0;
+
+		private Layer(int expectedSize) {
+			final int capacity = Math.max(expectedSize, 4);
+			this.index = new HashMap<Integer, Integer>(capacity * 2);
+			this.states = new int[capacity];
+			this.best = new double[capacity];
+			this.from = new int[capacity];
+		}
+
+		/**
+		 * Keeps the path to stateIdx through fromStateIdx if it is the best so far (ties go to the smaller previous
+		 * state, so that decoding is deterministic)
+		 */
+		private void offer(int stateIdx, double score, int fromStateIdx) {
+			final Integer j = index.get(stateIdx);
+			if (j == null) {
+				if (size == states.length) {
+					states = Arrays.copyOf(states, size * 2);
+					best = Arrays.copyOf(best, size * 2);
+					from = Arrays.copyOf(from, size * 2);
+				}
+				index.put(stateIdx, size);
+				states[size] = stateIdx;
+				best[size] = score;
+				from[size] = fromStateIdx;
+				size++;
+			} else if (score > best[j] || (score == best[j] && fromStateIdx < from[j])) {
+				best[j] = score;
+				from[j] = fromStateIdx;
+			}
+		}
+
+		/**
+		 * @return the log probability of the best path to stateIdx, or negative infinity if it is not reachable
+		 */
+		private double best(int stateIdx) {
+			final Integer j = index.get(stateIdx);
+			return j == null ? Double.NEGATIVE_INFINITY : best[j];
+		}
+
+		private int from(int stateIdx) {
+			return from[index.get(stateIdx)];
+		}
+	}
+
+	/**
+	 * The paths found so far to one state at one position (index 0 is a placeholder for the Viterbi path) and the
+	 * candidates for the next
+	 */
+	private static class Node {
+		private final List<Path> paths = new ArrayList<Path>();
+		private final PriorityQueue<Candidate> candidates = new PriorityQueue<Candidate>();
+
+		private Node() {
+			paths.add(null);
+		}
+	}
+
+	/**
+	 * A path ending in the rank-th best path to stateIdx at the previous position
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+		private final double logProbability;
+		private final int stateIdx;
+		private final int rank;
+
+		private Candidate(double logProbability, int stateIdx, int rank) {
+			this.logProbability = logProbability;
+			this.stateIdx = stateIdx;
+			this.rank = rank;
+		}
+
+		@Override
+		public int compareTo(Candidate o) {
+			// most probable first, ties broken by state and rank so that decoding is deterministic
+			if (logProbability != o.logProbability) return logProbability > o.logProbability ? -1 : 1;
+			if (stateIdx != o.stateIdx) return stateIdx < o.stateIdx ? -1 : 1;
+			return rank < o.rank ? -1 : (rank == o.rank ? 0 : 1);
+		}
+	}
+
+	private static class Path {
+		private final double logProbability;
+		private final int fromStateIdx;
+		private final int fromRank;
+
+		private Path(double logProbability, int fromStateIdx, int fromRank) {
+			this.logProbability = logProbability;
+			this.fromStateIdx = fromStateIdx;
+			this.fromRank = fromRank;
+		}
+	}
+}
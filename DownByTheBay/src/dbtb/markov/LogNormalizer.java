@@ -0,0 +1,80 @@
+package dbtb.markov;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+
+import dbtb.utils.MathUtils;
+
+/**
+ * Normalizes the per-position transition matrices of an NHMM from right to left, so that each row sums to one once
+ * it has been weighted by the normalizing constants (alphas) of the states it leads to, and then the priors.
+ *
+ * Each row is summed with {@link MathUtils#logSumExp} over a primitive copy of its values. Rows at a position are
+ * independent given the alphas of the next position, so they may be normalized in parallel. Alphas are kept in two
+ * arrays indexed by state ID that are swapped from position to position rather than in a map per position; each
+ * array is reset to negative infinity before a position is normalized, so a state with no row there has no mass.
+ */
+class LogNormalizer {
+
+	private static final int MIN_ROWS_PER_TASK = 256;
+
+	/**
+	 * @param executor if non-null, the rows at each position are split into up to parallelism tasks on executor
+	 */
+	static void logNormalize(List<? extends Map<Integer, ? extends Map<Integer, Double>>> logTransitions, Map<Integer, Double> logPriors,
+			int stateCount, ExecutorService executor, int parallelism) throws InterruptedException {
+		double[] nextLogAlphas = null;
+		double[] logAlphas = new double[stateCount];
+		double[] spare = null;
+		for (int i = logTransitions.size() - 1; i >= 0; i--) {
+			Arrays.fill(logAlphas, Double.NEGATIVE_INFINITY);
+			final List<Entry<Integer, ? extends Map<Integer, Double>>> rows = new ArrayList<Entry<Integer, ? extends Map<Integer, Double>>>(logTransitions.get(i).entrySet());
+			final double[] currentLogAlphas = logAlphas, previousLogAlphas = nextLogAlphas;
+			Chunks.run(rows.size(), executor, parallelism, MIN_ROWS_PER_TASK, new Chunks.Chunk<Void>() {
+				@Override
+				public Void run(int start, int end) {
+					double[] buffer = new double[16];
+					Entry<Integer, ? extends Map<Integer, Double>> row;
+					for (int r = start; r < end; r++) {
+						row = rows.get(r);
+						buffer = ensureCapacity(buffer, row.getValue().size());
+						currentLogAlphas[row.getKey()] = logNormalize(row.getValue(), previousLogAlphas, buffer);
+					}
+					return null;
+				}
+			});
+
+			spare = nextLogAlphas;
+			nextLogAlphas = logAlphas;
+			logAlphas = spare == null ? new double[stateCount] : spare;
+		}
+
+		logNormalize(logPriors, nextLogAlphas, new double[logPriors.size()]);
+	}
+
+	/**
+	 * Adds to each value in row the alpha of its key (if nextLogAlphas is non-null) and divides the row by its sum
+	 *
+	 * @return the log of the sum
+	 */
+	private static double logNormalize(Map<Integer, Double> row, double[] nextLogAlphas, double[] buffer) {
+		int j = 0;
+		for (Entry<Integer, Double> col : row.entrySet()) {
+			buffer[j++] = nextLogAlphas == null ? col.getValue() : col.getValue() + nextLogAlphas[col.getKey()];
+		}
+		final double logSum = MathUtils.logSumExp(buffer, 0, j);
+		j = 0;
+		for (Entry<Integer, Double> col : row.entrySet()) {
+			col.setValue(buffer[j++] - logSum);
+		}
+		return logSum;
+	}
+
+	private static double[] ensureCapacity(double[] buffer, int size) {
+		return size <= buffer.length ? buffer : new double[Math.max(size, buffer.length * 2)];
+	}
+}
@@ -0,0 +1,413 @@
+package dbtb.markov;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+/**
+ * Versioned binary snapshot of a trained {@link SparseVariableOrderMarkovModel}: its prefix ID map, token
+ * dictionary, log priors and frozen log transitions, along with the training metadata in the header. The
+ * configuration string records whatever settings the trainer used beyond order and training source so that a
+ * stale snapshot can be rejected with {@link #checkMatches(int, String, String)} rather than silently reused.
+ *
+ * The file is little-endian and laid out as
+ * <pre>
+ *   header (HEADER_SIZE bytes): magic, version, order, sentences and pronunciations trained on,
+ *                               token/prefix/prior/row/non-zero counts, training source, configuration and token
+ *                               dictionary lengths
+ *   training source (UTF-8)
+ *   configuration (UTF-8)
+ *   token dictionary (written by a {@link TokenCodec}, in token ID order)
+ *   prefix token IDs    int[prefixCount * order]  (8-byte aligned)
+ *   prior state IDs     int[priorCount]
+ *   prior log values    double[priorCount]        (8-byte aligned)
+ *   CSR row offsets     int[rowCount + 1]
+ *   CSR columns         int[nonZeroCount]
+ *   CSR log values      double[nonZeroCount]      (8-byte aligned)
+ *   CRC32 of all preceding bytes (long)
+ * </pre>
+ * When loading, the transition matrix is read in place from read-only memory-mapped buffers rather than
+ * copied onto the heap, so large models open quickly and several JVMs loading the same file share its pages.
+ * Each mapped section must be smaller than 2GB. Saving writes a temporary file next to the snapshot and moves it into
+ * place atomically, so a JVM that has the old snapshot mapped keeps reading it and a failed save leaves no torn file.
+ */
+public class ModelSnapshot<T extends Token> {
+
+	public static final long MAGIC = 0x44425442534e4150L; // "DBTBSNAP"
+	public static final int VERSION = 2;
+	private static final int HEADER_SIZE = 68;
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+	private final SparseVariableOrderMarkovModel<T> model;
+	private final String trainingSource;
+	private final String configuration;
+	private final long sentencesTrainedOn;
+	private final long sentencePronunciationsTrainedOn;
+
+	private ModelSnapshot(SparseVariableOrderMarkovModel<T> model, String trainingSource, String configuration, long sentencesTrainedOn, long sentencePronunciationsTrainedOn) {
+		this.model = model;
+		this.trainingSource = trainingSource;
+		this.configuration = configuration;
+		this.sentencesTrainedOn = sentencesTrainedOn;
+		this.sentencePronunciationsTrainedOn = sentencePronunciationsTrainedOn;
+	}
+
+	public SparseVariableOrderMarkovModel<T> getModel() {
+		return model;
+	}
+
+	public int getOrder() {
+		return model.order;
+	}
+
+	public String getTrainingSource() {
+		return trainingSource;
+	}
+
+	public String getConfiguration() {
+		return configuration;
+	}
+
+	public long getSentencesTrainedOn() {
+		return sentencesTrainedOn;
+	}
+
+	public long getSentencePronunciationsTrainedOn() {
+		return sentencePronunciationsTrainedOn;
+	}
+
+	/**
+	 * @throws IOException if this snapshot was not trained with the given order, training source and configuration
+	 * or its header reports no training sentences
+	 */
+	public void checkMatches(int order, String trainingSource, String configuration) throws IOException {
+		if (getOrder() != order) {
+			throw new IOException("Snapshot has order " + getOrder() + " but order " + order + " was requested");
+		}
+		if (!this.trainingSource.equals(trainingSource)) {
+			throw new IOException("Snapshot was trained on " + this.trainingSource + " but " + trainingSource + " was requested");
+		}
+		if (!this.configuration.equals(configuration)) {
+			throw new IOException("Snapshot was trained with configuration \"" + this.configuration + "\" but \"" + configuration + "\" was requested");
+		}
+		if (sentencesTrainedOn <= 0 || sentencePronunciationsTrainedOn < sentencesTrainedOn) {
+			throw new IOException("Snapshot reports " + sentencesTrainedOn + " sentences and " + sentencePronunciationsTrainedOn + " pronunciations trained on");
+		}
+	}
+
+	/**
+	 * Writes model to file, replacing any snapshot already there. An unfrozen model is encoded from a copy of its
+	 * transitions and is left unfrozen.
+	 */
+	public static <T extends Token> void save(File file, SparseVariableOrderMarkovModel<T> model, TokenCodec<T> codec,
+			String trainingSource, String configuration, long sentencesTrainedOn, long sentencePronunciationsTrainedOn) throws IOException {
+		final BidirectionalVariableOrderPrefixIDMap<T> stateIndex = model.stateIndex;
+		final CompressedSparseRowMatrix transitions = model.isFrozen() ? model.getFrozenLogTransitions()
+				: new CompressedSparseRowMatrix(model.logTransitions, stateIndex.getPrefixCount());
+
+		final byte[] source = trainingSource.getBytes(StandardCharsets.UTF_8);
+		final byte[] settings = configuration.getBytes(StandardCharsets.UTF_8);
+		final ByteArrayOutputStream tokenBytes = new ByteArrayOutputStream();
+		final DataOutputStream tokenOut = new DataOutputStream(tokenBytes);
+		for (int i = 0; i < stateIndex.getTokenCount(); i++) {
+			codec.write(stateIndex.getToken(i), tokenOut);
+		}
+		tokenOut.flush();
+
+		final File directory = file.getAbsoluteFile().getParentFile();
+		directory.mkdirs();
+		final File temporaryFile = File.createTempFile("." + file.getName() + ".", ".tmp", directory);
+		try {
+			write(temporaryFile, model, transitions, source, settings, tokenBytes.toByteArray(), sentencesTrainedOn, sentencePronunciationsTrainedOn);
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			temporaryFile.delete();
+		}
+	}
+
+	private static <T extends Token> void write(File file, SparseVariableOrderMarkovModel<T> model, CompressedSparseRowMatrix transitions,
+			byte[] source, byte[] settings, byte[] tokenBytes, long sentencesTrainedOn, long sentencePronunciationsTrainedOn) throws IOException {
+		final BidirectionalVariableOrderPrefixIDMap<T> stateIndex = model.stateIndex;
+		final int order = model.order;
+		final int prefixCount = stateIndex.getPrefixCount();
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			final Writer out = new Writer(raf.getChannel());
+
+			out.putLong(MAGIC);
+			out.putInt(VERSION);
+			out.putInt(order);
+			out.putLong(sentencesTrainedOn);
+			out.putLong(sentencePronunciationsTrainedOn);
+			out.putInt(stateIndex.getTokenCount());
+			out.putInt(prefixCount);
+			out.putInt(model.logPriors.size());
+			out.putInt(transitions.getRowCount());
+			out.putInt(transitions.getNonZeroCount());
+			out.putInt(source.length);
+			out.putInt(settings.length);
+			out.putLong(tokenBytes.length);
+
+			out.putBytes(source);
+			out.putBytes(settings);
+			out.putBytes(tokenBytes);
+
+			out.align();
+			for (int i = 0; i < prefixCount; i++) {
+				for (int j = 0; j < order; j++) {
+					out.putInt(stateIndex.getTokenIDInPrefix(i, j));
+				}
+			}
+
+			for (Entry<Integer, Double> logPrior : model.logPriors.entrySet()) {
+				out.putInt(logPrior.getKey());
+			}
+			out.align();
+			for (Entry<Integer, Double> logPrior : model.logPriors.entrySet()) {
+				out.putDouble(logPrior.getValue());
+			}
+
+			final IntBuffer rowOffsets = transitions.getRowOffsets(), columns = transitions.getColumns();
+			final DoubleBuffer values = transitions.getValues();
+			for (int i = 0; i < rowOffsets.limit(); i++) {
+				out.putInt(rowOffsets.get(i));
+			}
+			for (int i = 0; i < columns.limit(); i++) {
+				out.putInt(columns.get(i));
+			}
+			out.align();
+			for (int i = 0; i < values.limit(); i++) {
+				out.putDouble(values.get(i));
+			}
+
+			out.putChecksum();
+			raf.getChannel().force(true);
+		}
+	}
+
+	public static <T extends Token> ModelSnapshot<T> load(File file, TokenCodec<T> codec) throws IOException {
+		return load(file, codec, true);
+	}
+
+	/**
+	 * @param verifyChecksum whether to read the entire file to verify its checksum before loading it
+	 */
+	public static <T extends Token> ModelSnapshot<T> load(File file, TokenCodec<T> codec, boolean verifyChecksum) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			final FileChannel channel = raf.getChannel();
+			final long fileSize = channel.size();
+			if (fileSize < HEADER_SIZE + 8) {
+				throw new IOException(file + " is too short to be a model snapshot");
+			}
+
+			final ByteBuffer header = map(channel, 0, HEADER_SIZE);
+			if (header.getLong() != MAGIC) {
+				throw new IOException(file + " is not a model snapshot");
+			}
+			final int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException(file + " has snapshot version " + version + " but only version " + VERSION + " is supported");
+			}
+
+			if (verifyChecksum) {
+				verifyChecksum(file, channel, fileSize - 8);
+			}
+
+			final int order = header.getInt();
+			final long sentencesTrainedOn = header.getLong();
+			final long sentencePronunciationsTrainedOn = header.getLong();
+			final int tokenCount = header.getInt();
+			final int prefixCount = header.getInt();
+			final int priorCount = header.getInt();
+			final int rowCount = header.getInt();
+			final int nonZeroCount = header.getInt();
+			final int sourceLength = header.getInt();
+			final int configurationLength = header.getInt();
+			final long tokenBytesLength = header.getLong();
+
+			long position = HEADER_SIZE;
+			final byte[] source = new byte[sourceLength];
+			map(channel, position, sourceLength).get(source);
+			position += sourceLength;
+			final String trainingSource = new String(source, StandardCharsets.UTF_8);
+
+			final byte[] settings = new byte[configurationLength];
+			map(channel, position, configurationLength).get(settings);
+			position += configurationLength;
+			final String configuration = new String(settings, StandardCharsets.UTF_8);
+
+			final byte[] tokenBytes = new byte[checkedSize(tokenBytesLength)];
+			map(channel, position, tokenBytesLength).get(tokenBytes);
+			position += tokenBytesLength;
+
+			final BidirectionalVariableOrderPrefixIDMap<T> stateIndex = new BidirectionalVariableOrderPrefixIDMap<T>(order);
+			final DataInputStream tokenIn = new DataInputStream(new ByteArrayInputStream(tokenBytes));
+			for (int i = 0; i < tokenCount; i++) {
+				if (stateIndex.addToken(codec.read(tokenIn)) != i) {
+					throw new IOException("Token " + i + " in " + file + " duplicates an earlier token");
+				}
+			}
+
+			position = align(position);
+			final IntBuffer prefixTokenIDs = map(channel, position, 4L * prefixCount * order).asIntBuffer();
+			position += 4L * prefixCount * order;
+			final int[] prefix = new int[order];
+			for (int i = 0; i < prefixCount; i++) {
+				prefixTokenIDs.get(prefix);
+				if (stateIndex.addPrefix(prefix, 0) != i) {
+					throw new IOException("Prefix " + i + " in " + file + " duplicates an earlier prefix");
+				}
+			}
+
+			final IntBuffer priorIDs = map(channel, position, 4L * priorCount).asIntBuffer();
+			position = align(position + 4L * priorCount);
+			final DoubleBuffer priorValues = map(channel, position, 8L * priorCount).asDoubleBuffer();
+			position += 8L * priorCount;
+			final HashMap<Integer, Double> logPriors = new HashMap<Integer, Double>(priorCount * 4 / 3 + 1);
+			for (int i = 0; i < priorCount; i++) {
+				logPriors.put(priorIDs.get(i), priorValues.get(i));
+			}
+
+			final IntBuffer rowOffsets = map(channel, position, 4L * (rowCount + 1)).asIntBuffer();
+			position += 4L * (rowCount + 1);
+			final IntBuffer columns = map(channel, position, 4L * nonZeroCount).asIntBuffer();
+			position = align(position + 4L * nonZeroCount);
+			final DoubleBuffer values = map(channel, position, 8L * nonZeroCount).asDoubleBuffer();
+			position += 8L * nonZeroCount;
+
+			if (position != fileSize - 8) {
+				throw new IOException(file + " has " + (fileSize - 8 - position) + " bytes more than its header describes");
+			}
+
+			final CompressedSparseRowMatrix logTransitions = new CompressedSparseRowMatrix(rowOffsets, columns, values);
+			final SparseVariableOrderMarkovModel<T> model = new SparseVariableOrderMarkovModel<T>(stateIndex, logPriors, logTransitions);
+
+			return new ModelSnapshot<T>(model, trainingSource, configuration, sentencesTrainedOn, sentencePronunciationsTrainedOn);
+		}
+	}
+
+	private static void verifyChecksum(File file, FileChannel channel, long length) throws IOException {
+		final CRC32 crc = new CRC32();
+		long position = 0, chunk;
+		while (position < length) {
+			chunk = Math.min(length - position, Integer.MAX_VALUE);
+			crc.update(map(channel, position, chunk));
+			position += chunk;
+		}
+		if (map(channel, length, 8).getLong() != crc.getValue()) {
+			throw new IOException(file + " failed its checksum");
+		}
+	}
+
+	private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+		return channel.map(MapMode.READ_ONLY, position, checkedSize(size)).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static int checkedSize(long size) throws IOException {
+		if (size < 0 || size > Integer.MAX_VALUE) {
+			throw new IOException("Snapshot section of " + size + " bytes is too large to map");
+		}
+		return (int) size;
+	}
+
+	private static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
+	/**
+	 * Buffered little-endian channel writer that tracks its position and a running CRC32.
+	 */
+	private static class Writer {
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		private final CRC32 crc = new CRC32();
+		private long position = 0;
+
+		public Writer(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		public void putInt(int value) throws IOException {
+			ensureRemaining(4);
+			buffer.putInt(value);
+			position += 4;
+		}
+
+		public void putLong(long value) throws IOException {
+			ensureRemaining(8);
+			buffer.putLong(value);
+			position += 8;
+		}
+
+		public void putDouble(double value) throws IOException {
+			ensureRemaining(8);
+			buffer.putDouble(value);
+			position += 8;
+		}
+
+		public void putBytes(byte[] bytes) throws IOException {
+			int offset = 0, length;
+			while (offset < bytes.length) {
+				ensureRemaining(1);
+				length = Math.min(buffer.remaining(), bytes.length - offset);
+				buffer.put(bytes, offset, length);
+				offset += length;
+			}
+			position += bytes.length;
+		}
+
+		public void align() throws IOException {
+			while (position != ModelSnapshot.align(position)) {
+				ensureRemaining(1);
+				buffer.put((byte) 0);
+				position++;
+			}
+		}
+
+		public void putChecksum() throws IOException {
+			flush();
+			final long checksum = crc.getValue();
+			buffer.putLong(checksum);
+			position += 8;
+			flush();
+		}
+
+		private void ensureRemaining(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			crc.update(buffer.array(), 0, buffer.limit());
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "order " + getOrder() + " model trained on " + sentencesTrainedOn + " sentences (" + sentencePronunciationsTrainedOn
+				+ " pronunciations) from " + trainingSource + " (" + configuration + ") with " + model.stateIndex.getPrefixCount() + " states";
+	}
+}
@@ -0,0 +1,245 @@
+package dbtb.markov;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dbtb.utils.Utils;
+
+/**
+ * Weighted counts of every n-gram of length 1 through maxOrder+1 in a set of training sequences, stored in a
+ * single trie over interned token IDs. Because a transition of an order-k model is a (k+1)-gram, one pass over
+ * the training data is enough to build a {@link SparseVariableOrderMarkovModel} of any order up to maxOrder.
+ *
+ * Trie nodes are kept in parallel primitive arrays and their children in an open-addressed table keyed by
+ * (parent node, token ID), so the store holds no per-n-gram objects.
+ *
+ * Adding sequences is not synchronized: concurrent trainers should each count into their own store and merge it into
+ * the shared one with {@link #addAll(NGramCounts)} when they finish.
+ */
+public class NGramCounts<T extends Token> {
+
+	private static final int ROOT = 0;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final int maxOrder;
+
+	private final Map<T, Integer> tokenToIDMap = new HashMap<T, Integer>();
+	private final List<T> iDToTokenMap = new ArrayList<T>();
+
+	// node i is the n-gram ending in token[i] whose first n-1 tokens are node parent[i]
+	private int nodeCount = 1;
+	private int[] parent = new int[INITIAL_CAPACITY];
+	private int[] token = new int[INITIAL_CAPACITY];
+	private int[] depth = new int[INITIAL_CAPACITY];
+	private double[] count = new double[INITIAL_CAPACITY];
+
+	// children, open-addressed with linear probing; childNodes[i] == 0 marks an empty slot (the root is never a child)
+	private long[] childKeys = new long[INITIAL_CAPACITY * 2];
+	private int[] childNodes = new int[INITIAL_CAPACITY * 2];
+
+	private long sequencesAdded = 0;
+
+	public NGramCounts(int maxOrder) {
+		if (maxOrder < 1) {
+			throw new IllegalArgumentException("Max order must be at least 1");
+		}
+		this.maxOrder = maxOrder;
+	}
+
+	public int getMaxOrder() {
+		return maxOrder;
+	}
+
+	public synchronized long getSequencesAdded() {
+		return sequencesAdded;
+	}
+
+	/**
+	 * @return the number of distinct n-grams (of all lengths) counted
+	 */
+	public synchronized int getNGramCount() {
+		return nodeCount - 1;
+	}
+
+	/**
+	 * Adds weight to the count of every n-gram of length up to maxOrder+1 in sequence. Not thread-safe.
+	 */
+	public void addSequence(List<T> sequence, double weight) {
+		final int[] tokenIDs = new int[sequence.size()];
+		int i = 0;
+		for (T t : sequence) {
+			Integer id = tokenToIDMap.get(t);
+			if (id == null) {
+				id = iDToTokenMap.size();
+				tokenToIDMap.put(t, id);
+				iDToTokenMap.add(t);
+			}
+			tokenIDs[i++] = id;
+		}
+
+		int node;
+		for (int start = 0; start < tokenIDs.length; start++) {
+			node = ROOT;
+			for (int j = start; j < Math.min(tokenIDs.length, start + maxOrder + 1); j++) {
+				node = getOrAddChild(node, tokenIDs[j]);
+				count[node] += weight;
+			}
+		}
+		sequencesAdded++;
+	}
+
+	/**
+	 * Adds every count in other, which must have the same max order and must not be modified during the merge.
+	 */
+	public synchronized void addAll(NGramCounts<T> other) {
+		if (other.maxOrder != maxOrder) {
+			throw new IllegalArgumentException("Can't merge counts of max order " + other.maxOrder + " into counts of max order " + maxOrder);
+		}
+
+		final int[] tokenIDs = new int[other.iDToTokenMap.size()];
+		for (int i = 0; i < tokenIDs.length; i++) {
+			final T t = other.iDToTokenMap.get(i);
+			Integer id = tokenToIDMap.get(t);
+			if (id == null) {
+				id = iDToTokenMap.size();
+				tokenToIDMap.put(t, id);
+				iDToTokenMap.add(t);
+			}
+			tokenIDs[i] = id;
+		}
+
+		// a node is always added after its parent, so the parent of each node is mapped before the node itself
+		final int[] nodes = new int[other.nodeCount];
+		nodes[ROOT] = ROOT;
+		for (int node = 1; node < other.nodeCount; node++) {
+			nodes[node] = getOrAddChild(nodes[other.parent[node]], tokenIDs[other.token[node]]);
+			count[nodes[node]] += other.count[node];
+		}
+		sequencesAdded += other.sequencesAdded;
+	}
+
+	/**
+	 * @return the weighted count of ngram (of length at most maxOrder+1), or 0 if it was never seen
+	 */
+	public synchronized double getCount(List<T> ngram) {
+		int node = ROOT;
+		Integer id;
+		for (T t : ngram) {
+			id = tokenToIDMap.get(t);
+			if (id == null) return 0.;
+			node = getChild(node, id);
+			if (node == -1) return 0.;
+		}
+		return node == ROOT ? 0. : count[node];
+	}
+
+	/**
+	 * Builds and freezes a model of the given order from the (order+1)-gram counts. As in training a single-order
+	 * model directly, the prior weight of a state is the total weight of the transitions out of it.
+	 */
+	public synchronized SparseVariableOrderMarkovModel<T> buildModel(int order) {
+		if (order < 1 || order > maxOrder) {
+			throw new IllegalArgumentException("Order " + order + " is outside of the trained range 1 to " + maxOrder);
+		}
+
+		final BidirectionalVariableOrderPrefixIDMap<T> stateIndex = new BidirectionalVariableOrderPrefixIDMap<T>(order);
+		// add tokens first so that token IDs in the state index match those in the trie
+		for (T t : iDToTokenMap) {
+			stateIndex.addToken(t);
+		}
+
+		final Map<Integer, Double> priors = new HashMap<Integer, Double>();
+		final Map<Integer, Map<Integer, Double>> transitions = new HashMap<Integer, Map<Integer, Double>>();
+		final int[] ngram = new int[order + 1];
+		int fromID, toID, ancestor;
+		for (int node = 1; node < nodeCount; node++) {
+			if (depth[node] != order + 1) continue;
+
+			ancestor = node;
+			for (int i = order; i >= 0; i--) {
+				ngram[i] = token[ancestor];
+				ancestor = parent[ancestor];
+			}
+			fromID = stateIndex.addPrefix(ngram, 0);
+			toID = stateIndex.addPrefix(ngram, 1);
+			Utils.incrementValueForKeys(transitions, fromID, toID, count[node]);
+			Utils.incrementValueForKey(priors, fromID, count[node]);
+		}
+
+		Utils.normalize(priors);
+		Utils.normalizeByFirstDimension(transitions);
+
+		final SparseVariableOrderMarkovModel<T> model = new SparseVariableOrderMarkovModel<T>(stateIndex, priors, transitions);
+		model.freeze();
+		return model;
+	}
+
+	private int getChild(int node, int tokenID) {
+		final long key = childKey(node, tokenID);
+		final int mask = childNodes.length - 1;
+		int slot = slotFor(key, mask);
+		while (childNodes[slot] != 0) {
+			if (childKeys[slot] == key) return childNodes[slot];
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private int getOrAddChild(int node, int tokenID) {
+		final long key = childKey(node, tokenID);
+		final int mask = childNodes.length - 1;
+		int slot = slotFor(key, mask);
+		while (childNodes[slot] != 0) {
+			if (childKeys[slot] == key) return childNodes[slot];
+			slot = (slot + 1) & mask;
+		}
+
+		final int child = nodeCount++;
+		if (child == parent.length) {
+			parent = Arrays.copyOf(parent, child * 2);
+			token = Arrays.copyOf(token, child * 2);
+			depth = Arrays.copyOf(depth, child * 2);
+			count = Arrays.copyOf(count, child * 2);
+		}
+		parent[child] = node;
+		token[child] = tokenID;
+		depth[child] = depth[node] + 1;
+
+		childKeys[slot] = key;
+		childNodes[slot] = child;
+		if (nodeCount * 2 > childNodes.length) {
+			resizeChildren();
+		}
+		return child;
+	}
+
+	private void resizeChildren() {
+		final long[] keys = new long[childKeys.length * 2];
+		final int[] nodes = new int[childNodes.length * 2];
+		final int mask = nodes.length - 1;
+		int slot;
+		for (int i = 0; i < childNodes.length; i++) {
+			if (childNodes[i] == 0) continue;
+			slot = slotFor(childKeys[i], mask);
+			while (nodes[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = childKeys[i];
+			nodes[slot] = childNodes[i];
+		}
+		childKeys = keys;
+		childNodes = nodes;
+	}
+
+	private static long childKey(int node, int tokenID) {
+		return ((long) node << 32) | (tokenID & 0xffffffffL);
+	}
+
+	private static int slotFor(long key, int mask) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+}
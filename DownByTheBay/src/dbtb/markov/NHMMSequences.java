@@ -0,0 +1,129 @@
+package dbtb.markov;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Decoding and distinct sampling over an NHMM's priors and per-position log transitions, shared by the NHMM
+ * implementations. Paths of state IDs (see {@link KBestDecoder} and {@link DistinctPathSampler}) are turned into
+ * sequences of tokens by {@link #toSequence}.
+ */
+class NHMMSequences {
+
+	/**
+	 * Draws states as the NHMM's generate does, so that distinct sampling follows the same distribution
+	 */
+	interface Sampler {
+		int sampleStartStateIdx(double uniform);
+
+		int sampleNextStateIdx(int fromStateIdx, int position, double uniform);
+	}
+
+	private NHMMSequences() {
+	}
+
+	/**
+	 * @return the most probable sequence (with at most length tokens after the initial prefix), found by Viterbi
+	 * decoding, or null if there is none
+	 */
+	static <T extends Token> List<T> mostProbable(List<? extends Map<Integer, ? extends Map<Integer, Double>>> logTransitions, Map<Integer, Double> logPriors,
+			BidirectionalVariableOrderPrefixIDMap<T> stateIndex, int length) {
+		final List<List<T>> best = topK(logTransitions, logPriors, stateIndex, length, 1);
+		return best.isEmpty() ? null : best.get(0);
+	}
+
+	/**
+	 * @return the (at most) k most probable sequences in order of decreasing probability (see {@link KBestDecoder})
+	 */
+	static <T extends Token> List<List<T>> topK(List<? extends Map<Integer, ? extends Map<Integer, Double>>> logTransitions, Map<Integer, Double> logPriors,
+			BidirectionalVariableOrderPrefixIDMap<T> stateIndex, int length, int k) {
+		final KBestDecoder decoder = new KBestDecoder(logTransitions, logPriors, Math.min(length, logTransitions.size()));
+		final List<List<T>> topK = new ArrayList<List<T>>(k);
+		int[] path;
+		while (topK.size() < k && (path = decoder.nextPath()) != null) {
+			topK.add(toSequence(stateIndex, path));
+		}
+		return topK;
+	}
+
+	/**
+	 * @return the sequences (with at most length tokens after the initial prefix) in random order and without
+	 * repeats: each is drawn as by sampler but with the probability of those already returned removed (see
+	 * {@link DistinctPathSampler}). The iterator ends once every sequence has been returned.
+	 */
+	static <T extends Token> Iterator<List<T>> distinctSequences(final List<? extends Map<Integer, ? extends Map<Integer, Double>>> logTransitions, final Map<Integer, Double> logPriors,
+			final BidirectionalVariableOrderPrefixIDMap<T> stateIndex, final Sampler sampler, int length, long seed) {
+		final Token endToken = Token.getEndToken();
+		final DistinctPathSampler pathSampler = new DistinctPathSampler(new DistinctPathSampler.Model() {
+			@Override
+			public Map<Integer, Double> getLogPriors() {
+				return logPriors;
+			}
+
+			@Override
+			public Map<Integer, Double> getLogTransitions(int position, int fromStateIdx) {
+				return logTransitions.get(position).get(fromStateIdx);
+			}
+
+			@Override
+			public int sampleStartStateIdx(double uniform) {
+				return sampler.sampleStartStateIdx(uniform);
+			}
+
+			@Override
+			public int sampleNextStateIdx(int fromStateIdx, int position, double uniform) {
+				return sampler.sampleNextStateIdx(fromStateIdx, position, uniform);
+			}
+
+			@Override
+			public boolean isFinal(int stateIdx) {
+				return stateIndex.getPrefixFinaleForID(stateIdx) == endToken;
+			}
+		}, Math.min(length, logTransitions.size()), seed);
+
+		return new Iterator<List<T>>() {
+			private int[] next = pathSampler.nextPath();
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public List<T> next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				final List<T> sequence = toSequence(stateIndex, next);
+				next = pathSampler.nextPath();
+				return sequence;
+			}
+		};
+	}
+
+	/**
+	 * @return the tokens of the prior state followed by the last token of each later state, up to the end token
+	 */
+	static <T extends Token> List<T> toSequence(BidirectionalVariableOrderPrefixIDMap<T> stateIndex, int[] statePath) {
+		List<T> newSeq = new ArrayList<T>();
+
+		final Token endToken = Token.getEndToken();
+		for (T token : stateIndex.getPrefixForID(statePath[0])) {
+			if (token != endToken)
+				newSeq.add(token);
+		}
+
+		T toState;
+		for (int i = 1; i < statePath.length; i++) {
+			toState = stateIndex.getPrefixFinaleForID(statePath[i]);
+			if (toState == endToken)
+				break;
+			newSeq.add(toState);
+		}
+
+		return newSeq;
+	}
+}
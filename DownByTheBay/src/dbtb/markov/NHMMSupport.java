@@ -0,0 +1,32 @@
+package dbtb.markov;
+
+import java.util.BitSet;
+
+/**
+ * The states and transitions of a constrained NHMM that lie on some sequence of full length, before normalization.
+ * Transitions at a position are indexed 0 through getTransitionCount(position)-1 and grouped by from-state.
+ *
+ * @see ReachabilityNHMMBuilder
+ */
+public interface NHMMSupport {
+
+	int getPositionCount();
+
+	BitSet getPriorStates();
+
+	/**
+	 * @return the (unnormalized) log prior of a state in getPriorStates()
+	 */
+	double getLogPrior(int stateIdx);
+
+	int getTransitionCount(int position);
+
+	int getFromState(int position, int transition);
+
+	int getToState(int position, int transition);
+
+	/**
+	 * @return the (unnormalized) log probability of the transition
+	 */
+	double getLogProbability(int position, int transition);
+}
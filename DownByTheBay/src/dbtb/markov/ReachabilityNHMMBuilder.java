@@ -0,0 +1,357 @@
+package dbtb.markov;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import dbtb.constraint.ConditionedConstraint;
+import dbtb.constraint.Constraint;
+import dbtb.constraint.TokenWindow;
+import dbtb.constraint.TransitionalConstraint;
+
+/**
+ * Computes the support of a constrained NHMM in two linear passes over the base model's transitions:
+ * <ol>
+ * <li>a forward pass that, position by position, records the transitions out of reachable states that satisfy
+ * the constraints at that position and the set of states they reach (state constraints are compiled up front into
+ * a {@link StateConstraintMasks} and tested as bits; transitional constraints are evaluated once per candidate
+ * transition), and</li>
+ * <li>a backward pass that keeps only the states (and transitions between them) from which the final position
+ * can still be reached.</li>
+ * </ol>
+ * The surviving transitions are then available per position, grouped by from-state, for the NHMM to materialize
+ * into whatever row representation it uses. Per-position state sets are BitSets over state IDs.
+ *
+ * Before the forward pass, the reachable states are propagated once using only the state constraints and the
+ * sparsity pattern of the base model, so that an unsatisfiable template is rejected before any transitions are
+ * recorded (see also {@link #checkSatisfiable}).
+ */
+public class ReachabilityNHMMBuilder<T extends Token> implements NHMMSupport {
+
+	private static final int MIN_STATES_PER_TASK = 1024;
+
+	private final SparseVariableOrderMarkovModel<T> model;
+	private final CompressedSparseRowMatrix matrix;
+	private final BidirectionalVariableOrderPrefixIDMap<T> stateIndex;
+	private final int order;
+	private final int positionCount;
+
+	private BitSet priorStates;
+	private final List<BitSet> states;
+	private final List<TransitionList> transitions;
+
+	/**
+	 * Builds the support using only the calling thread.
+	 */
+	public ReachabilityNHMMBuilder(SparseVariableOrderMarkovModel<T> model, int length, List<List<ConditionedConstraint<T>>> constraints) throws UnsatisfiableConstraintSetException {
+		this(model, length);
+		try {
+			build(length, constraints, null, 1);
+		} catch (InterruptedException e) {
+			// cannot happen without an executor
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param executor if non-null, the forward pass at each position is split into up to parallelism tasks
+	 * on executor (results are merged in order, so the support is identical to a sequential build)
+	 */
+	public ReachabilityNHMMBuilder(SparseVariableOrderMarkovModel<T> model, int length, List<List<ConditionedConstraint<T>>> constraints,
+			ExecutorService executor, int parallelism) throws UnsatisfiableConstraintSetException, InterruptedException {
+		this(model, length);
+		build(length, constraints, executor, Math.max(1, parallelism));
+	}
+
+	private ReachabilityNHMMBuilder(SparseVariableOrderMarkovModel<T> model, int length) {
+		this.model = model;
+		this.order = model.order;
+		this.stateIndex = model.stateIndex;
+		final CompressedSparseRowMatrix frozen = model.getFrozenLogTransitions();
+		this.matrix = frozen != null ? frozen : new CompressedSparseRowMatrix(model.logTransitions, model.stateIndex.getPrefixCount());
+		this.positionCount = length > 1 ? Math.max(0, length - order) : 0;
+		this.states = new ArrayList<BitSet>(positionCount);
+		this.transitions = new ArrayList<TransitionList>(positionCount);
+		this.priorStates = new BitSet();
+	}
+
+	private void build(int length, List<List<ConditionedConstraint<T>>> constraints, ExecutorService executor, int parallelism) throws UnsatisfiableConstraintSetException, InterruptedException {
+		if (length <= 1) return;
+
+		final StateConstraintMasks<T> masks = executor == null ? new StateConstraintMasks<T>(model.stateIndex, order, constraints.subList(0, length))
+				: new StateConstraintMasks<T>(model.stateIndex, order, constraints.subList(0, length), executor, parallelism);
+		computePriorStates(masks);
+		precheck(masks);
+		forward(constraints, masks, executor, parallelism);
+		backward();
+	}
+
+	/**
+	 * Checks, without recording any transitions, whether any sequence of length could satisfy the state constraints
+	 * (transitional constraints are ignored, so passing does not guarantee that an NHMM can be built).
+	 *
+	 * @throws UnsatisfiableConstraintSetException if not, reporting the first position at which no state is reachable
+	 */
+	public static <T extends Token> void checkSatisfiable(SparseVariableOrderMarkovModel<T> model, int length, List<List<ConditionedConstraint<T>>> constraints) throws UnsatisfiableConstraintSetException {
+		if (length <= 1) return;
+
+		final ReachabilityNHMMBuilder<T> builder = new ReachabilityNHMMBuilder<T>(model, length);
+		final StateConstraintMasks<T> masks = new StateConstraintMasks<T>(model.stateIndex, builder.order, constraints.subList(0, length));
+		builder.computePriorStates(masks);
+		builder.precheck(masks);
+	}
+
+	public int getPositionCount() {
+		return positionCount;
+	}
+
+	/**
+	 * @return the start states that satisfy the constraints on the first order positions and can reach the final position
+	 */
+	public BitSet getPriorStates() {
+		return priorStates;
+	}
+
+	public double getLogPrior(int stateIdx) {
+		return model.logPriors.get(stateIdx);
+	}
+
+	/**
+	 * @return the states at position (i.e., reached by the transition at position) on some path of full length
+	 */
+	public BitSet getStates(int position) {
+		return states.get(position);
+	}
+
+	/**
+	 * @return the number of surviving transitions at position
+	 */
+	public int getTransitionCount(int position) {
+		return transitions.get(position).size;
+	}
+
+	/**
+	 * Surviving transitions at a position are indexed 0 through getTransitionCount(position)-1 and grouped by from-state.
+	 */
+	public int getFromState(int position, int transition) {
+		return transitions.get(position).from[transition];
+	}
+
+	public int getToState(int position, int transition) {
+		return matrix.columnAt(transitions.get(position).index[transition]);
+	}
+
+	/**
+	 * @return the index of the transition in the base model's frozen matrix
+	 */
+	int getMatrixIndex(int position, int transition) {
+		return transitions.get(position).index[transition];
+	}
+
+	/**
+	 * @return the (unnormalized) log probability of the transition in the base model
+	 */
+	public double getLogProbability(int position, int transition) {
+		return matrix.valueAt(transitions.get(position).index[transition]);
+	}
+
+	private void computePriorStates(StateConstraintMasks<T> masks) {
+		priorStates = new BitSet(matrix.getRowCount());
+		for (Integer priorStateIdx : model.logPriors.keySet()) {
+			priorStates.set(priorStateIdx);
+		}
+		BitSet mask;
+		for (int i = 0; i < order; i++) {
+			mask = masks.getMask(i);
+			if (mask != null) {
+				priorStates.and(mask);
+			}
+		}
+	}
+
+	/**
+	 * Propagates the reachable states forward through the base model's sparsity pattern and the state constraint masks
+	 */
+	private void precheck(StateConstraintMasks<T> masks) throws UnsatisfiableConstraintSetException {
+		BitSet fromStates = priorStates, toStates = new BitSet(matrix.getRowCount()), spare = null, mask;
+		for (int i = 0; i < positionCount; i++) {
+			for (int fromStateIdx = fromStates.nextSetBit(0); fromStateIdx >= 0; fromStateIdx = fromStates.nextSetBit(fromStateIdx + 1)) {
+				for (int k = matrix.rowStart(fromStateIdx); k < matrix.rowEnd(fromStateIdx); k++) {
+					toStates.set(matrix.columnAt(k));
+				}
+			}
+			mask = masks.getMask(i + order);
+			if (mask != null) {
+				toStates.and(mask);
+			}
+
+			if (toStates.isEmpty()) {
+				throw unsatisfiable(i);
+			}
+
+			// reuse the two sets (never the prior states) from position to position
+			spare = fromStates == priorStates ? new BitSet(matrix.getRowCount()) : fromStates;
+			spare.clear();
+			fromStates = toStates;
+			toStates = spare;
+		}
+	}
+
+	private static UnsatisfiableConstraintSetException unsatisfiable(int position) {
+		return new UnsatisfiableConstraintSetException("Not satisfiable, given length constraint (no seq of length " + position + " can be made)", position);
+	}
+
+	private void forward(List<List<ConditionedConstraint<T>>> constraints, StateConstraintMasks<T> masks, ExecutorService executor, int parallelism) throws UnsatisfiableConstraintSetException, InterruptedException {
+		BitSet fromStates = priorStates;
+		for (int i = 0; i < positionCount; i++) {
+			System.out.print(".");
+			final List<ConditionedConstraint<T>> constraintsAtPos = constraints.get(i + order);
+			final int[] fromStateIdxs = toArray(fromStates);
+			final BitSet satisfyingStates = masks.getMask(i + order);
+
+			final List<Expansion> expansions = Chunks.run(fromStateIdxs.length, executor, parallelism, MIN_STATES_PER_TASK, new Chunks.Chunk<Expansion>() {
+				@Override
+				public Expansion run(int start, int end) {
+					return expand(constraintsAtPos, satisfyingStates, fromStateIdxs, start, end);
+				}
+			});
+
+			final TransitionList transitionsAtPos = expansions.get(0).transitions;
+			final BitSet toStates = expansions.get(0).toStates;
+			for (int t = 1; t < expansions.size(); t++) {
+				transitionsAtPos.addAll(expansions.get(t).transitions);
+				toStates.or(expansions.get(t).toStates);
+			}
+
+			if (toStates.isEmpty()) {
+				throw unsatisfiable(i);
+			}
+
+			transitions.add(transitionsAtPos);
+			states.add(toStates);
+			fromStates = toStates;
+		}
+	}
+
+	/**
+	 * @return the transitions out of fromStateIdxs[start..end) into satisfyingStates (all states if null) that satisfy the
+	 * transitional constraints in constraintsAtPos and the states they reach
+	 */
+	private Expansion expand(List<ConditionedConstraint<T>> constraintsAtPos, BitSet satisfyingStates, int[] fromStateIdxs, int start, int end) {
+		final Expansion expansion = new Expansion(matrix.getRowCount());
+		int fromStateIdx, toStateIdx;
+		// windows are moved from state to state rather than allocated per transition
+		final BidirectionalVariableOrderPrefixIDMap<T>.PrefixWindow fromState = stateIndex.newWindow(), toState = stateIndex.newWindow();
+		for (int j = start; j < end; j++) {
+			fromStateIdx = fromStateIdxs[j];
+			fromState.moveTo(fromStateIdx);
+			for (int k = matrix.rowStart(fromStateIdx); k < matrix.rowEnd(fromStateIdx); k++) {
+				toStateIdx = matrix.columnAt(k);
+				if ((satisfyingStates == null || satisfyingStates.get(toStateIdx)) && satisfiesTransitionalConstraints(constraintsAtPos, fromState, toState.moveTo(toStateIdx))) {
+					expansion.transitions.add(fromStateIdx, k);
+					expansion.toStates.set(toStateIdx);
+				}
+			}
+		}
+		return expansion;
+	}
+
+	/**
+	 * Restricts each position's states to those that can reach the final position and drops transitions into or out of
+	 * removed states
+	 */
+	private void backward() {
+		if (positionCount == 0) return;
+
+		BitSet coReachable = states.get(positionCount - 1);
+		TransitionList transitionsAtPos;
+		BitSet fromStates;
+		for (int i = positionCount - 1; i >= 0; i--) {
+			transitionsAtPos = transitions.get(i);
+			fromStates = new BitSet(matrix.getRowCount());
+			int kept = 0;
+			for (int e = 0; e < transitionsAtPos.size; e++) {
+				if (coReachable.get(matrix.columnAt(transitionsAtPos.index[e]))) {
+					fromStates.set(transitionsAtPos.from[e]);
+					transitionsAtPos.from[kept] = transitionsAtPos.from[e];
+					transitionsAtPos.index[kept++] = transitionsAtPos.index[e];
+				}
+			}
+			transitionsAtPos.size = kept;
+			transitionsAtPos.trim();
+			states.set(i, coReachable);
+
+			coReachable = fromStates;
+		}
+		priorStates.and(coReachable);
+	}
+
+	private boolean satisfiesTransitionalConstraints(List<ConditionedConstraint<T>> constraintsAtPos, TokenWindow<T> fromState, TokenWindow<T> toState) {
+		Constraint<T> constraint;
+		for (ConditionedConstraint<T> conditionedConstraint : constraintsAtPos) {
+			constraint = conditionedConstraint.getConstraint();
+			if (constraint instanceof TransitionalConstraint) {
+				if (((TransitionalConstraint<T>) constraint).isSatisfiedBy(fromState, toState) ^ conditionedConstraint.getDesiredConditionState()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static int[] toArray(BitSet bits) {
+		final int[] array = new int[bits.cardinality()];
+		int i = 0;
+		for (int bit = bits.nextSetBit(0); bit >= 0; bit = bits.nextSetBit(bit + 1)) {
+			array[i++] = bit;
+		}
+		return array;
+	}
+
+	/**
+	 * The transitions found by expanding some of the from-states at a position and the to-states they reach
+	 */
+	private static class Expansion {
+		private final TransitionList transitions = new TransitionList();
+		private final BitSet toStates;
+
+		private Expansion(int stateCount) {
+			this.toStates = new BitSet(stateCount);
+		}
+	}
+
+	/**
+	 * Transitions at one position as parallel arrays of from-states and indices into the base model's matrix
+	 */
+	private static class TransitionList {
+		private int[] from = new int[16];
+		private int[] index = new int[16];
+		private int size = 0;
+
+		private void add(int fromStateIdx, int matrixIndex) {
+			if (size == from.length) {
+				from = Arrays.copyOf(from, size * 2);
+				index = Arrays.copyOf(index, size * 2);
+			}
+			from[size] = fromStateIdx;
+			index[size++] = matrixIndex;
+		}
+
+		private void addAll(TransitionList other) {
+			if (size + other.size > from.length) {
+				from = Arrays.copyOf(from, Math.max(size + other.size, size * 2));
+				index = Arrays.copyOf(index, from.length);
+			}
+			System.arraycopy(other.from, 0, from, size, other.size);
+			System.arraycopy(other.index, 0, index, size, other.size);
+			size += other.size;
+		}
+
+		private void trim() {
+			from = Arrays.copyOf(from, size);
+			index = Arrays.copyOf(index, size);
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package dbtb.markov;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The pool used by the parallel NHMM construction, batch generation and match search when no executor is given, so
+ * that they share one set of threads rather than each starting its own.
+ */
+public class SharedPool {
+
+	public static final int DEFAULT_PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors()-1);
+
+	private static ForkJoinPool pool = null;
+
+	private SharedPool() {
+	}
+
+	/**
+	 * @return the shared pool, created on first use with DEFAULT_PARALLELISM threads. Its threads are daemons, so it is never shut down.
+	 */
+	public static synchronized ForkJoinPool get() {
+		if (pool == null) {
+			pool = new ForkJoinPool(DEFAULT_PARALLELISM);
+		}
+		return pool;
+	}
+}
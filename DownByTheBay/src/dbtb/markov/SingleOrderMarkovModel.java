@@ -4,6 +4,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.SplittableRandom;
 
 public class SingleOrderMarkovModel<T> extends AbstractMarkovModel<T>{
 
@@ -55,6 +56,22 @@ public class SingleOrderMarkovModel<T> extends AbstractMarkovModel<T>{
 		return Math.exp(logProb);
 	}
 
+	/**
+	 * @param stateIDs indices into states, starting with the prior state
+	 */
+	@Override
+	public double logProbability(int[] stateIDs) {
+		if(stateIDs.length == 0)
+			return Double.NaN;
+		
+		double logProb = logPriors[stateIDs[0]];
+		for (int i = 1; i < stateIDs.length; i++) {
+			logProb += logTransitions[stateIDs[i-1]][stateIDs[i]];
+		}
+		
+		return logProb;
+	}
+
 	public String toString()
 	{
 		StringBuilder str = new StringBuilder();
@@ -81,6 +98,11 @@ public class SingleOrderMarkovModel<T> extends AbstractMarkovModel<T>{
 
 	@Override
 	public List<T> generate(int length) {
+		return generate(length, new SplittableRandom(rand.nextLong()));
+	}
+
+	@Override
+	protected List<T> generate(int length, SplittableRandom random) {
 		int prevStateIdx = -1;
 		int nextStateIdx = -1;
 		
@@ -89,11 +111,11 @@ public class SingleOrderMarkovModel<T> extends AbstractMarkovModel<T>{
 		for (int i = 0; i < length; i++) {
 			if(i==0)
 			{
-				nextStateIdx = sampleStartStateIdx();
+				nextStateIdx = sampleStartStateIdx(random.nextDouble());
 			}
 			else
 			{
-				nextStateIdx = sampleNextState(prevStateIdx);
+				nextStateIdx = sampleNextState(prevStateIdx, random.nextDouble());
 			}
 			
 			if(nextStateIdx == -1)
@@ -108,9 +130,7 @@ public class SingleOrderMarkovModel<T> extends AbstractMarkovModel<T>{
 		return newSeq;
 	}
 	
-	private int sampleNextState(int prevStateIdx) {
-		double randomDouble = rand.nextDouble();
-		
+	private int sampleNextState(int prevStateIdx, double randomDouble) {
 		double accumulativeProbability = 0.;
 		
 		for (int i = 0; i < logTransitions[prevStateIdx].length; i++) {
@@ -128,9 +148,7 @@ public class SingleOrderMarkovModel<T> extends AbstractMarkovModel<T>{
 		return -1;
 	}
 
-	private int sampleStartStateIdx() {
-		double randomDouble = rand.nextDouble();
-		
+	private int sampleStartStateIdx(double randomDouble) {
 		double accumulativeProbability = 0.;
 		
 		for (int i = 0; i < logPriors.length; i++) {
@@ -5,6 +5,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.SplittableRandom;
 
 public class SparseSingleOrderMarkovModel<T> extends AbstractMarkovModel<T>{
 
@@ -102,6 +103,34 @@ public class SparseSingleOrderMarkovModel<T> extends AbstractMarkovModel<T>{
 		return Math.exp(logProb);
 	}
 
+	/**
+	 * @param stateIDs indices into states, starting with the prior state
+	 */
+	@Override
+	public double logProbability(int[] stateIDs) {
+		if(stateIDs.length == 0)
+			return Double.NaN;
+		
+		Double value = logPriors.get(stateIDs[0]);
+		if (value == null)
+			return Double.NEGATIVE_INFINITY;
+		double logProb = value;
+		
+		Map<Integer, Double> innerMap;
+		for (int i = 1; i < stateIDs.length; i++) {
+			innerMap = logTransitions.get(stateIDs[i-1]);
+			if (innerMap == null)
+				return Double.NEGATIVE_INFINITY;
+			value = innerMap.get(stateIDs[i]);
+			if (value == null)
+				return Double.NEGATIVE_INFINITY;
+			
+			logProb += value;
+		}
+		
+		return logProb;
+	}
+
 	public String toString()
 	{
 		StringBuilder str = new StringBuilder();
@@ -136,6 +165,11 @@ public class SparseSingleOrderMarkovModel<T> extends AbstractMarkovModel<T>{
 
 	@Override
 	public List<T> generate(int length) {
+		return generate(length, new SplittableRandom(rand.nextLong()));
+	}
+
+	@Override
+	protected List<T> generate(int length, SplittableRandom random) {
 		int prevStateIdx = -1;
 		int nextStateIdx = -1;
 		
@@ -144,11 +178,11 @@ public class SparseSingleOrderMarkovModel<T> extends AbstractMarkovModel<T>{
 		for (int i = 0; i < length; i++) {
 			if(i==0)
 			{
-				nextStateIdx = sampleStartStateIdx();
+				nextStateIdx = sampleStartStateIdx(random.nextDouble());
 			}
 			else
 			{
-				nextStateIdx = sampleNextStateIdx(prevStateIdx);
+				nextStateIdx = sampleNextStateIdx(prevStateIdx, random.nextDouble());
 			}
 			
 			if(nextStateIdx == -1)
@@ -163,9 +197,7 @@ public class SparseSingleOrderMarkovModel<T> extends AbstractMarkovModel<T>{
 		return newSeq;
 	}
 	
-	private int sampleNextStateIdx(int prevStateIdx) {
-		double randomDouble = rand.nextDouble();
-		
+	private int sampleNextStateIdx(int prevStateIdx, double randomDouble) {
 		double accumulativeProbability = 0.;
 		
 		Map<Integer, Double> transForPrevState = logTransitions.get(prevStateIdx);
@@ -182,9 +214,7 @@ public class SparseSingleOrderMarkovModel<T> extends AbstractMarkovModel<T>{
 		return -1;
 	}
 
-	private int sampleStartStateIdx() {
-		double randomDouble = rand.nextDouble();
-		
+	private int sampleStartStateIdx(double randomDouble) {
 		double accumulativeProbability = 0.;
 		
 		for (Entry<Integer, Double> entry : logPriors.entrySet()) {
@@ -199,7 +229,7 @@ public class SparseSingleOrderMarkovModel<T> extends AbstractMarkovModel<T>{
 	}
 	
 	public T sampleStartState() {
-		int startStateIdx = sampleStartStateIdx();
+		int startStateIdx = sampleStartStateIdx(rand.nextDouble());
 		return states[startStateIdx];
 	}
 
@@ -207,7 +237,7 @@ public class SparseSingleOrderMarkovModel<T> extends AbstractMarkovModel<T>{
 		if (!stateIndex.containsKey(prevState))
 			throw new RuntimeException("Model does not contain prefix: " + prevState);
 		int prevStateIdx = stateIndex.get(prevState);
-		int nextStateIdx = sampleNextStateIdx(prevStateIdx);
+		int nextStateIdx = sampleNextStateIdx(prevStateIdx, rand.nextDouble());
 		return states[nextStateIdx];
 	}
 }
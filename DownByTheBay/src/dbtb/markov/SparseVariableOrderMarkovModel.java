@@ -6,14 +6,20 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import dbtb.constraint.StateConstraint;
 
 import java.util.Random;
+import java.util.SplittableRandom;
 
 public class SparseVariableOrderMarkovModel<T extends Token> extends AbstractMarkovModel<T>{
 
 	public Map<Integer,Map<Integer,Double>> logTransitions;
+	private CompressedSparseRowMatrix frozenLogTransitions = null;
+	// samplers are built lazily on first use and assume the distributions are not modified thereafter
+	private volatile AliasTable priorSampler = null;
+	private final Map<Integer, AliasTable> transitionSamplers = new ConcurrentHashMap<Integer, AliasTable>();
 	public BidirectionalVariableOrderPrefixIDMap<T> stateIndex;
 	private Random rand = new Random();
 	public int order;
@@ -44,41 +50,100 @@ public class SparseVariableOrderMarkovModel<T extends Token> extends AbstractMar
 		}
 	}
 
-	public double probabilityOfSequence(T[] seq) {
-		double logProb = 0;
+	/**
+	 * Creates an already-frozen model from log priors and log transitions (e.g., as read from a {@link ModelSnapshot}).
+	 */
+	SparseVariableOrderMarkovModel(BidirectionalVariableOrderPrefixIDMap<T> statesByIndex, HashMap<Integer, Double> logPriors, CompressedSparseRowMatrix frozenLogTransitions) {
+		this.stateIndex = statesByIndex;
+		this.order = stateIndex.getOrder();
+		this.logPriors = logPriors;
+		this.frozenLogTransitions = frozenLogTransitions;
+		this.logTransitions = frozenLogTransitions.asMap();
+	}
+
+	/**
+	 * Converts the transition matrix to a primitive compressed-sparse-row representation and releases 
+	 * the map-based one. logTransitions remains readable (as a read-only view over the frozen arrays), 
+	 * but can no longer be modified. Calling this on a frozen model has no effect.
+	 */
+	public void freeze() {
+		if (isFrozen()) return;
 		
+		frozenLogTransitions = new CompressedSparseRowMatrix(logTransitions, stateIndex.getPrefixCount());
+		logTransitions = frozenLogTransitions.asMap();
+	}
+
+	/**
+	 * Freezes the model (if need be) with its transition values stored as storage, trading precision for memory (see
+	 * {@link CompressedSparseRowMatrix.Storage}). Values are decoded as they are read, so the model is otherwise used
+	 * as before; models built on it (e.g., an {@link ImplicitSparseVariableOrderNHMM}) read the same stored values.
+	 */
+	public void freeze(CompressedSparseRowMatrix.Storage storage) {
+		freeze();
+		if (frozenLogTransitions.getStorage() == storage) return;
+
+		frozenLogTransitions = frozenLogTransitions.withStorage(storage);
+		logTransitions = frozenLogTransitions.asMap();
+		transitionSamplers.clear();
+	}
+
+	public boolean isFrozen() {
+		return frozenLogTransitions != null;
+	}
+
+	/**
+	 * @return the primitive transition matrix, or null if the model has not been frozen
+	 */
+	public CompressedSparseRowMatrix getFrozenLogTransitions() {
+		return frozenLogTransitions;
+	}
+
+	public double probabilityOfSequence(T[] seq) {
 		if(seq.length == 0)
 			return Double.NaN;
 		
-		LinkedList<Token> prefix = new LinkedList<Token>(Arrays.asList(seq).subList(0, order));
+		final int[] stateIDs = stateIndex.getIDsForSequence(seq);
+		return stateIDs == null ? 0. : Math.exp(logProbability(stateIDs));
+	}
+
+	/**
+	 * @param stateIDs the state at each position, starting with the prior state (see {@link BidirectionalVariableOrderPrefixIDMap#getIDsForSequence})
+	 * @return the log probability of the sequence of states (negative infinity if it is impossible)
+	 */
+	@Override
+	public double logProbability(int[] stateIDs) {
+		if(stateIDs.length == 0)
+			return Double.NaN;
 		
-		Integer toStateIdx, fromStateIdx  = stateIndex.getIDForPrefix(prefix);
-		Double value = logPriors.get(fromStateIdx);
-		if (value == null) {
-			return 0.;
-		} else { 
-			logProb += value;
-		}
+		Double value = logPriors.get(stateIDs[0]);
+		if (value == null)
+			return Double.NEGATIVE_INFINITY;
+		double logProb = value;
 		
+		final CompressedSparseRowMatrix frozen = frozenLogTransitions;
+		int k;
 		Map<Integer, Double> innerMap;
-		for (int i = order; i < seq.length; i++) {
-			innerMap = logTransitions.get(fromStateIdx);
-			if (innerMap == null)
-				return 0.;
+		for (int i = 0; i < stateIDs.length-1; i++) {
+			if (frozen != null) {
+				k = frozen.indexOf(stateIDs[i], stateIDs[i+1]);
+				if (k == -1)
+					return Double.NEGATIVE_INFINITY;
+				logProb += frozen.valueAt(k);
+				continue;
+			}
 
-			prefix.removeFirst();
-			prefix.addLast(seq[i]);
-			toStateIdx = stateIndex.getIDForPrefix(prefix);
+			innerMap = logTransitions.get(stateIDs[i]);
+			if (innerMap == null)
+				return Double.NEGATIVE_INFINITY;
 
-			value = innerMap.get(toStateIdx);
+			value = innerMap.get(stateIDs[i+1]);
 			if (value == null)
-				return 0.;
+				return Double.NEGATIVE_INFINITY;
 			
 			logProb += value;
-			fromStateIdx = toStateIdx;
 		}
 		
-		return Math.exp(logProb);
+		return logProb;
 	}
 
 	public String toString()
@@ -126,12 +191,17 @@ public class SparseVariableOrderMarkovModel<T extends Token> extends AbstractMar
 
 	@Override
 	public List<T> generate(int length) {
+		return generate(length, new SplittableRandom(rand.nextLong()));
+	}
+
+	@Override
+	protected List<T> generate(int length, SplittableRandom random) {
 		int fromStateIdx = -1, toStateIdx = -1;
 		T toState;
 		
 		List<T> newSeq = new ArrayList<T>();
 		
-		fromStateIdx = sampleStartStateIdx();
+		fromStateIdx = sampleStartStateIdx(random.nextDouble());
 		LinkedList<T> prefixForID = stateIndex.getPrefixForID(fromStateIdx);
 		
 		final Token endToken = Token.getEndToken();
@@ -143,7 +213,7 @@ public class SparseVariableOrderMarkovModel<T extends Token> extends AbstractMar
 
 		while (newSeq.size() < length) {
 
-			toStateIdx = sampleNextStateIdx(fromStateIdx);
+			toStateIdx = sampleNextStateIdx(fromStateIdx, random.nextDouble());
 			toState = (T) stateIndex.getPrefixFinaleForID(toStateIdx);
 			
 			if(toState == endToken)
@@ -158,39 +228,33 @@ public class SparseVariableOrderMarkovModel<T extends Token> extends AbstractMar
 		return newSeq;
 	}
 	
-	private Integer sampleNextStateIdx(Integer prevStateIdx) {
-		double randomDouble = rand.nextDouble();
-		
-		double accumulativeProbability = 0.;
-		
-		Map<Integer, Double> transForPrevState = logTransitions.get(prevStateIdx);
-		if (transForPrevState != null) {
-			for (Entry<Integer, Double> entry : transForPrevState.entrySet()) {
-				accumulativeProbability += Math.exp(entry.getValue());
-				if (accumulativeProbability >= randomDouble)
-				{
-					return entry.getKey();
-				}
-			}
+	private Integer sampleNextStateIdx(Integer prevStateIdx, double uniform) {
+		AliasTable sampler = transitionSamplers.get(prevStateIdx);
+		if (sampler == null) {
+			sampler = buildTransitionSampler(prevStateIdx);
+			if (sampler == null) return -1;
+			transitionSamplers.put(prevStateIdx, sampler);
 		}
 		
-		return -1;
+		return sampler.sample(uniform);
 	}
 	
-	private int sampleStartStateIdx() {
-		double randomDouble = rand.nextDouble();
-		
-		double accumulativeProbability = 0.;
-		
-		for (Entry<Integer, Double> entry : logPriors.entrySet()) {
-			accumulativeProbability += Math.exp(entry.getValue());
-			if (accumulativeProbability >= randomDouble)
-			{
-				return entry.getKey();
-			}
+	private AliasTable buildTransitionSampler(int fromStateIdx) {
+		if (isFrozen()) {
+			return AliasTable.fromRow(frozenLogTransitions, fromStateIdx);
+		} else {
+			return AliasTable.fromLogWeights(logTransitions.get(fromStateIdx));
+		}
+	}
+	
+	private int sampleStartStateIdx(double uniform) {
+		AliasTable sampler = priorSampler;
+		if (sampler == null) {
+			sampler = priorSampler = AliasTable.fromLogWeights(logPriors);
+			if (sampler == null) return -1;
 		}
 		
-		return -1;
+		return sampler.sample(uniform);
 	}
 
 	public T sampleNextState(LinkedList<Token> tokenPrefix) {
@@ -206,7 +270,7 @@ public class SparseVariableOrderMarkovModel<T extends Token> extends AbstractMar
 		final Token endToken = Token.getEndToken();
 
 		try {
-			Integer toStateIdx = sampleNextStateIdx(fromStateIdx);
+			Integer toStateIdx = sampleNextStateIdx(fromStateIdx, rand.nextDouble());
 			T toState = (T) stateIndex.getPrefixFinaleForID(toStateIdx);
 			return toState;
 		} catch (NullPointerException ex) {
@@ -1,348 +1,139 @@
 package dbtb.markov;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
-import java.util.Set;
+import java.util.SplittableRandom;
 import java.util.concurrent.ConcurrentHashMap;
 
-import org.apache.commons.lang3.time.StopWatch;
-
 import dbtb.constraint.ConditionedConstraint;
-import dbtb.constraint.Constraint;
-import dbtb.constraint.StateConstraint;
-import dbtb.constraint.TransitionalConstraint;
 import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken;
 import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken.CharacterTokenConstraint;
-import dbtb.utils.MathUtils;
 
 public class SparseVariableOrderNHMM<T extends Token> extends AbstractMarkovModel<T>{
 
 	List<Map<Integer, Map<Integer,Double>>> logTransitions; // first 2d matrix represents transitions from first to second position
-	List<Map<Integer, Integer>> inSupport; // first matrix represents the number of non-zero transition probabilities to the ith state at pos 1 in the seq 
 	BidirectionalVariableOrderPrefixIDMap<T> stateIndex;
 	private Random rand = new Random();
+	// samplers are built lazily on first use once construction (and normalization) is complete
+	private volatile AliasTable priorSampler = null;
+	private List<Map<Integer, AliasTable>> transitionSamplers;
 	int order;
 	private HashMap<Integer, Double> logPriors;
 	
 	public SparseVariableOrderNHMM(SparseVariableOrderMarkovModel<T> model, int length, List<List<ConditionedConstraint<T>>> constraints) throws UnsatisfiableConstraintSetException {
 		this.stateIndex = model.stateIndex;
 		this.order = model.order;
-		List<LinkedList<T>> tokens = stateIndex.getIDToPrefixMap();
 		this.logPriors = new HashMap<Integer, Double>(); 
 
-		this.inSupport = new ArrayList<Map<Integer, Integer>>(Math.max(0, length-1));
 		this.logTransitions = new ArrayList<Map<Integer, Map<Integer, Double>>>(Math.max(0, length-1));
-		if (length > 1) {
-			Map<Integer, Map<Integer, Double>> logTransitionsAtPosition;
-			Set<Integer> keysWithSupportAtPosLessOne = null;
-			Map<Integer, Integer> inSupportAtPos;
-			
-			Integer toStateIdx;
-			Set<PositionedState> posStateToRemove = new HashSet<PositionedState>();
-			Map<Integer, Double> toStates;
-			LinkedList<T> fromState;
-			LinkedList<T> toState;
-			boolean satisfiable;
-			
-			// handle priors first
-			System.out.print(".");
-			LinkedList<T> priorState;
-			Constraint<T> constraint;
-			boolean desiredConstraintCondition;
-			// for each possible prior state
-			for(Integer priorStateIdx : model.logPriors.keySet()) {
-				priorState = tokens.get(priorStateIdx);
-				satisfiable = true;
-
-				// for each token in the state
-				for (int i = 0; i < priorState.size() && satisfiable; i++) {
-					// if it breaks one constraint
-					for (ConditionedConstraint<T> conditionedConstraint : constraints.get(i)) {
-						constraint = conditionedConstraint.getConstraint();
-						desiredConstraintCondition = conditionedConstraint.getDesiredConditionState();
-						if (constraint instanceof TransitionalConstraint) {
-							// this could change, but for now dynamic constraints are designed to take a fromToken and a toToken.
-							// the change would require constraints to be placed solely on one token...
-							throw new RuntimeException("Can't have dynamic constaints on position before order length");
-						} else {
-							if(((StateConstraint<T>)constraint).isSatisfiedBy(priorState, i) ^ desiredConstraintCondition) {
-								satisfiable = false;
-								break;
-							}
-						}
-					}
-				}
-				if (satisfiable) {
-					this.logPriors.put(priorStateIdx, model.logPriors.get(priorStateIdx));
-					// log priors ARE the insupport
-				}
-			}
-			
-			// for each possible transition (fromState -> toState) from the original naive transition matrix
-			for (int i = 0; i < length-order; i++) {
-				System.out.print(".");
-				inSupportAtPos = new HashMap<Integer, Integer>();
-				this.inSupport.add(inSupportAtPos);
-
-				logTransitionsAtPosition = new ConcurrentHashMap<Integer, Map<Integer, Double>>();
-				logTransitions.add(logTransitionsAtPosition);
-				
-				keysWithSupportAtPosLessOne = i == 0 ? this.logPriors.keySet() : inSupport.get(i-1).keySet();
-				// if there are ANY ways of getting to fromState
-				for (Integer fromStateIdx : keysWithSupportAtPosLessOne) {
-					Map<Integer, Double> innerMap = model.logTransitions.get(fromStateIdx);
-					// for each possible transition (fromState -> toState) from the original naive transition matrix
-					if (innerMap != null) {
-						fromState = tokens.get(fromStateIdx);
-						toStates = new HashMap<Integer, Double>();
-						// make note that via this fromState, each of the toStates is accessible via yet one more path
-						for (Entry<Integer, Double> innerEntry : innerMap.entrySet()) {
-							toStateIdx = innerEntry.getKey();
-							toState = tokens.get(toStateIdx);
-							satisfiable = true;
-							for (ConditionedConstraint<T> conditionedConstraint : constraints.get(i+order)) {
-								constraint = conditionedConstraint.getConstraint();
-								desiredConstraintCondition = conditionedConstraint.getDesiredConditionState();
-								if (constraint instanceof TransitionalConstraint) {
-									if (((TransitionalConstraint<T>) constraint).isSatisfiedBy(fromState, toState) ^ desiredConstraintCondition) {
-										satisfiable = false;
-										break;
-									}
-								} else {
-									if(((StateConstraint<T>)constraint).isSatisfiedBy(toState, order-1) ^ desiredConstraintCondition) 
-									{
-										satisfiable = false;
-										break;
-									}
-								}
-							}
-							if (satisfiable) {
-								toStates.put(toStateIdx, innerEntry.getValue());
-								incrementCount(inSupportAtPos,toStateIdx);
-							}
-						}
-						if (!toStates.isEmpty()) {
-							logTransitionsAtPosition.put(fromStateIdx, toStates);
-						} else {
-							// for each toState at the previous step (as per inSupport), if there is no logTransition from the state in this step, it should be marked for removal
-							posStateToRemove.add(new PositionedState(i-1, fromStateIdx));
-						}
-					} else {
-						// for each toState at the previous step (as per inSupport), if there is no logTransition from the state in this step, it should be marked for removal
-						posStateToRemove.add(new PositionedState(i-1, fromStateIdx));
-					}
-				}
-
-				StopWatch watch1 = new StopWatch();
-				watch1.start();
-				int statesPruned = 0;
-				// remove states marked for removal because they result in premature terminations
-				while(!posStateToRemove.isEmpty())
-				{
-					PositionedState stateToRemove = posStateToRemove.iterator().next();
-					posStateToRemove.remove(stateToRemove);
-					statesPruned++;
-					posStateToRemove.addAll(removeState(stateToRemove.getPosition(), stateToRemove.getStateIndex()));
-				}
-				watch1.stop();
-				System.out.println("NUM_THREADS\tcurrIdx\tTotalStatesPruned\tTotalTime\tPruningTimePerState");
-				System.out.println(1 + "\t" + -1 + "\t" + statesPruned + "\t" + watch1.getTime() + "\t" + (1.0*watch1.getTime()/statesPruned));
 
-				if(!satisfiable())
-				{
-					throw new UnsatisfiableConstraintSetException("Not satisfiable, given length constraint (no seq of length " + i + " can be made)");
-				}
-			}
-			
+		// prune to the states that both satisfy the constraints and can reach the final position before materializing any rows
+		final ReachabilityNHMMBuilder<T> builder = new ReachabilityNHMMBuilder<T>(model, length, constraints);
+		final BitSet priorStates = builder.getPriorStates();
+		for (int priorStateIdx = priorStates.nextSetBit(0); priorStateIdx >= 0; priorStateIdx = priorStates.nextSetBit(priorStateIdx + 1)) {
+			this.logPriors.put(priorStateIdx, model.logPriors.get(priorStateIdx));
 		}
-		
-		System.out.println("Log Normalizing...");
-		logNormalize();
-	}
 
-	private void incrementCount(Map<Integer, Integer> map, Integer key) {
-		Integer value = map.get(key);
-		if(value == null)
-			map.put(key, 1);
-		else
-			map.put(key, value+1);
-	}
-	
-	private void decrementCountOrRemove(Map<Integer, Integer> map, Integer key) {
-		Integer value = map.get(key);
-		if(value == null)
-			throw new RuntimeException("Cannot decrement: not present in map");
-		else if (value > 1)
-			map.put(key, value-1);
-		else
-			map.remove(key);
-	}
+		Map<Integer, Map<Integer, Double>> logTransitionsAtPosition;
+		Map<Integer, Double> toStates = null;
+		int fromStateIdx, toStateIdx, lastFromStateIdx;
+		for (int i = 0; i < builder.getPositionCount(); i++) {
+			logTransitionsAtPosition = new ConcurrentHashMap<Integer, Map<Integer, Double>>();
+			logTransitions.add(logTransitionsAtPosition);
 
-	private boolean satisfiable() {
-		if (inSupport.size() == 0)
-			return (logPriors.size() > 0);
-		else
-			return inSupport.get(logTransitions.size()-1).size() > 0;
-	}
-
-	private void logNormalize() {
-		if (logTransitions.size() == 0) {
-			Double value;
-			//normalize only priors
-			// calculate sum for each row
-			value = Double.NEGATIVE_INFINITY;
-			for (Entry<Integer, Double> col: logPriors.entrySet()) {
-				value = MathUtils.logSum(value, col.getValue());
-			}
-			// divide each value by the sum for its row
-			for (Entry<Integer, Double> col: logPriors.entrySet()) {
-				col.setValue(col.getValue() - value);
-			}
-			
-			return;
-		}
-		
-		Map<Integer, Map<Integer, Double>> currentMatrix = logTransitions.get(logTransitions.size()-1);
-		Map<Integer, Double> oldLogAlphas = new HashMap<Integer, Double>(currentMatrix.size());
-		
-		Double value;
-		//normalize last matrix individually
-		for (Entry<Integer, Map<Integer, Double>> row: currentMatrix.entrySet()) {
-			// calculate sum for each row
-			value = Double.NEGATIVE_INFINITY;
-			for (Entry<Integer, Double> col: row.getValue().entrySet()) {
-				value = MathUtils.logSum(value, col.getValue());
-			}
-			// divide each value by the sum for its row
-			for (Entry<Integer, Double> col: row.getValue().entrySet()) {
-				col.setValue(col.getValue() - value);
-			}
-			oldLogAlphas.put(row.getKey(),value);
-		}
-		
-		Map<Integer, Double> newLogAlphas;
-		//propagate normalization from right to left
-		for (int i = logTransitions.size()-2; i >= 0; i--) {
-			// generate based on alphas from old previous matrix
-			currentMatrix = logTransitions.get(i);
-			newLogAlphas = new HashMap<Integer, Double>(currentMatrix.size());
-			for (Entry<Integer, Map<Integer, Double>> row: currentMatrix.entrySet()) {
-				// calculate sum for each row (new alphas; not used until next matrix)
-				value = Double.NEGATIVE_INFINITY;
-				// new val = currVal * oldAlpha
-				for (Entry<Integer, Double> col: row.getValue().entrySet()) {
-					col.setValue(col.getValue() + oldLogAlphas.get(col.getKey()));
-					value = MathUtils.logSum(value, col.getValue());
+			// surviving transitions are grouped by fromState
+			lastFromStateIdx = -1;
+			for (int j = 0; j < builder.getTransitionCount(i); j++) {
+				fromStateIdx = builder.getFromState(i, j);
+				if (fromStateIdx != lastFromStateIdx) {
+					toStates = new HashMap<Integer, Double>();
+					logTransitionsAtPosition.put(fromStateIdx, toStates);
+					lastFromStateIdx = fromStateIdx;
 				}
-				// normalize
-				for (Entry<Integer, Double> col: row.getValue().entrySet()) {
-					col.setValue(col.getValue() - value);
-				}
-				newLogAlphas.put(row.getKey(), value);
+				toStateIdx = builder.getToState(i, j);
+				toStates.put(toStateIdx, builder.getLogProbability(i, j));
 			}
-			
-			oldLogAlphas = newLogAlphas;
 		}
 		
-		// propagate normalization to prior		
-		double tmpSum = Double.NEGATIVE_INFINITY;
-		for (Entry<Integer,Double> row : logPriors.entrySet()) {
-			// new val = currVal * oldAlpha
-			row.setValue(row.getValue() + oldLogAlphas.get(row.getKey()));
-			tmpSum = MathUtils.logSum(tmpSum, row.getValue());
-		}
-		// normalize
-		for (Entry<Integer,Double> row : logPriors.entrySet()) {
-			row.setValue(row.getValue() - tmpSum);
+		System.out.println("Log Normalizing...");
+		try {
+			LogNormalizer.logNormalize(logTransitions, logPriors, stateIndex.getPrefixCount(), null, 1);
+		} catch (InterruptedException e) {
+			// cannot happen without an executor
+			throw new RuntimeException(e);
 		}
+		initializeSamplers();
 	}
-	
-	/*
-	 *  set all transition probs to/from the state to zero
-	 *  decrementing the corresponding in/outSupport values
-	 *  removing states accordingly whose in/outSupport values result in 0
-	 */
-	public Set<PositionedState> removeState(int position, int stateIndex) {
-		
-		Set<PositionedState> posStateToRemove = new HashSet<PositionedState>();
 
-		if(position == -1)
-		{
-			this.logPriors.remove(stateIndex);
+	private void initializeSamplers() {
+		this.transitionSamplers = new ArrayList<Map<Integer, AliasTable>>(logTransitions.size());
+		for (int i = 0; i < logTransitions.size(); i++) {
+			this.transitionSamplers.add(new ConcurrentHashMap<Integer, AliasTable>());
 		}
-		else
-		{
-			// address transitions *to* the removed state
-			Map<Integer, Double> toStates;
-			this.inSupport.get(position).remove(stateIndex);
-			final Map<Integer, Map<Integer, Double>> map = this.logTransitions.get(position);
-			for (Integer fromState : map.keySet()) {
-				toStates = map.get(fromState);
+	}
 
-				if (toStates.containsKey(stateIndex)) {
-					toStates.remove(stateIndex); // state is gone: can't transition to it
-					
-					if (toStates.isEmpty()) {
-						posStateToRemove.add(new PositionedState(position-1, fromState));
-					}
-				}
+	/**
+	 * @return for each state with a transition to it at a position, the number of states with a transition to it
+	 */
+	static Map<Integer, Integer> countInSupport(Map<Integer, ? extends Map<Integer, Double>> logTransitionsAtPosition) {
+		final Map<Integer, Integer> inSupport = new HashMap<Integer, Integer>();
+		Integer count;
+		for (Map<Integer, Double> toStates : logTransitionsAtPosition.values()) {
+			for (Integer toStateIdx : toStates.keySet()) {
+				count = inSupport.get(toStateIdx);
+				inSupport.put(toStateIdx, count == null ? 1 : count + 1);
 			}
 		}
-
-		// address transitions *from* the removed state
-		this.logTransitions.get(position+1).remove(stateIndex);
-
-		return posStateToRemove;
+		return inSupport;
 	}
 
 	public double probabilityOfSequence(Token[] seq) {
-	
-		double logProb = 0;
-		
 		if(seq.length == 0)
 			return Double.NaN;
 		
-		LinkedList<Token> prefix = new LinkedList<Token>();
-		
-		for (int i = 0; i < order; i++) {
-			prefix.add(seq[i]);
-		}
+		final int[] stateIDs = stateIndex.getIDsForSequence(seq);
+		return stateIDs == null ? 0. : Math.exp(logProbability(stateIDs));
+	}
+
+	/**
+	 * @param stateIDs the state at each position, starting with the prior state (see {@link BidirectionalVariableOrderPrefixIDMap#getIDsForSequence})
+	 * @return the log probability of the sequence of states (negative infinity if it is impossible)
+	 */
+	@Override
+	public double logProbability(int[] stateIDs) {
+		if(stateIDs.length == 0)
+			return Double.NaN;
 		
-		Integer toStateIdx, fromStateIdx = stateIndex.getIDForPrefix(prefix);
-		Double value = logPriors.get(fromStateIdx);
-		if (value == null) {
-			return 0.;
-		} else { 
-			logProb += value;
-		}
+		Double value = logPriors.get(stateIDs[0]);
+		if (value == null)
+			return Double.NEGATIVE_INFINITY;
+		double logProb = value;
 		
 		Map<Integer, Double> innerMap;
-		for (int i = 0; i < seq.length-order; i++) {
-			innerMap = logTransitions.get(i).get(fromStateIdx);
-			if (innerMap == null)
-				return 0.;
+		for (int i = 0; i < stateIDs.length-1; i++) {
+			if (i >= logTransitions.size())
+				return Double.NEGATIVE_INFINITY;
 
-			prefix.removeFirst();
-			prefix.addLast(seq[i+order]);
-			toStateIdx = stateIndex.getIDForPrefix(prefix);
+			innerMap = logTransitions.get(i).get(stateIDs[i]);
+			if (innerMap == null)
+				return Double.NEGATIVE_INFINITY;
 
-			value = innerMap.get(toStateIdx);
+			value = innerMap.get(stateIDs[i+1]);
 			if (value == null)
-				return 0.;
+				return Double.NEGATIVE_INFINITY;
 			
 			logProb += value;
-			fromStateIdx = toStateIdx;
 		}
 		
-		return Math.exp(logProb);
+		return logProb;
 	}
 	
 	public String toString()
@@ -381,7 +172,7 @@ public class SparseVariableOrderNHMM<T extends Token> extends AbstractMarkovMode
 		str.append("inSupport:\n");
 		for (int i = 0; i < logTransitions.size(); i++) {
 			str.append("[");
-			for (Entry<Integer, Integer> entry: inSupport.get(i).entrySet()) {
+			for (Entry<Integer, Integer> entry: countInSupport(logTransitions.get(i)).entrySet()) {
 				str.append("\n\t");
 				str.append(entry.getKey());
 				str.append(" - ");
@@ -396,11 +187,16 @@ public class SparseVariableOrderNHMM<T extends Token> extends AbstractMarkovMode
 
 	@Override
 	public List<T> generate(int length) {
-		Integer startPrefixID = sampleStartStateIdx();
+		return generate(length, new SplittableRandom(rand.nextLong()));
+	}
+
+	@Override
+	protected List<T> generate(int length, SplittableRandom random) {
+		int startPrefixID = sampleStartStateIdx(random.nextDouble());
 		if (startPrefixID == -1) {
 			throw new RuntimeException("No valid start prefix");
 		}
-		return generateWithPrefixID(length, startPrefixID);
+		return generateWithPrefixID(length, startPrefixID, random);
 	}
 		
 	public List<T> generateWithPrefix(int length, LinkedList<Token> prefix) {
@@ -412,7 +208,11 @@ public class SparseVariableOrderNHMM<T extends Token> extends AbstractMarkovMode
 
 	}
 
-	public List<T> generateWithPrefixID(int length, Integer fromStateIdx) {
+	public List<T> generateWithPrefixID(int length, int fromStateIdx) {
+		return generateWithPrefixID(length, fromStateIdx, new SplittableRandom(rand.nextLong()));
+	}
+
+	private List<T> generateWithPrefixID(int length, int fromStateIdx, SplittableRandom random) {
 		int toStateIdx = -1;
 		T toState;
 		
@@ -421,14 +221,14 @@ public class SparseVariableOrderNHMM<T extends Token> extends AbstractMarkovMode
 		List<T> newSeq = new ArrayList<T>();
 		
 		final Token endToken = Token.getEndToken();
-		for(Token token : stateIndex.getPrefixForID(fromStateIdx)) {
+		for(T token : stateIndex.getPrefixForID(fromStateIdx)) {
 			if (token != endToken)
-				newSeq.add((T) token);
+				newSeq.add(token);
 		}
 
 		for (int i = 0; i < length; i++) {
-			toStateIdx = sampleNextStateIdx(fromStateIdx, i);
-			toState = (T) stateIndex.getPrefixFinaleForID(toStateIdx);
+			toStateIdx = sampleNextStateIdx(fromStateIdx, i, random.nextDouble());
+			toState = stateIndex.getPrefixFinaleForID(toStateIdx);
 			
 			if(toState == endToken)
 			{
@@ -442,43 +242,64 @@ public class SparseVariableOrderNHMM<T extends Token> extends AbstractMarkovMode
 		return newSeq;
 	}
 
-	private int sampleStartStateIdx() {
-		double randomDouble = rand.nextDouble();
-		
-		double accumulativeProbability = 0.;
-		
-		for (Entry<Integer, Double> entry : logPriors.entrySet()) {
-			accumulativeProbability += Math.exp(entry.getValue());
-			if (accumulativeProbability >= randomDouble)
-			{
-				return entry.getKey();
-			}
+	private int sampleStartStateIdx(double uniform) {
+		AliasTable sampler = priorSampler;
+		if (sampler == null) {
+			sampler = priorSampler = AliasTable.fromLogWeights(logPriors);
+			// we assume that in order to be satisfiable that there has to be some continuation and it must be the last
+			if (sampler == null) return -1;
 		}
 		
-		// we assume that in order to be satisfiable that there has to be some continuation and it must be the last
-		return -1;
+		return sampler.sample(uniform);
 	}
 	
 	// position represents essentially the fromState position
-	private int sampleNextStateIdx(int prevStateIdx, int position) {
-		double randomDouble = rand.nextDouble();
-		
-		double accumulativeProbability = 0.;
-		
-		Map<Integer, Double> transForPrevState = logTransitions.get(position).get(prevStateIdx);
-		if (transForPrevState != null) {
-			for (Entry<Integer, Double> entry : transForPrevState.entrySet()) {
-				accumulativeProbability += Math.exp(entry.getValue());
-				if (accumulativeProbability >= randomDouble)
-				{
-					return entry.getKey();
-				}
-			}
+	private int sampleNextStateIdx(int prevStateIdx, int position, double uniform) {
+		final Map<Integer, AliasTable> samplersAtPosition = transitionSamplers.get(position);
+		AliasTable sampler = samplersAtPosition.get(prevStateIdx);
+		if (sampler == null) {
+			sampler = AliasTable.fromLogWeights(logTransitions.get(position).get(prevStateIdx));
+			if (sampler == null) return -1;
+			samplersAtPosition.put(prevStateIdx, sampler);
 		}
 		
-		return -1;
+		return sampler.sample(uniform);
 	}
 	
+	/**
+	 * @return the most probable sequence of the model (with at most length tokens after the initial prefix), found
+	 * by Viterbi decoding, or null if there is none
+	 */
+	public List<T> mostProbable(int length) {
+		return NHMMSequences.mostProbable(logTransitions, logPriors, stateIndex, length);
+	}
+
+	/**
+	 * @return the (at most) k most probable sequences of the model in order of decreasing probability (see {@link KBestDecoder})
+	 */
+	public List<List<T>> topK(int length, int k) {
+		return NHMMSequences.topK(logTransitions, logPriors, stateIndex, length, k);
+	}
+
+	/**
+	 * @return the sequences of the model (with at most length tokens after the initial prefix) in random order and
+	 * without repeats: each is drawn as by generate but with the probability of those already returned removed
+	 * (see {@link DistinctPathSampler}). The iterator ends once every sequence has been returned.
+	 */
+	public Iterator<List<T>> distinctSequences(int length, long seed) {
+		return NHMMSequences.distinctSequences(logTransitions, logPriors, stateIndex, new NHMMSequences.Sampler() {
+			@Override
+			public int sampleStartStateIdx(double uniform) {
+				return SparseVariableOrderNHMM.this.sampleStartStateIdx(uniform);
+			}
+
+			@Override
+			public int sampleNextStateIdx(int fromStateIdx, int position, double uniform) {
+				return SparseVariableOrderNHMM.this.sampleNextStateIdx(fromStateIdx, position, uniform);
+			}
+		}, length, seed);
+	}
+
 	public int length() {
 		return logTransitions.size();
 	}
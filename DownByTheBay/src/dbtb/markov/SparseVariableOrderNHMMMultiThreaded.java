@@ -1,436 +1,147 @@
 package dbtb.markov;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
-import java.util.Set;
+import java.util.SplittableRandom;
 import java.util.concurrent.ConcurrentHashMap;
-
-import org.apache.commons.lang3.time.StopWatch;
+import java.util.concurrent.ExecutorService;
 
 import dbtb.constraint.ConditionedConstraint;
-import dbtb.constraint.Constraint;
-import dbtb.constraint.StateConstraint;
-import dbtb.constraint.TransitionalConstraint;
 import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken;
 import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken.CharacterTokenConstraint;
-import dbtb.utils.MathUtils;
 
 public class SparseVariableOrderNHMMMultiThreaded<T extends Token> extends AbstractMarkovModel<T>{
 
 	private static final int DEBUG = 0;
 	
-	public class BatchManager {
 
-		protected static final int BATCH_SIZE = 5000;
-		private int nextBatchStart = 0;
-		
-		public synchronized int nextBatchStart() {
-			int nextBatchStart = this.nextBatchStart;
-			this.nextBatchStart += BATCH_SIZE;
-			return nextBatchStart;
-		}
-	}
-
-	private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors()-1;
 	List<ConcurrentHashMap<Integer, ConcurrentHashMap<Integer,Double>>> logTransitions; // first 2d matrix represents transitions from first to second position
-	List<ConcurrentHashMap<Integer, Integer>> inSupport; // first matrix represents the number of non-zero transition probabilities to the ith state at pos 1 in the seq 
 	BidirectionalVariableOrderPrefixIDMap<T> stateIndex;
 	private Random rand = new Random();
+	// samplers are built lazily on first use once construction (and normalization) is complete
+	private volatile AliasTable priorSampler = null;
+	private List<Map<Integer, AliasTable>> transitionSamplers;
 	int order;
 	private Map<Integer, Double> logPriors;
-	private Map<Integer,Set<Integer>> posStateToRemove = new ConcurrentHashMap<Integer,Set<Integer>>();
 	
+	/**
+	 * Builds the NHMM on the {@link SharedPool}, using up to one fewer thread than there are processors
+	 */
 	public SparseVariableOrderNHMMMultiThreaded(SparseVariableOrderMarkovModel<T> model, int length, List<List<ConditionedConstraint<T>>> constraints) throws UnsatisfiableConstraintSetException, InterruptedException {
-		this.stateIndex = model.stateIndex;
-		this.order = model.order;
-		List<LinkedList<T>> tokens = stateIndex.getIDToPrefixMap();
-		this.logPriors = new ConcurrentHashMap<Integer, Double>(); 
-		
-		this.inSupport = new ArrayList<ConcurrentHashMap<Integer, Integer>>(Math.max(0, length-1));
-		this.logTransitions = new ArrayList<ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, Double>>>(Math.max(0, length-1));
-		if (length > 1) {
-			Set<Integer> keysWithSupportAtPosLessOne = null;
-			
-			// handle priors first
-			LinkedList<T> priorState;
-			Constraint<T> constraint;
-			boolean desiredConstraintCondition;
-			// for each possible prior state
-			for(Integer priorStateIdx : model.logPriors.keySet()) {
-				priorState = tokens.get(priorStateIdx);
-				boolean satisfiable = true;
-
-				// for each token in the state
-				for (int i = 0; i < priorState.size() && satisfiable; i++) {
-					// if it breaks one constraint
-					for (ConditionedConstraint<T> conditionedConstraint : constraints.get(i)) {
-						constraint = conditionedConstraint.getConstraint();
-						desiredConstraintCondition = conditionedConstraint.getDesiredConditionState();
-						if (constraint instanceof TransitionalConstraint) {
-							// this could change, but for now dynamic constraints are designed to take a fromToken and a toToken.
-							// the change would require constraints to be placed solely on one token...
-							throw new RuntimeException("Can't have dynamic constaints on position before order length");
-						} else {
-							if(((StateConstraint<T>)constraint).isSatisfiedBy(priorState, i) ^ desiredConstraintCondition) {
-								satisfiable = false;
-								break;
-							}
-						}
-					}
-				}
-				if (satisfiable) {
-					this.logPriors.put(priorStateIdx, model.logPriors.get(priorStateIdx));
-					// log priors ARE the insupport
-				}
-			}
-			
-			posStateToRemove.put(-1, new HashSet<Integer>());
-			
-			// for each possible transition (fromState -> toState) from the original naive transition matrix
-			for (int i = 0; i < length-order; i++) {
-				posStateToRemove.put(i, new HashSet<Integer>());
-				final ConcurrentHashMap<Integer, Integer> inSupportAtPos = new ConcurrentHashMap<Integer, Integer>();
-				this.inSupport.add(inSupportAtPos);
-
-				final ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, Double>> logTransitionsAtPosition = new ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, Double>>();
-				logTransitions.add(logTransitionsAtPosition);
-				
-				keysWithSupportAtPosLessOne = i == 0 ? this.logPriors.keySet() : inSupport.get(i-1).keySet();
-				
-				final List<ConditionedConstraint<T>> constraintsAtPos = constraints.get(i+order);
-				final int prevPos = i-1;
-				
-				// if there are ANY ways of getting to fromState
-				final Iterator<Integer> fromStateIterator = keysWithSupportAtPosLessOne.iterator();
-				ThreadGroup tg = new ThreadGroup("Constraint Application Threads");
-				for (int j = 0; j < NUM_THREADS; j++) {
-					Thread t = new Thread(tg, new Runnable() {
-						
-						@Override
-						public void run() {
-							LinkedList<T> fromState, toState;
-							ConcurrentHashMap<Integer, Double> toStates;
-							boolean satisfiable;
-							Constraint<T> constraint;
-							boolean desiredConstraintCondition;
-							
-							Integer fromStateIdx, toStateIdx;
-							synchronized (fromStateIterator){
-								if (fromStateIterator.hasNext())
-									fromStateIdx = fromStateIterator.next();
-								else 
-									fromStateIdx = null;
-							}
-							// remove states marked for removal because they result in premature terminations
-							while(fromStateIdx != null) {
-								Map<Integer, Double> innerMap = model.logTransitions.get(fromStateIdx);
-								// for each possible transition (fromState -> toState) from the original naive transition matrix
-								if (innerMap != null) {
-									fromState = tokens.get(fromStateIdx);
-									toStates = new ConcurrentHashMap<Integer, Double>();
-									// make note that via this fromState, each of the toStates is accessible via yet one more path
-									for (Entry<Integer, Double> innerEntry : innerMap.entrySet()) {
-										toStateIdx = innerEntry.getKey();
-										toState = tokens.get(toStateIdx);
-										satisfiable = true;
-										for (ConditionedConstraint<T> conditionedConstraint : constraintsAtPos) {
-											constraint = conditionedConstraint.getConstraint();
-											desiredConstraintCondition = conditionedConstraint.getDesiredConditionState();
-											if (constraint instanceof TransitionalConstraint) {
-												if (((TransitionalConstraint<T>) constraint).isSatisfiedBy(fromState, toState) ^ desiredConstraintCondition) {
-													satisfiable = false;
-													break;
-												}
-											} else {
-												if(((StateConstraint<T>)constraint).isSatisfiedBy(toState, order-1) ^ desiredConstraintCondition) 
-												{
-													satisfiable = false;
-													break;
-												}
-											}
-										}
-										if (satisfiable) {
-											toStates.put(toStateIdx, innerEntry.getValue());
-											incrementCount(inSupportAtPos,toStateIdx);
-										}
-									}
-									if (!toStates.isEmpty()) {
-										synchronized (logTransitionsAtPosition) {
-											logTransitionsAtPosition.put(fromStateIdx, toStates);
-										}
-									} else {
-										synchronized (posStateToRemove) {
-											// for each toState at the previous step (as per inSupport), if there is no logTransition from the state in this step, it should be marked for removal
-											posStateToRemove.get(prevPos).add(fromStateIdx);
-										}
-									}
-								} else {
-									synchronized (posStateToRemove) {
-										// for each toState at the previous step (as per inSupport), if there is no logTransition from the state in this step, it should be marked for removal
-										posStateToRemove.get(prevPos).add(fromStateIdx);
-									}
-								}
-
-								synchronized (fromStateIterator){
-									if (fromStateIterator.hasNext())
-										fromStateIdx = fromStateIterator.next();
-									else 
-										fromStateIdx = null;
-								}
-							}
-						}
-
-					});
-//					System.out.println("Starting new thread");
-					t.start();
-				}
-				
-				int activeThreadCount = tg.activeCount()*2;
-				Thread[] threads = new Thread[activeThreadCount];
-				tg.enumerate(threads);
-				for (int j = 0; j < activeThreadCount; j++) {
-					Thread t = threads[j];
-					if (t!=null) {
-						t.join();
-					}
-				}
-				
-				int currIdx = i-1;
-				if (DEBUG > 0) System.out.println("Pruning backward from constraints at pos " + currIdx);
-				while (currIdx > -2 && !inSupportAtPos.isEmpty()) {
-					StopWatch watch1 = new StopWatch();
-					watch1.start();
-					final int currWorkIdx = currIdx;
-					if (DEBUG > 0) System.out.println("\tRemoving states at position " + currIdx);
-					final Integer[] statesToRemoveAtPosition = posStateToRemove.get(currWorkIdx).toArray(new Integer[0]);
-					final BatchManager bm = new BatchManager();
-					tg = new ThreadGroup("all threads");
-					for (int j = 0; j < NUM_THREADS; j++) {
-						Thread t = new Thread(tg, new Runnable() {
-							@Override
-							public void run() {
-								int nextBatchEnd, nextIdx = bm.nextBatchStart(); // SYNCHRONIZATION EVERY BATCH_SIZE STEPS
-								while (nextIdx < statesToRemoveAtPosition.length) {
-									nextBatchEnd = Math.min(statesToRemoveAtPosition.length, nextIdx + BatchManager.BATCH_SIZE);
-//									System.out.println(Thread.currentThread().getName() + " pruning states with indices " + nextIdx + " to " + (nextBatchEnd-1));
-
-									while (nextIdx < nextBatchEnd) {
-									// remove states marked for removal because they result in premature terminations
-										removeState(currWorkIdx, statesToRemoveAtPosition[nextIdx++]);
-									}
-									nextIdx = bm.nextBatchStart(); // SYNCHRONIZATION EVERY BATCH_SIZE STEPS
-								}
-							}
-	
-						});
-	//					System.out.println("Starting new thread");
-						t.start();
-					}
-					
-					activeThreadCount = tg.activeCount()*2;
-					threads = new Thread[activeThreadCount];
-					tg.enumerate(threads);
-					for (int j = 0; j < activeThreadCount; j++) {
-						Thread t = threads[j];
-						if (t!=null) {
-							t.join();
-						}
-					}
-					watch1.stop();
-//					System.out.println("NUM_THREADS\tcurrIdx\tTotalStatesPruned\tTotalTime\tPruningTimePerState");
-//					System.out.println(NUM_THREADS + "\t" + currIdx + "\t" + statesToRemoveAtPosition.length + "\t" + watch1.getTime() + "\t" + (1.0*watch1.getTime()/statesToRemoveAtPosition.length));
-					currIdx--;
-				}
-
-				if(!satisfiable())
-				{
-					throw new UnsatisfiableConstraintSetException("Not satisfiable, given length constraint (no seq of length " + i + " can be made)");
-				}
-			}
-			
-		}
-		
-		if (DEBUG > 0) System.out.println("Log Normalizing...");
-		logNormalize();
+		this(model, length, constraints, SharedPool.get(), SharedPool.DEFAULT_PARALLELISM);
 	}
 
-	private void incrementCount(Map<Integer, Integer> map, Integer key) {
-		Integer value = map.get(key);
-		if(value == null)
-			map.put(key, 1);
-		else
-			map.put(key, value+1);
-	}
-	
-	private void decrementCountOrRemove(Map<Integer, Integer> map, Integer key) {
-		Integer value = map.get(key);
-		if(value == null)
-			throw new RuntimeException("Cannot decrement: not present in map");
-		else if (value > 1)
-			map.put(key, value-1);
-		else
-			map.remove(key);
+	/**
+	 * Builds the NHMM on executor, splitting the work at each position into at most parallelism tasks (the calling
+	 * thread runs one of them). The executor is not shut down, so several models can be built on one bounded pool.
+	 */
+	public SparseVariableOrderNHMMMultiThreaded(SparseVariableOrderMarkovModel<T> model, int length, List<List<ConditionedConstraint<T>>> constraints,
+			ExecutorService executor, int parallelism) throws UnsatisfiableConstraintSetException, InterruptedException {
+		// constraints are applied in parallel in the forward pass; pruning to states that can reach the final position
+		// happens before any rows are materialized
+		this(model.stateIndex, model.order, new ReachabilityNHMMBuilder<T>(model, length, constraints, executor, parallelism), executor, parallelism);
 	}
 
-	private boolean satisfiable() {
-		if (inSupport.size() == 0)
-			return (logPriors.size() > 0);
-		else
-			return inSupport.get(logTransitions.size()-1).size() > 0;
+	/**
+	 * Builds the NHMM from a support computed elsewhere (e.g., a product with an automaton built layer by layer)
+	 * over the states in stateIndex, normalizing it on the shared pool
+	 */
+	public SparseVariableOrderNHMMMultiThreaded(BidirectionalVariableOrderPrefixIDMap<T> stateIndex, int order, NHMMSupport support) throws InterruptedException {
+		this(stateIndex, order, support, SharedPool.get(), SharedPool.DEFAULT_PARALLELISM);
 	}
 
-	private void logNormalize() {
-		if (logTransitions.size() == 0) {
-			Double value;
-			//normalize only priors
-			// calculate sum for each row
-			value = Double.NEGATIVE_INFINITY;
-			for (Entry<Integer, Double> col: logPriors.entrySet()) {
-				value = MathUtils.logSum(value, col.getValue());
-			}
-			// divide each value by the sum for its row
-			for (Entry<Integer, Double> col: logPriors.entrySet()) {
-				col.setValue(col.getValue() - value);
-			}
-			
-			return;
-		}
-		
-		ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, Double>> currentMatrix = logTransitions.get(logTransitions.size()-1);
-		Map<Integer, Double> oldLogAlphas = new HashMap<Integer, Double>(currentMatrix.size());
+	public SparseVariableOrderNHMMMultiThreaded(BidirectionalVariableOrderPrefixIDMap<T> stateIndex, int order, NHMMSupport support,
+			ExecutorService executor, int parallelism) throws InterruptedException {
+		this.stateIndex = stateIndex;
+		this.order = order;
+		this.logPriors = new ConcurrentHashMap<Integer, Double>(); 
 		
-		Double value;
-		//normalize last matrix individually
-		for (Entry<Integer, ConcurrentHashMap<Integer, Double>> row: currentMatrix.entrySet()) {
-			// calculate sum for each row
-			value = Double.NEGATIVE_INFINITY;
-			for (Entry<Integer, Double> col: row.getValue().entrySet()) {
-				value = MathUtils.logSum(value, col.getValue());
-			}
-			// divide each value by the sum for its row
-			for (Entry<Integer, Double> col: row.getValue().entrySet()) {
-				col.setValue(col.getValue() - value);
-			}
-			oldLogAlphas.put(row.getKey(),value);
+		this.logTransitions = new ArrayList<ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, Double>>>(support.getPositionCount());
+
+		final BitSet priorStates = support.getPriorStates();
+		for (int priorStateIdx = priorStates.nextSetBit(0); priorStateIdx >= 0; priorStateIdx = priorStates.nextSetBit(priorStateIdx + 1)) {
+			this.logPriors.put(priorStateIdx, support.getLogPrior(priorStateIdx));
 		}
-		
-		Map<Integer, Double> newLogAlphas;
-		//propagate normalization from right to left
-		for (int i = logTransitions.size()-2; i >= 0; i--) {
-			// generate based on alphas from old previous matrix
-			currentMatrix = logTransitions.get(i);
-			newLogAlphas = new HashMap<Integer, Double>(currentMatrix.size());
-			for (Entry<Integer, ConcurrentHashMap<Integer, Double>> row: currentMatrix.entrySet()) {
-				// calculate sum for each row (new alphas; not used until next matrix)
-				value = Double.NEGATIVE_INFINITY;
-				// new val = currVal * oldAlpha
-				for (Entry<Integer, Double> col: row.getValue().entrySet()) {
-					col.setValue(col.getValue() + oldLogAlphas.get(col.getKey()));
-					value = MathUtils.logSum(value, col.getValue());
-				}
-				// normalize
-				for (Entry<Integer, Double> col: row.getValue().entrySet()) {
-					col.setValue(col.getValue() - value);
+
+		ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, Double>> logTransitionsAtPosition;
+		ConcurrentHashMap<Integer, Double> toStates = null;
+		int fromStateIdx, toStateIdx, lastFromStateIdx;
+		for (int i = 0; i < support.getPositionCount(); i++) {
+			logTransitionsAtPosition = new ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, Double>>();
+			logTransitions.add(logTransitionsAtPosition);
+
+			// surviving transitions are grouped by fromState
+			lastFromStateIdx = -1;
+			for (int j = 0; j < support.getTransitionCount(i); j++) {
+				fromStateIdx = support.getFromState(i, j);
+				if (fromStateIdx != lastFromStateIdx) {
+					toStates = new ConcurrentHashMap<Integer, Double>();
+					logTransitionsAtPosition.put(fromStateIdx, toStates);
+					lastFromStateIdx = fromStateIdx;
 				}
-				newLogAlphas.put(row.getKey(), value);
+				toStateIdx = support.getToState(i, j);
+				toStates.put(toStateIdx, support.getLogProbability(i, j));
 			}
-			
-			oldLogAlphas = newLogAlphas;
 		}
 		
-		// propagate normalization to prior		
-		double tmpSum = Double.NEGATIVE_INFINITY;
-		for (Entry<Integer,Double> row : logPriors.entrySet()) {
-			// new val = currVal * oldAlpha
-			row.setValue(row.getValue() + oldLogAlphas.get(row.getKey()));
-			tmpSum = MathUtils.logSum(tmpSum, row.getValue());
-		}
-		// normalize
-		for (Entry<Integer,Double> row : logPriors.entrySet()) {
-			row.setValue(row.getValue() - tmpSum);
-		}
+		if (DEBUG > 0) System.out.println("Log Normalizing...");
+		LogNormalizer.logNormalize(logTransitions, logPriors, stateIndex.getPrefixCount(), executor, parallelism);
+		initializeSamplers();
 	}
-	
-	/*
-	 *  set all transition probs to/from the state to zero
-	 *  decrementing the corresponding in/outSupport values
-	 *  removing states accordingly whose in/outSupport values result in 0
-	 */
-	private void removeState(int position, int stateIndex) {
-		
-		if(position == -1) {
-			this.logPriors.remove(stateIndex);
-		} else {
-			// address transitions *to* the removed state
-			ConcurrentHashMap<Integer, Double> toStates;
-			this.inSupport.get(position).remove(stateIndex);
-			
-			final ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, Double>> map = this.logTransitions.get(position);
-			Double remove;
-			for (Integer fromState : map.keySet()) {
-				toStates = map.get(fromState);
-				remove = toStates.remove(stateIndex); // state is gone: can't transition to it
-					
-				if (remove != null && toStates.isEmpty()) {
-					final Set<Integer> set = posStateToRemove.get(position-1);
-					synchronized (set) {
-						set.add(fromState);
-					}
-				}
-			}
-		}
 
-		// address transitions *from* the removed state
-		this.logTransitions.get(position+1).remove(stateIndex);
+	private void initializeSamplers() {
+		this.transitionSamplers = new ArrayList<Map<Integer, AliasTable>>(logTransitions.size());
+		for (int i = 0; i < logTransitions.size(); i++) {
+			this.transitionSamplers.add(new ConcurrentHashMap<Integer, AliasTable>());
+		}
 	}
 
 	public double probabilityOfSequence(Token[] seq) {
-	
-		double logProb = 0;
-		
 		if(seq.length == 0)
 			return Double.NaN;
 		
-		LinkedList<Token> prefix = new LinkedList<Token>();
-		
-		for (int i = 0; i < order; i++) {
-			prefix.add(seq[i]);
-		}
+		final int[] stateIDs = stateIndex.getIDsForSequence(seq);
+		return stateIDs == null ? 0. : Math.exp(logProbability(stateIDs));
+	}
+
+	/**
+	 * @param stateIDs the state at each position, starting with the prior state (see {@link BidirectionalVariableOrderPrefixIDMap#getIDsForSequence})
+	 * @return the log probability of the sequence of states (negative infinity if it is impossible)
+	 */
+	@Override
+	public double logProbability(int[] stateIDs) {
+		if(stateIDs.length == 0)
+			return Double.NaN;
 		
-		Integer toStateIdx, fromStateIdx = stateIndex.getIDForPrefix(prefix);
-		Double value = logPriors.get(fromStateIdx);
-		if (value == null) {
-			return 0.;
-		} else { 
-			logProb += value;
-		}
+		Double value = logPriors.get(stateIDs[0]);
+		if (value == null)
+			return Double.NEGATIVE_INFINITY;
+		double logProb = value;
 		
 		Map<Integer, Double> innerMap;
-		for (int i = 0; i < seq.length-order; i++) {
-			innerMap = logTransitions.get(i).get(fromStateIdx);
-			if (innerMap == null)
-				return 0.;
+		for (int i = 0; i < stateIDs.length-1; i++) {
+			if (i >= logTransitions.size())
+				return Double.NEGATIVE_INFINITY;
 
-			prefix.removeFirst();
-			prefix.addLast(seq[i+order]);
-			toStateIdx = stateIndex.getIDForPrefix(prefix);
+			innerMap = logTransitions.get(i).get(stateIDs[i]);
+			if (innerMap == null)
+				return Double.NEGATIVE_INFINITY;
 
-			value = innerMap.get(toStateIdx);
+			value = innerMap.get(stateIDs[i+1]);
 			if (value == null)
-				return 0.;
+				return Double.NEGATIVE_INFINITY;
 			
 			logProb += value;
-			fromStateIdx = toStateIdx;
 		}
 		
-		return Math.exp(logProb);
+		return logProb;
 	}
 	
 	public String toString()
@@ -479,7 +190,7 @@ public class SparseVariableOrderNHMMMultiThreaded<T extends Token> extends Abstr
 		str.append("inSupport:\n");
 		for (int i = 0; i < logTransitions.size(); i++) {
 			str.append("[");
-			for (Entry<Integer, Integer> entry: inSupport.get(i).entrySet()) {
+			for (Entry<Integer, Integer> entry: SparseVariableOrderNHMM.countInSupport(logTransitions.get(i)).entrySet()) {
 				str.append("\n\t");
 				str.append(entry.getKey());
 				str.append(" - ");
@@ -494,11 +205,16 @@ public class SparseVariableOrderNHMMMultiThreaded<T extends Token> extends Abstr
 
 	@Override
 	public List<T> generate(int length) {
-		Integer startPrefixID = sampleStartStateIdx();
+		return generate(length, new SplittableRandom(rand.nextLong()));
+	}
+
+	@Override
+	protected List<T> generate(int length, SplittableRandom random) {
+		int startPrefixID = sampleStartStateIdx(random.nextDouble());
 		if (startPrefixID == -1) {
 			throw new RuntimeException("No valid start prefix");
 		}
-		return generateWithPrefixID(length, startPrefixID);
+		return generateWithPrefixID(length, startPrefixID, random);
 	}
 		
 	public List<T> generateWithPrefix(int length, LinkedList<Token> prefix) {
@@ -510,7 +226,11 @@ public class SparseVariableOrderNHMMMultiThreaded<T extends Token> extends Abstr
 
 	}
 
-	public List<T> generateWithPrefixID(int length, Integer fromStateIdx) {
+	public List<T> generateWithPrefixID(int length, int fromStateIdx) {
+		return generateWithPrefixID(length, fromStateIdx, new SplittableRandom(rand.nextLong()));
+	}
+
+	private List<T> generateWithPrefixID(int length, int fromStateIdx, SplittableRandom random) {
 		int toStateIdx = -1;
 		T toState;
 		
@@ -519,14 +239,14 @@ public class SparseVariableOrderNHMMMultiThreaded<T extends Token> extends Abstr
 		List<T> newSeq = new ArrayList<T>();
 		
 		final Token endToken = Token.getEndToken();
-		for(Token token : stateIndex.getPrefixForID(fromStateIdx)) {
+		for(T token : stateIndex.getPrefixForID(fromStateIdx)) {
 			if (token != endToken)
-				newSeq.add((T) token);
+				newSeq.add(token);
 		}
 
 		for (int i = 0; i < length; i++) {
-			toStateIdx = sampleNextStateIdx(fromStateIdx, i);
-			toState = (T) stateIndex.getPrefixFinaleForID(toStateIdx);
+			toStateIdx = sampleNextStateIdx(fromStateIdx, i, random.nextDouble());
+			toState = stateIndex.getPrefixFinaleForID(toStateIdx);
 			
 			if(toState == endToken)
 			{
@@ -540,43 +260,64 @@ public class SparseVariableOrderNHMMMultiThreaded<T extends Token> extends Abstr
 		return newSeq;
 	}
 
-	private int sampleStartStateIdx() {
-		double randomDouble = rand.nextDouble();
-		
-		double accumulativeProbability = 0.;
-		
-		for (Entry<Integer, Double> entry : logPriors.entrySet()) {
-			accumulativeProbability += Math.exp(entry.getValue());
-			if (accumulativeProbability >= randomDouble)
-			{
-				return entry.getKey();
-			}
+	private int sampleStartStateIdx(double uniform) {
+		AliasTable sampler = priorSampler;
+		if (sampler == null) {
+			sampler = priorSampler = AliasTable.fromLogWeights(logPriors);
+			// we assume that in order to be satisfiable that there has to be some continuation and it must be the last
+			if (sampler == null) return -1;
 		}
 		
-		// we assume that in order to be satisfiable that there has to be some continuation and it must be the last
-		return -1;
+		return sampler.sample(uniform);
 	}
 	
 	// position represents essentially the fromState position
-	private int sampleNextStateIdx(int prevStateIdx, int position) {
-		double randomDouble = rand.nextDouble();
-		
-		double accumulativeProbability = 0.;
-		
-		Map<Integer, Double> transForPrevState = logTransitions.get(position).get(prevStateIdx);
-		if (transForPrevState != null) {
-			for (Entry<Integer, Double> entry : transForPrevState.entrySet()) {
-				accumulativeProbability += Math.exp(entry.getValue());
-				if (accumulativeProbability >= randomDouble)
-				{
-					return entry.getKey();
-				}
-			}
+	private int sampleNextStateIdx(int prevStateIdx, int position, double uniform) {
+		final Map<Integer, AliasTable> samplersAtPosition = transitionSamplers.get(position);
+		AliasTable sampler = samplersAtPosition.get(prevStateIdx);
+		if (sampler == null) {
+			sampler = AliasTable.fromLogWeights(logTransitions.get(position).get(prevStateIdx));
+			if (sampler == null) return -1;
+			samplersAtPosition.put(prevStateIdx, sampler);
 		}
 		
-		return -1;
+		return sampler.sample(uniform);
 	}
 	
+	/**
+	 * @return the most probable sequence of the model (with at most length tokens after the initial prefix), found
+	 * by Viterbi decoding, or null if there is none
+	 */
+	public List<T> mostProbable(int length) {
+		return NHMMSequences.mostProbable(logTransitions, logPriors, stateIndex, length);
+	}
+
+	/**
+	 * @return the (at most) k most probable sequences of the model in order of decreasing probability (see {@link KBestDecoder})
+	 */
+	public List<List<T>> topK(int length, int k) {
+		return NHMMSequences.topK(logTransitions, logPriors, stateIndex, length, k);
+	}
+
+	/**
+	 * @return the sequences of the model (with at most length tokens after the initial prefix) in random order and
+	 * without repeats: each is drawn as by generate but with the probability of those already returned removed
+	 * (see {@link DistinctPathSampler}). The iterator ends once every sequence has been returned.
+	 */
+	public Iterator<List<T>> distinctSequences(int length, long seed) {
+		return NHMMSequences.distinctSequences(logTransitions, logPriors, stateIndex, new NHMMSequences.Sampler() {
+			@Override
+			public int sampleStartStateIdx(double uniform) {
+				return SparseVariableOrderNHMMMultiThreaded.this.sampleStartStateIdx(uniform);
+			}
+
+			@Override
+			public int sampleNextStateIdx(int fromStateIdx, int position, double uniform) {
+				return SparseVariableOrderNHMMMultiThreaded.this.sampleNextStateIdx(fromStateIdx, position, uniform);
+			}
+		}, length, seed);
+	}
+
 	public int length() {
 		return logTransitions.size();
 	}
@@ -0,0 +1,128 @@
+package dbtb.markov;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import dbtb.constraint.ConditionedConstraint;
+import dbtb.constraint.Constraint;
+import dbtb.constraint.StateConstraint;
+import dbtb.constraint.TransitionalConstraint;
+
+/**
+ * The state constraints at each position of an NHMM compiled into a single BitSet of the state IDs that satisfy
+ * all of them, so that applying them while building the NHMM is a bit test per transition.
+ *
+ * A state constraint is applied at a position to one token of a state: token i of a prior state for positions
+ * i < order, and the last token of the to-state for later positions. Each distinct (constraint, token index) pair
+ * is evaluated once for every state in the index, so a constraint instance shared by several positions (or
+ * negated at some) is only evaluated once per state.
+ */
+public class StateConstraintMasks<T extends Token> {
+
+	private static final int MIN_STATES_PER_TASK = 4096;
+
+	private final BidirectionalVariableOrderPrefixIDMap<T> stateIndex;
+	private final int stateCount;
+	private final int order;
+	private final List<BitSet> masks;
+	private final Map<Constraint<T>, Map<Integer, BitSet>> satisfyingStates = new IdentityHashMap<Constraint<T>, Map<Integer, BitSet>>();
+
+	public StateConstraintMasks(BidirectionalVariableOrderPrefixIDMap<T> stateIndex, int order, List<List<ConditionedConstraint<T>>> constraints) {
+		this.stateIndex = stateIndex;
+		this.stateCount = stateIndex.getPrefixCount();
+		this.order = order;
+		this.masks = new ArrayList<BitSet>(constraints.size());
+		try {
+			compile(constraints, null, 1);
+		} catch (InterruptedException e) {
+			// cannot happen without an executor
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param executor if non-null, each (constraint, token index) pair is evaluated over the states in up to parallelism tasks
+	 */
+	public StateConstraintMasks(BidirectionalVariableOrderPrefixIDMap<T> stateIndex, int order, List<List<ConditionedConstraint<T>>> constraints,
+			ExecutorService executor, int parallelism) throws InterruptedException {
+		this.stateIndex = stateIndex;
+		this.stateCount = stateIndex.getPrefixCount();
+		this.order = order;
+		this.masks = new ArrayList<BitSet>(constraints.size());
+		compile(constraints, executor, Math.max(1, parallelism));
+	}
+
+	/**
+	 * @return the states satisfying every state constraint at position, or null if there are none
+	 */
+	public BitSet getMask(int position) {
+		return masks.get(position);
+	}
+
+	private void compile(List<List<ConditionedConstraint<T>>> constraints, ExecutorService executor, int parallelism) throws InterruptedException {
+		BitSet mask, satisfying;
+		Constraint<T> constraint;
+		for (int position = 0; position < constraints.size(); position++) {
+			mask = null;
+			for (ConditionedConstraint<T> conditionedConstraint : constraints.get(position)) {
+				constraint = conditionedConstraint.getConstraint();
+				if (constraint instanceof TransitionalConstraint) {
+					if (position < order) {
+						// this could change, but for now dynamic constraints are designed to take a fromToken and a toToken.
+						// the change would require constraints to be placed solely on one token...
+						throw new RuntimeException("Can't have dynamic constaints on position before order length");
+					}
+					continue;
+				}
+
+				satisfying = getSatisfyingStates((StateConstraint<T>) constraint, Math.min(position, order - 1), executor, parallelism);
+				if (mask == null) {
+					mask = new BitSet(stateCount);
+					mask.set(0, stateCount);
+				}
+				if (conditionedConstraint.getDesiredConditionState()) {
+					mask.and(satisfying);
+				} else {
+					mask.andNot(satisfying);
+				}
+			}
+			masks.add(mask);
+		}
+	}
+
+	private BitSet getSatisfyingStates(final StateConstraint<T> constraint, final int tokenIdx, ExecutorService executor, int parallelism) throws InterruptedException {
+		Map<Integer, BitSet> byTokenIdx = satisfyingStates.get(constraint);
+		if (byTokenIdx == null) {
+			byTokenIdx = new HashMap<Integer, BitSet>();
+			satisfyingStates.put(constraint, byTokenIdx);
+		}
+		BitSet satisfying = byTokenIdx.get(tokenIdx);
+		if (satisfying != null) return satisfying;
+
+		final List<BitSet> chunks = Chunks.run(stateCount, executor, parallelism, MIN_STATES_PER_TASK, new Chunks.Chunk<BitSet>() {
+			@Override
+			public BitSet run(int start, int end) {
+				final BitSet satisfyingInChunk = new BitSet(end);
+				final BidirectionalVariableOrderPrefixIDMap<T>.PrefixWindow state = stateIndex.newWindow();
+				for (int stateIdx = start; stateIdx < end; stateIdx++) {
+					if (constraint.isSatisfiedBy(state.moveTo(stateIdx), tokenIdx)) {
+						satisfyingInChunk.set(stateIdx);
+					}
+				}
+				return satisfyingInChunk;
+			}
+		});
+		satisfying = chunks.get(0);
+		for (int t = 1; t < chunks.size(); t++) {
+			satisfying.or(chunks.get(t));
+		}
+
+		byTokenIdx.put(tokenIdx, satisfying);
+		return satisfying;
+	}
+}
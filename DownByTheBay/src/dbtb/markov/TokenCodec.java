@@ -0,0 +1,16 @@
+package dbtb.markov;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Reads and writes tokens of a given type for the token dictionary of a {@link ModelSnapshot}.
+ * read must return a token equal to the one written.
+ */
+public interface TokenCodec<T extends Token> {
+
+	public void write(T token, DataOutput out) throws IOException;
+
+	public T read(DataInput in) throws IOException;
+}
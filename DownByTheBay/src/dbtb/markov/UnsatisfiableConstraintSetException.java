@@ -2,8 +2,22 @@ package dbtb.markov;
 
 public class UnsatisfiableConstraintSetException extends Exception {
 
+	private final int position;
+
 	public UnsatisfiableConstraintSetException(String string) {
+		this(string, -1);
+	}
+
+	public UnsatisfiableConstraintSetException(String string, int position) {
 		super(string);
+		this.position = position;
+	}
+
+	/**
+	 * @return the first position (transition index) at which no state satisfying the constraints is reachable, or -1 if unknown
+	 */
+	public int getPosition() {
+		return position;
 	}
 
 }
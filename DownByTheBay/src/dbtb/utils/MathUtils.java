@@ -9,4 +9,24 @@ public class MathUtils {
 		else
 			return Double.NEGATIVE_INFINITY;
 	}
+
+	/**
+	 * @return the log of the sum of the exponentials of logValues[from..to), computed as max + log(sum(exp(x - max)))
+	 * so that there is one exp per value and a single log, and no overflow or underflow for values of large magnitude
+	 */
+	public static double logSumExp(double[] logValues, int from, int to) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = from; i < to; i++) {
+			if (logValues[i] > max)
+				max = logValues[i];
+		}
+		if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY)
+			return max;
+
+		double sum = 0.;
+		for (int i = from; i < to; i++) {
+			sum += Math.exp(logValues[i] - max);
+		}
+		return max + Math.log(sum);
+	}
 }
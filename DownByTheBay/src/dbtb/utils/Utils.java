@@ -139,7 +139,7 @@ public class Utils {
 			map2d.put(key1, map1d);
 		} else { // seen prev state
 			Double count = map1d.get(key2);
-			map1d.put(key2, count == null ? 1 : count + incrementAmount);
+			map1d.put(key2, count == null ? incrementAmount : count + incrementAmount);
 		}		
 	}
 
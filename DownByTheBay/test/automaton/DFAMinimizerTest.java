@@ -0,0 +1,146 @@
+package automaton;
+
+import static dbtb.markov.TestModels.check;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken;
+import dbtb.utils.Utils;
+
+/**
+ * A minimized DFA must accept the same sequences as the original, with no two states that accept the same suffixes
+ */
+public class DFAMinimizerTest {
+
+	private static final int MAX_WORD_LENGTH = 7;
+
+	public static void main(String[] args) {
+		checkTrie();
+		for (int trial = 0; trial < 200; trial++) {
+			checkRandom(new Random(trial));
+		}
+		System.out.println("DFAMinimizerTest passed");
+	}
+
+	/**
+	 * The trie of {ab, cb} has five states, but the two b transitions and the two accepting states are equivalent
+	 */
+	private static void checkTrie() {
+		final Map<Integer, Map<Integer, Integer>> delta = new HashMap<Integer, Map<Integer, Integer>>();
+		Utils.setValueForKeys(delta, 0, 0, 1);
+		Utils.setValueForKeys(delta, 0, 2, 2);
+		Utils.setValueForKeys(delta, 1, 1, 3);
+		Utils.setValueForKeys(delta, 2, 1, 4);
+		final Set<Integer> acceptingStates = new HashSet<Integer>();
+		acceptingStates.add(3);
+		acceptingStates.add(4);
+
+		final Automaton<CharacterToken> minimized = DFAMinimizer.minimize(new Automaton<CharacterToken>(null, delta, acceptingStates));
+		check(states(minimized).size() == 3, "the trie of {ab, cb} minimizes to three states");
+		check(accepts(minimized, new int[]{0, 1}) && accepts(minimized, new int[]{2, 1}), "ab and cb are still accepted");
+		check(!accepts(minimized, new int[]{0}) && !accepts(minimized, new int[]{1, 1}), "a and bb are still rejected");
+	}
+
+	private static void checkRandom(Random random) {
+		final int labelCount = 2 + random.nextInt(2), stateCount = 2 + random.nextInt(25);
+		// state IDs need not be contiguous, but q0 is 0
+		final int[] ids = new int[stateCount];
+		for (int i = 1; i < stateCount; i++) {
+			ids[i] = 1000 + i * 7;
+		}
+		final Map<Integer, Map<Integer, Integer>> delta = new HashMap<Integer, Map<Integer, Integer>>();
+		final Set<Integer> acceptingStates = new HashSet<Integer>();
+		for (int i = 0; i < stateCount; i++) {
+			for (int label = 0; label < labelCount; label++) {
+				if (random.nextInt(10) < 6) {
+					Utils.setValueForKeys(delta, ids[i], label, ids[random.nextInt(stateCount)]);
+				}
+			}
+			if (random.nextInt(4) == 0) {
+				acceptingStates.add(ids[i]);
+			}
+		}
+
+		final Automaton<CharacterToken> automaton = new Automaton<CharacterToken>(null, delta, acceptingStates);
+		final Automaton<CharacterToken> minimized = DFAMinimizer.minimize(automaton);
+		check(minimized.delta.isEmpty() || minimized.delta.containsKey(0), "q0 is state 0");
+
+		final int[] word = new int[MAX_WORD_LENGTH];
+		for (int length = 0; length <= MAX_WORD_LENGTH; length++) {
+			for (int w = 0; w < Math.pow(labelCount, length); w++) {
+				int v = w;
+				for (int i = 0; i < length; i++) {
+					word[i] = v % labelCount;
+					v /= labelCount;
+				}
+				final int[] prefix = Arrays.copyOf(word, length);
+				check(accepts(automaton, prefix) == accepts(minimized, prefix), "the same sequences are accepted");
+			}
+		}
+
+		check(mooreClassCount(minimized, labelCount) == states(minimized).size(), "no two states are equivalent");
+		check(states(DFAMinimizer.minimize(minimized)).size() == states(minimized).size(), "minimizing again changes nothing");
+	}
+
+	private static boolean accepts(Automaton<?> automaton, int[] word) {
+		Integer q = 0;
+		Map<Integer, Integer> transitions;
+		for (int label : word) {
+			transitions = automaton.delta.get(q);
+			if (transitions == null) return false;
+			q = transitions.get(label);
+			if (q == null) return false;
+		}
+		return automaton.acceptingStates.contains(q);
+	}
+
+	private static Set<Integer> states(Automaton<?> automaton) {
+		final Set<Integer> states = new HashSet<Integer>(automaton.delta.keySet());
+		for (Map<Integer, Integer> transitions : automaton.delta.values()) {
+			states.addAll(transitions.values());
+		}
+		states.addAll(automaton.acceptingStates);
+		return states;
+	}
+
+	/**
+	 * @return the number of classes of states that accept the same suffixes, found by Moore's refinement
+	 */
+	private static int mooreClassCount(Automaton<?> automaton, int labelCount) {
+		final List<Integer> states = new ArrayList<Integer>(states(automaton));
+		Map<Integer, Integer> classes = new HashMap<Integer, Integer>();
+		for (Integer q : states) {
+			classes.put(q, automaton.acceptingStates.contains(q) ? 1 : 0);
+		}
+		int classCount = -1;
+		while (true) {
+			final Map<List<Integer>, Integer> signatures = new HashMap<List<Integer>, Integer>();
+			final Map<Integer, Integer> refined = new HashMap<Integer, Integer>();
+			for (Integer q : states) {
+				final List<Integer> signature = new ArrayList<Integer>();
+				signature.add(classes.get(q));
+				final Map<Integer, Integer> transitions = automaton.delta.get(q);
+				for (int label = 0; label < labelCount; label++) {
+					final Integer to = transitions == null ? null : transitions.get(label);
+					signature.add(to == null ? -1 : classes.get(to));
+				}
+				Integer c = signatures.get(signature);
+				if (c == null) {
+					c = signatures.size();
+					signatures.put(signature, c);
+				}
+				refined.put(q, c);
+			}
+			classes = refined;
+			if (signatures.size() == classCount) return classCount;
+			classCount = signatures.size();
+		}
+	}
+}
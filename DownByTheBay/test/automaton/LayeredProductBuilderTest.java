@@ -0,0 +1,183 @@
+package automaton;
+
+import static dbtb.markov.TestModels.check;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+
+import automaton.RegularConstraintApplier.StateToken;
+import dbtb.constraint.ConditionedConstraint;
+import dbtb.constraint.StateConstraint;
+import dbtb.markov.SparseVariableOrderMarkovModel;
+import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken;
+import dbtb.markov.SparseVariableOrderNHMMMultiThreaded;
+import dbtb.markov.TestModels;
+import dbtb.markov.Token;
+import dbtb.markov.UnsatisfiableConstraintSetException;
+import dbtb.utils.Utils;
+
+/**
+ * The NHMM built over the product of a model and an automaton must give each sequence the automaton accepts its
+ * probability under the model, renormalized over the accepted sequences that satisfy the constraints, as found by
+ * enumerating every sequence of the model
+ */
+public class LayeredProductBuilderTest {
+
+	public static void main(String[] args) throws UnsatisfiableConstraintSetException, InterruptedException {
+		final Random random = new Random(6);
+		int compared = 0;
+		for (int trial = 0; trial < 80; trial++) {
+			final int order = 1 + trial % 2;
+			final SparseVariableOrderMarkovModel<CharacterToken> model = TestModels.randomModel(random, 2 + random.nextInt(order == 1 ? 4 : 2), 1 + random.nextInt(3), order);
+			if (trial % 4 >= 2) {
+				model.freeze();
+			}
+			final int length = order + 1 + random.nextInt(3);
+			final Automaton<CharacterToken> automaton = randomAutomaton(random, model);
+			final char forbidden = trial % 8 >= 4 ? (char) ('a' + random.nextInt(2)) : 0;
+			if (checkProduct(model, automaton, length, forbidden == 0 ? -1 : random.nextInt(length), forbidden)) {
+				compared++;
+			}
+		}
+		check(compared > 30, "most products have accepted sequences");
+		System.out.println("LayeredProductBuilderTest passed");
+	}
+
+	/**
+	 * @return an automaton reading the model's state IDs, with transitions on most labels and some accepting states
+	 */
+	private static Automaton<CharacterToken> randomAutomaton(Random random, SparseVariableOrderMarkovModel<CharacterToken> model) {
+		final int stateCount = 1 + random.nextInt(4);
+		final Map<Integer, Map<Integer, Integer>> delta = new HashMap<Integer, Map<Integer, Integer>>();
+		final Set<Integer> acceptingStates = new HashSet<Integer>();
+		for (int q = 0; q < stateCount; q++) {
+			for (int label = 0; label < model.stateIndex.getPrefixCount(); label++) {
+				if (random.nextInt(10) < 7) {
+					Utils.setValueForKeys(delta, q, label, random.nextInt(stateCount));
+				}
+			}
+			if (random.nextInt(3) > 0) {
+				acceptingStates.add(q);
+			}
+		}
+		return new Automaton<CharacterToken>(model.stateIndex, delta, acceptingStates);
+	}
+
+	/**
+	 * @param constrainedPosition the position whose token must not be forbidden, or -1 for no constraint
+	 * @return false if no sequence is accepted (which the builder must agree on)
+	 */
+	private static boolean checkProduct(SparseVariableOrderMarkovModel<CharacterToken> model, Automaton<CharacterToken> automaton, int length,
+			final int constrainedPosition, final char forbidden) throws InterruptedException {
+		final List<List<ConditionedConstraint<StateToken<CharacterToken>>>> constraints = new ArrayList<List<ConditionedConstraint<StateToken<CharacterToken>>>>();
+		for (int i = 0; i < length; i++) {
+			constraints.add(new ArrayList<ConditionedConstraint<StateToken<CharacterToken>>>());
+		}
+		if (constrainedPosition >= 0) {
+			constraints.get(constrainedPosition).add(new ConditionedConstraint<StateToken<CharacterToken>>(new StateConstraint<StateToken<CharacterToken>>() {
+				@Override
+				public boolean isSatisfiedBy(LinkedList<StateToken<CharacterToken>> state, int i) {
+					return state.get(i).token.c != forbidden;
+				}
+			}));
+		}
+
+		// every sequence of the model, with the automaton state after each of its states
+		final Map<List<StateToken<CharacterToken>>, Double> expected = new HashMap<List<StateToken<CharacterToken>>, Double>();
+		final Map<List<StateToken<CharacterToken>>, List<LinkedList<StateToken<CharacterToken>>>> productStates = new HashMap<List<StateToken<CharacterToken>>, List<LinkedList<StateToken<CharacterToken>>>>();
+		for (Entry<Integer, Double> prior : model.logPriors.entrySet()) {
+			final Integer q = automaton.delta.containsKey(0) ? automaton.delta.get(0).get(prior.getKey()) : null;
+			if (q == null) continue;
+			final List<StateToken<CharacterToken>> sequence = new ArrayList<StateToken<CharacterToken>>();
+			final List<LinkedList<StateToken<CharacterToken>>> states = new ArrayList<LinkedList<StateToken<CharacterToken>>>();
+			states.add(RegularConstraintApplier.createStateTokenPrefix(model.stateIndex.getPrefixForID(prior.getKey()), q));
+			sequence.addAll(states.get(0));
+			enumerate(model, automaton, prior.getKey(), q, prior.getValue(), length, sequence, states, expected, productStates);
+		}
+		final List<Double> ranked = new ArrayList<Double>();
+		double total = 0;
+		for (Entry<List<StateToken<CharacterToken>>, Double> entry : expected.entrySet()) {
+			if (constrainedPosition < 0 || entry.getKey().get(constrainedPosition).token.c != forbidden) {
+				ranked.add(entry.getValue());
+				total += entry.getValue();
+			}
+		}
+		Collections.sort(ranked, Collections.reverseOrder());
+
+		final LayeredProductBuilder<CharacterToken> builder;
+		try {
+			builder = new LayeredProductBuilder<CharacterToken>(model, automaton, length, constraints);
+		} catch (UnsatisfiableConstraintSetException e) {
+			check(ranked.isEmpty(), "a product is only unsatisfiable if no sequence is accepted");
+			return false;
+		}
+		check(!ranked.isEmpty(), "a satisfiable product accepts some sequence");
+		final SparseVariableOrderNHMMMultiThreaded<StateToken<CharacterToken>> nhmm = new SparseVariableOrderNHMMMultiThreaded<StateToken<CharacterToken>>(builder.getStateIndex(),
+				model.stateIndex.getOrder(), builder);
+
+		// with order > 1 the tokens of a product state share one automaton state, so sequences of product states are
+		// looked up by the states themselves rather than by sliding over the tokens
+		for (Entry<List<StateToken<CharacterToken>>, Double> entry : expected.entrySet()) {
+			final boolean satisfied = constrainedPosition < 0 || entry.getKey().get(constrainedPosition).token.c != forbidden;
+			final double probability = satisfied ? entry.getValue() / total : 0.;
+			final double actual = Math.exp(nhmm.logProbability(stateIDs(builder, productStates.get(entry.getKey()))));
+			check(Math.abs(actual - probability) < 1e-9, "sequence " + entry.getKey() + " has probability " + actual + ", expected " + probability);
+		}
+
+		final List<List<StateToken<CharacterToken>>> topK = nhmm.topK(length, ranked.size() + 1);
+		check(topK.size() == ranked.size(), "topK returns every accepted sequence and no others");
+		for (int rank = 0; rank < topK.size(); rank++) {
+			final Double probability = expected.get(topK.get(rank));
+			check(probability != null, "sequence " + rank + " of topK is accepted");
+			check(Math.abs(probability - ranked.get(rank)) < 1e-9 * total, "sequence " + rank + " of topK is the " + rank + "-th most probable");
+		}
+		return true;
+	}
+
+	/**
+	 * @return the ID of each product state, or -1 for those the builder did not create
+	 */
+	private static int[] stateIDs(LayeredProductBuilder<CharacterToken> builder, List<LinkedList<StateToken<CharacterToken>>> states) {
+		final int[] stateIDs = new int[states.size()];
+		for (int i = 0; i < stateIDs.length; i++) {
+			final Integer stateID = builder.getStateIndex().getIDForPrefix(new LinkedList<Token>(states.get(i)));
+			stateIDs[i] = stateID == null ? -1 : stateID;
+		}
+		return stateIDs;
+	}
+
+	/**
+	 * Extends sequence (ending in model state stateIdx, read into automaton state q) to length tokens, recording the
+	 * probability of each full sequence that ends in an accepting state
+	 */
+	private static void enumerate(SparseVariableOrderMarkovModel<CharacterToken> model, Automaton<CharacterToken> automaton, int stateIdx, int q, double logProbability, int length,
+			List<StateToken<CharacterToken>> sequence, List<LinkedList<StateToken<CharacterToken>>> states, Map<List<StateToken<CharacterToken>>, Double> probabilities,
+			Map<List<StateToken<CharacterToken>>, List<LinkedList<StateToken<CharacterToken>>>> productStates) {
+		if (sequence.size() == length) {
+			if (automaton.acceptingStates.contains(q)) {
+				probabilities.put(new ArrayList<StateToken<CharacterToken>>(sequence), Math.exp(logProbability));
+				productStates.put(new ArrayList<StateToken<CharacterToken>>(sequence), new ArrayList<LinkedList<StateToken<CharacterToken>>>(states));
+			}
+			return;
+		}
+		final Map<Integer, Integer> automatonTransitions = automaton.delta.get(q);
+		if (automatonTransitions == null) return;
+		for (Entry<Integer, Double> transition : model.logTransitions.get(stateIdx).entrySet()) {
+			final Integer qTo = automatonTransitions.get(transition.getKey());
+			if (qTo == null) continue;
+			sequence.add(new StateToken<CharacterToken>(model.stateIndex.getPrefixFinaleForID(transition.getKey()), qTo));
+			states.add(RegularConstraintApplier.createStateTokenPrefix(model.stateIndex.getPrefixForID(transition.getKey()), qTo));
+			enumerate(model, automaton, transition.getKey(), qTo, logProbability + transition.getValue(), length, sequence, states, probabilities, productStates);
+			sequence.remove(sequence.size() - 1);
+			states.remove(states.size() - 1);
+		}
+	}
+}
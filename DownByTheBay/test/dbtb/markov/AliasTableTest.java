@@ -0,0 +1,107 @@
+package dbtb.markov;
+
+import static dbtb.markov.TestModels.check;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken;
+
+/**
+ * Alias tables must sample exactly the distribution of their weights, and models sampling from them must generate
+ * sequences with the model's probabilities
+ */
+public class AliasTableTest {
+
+	private static final int GRID_POINTS_PER_BUCKET = 100000;
+
+	public static void main(String[] args) {
+		final Random random = new Random(2);
+		checkTable(new double[]{0.});
+		checkTable(new double[]{Math.log(.5), Math.log(.25), Math.log(.25)});
+		checkTable(new double[]{-1000., -1000.5, Double.NEGATIVE_INFINITY, -1001.});
+		for (int trial = 0; trial < 50; trial++) {
+			final double[] logWeights = new double[1 + random.nextInt(30)];
+			for (int i = 0; i < logWeights.length; i++) {
+				logWeights[i] = random.nextInt(5) == 0 ? Math.log(random.nextDouble() * 1e-6) : Math.log(random.nextDouble());
+			}
+			checkTable(logWeights);
+		}
+
+		final SparseVariableOrderMarkovModel<CharacterToken> model = TestModels.randomModel(random, 6, 3);
+		checkGeneratedPairs(model, 3);
+		model.freeze();
+		checkGeneratedPairs(model, 3);
+		System.out.println("AliasTableTest passed");
+	}
+
+	/**
+	 * Sweeps the uniform value over an evenly spaced grid, so that each outcome's share of the grid is its
+	 * probability of being sampled, up to the grid's resolution
+	 */
+	private static void checkTable(double[] logWeights) {
+		final int n = logWeights.length;
+		final int[] outcomes = new int[n];
+		double max = Double.NEGATIVE_INFINITY, sum = 0;
+		for (int i = 0; i < n; i++) {
+			outcomes[i] = 10 * i + 7;
+			max = Math.max(max, logWeights[i]);
+		}
+		for (int i = 0; i < n; i++) {
+			sum += Math.exp(logWeights[i] - max);
+		}
+
+		final AliasTable table = new AliasTable(outcomes, logWeights);
+		final Map<Integer, Integer> hits = new HashMap<Integer, Integer>();
+		final int points = n * GRID_POINTS_PER_BUCKET;
+		for (int j = 0; j < points; j++) {
+			final int outcome = table.sample((j + .5) / points);
+			final Integer count = hits.get(outcome);
+			hits.put(outcome, count == null ? 1 : count + 1);
+		}
+
+		for (int i = 0; i < n; i++) {
+			final Integer count = hits.remove(outcomes[i]);
+			final double share = count == null ? 0. : (double) count / points;
+			final double expected = Math.exp(logWeights[i] - max) / sum;
+			check(Math.abs(share - expected) <= 2. / GRID_POINTS_PER_BUCKET, "outcome " + i + " of " + n + " has share " + share + ", expected " + expected);
+		}
+		check(hits.isEmpty(), "only the table's outcomes are sampled");
+		check(table.sample(0.) >= 0 && table.sample(Math.nextDown(1.)) >= 0, "the ends of [0,1) can be sampled");
+	}
+
+	/**
+	 * Compares the frequency of each generated sequence of two states with its probability under the model. Draws are
+	 * from a fixed seed, so the check is deterministic; the tolerance is several standard deviations.
+	 */
+	private static void checkGeneratedPairs(SparseVariableOrderMarkovModel<CharacterToken> model, long seed) {
+		final int draws = 200000;
+		final SplittableRandom random = new SplittableRandom(seed);
+		final Map<Long, Integer> counts = new HashMap<Long, Integer>();
+		for (int d = 0; d < draws; d++) {
+			final List<CharacterToken> sequence = model.generate(2, random);
+			check(sequence.size() == 2, "sequences have the requested length");
+			final int[] stateIDs = model.stateIndex.getIDsForSequence(sequence.toArray(new Token[0]));
+			final long key = ((long) stateIDs[0] << 32) | stateIDs[1];
+			final Integer count = counts.get(key);
+			counts.put(key, count == null ? 1 : count + 1);
+		}
+
+		double total = 0;
+		for (int from = 0; from < model.stateIndex.getPrefixCount(); from++) {
+			for (Map.Entry<Integer, Double> transition : model.logTransitions.get(from).entrySet()) {
+				final double expected = Math.exp(model.logProbability(new int[]{from, transition.getKey()}));
+				final Integer count = counts.remove(((long) from << 32) | transition.getKey());
+				final double frequency = count == null ? 0. : (double) count / draws;
+				check(Math.abs(frequency - expected) <= 5 * Math.sqrt(expected * (1 - expected) / draws) + 1e-9,
+						"pair (" + from + ", " + transition.getKey() + ") has frequency " + frequency + ", expected " + expected);
+				total += expected;
+			}
+		}
+		check(Math.abs(total - 1) < 1e-9, "pair probabilities sum to 1");
+		check(counts.isEmpty(), "only possible pairs are generated");
+	}
+}
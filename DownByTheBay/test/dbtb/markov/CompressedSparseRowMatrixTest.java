@@ -0,0 +1,88 @@
+package dbtb.markov;
+
+import static dbtb.markov.TestModels.check;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken;
+
+/**
+ * Freezing a model must not change any transition or the score of any sequence
+ */
+public class CompressedSparseRowMatrixTest {
+
+	public static void main(String[] args) {
+		final Random random = new Random(1);
+		for (int trial = 0; trial < 20; trial++) {
+			checkFreezeKeepsEntries(random, 5 + random.nextInt(40), 1 + random.nextInt(8));
+		}
+		checkReducedStorage(random);
+		System.out.println("CompressedSparseRowMatrixTest passed");
+	}
+
+	private static void checkFreezeKeepsEntries(Random random, int stateCount, int rowSize) {
+		final SparseVariableOrderMarkovModel<CharacterToken> model = TestModels.randomModel(random, stateCount, rowSize);
+		final Map<Integer, Map<Integer, Double>> before = copy(model.logTransitions);
+		final List<int[]> sequences = TestModels.randomStateIDSequences(random, model, 6, 200);
+		final double[] scoresBefore = model.logProbabilities(sequences);
+
+		model.freeze();
+		check(model.isFrozen(), "model is frozen");
+		final CompressedSparseRowMatrix matrix = model.getFrozenLogTransitions();
+
+		int nonZeroCount = 0;
+		for (int row = 0; row < stateCount; row++) {
+			final Map<Integer, Double> expected = before.get(row);
+			check(matrix.rowSize(row) == (expected == null ? 0 : expected.size()), "row " + row + " has the same size");
+			for (int k = matrix.rowStart(row); k < matrix.rowEnd(row); k++) {
+				if (k > matrix.rowStart(row)) {
+					check(matrix.columnAt(k - 1) < matrix.columnAt(k), "columns of row " + row + " are sorted");
+				}
+				check(expected.get(matrix.columnAt(k)) == matrix.valueAt(k), "value of (" + row + ", " + matrix.columnAt(k) + ") is kept");
+			}
+			for (int column = 0; column < stateCount; column++) {
+				final boolean present = expected != null && expected.containsKey(column);
+				check((matrix.indexOf(row, column) != -1) == present, "(" + row + ", " + column + ") is found iff it was present");
+				check((model.logTransitions.get(row) != null && model.logTransitions.get(row).containsKey(column)) == present, "map view agrees on (" + row + ", " + column + ")");
+			}
+			nonZeroCount += matrix.rowSize(row);
+		}
+		check(nonZeroCount == matrix.getNonZeroCount(), "no entries are added");
+
+		final double[] scoresAfter = model.logProbabilities(sequences);
+		for (int i = 0; i < scoresBefore.length; i++) {
+			check(Double.compare(scoresBefore[i], scoresAfter[i]) == 0, "sequence " + i + " scores the same after freezing");
+		}
+	}
+
+	private static void checkReducedStorage(Random random) {
+		final SparseVariableOrderMarkovModel<CharacterToken> model = TestModels.randomModel(random, 200, 30);
+		model.freeze();
+		final CompressedSparseRowMatrix exact = model.getFrozenLogTransitions();
+		double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		for (int k = 0; k < exact.getNonZeroCount(); k++) {
+			min = Math.min(min, exact.valueAt(k));
+			max = Math.max(max, exact.valueAt(k));
+		}
+
+		final CompressedSparseRowMatrix floats = exact.withStorage(CompressedSparseRowMatrix.Storage.FLOAT);
+		final CompressedSparseRowMatrix quantized = exact.withStorage(CompressedSparseRowMatrix.Storage.QUANTIZED_16);
+		for (int k = 0; k < exact.getNonZeroCount(); k++) {
+			check(floats.valueAt(k) == (float) exact.valueAt(k), "float value " + k + " is the rounded double");
+			check(Math.abs(quantized.valueAt(k) - exact.valueAt(k)) <= (max - min) / 131070 + 1e-12, "quantized value " + k + " is within the documented bound");
+			check(floats.columnAt(k) == exact.columnAt(k) && quantized.columnAt(k) == exact.columnAt(k), "columns are shared");
+		}
+	}
+
+	private static Map<Integer, Map<Integer, Double>> copy(Map<Integer, Map<Integer, Double>> rows) {
+		final Map<Integer, Map<Integer, Double>> copy = new HashMap<Integer, Map<Integer, Double>>();
+		for (Entry<Integer, Map<Integer, Double>> row : rows.entrySet()) {
+			copy.put(row.getKey(), new HashMap<Integer, Double>(row.getValue()));
+		}
+		return copy;
+	}
+}
@@ -0,0 +1,182 @@
+package dbtb.markov;
+
+import static dbtb.markov.TestModels.check;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+import dbtb.constraint.ConditionedConstraint;
+import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken;
+
+/**
+ * Drawing distinct sequences from an NHMM must return every sequence exactly once (including those that end early in
+ * the end token) and then stop, and its first draw must follow the distribution of generate
+ */
+public class DistinctPathSamplerTest {
+
+	public static void main(String[] args) throws UnsatisfiableConstraintSetException, InterruptedException {
+		final Random random = new Random(7);
+		for (int trial = 0; trial < 20; trial++) {
+			final SparseVariableOrderMarkovModel<Token> model = trial % 2 == 0 ? modelWithEndToken(random, 2 + random.nextInt(3)) : withTokenType(TestModels.randomModel(random, 2 + random.nextInt(4), 1 + random.nextInt(3)));
+			final int length = 2 + random.nextInt(4);
+			final Map<List<Token>, Double> expected = sequences(model, length);
+			if (trial % 2 == 0) {
+				check(hasShorterSequence(expected, length), "some sequences end early in the end token");
+			}
+			checkDrained(new SparseVariableOrderNHMM<Token>(model, length, noConstraints(length)).distinctSequences(length, random.nextLong()), expected);
+			checkDrained(new SparseVariableOrderNHMMMultiThreaded<Token>(model, length, noConstraints(length)).distinctSequences(length, random.nextLong()), expected);
+		}
+
+		final SparseVariableOrderMarkovModel<Token> model = modelWithEndToken(random, 3);
+		final SparseVariableOrderNHMM<Token> nhmm = new SparseVariableOrderNHMM<Token>(model, 4, noConstraints(4));
+		checkFirstDraws(nhmm, sequences(model, 4));
+		System.out.println("DistinctPathSamplerTest passed");
+	}
+
+	/**
+	 * @return a first-order model over tokenCount letters and the end token, in which most letters can be followed by
+	 * the end token and the end token only by itself
+	 */
+	private static SparseVariableOrderMarkovModel<Token> modelWithEndToken(Random random, int tokenCount) {
+		final BidirectionalVariableOrderPrefixIDMap<Token> stateIndex = new BidirectionalVariableOrderPrefixIDMap<Token>(1);
+		for (int i = 0; i < tokenCount; i++) {
+			stateIndex.addPrefix(new LinkedList<Token>(Arrays.asList(new CharacterToken((char) ('a' + i)))));
+		}
+		final int end = stateIndex.addPrefix(new LinkedList<Token>(Arrays.asList(Token.getEndToken())));
+
+		final Map<Integer, Double> priors = new HashMap<Integer, Double>();
+		final Map<Integer, Map<Integer, Double>> transitions = new HashMap<Integer, Map<Integer, Double>>();
+		Map<Integer, Double> row;
+		for (int i = 0; i < tokenCount; i++) {
+			priors.put(i, 1. / tokenCount);
+			row = new HashMap<Integer, Double>();
+			row.put(random.nextInt(tokenCount), .5);
+			if (random.nextInt(4) > 0) {
+				row.put(end, .5);
+			} else {
+				row.put(random.nextInt(tokenCount), .5);
+			}
+			double rowTotal = 0;
+			for (Double value : row.values()) {
+				rowTotal += value;
+			}
+			for (Entry<Integer, Double> entry : row.entrySet()) {
+				entry.setValue(entry.getValue() / rowTotal);
+			}
+			transitions.put(i, row);
+		}
+		row = new HashMap<Integer, Double>();
+		row.put(end, 1.);
+		transitions.put(end, row);
+		return new SparseVariableOrderMarkovModel<Token>(stateIndex, priors, transitions);
+	}
+
+	private static SparseVariableOrderMarkovModel<Token> withTokenType(SparseVariableOrderMarkovModel<CharacterToken> model) {
+		final BidirectionalVariableOrderPrefixIDMap<Token> stateIndex = new BidirectionalVariableOrderPrefixIDMap<Token>(1);
+		for (int i = 0; i < model.stateIndex.getPrefixCount(); i++) {
+			stateIndex.addPrefix(new LinkedList<Token>(model.stateIndex.getPrefixForID(i)));
+		}
+		final Map<Integer, Double> priors = new HashMap<Integer, Double>();
+		for (Entry<Integer, Double> prior : model.logPriors.entrySet()) {
+			priors.put(prior.getKey(), Math.exp(prior.getValue()));
+		}
+		final Map<Integer, Map<Integer, Double>> transitions = new HashMap<Integer, Map<Integer, Double>>();
+		for (Entry<Integer, Map<Integer, Double>> row : model.logTransitions.entrySet()) {
+			transitions.put(row.getKey(), new HashMap<Integer, Double>());
+			for (Entry<Integer, Double> transition : row.getValue().entrySet()) {
+				transitions.get(row.getKey()).put(transition.getKey(), Math.exp(transition.getValue()));
+			}
+		}
+		return new SparseVariableOrderMarkovModel<Token>(stateIndex, priors, transitions);
+	}
+
+	private static List<List<ConditionedConstraint<Token>>> noConstraints(int length) {
+		final List<List<ConditionedConstraint<Token>>> constraints = new ArrayList<List<ConditionedConstraint<Token>>>();
+		for (int i = 0; i < length; i++) {
+			constraints.add(new ArrayList<ConditionedConstraint<Token>>());
+		}
+		return constraints;
+	}
+
+	/**
+	 * @return every sequence of the model with length - 1 transitions, cut at the end token as generate does, with its probability
+	 */
+	private static Map<List<Token>, Double> sequences(SparseVariableOrderMarkovModel<Token> model, int length) {
+		final Map<List<Token>, Double> sequences = new HashMap<List<Token>, Double>();
+		for (Entry<Integer, Double> prior : model.logPriors.entrySet()) {
+			final List<Token> sequence = new ArrayList<Token>();
+			sequence.add(model.stateIndex.getPrefixFinaleForID(prior.getKey()));
+			enumerate(model, prior.getKey(), prior.getValue(), length - 1, sequence, sequences);
+		}
+		return sequences;
+	}
+
+	private static void enumerate(SparseVariableOrderMarkovModel<Token> model, int stateIdx, double logProbability, int transitions, List<Token> sequence, Map<List<Token>, Double> sequences) {
+		if (transitions == 0 || model.stateIndex.getPrefixFinaleForID(stateIdx) == Token.getEndToken()) {
+			final List<Token> cut = new ArrayList<Token>(sequence);
+			cut.remove(Token.getEndToken());
+			sequences.put(cut, Math.exp(logProbability));
+			return;
+		}
+		for (Entry<Integer, Double> transition : model.logTransitions.get(stateIdx).entrySet()) {
+			sequence.add(model.stateIndex.getPrefixFinaleForID(transition.getKey()));
+			enumerate(model, transition.getKey(), logProbability + transition.getValue(), transitions - 1, sequence, sequences);
+			sequence.remove(sequence.size() - 1);
+		}
+	}
+
+	private static boolean hasShorterSequence(Map<List<Token>, Double> sequences, int length) {
+		for (List<Token> sequence : sequences.keySet()) {
+			if (sequence.size() < length) return true;
+		}
+		return false;
+	}
+
+	private static void checkDrained(Iterator<List<Token>> distinct, Map<List<Token>, Double> expected) {
+		final Set<List<Token>> seen = new HashSet<List<Token>>();
+		while (distinct.hasNext()) {
+			final List<Token> sequence = distinct.next();
+			check(expected.containsKey(sequence), "sequence " + sequence + " is a sequence of the model");
+			check(seen.add(sequence), "sequence " + sequence + " is returned once");
+		}
+		check(seen.size() == expected.size(), "every sequence is returned (" + seen.size() + " of " + expected.size() + ")");
+		check(!distinct.hasNext(), "the iterator stays ended");
+		try {
+			distinct.next();
+			check(false, "next throws once every sequence has been returned");
+		} catch (NoSuchElementException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Compares the frequency of each first draw over many seeds with its probability. The seeds are fixed, so the
+	 * check is deterministic; the tolerance is several standard deviations.
+	 */
+	private static void checkFirstDraws(SparseVariableOrderNHMM<Token> nhmm, Map<List<Token>, Double> expected) {
+		final int draws = 20000;
+		final Map<List<Token>, Integer> counts = new HashMap<List<Token>, Integer>();
+		for (int seed = 0; seed < draws; seed++) {
+			final List<Token> sequence = nhmm.distinctSequences(4, seed).next();
+			final Integer count = counts.get(sequence);
+			counts.put(sequence, count == null ? 1 : count + 1);
+		}
+		for (Entry<List<Token>, Double> entry : expected.entrySet()) {
+			final Integer count = counts.remove(entry.getKey());
+			final double frequency = count == null ? 0. : (double) count / draws, probability = entry.getValue();
+			check(Math.abs(frequency - probability) <= 5 * Math.sqrt(probability * (1 - probability) / draws) + 1e-9,
+					"sequence " + entry.getKey() + " is drawn first with frequency " + frequency + ", expected " + probability);
+		}
+		check(counts.isEmpty(), "only sequences of the model are drawn");
+	}
+}
@@ -0,0 +1,144 @@
+package dbtb.markov;
+
+import static dbtb.markov.TestModels.check;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import dbtb.constraint.ConditionedConstraint;
+import dbtb.constraint.TransitionalConstraint;
+import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken;
+import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken.CharacterTokenConstraint;
+
+/**
+ * An implicit NHMM must give every sequence of states the probability that SparseVariableOrderNHMM gives it, with
+ * and without state and transitional constraints, and must generate sequences with those probabilities
+ */
+public class ImplicitSparseVariableOrderNHMMTest {
+
+	/**
+	 * Forbids a token from following itself
+	 */
+	private static final TransitionalConstraint<CharacterToken> NO_REPEAT = new TransitionalConstraint<CharacterToken>() {
+		@Override
+		public boolean isSatisfiedBy(LinkedList<CharacterToken> fromState, LinkedList<CharacterToken> toState) {
+			return !fromState.getLast().equals(toState.getLast());
+		}
+	};
+
+	public static void main(String[] args) throws UnsatisfiableConstraintSetException {
+		final Random random = new Random(4);
+		checkRequiresFrozenModel(random);
+		int compared = 0;
+		for (int trial = 0; trial < 40; trial++) {
+			final SparseVariableOrderMarkovModel<CharacterToken> model = TestModels.randomModel(random, 3 + random.nextInt(4), 1 + random.nextInt(3));
+			model.freeze();
+			final int length = 2 + random.nextInt(3);
+			final boolean stateConstraint = trial % 2 == 1, transitionalConstraint = trial % 4 >= 2;
+			if (checkSameDistribution(random, model, length, constraints(random, model, length, stateConstraint, transitionalConstraint), trial < 8)) {
+				compared++;
+			}
+		}
+		check(compared > 20, "most templates are satisfiable");
+		System.out.println("ImplicitSparseVariableOrderNHMMTest passed");
+	}
+
+	private static void checkRequiresFrozenModel(Random random) throws UnsatisfiableConstraintSetException {
+		final SparseVariableOrderMarkovModel<CharacterToken> model = TestModels.randomModel(random, 4, 2);
+		try {
+			new ImplicitSparseVariableOrderNHMM<CharacterToken>(model, 3, constraints(random, model, 3, false, false));
+			check(false, "an unfrozen base model is rejected");
+		} catch (IllegalArgumentException e) {
+			check(!model.isFrozen(), "the base model is left as it was");
+		}
+	}
+
+	private static List<List<ConditionedConstraint<CharacterToken>>> constraints(Random random, SparseVariableOrderMarkovModel<CharacterToken> model, int length,
+			boolean stateConstraint, boolean transitionalConstraint) {
+		final List<List<ConditionedConstraint<CharacterToken>>> constraints = new ArrayList<List<ConditionedConstraint<CharacterToken>>>();
+		for (int i = 0; i < length; i++) {
+			constraints.add(new ArrayList<ConditionedConstraint<CharacterToken>>());
+		}
+		if (stateConstraint) {
+			final CharacterToken token = model.stateIndex.getToken(random.nextInt(model.stateIndex.getTokenCount()));
+			constraints.get(random.nextInt(length)).add(new ConditionedConstraint<CharacterToken>(new CharacterTokenConstraint<CharacterToken>(token), random.nextBoolean()));
+		}
+		if (transitionalConstraint) {
+			constraints.get(1 + random.nextInt(length - 1)).add(new ConditionedConstraint<CharacterToken>(NO_REPEAT));
+		}
+		return constraints;
+	}
+
+	/**
+	 * @return false if the template is unsatisfiable (which both NHMMs must agree on)
+	 */
+	private static boolean checkSameDistribution(Random random, SparseVariableOrderMarkovModel<CharacterToken> model, int length,
+			List<List<ConditionedConstraint<CharacterToken>>> constraints, boolean checkGenerated) throws UnsatisfiableConstraintSetException {
+		final SparseVariableOrderNHMM<CharacterToken> expected;
+		try {
+			expected = new SparseVariableOrderNHMM<CharacterToken>(model, length, constraints);
+		} catch (UnsatisfiableConstraintSetException e) {
+			try {
+				new ImplicitSparseVariableOrderNHMM<CharacterToken>(model, length, constraints);
+				check(false, "the implicit NHMM rejects the same templates");
+			} catch (UnsatisfiableConstraintSetException expectedException) {
+				// both reject it
+			}
+			return false;
+		}
+		final ImplicitSparseVariableOrderNHMM<CharacterToken> actual = new ImplicitSparseVariableOrderNHMM<CharacterToken>(model, length, constraints);
+
+		// every sequence of 1 to length states, so that the priors and each position's transitions are compared
+		final int stateCount = model.stateIndex.getPrefixCount();
+		double total = 0;
+		for (int size = 1; size <= length; size++) {
+			final int[] stateIDs = new int[size];
+			for (int s = 0; s < Math.pow(stateCount, size); s++) {
+				int v = s;
+				for (int i = 0; i < size; i++) {
+					stateIDs[i] = v % stateCount;
+					v /= stateCount;
+				}
+				final double expectedLogProbability = expected.logProbability(stateIDs), actualLogProbability = actual.logProbability(stateIDs);
+				check(expectedLogProbability == actualLogProbability || Math.abs(expectedLogProbability - actualLogProbability) < 1e-9,
+						"sequence of " + size + " states has log probability " + actualLogProbability + ", expected " + expectedLogProbability);
+				if (size == length) {
+					total += Math.exp(expectedLogProbability);
+				}
+			}
+		}
+		check(Math.abs(total - 1) < 1e-9, "full-length sequences have probabilities summing to 1");
+
+		if (checkGenerated) {
+			checkGenerated(actual, expected, length, random.nextLong());
+		}
+		return true;
+	}
+
+	/**
+	 * Compares the frequency of each sequence generated by actual with its probability under expected. Draws are from
+	 * a fixed seed, so the check is deterministic; the tolerance is several standard deviations.
+	 */
+	private static void checkGenerated(ImplicitSparseVariableOrderNHMM<CharacterToken> actual, SparseVariableOrderNHMM<CharacterToken> expected, int length, long seed) {
+		final int draws = 50000;
+		final SplittableRandom random = new SplittableRandom(seed);
+		final Map<List<CharacterToken>, Integer> counts = new HashMap<List<CharacterToken>, Integer>();
+		for (int d = 0; d < draws; d++) {
+			final List<CharacterToken> sequence = actual.generate(length, random);
+			final Integer count = counts.get(sequence);
+			counts.put(sequence, count == null ? 1 : count + 1);
+		}
+		for (Map.Entry<List<CharacterToken>, Integer> entry : counts.entrySet()) {
+			check(entry.getKey().size() == length, "sequences have the requested length");
+			final double probability = expected.probabilityOfSequence(entry.getKey().toArray(new Token[0]));
+			final double frequency = (double) entry.getValue() / draws;
+			check(Math.abs(frequency - probability) <= 5 * Math.sqrt(probability * (1 - probability) / draws) + 1e-9,
+					"sequence " + entry.getKey() + " has frequency " + frequency + ", expected " + probability);
+		}
+	}
+}
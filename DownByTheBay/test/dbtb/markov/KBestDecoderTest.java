@@ -0,0 +1,123 @@
+package dbtb.markov;
+
+import static dbtb.markov.TestModels.check;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+
+import dbtb.constraint.ConditionedConstraint;
+import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken;
+
+/**
+ * The k-best decoder must return every path exactly once, in the order of decreasing probability found by
+ * enumerating all paths, and NHMMs decoding with it must agree with the probabilities they assign
+ */
+public class KBestDecoderTest {
+
+	public static void main(String[] args) throws UnsatisfiableConstraintSetException {
+		final Random random = new Random(5);
+		for (int trial = 0; trial < 30; trial++) {
+			checkDecoder(random, 2 + random.nextInt(10), 1 + random.nextInt(5), 1 + random.nextInt(3));
+		}
+		for (int trial = 0; trial < 10; trial++) {
+			checkTopK(TestModels.randomModel(random, 3 + random.nextInt(6), 1 + random.nextInt(3)), 2 + random.nextInt(4));
+		}
+		System.out.println("KBestDecoderTest passed");
+	}
+
+	private static void checkDecoder(Random random, int stateCount, int length, int rowSize) {
+		final Map<Integer, Double> logPriors = new HashMap<Integer, Double>();
+		for (int s = 0; s < stateCount; s++) {
+			if (random.nextInt(3) > 0) {
+				logPriors.put(s, Math.log(random.nextDouble()));
+			}
+		}
+		final List<Map<Integer, Map<Integer, Double>>> logTransitions = new ArrayList<Map<Integer, Map<Integer, Double>>>();
+		for (int i = 0; i < length; i++) {
+			final Map<Integer, Map<Integer, Double>> layer = new HashMap<Integer, Map<Integer, Double>>();
+			for (int s = 0; s < stateCount; s++) {
+				if (random.nextInt(5) == 0) continue; // a dead end
+				final Map<Integer, Double> row = new HashMap<Integer, Double>();
+				for (int j = 0; j < rowSize; j++) {
+					row.put(random.nextInt(stateCount), Math.log(random.nextDouble()));
+				}
+				layer.put(s, row);
+			}
+			logTransitions.add(layer);
+		}
+
+		final List<Double> expected = new ArrayList<Double>();
+		for (Entry<Integer, Double> prior : logPriors.entrySet()) {
+			enumerate(logTransitions, 0, prior.getKey(), prior.getValue(), length, expected);
+		}
+		Collections.sort(expected, Collections.reverseOrder());
+
+		final KBestDecoder decoder = new KBestDecoder(logTransitions, logPriors, length);
+		final Set<List<Integer>> seen = new HashSet<List<Integer>>();
+		int[] path;
+		int rank = 0;
+		while ((path = decoder.nextPath()) != null) {
+			check(rank < expected.size(), "no more paths than there are");
+			check(path.length == length + 1, "a path has a state per position");
+			double logProbability = logPriors.get(path[0]);
+			final List<Integer> states = new ArrayList<Integer>();
+			states.add(path[0]);
+			for (int i = 0; i < length; i++) {
+				logProbability += logTransitions.get(i).get(path[i]).get(path[i + 1]);
+				states.add(path[i + 1]);
+			}
+			check(seen.add(states), "path " + states + " is returned once");
+			check(Math.abs(logProbability - decoder.getLastLogProbability()) < 1e-9, "path " + rank + " reports its own probability");
+			check(Math.abs(logProbability - expected.get(rank)) < 1e-9, "path " + rank + " is the " + rank + "-th most probable");
+			rank++;
+		}
+		check(rank == expected.size(), "every path is returned");
+	}
+
+	private static void enumerate(List<Map<Integer, Map<Integer, Double>>> logTransitions, int i, int stateIdx, double logProbability, int length, List<Double> logProbabilities) {
+		if (i == length) {
+			logProbabilities.add(logProbability);
+			return;
+		}
+		final Map<Integer, Double> row = logTransitions.get(i).get(stateIdx);
+		if (row == null) return;
+		for (Entry<Integer, Double> col : row.entrySet()) {
+			enumerate(logTransitions, i + 1, col.getKey(), logProbability + col.getValue(), length, logProbabilities);
+		}
+	}
+
+	private static void checkTopK(SparseVariableOrderMarkovModel<CharacterToken> model, int length) throws UnsatisfiableConstraintSetException {
+		final List<List<ConditionedConstraint<CharacterToken>>> constraints = new ArrayList<List<ConditionedConstraint<CharacterToken>>>();
+		for (int i = 0; i < length; i++) {
+			constraints.add(new ArrayList<ConditionedConstraint<CharacterToken>>());
+		}
+		final SparseVariableOrderNHMM<CharacterToken> nhmm = new SparseVariableOrderNHMM<CharacterToken>(model, length, constraints);
+
+		// every state of a random model has successors, so the unconstrained NHMM gives each sequence of length tokens
+		// its probability under the model
+		final List<Map<Integer, Map<Integer, Double>>> logTransitions = new ArrayList<Map<Integer, Map<Integer, Double>>>();
+		for (int i = 0; i < length - 1; i++) {
+			logTransitions.add(model.logTransitions);
+		}
+		final List<Double> expected = new ArrayList<Double>();
+		for (Entry<Integer, Double> prior : model.logPriors.entrySet()) {
+			enumerate(logTransitions, 0, prior.getKey(), prior.getValue(), length - 1, expected);
+		}
+		Collections.sort(expected, Collections.reverseOrder());
+
+		final List<List<CharacterToken>> topK = nhmm.topK(length, 10);
+		check(topK.size() == Math.min(10, expected.size()), "topK returns k sequences when there are that many");
+		check(topK.get(0).equals(nhmm.mostProbable(length)), "the first of topK is the most probable");
+		for (int rank = 0; rank < topK.size(); rank++) {
+			final double probability = nhmm.probabilityOfSequence(topK.get(rank).toArray(new Token[0]));
+			check(Math.abs(Math.log(probability) - expected.get(rank)) < 1e-9, "sequence " + rank + " of topK is the " + rank + "-th most probable");
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package dbtb.markov;
+
+import static dbtb.markov.TestModels.check;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import dbtb.data.SyllableToken;
+import dbtb.data.TokenFactory;
+import dbtb.linguistic.phonetic.PhonemeEnum;
+import dbtb.linguistic.syntactic.Pos;
+import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken;
+
+/**
+ * A model loaded from a snapshot must equal the model that was saved, and mismatched or corrupt snapshots must be rejected
+ */
+public class ModelSnapshotTest {
+
+	private static final TokenCodec<CharacterToken> CHARACTER_TOKEN_CODEC = new TokenCodec<CharacterToken>() {
+		@Override
+		public void write(CharacterToken token, DataOutput out) throws IOException {
+			out.writeChar(token.c);
+		}
+
+		@Override
+		public CharacterToken read(DataInput in) throws IOException {
+			return new CharacterToken(in.readChar());
+		}
+	};
+
+	public static void main(String[] args) throws IOException {
+		final Random random = new Random(3);
+		final File file = File.createTempFile("model", ".dbtb");
+		file.deleteOnExit();
+		try {
+			for (int trial = 0; trial < 10; trial++) {
+				checkRoundTrip(random, file, 5 + random.nextInt(40), 1 + random.nextInt(8));
+			}
+			checkSyllableRoundTrip(random, file);
+			checkRejectsMismatches(random, file);
+			checkRejectsCorruption(random, file);
+			checkReplacesLoadedSnapshot(random, file);
+		} finally {
+			file.delete();
+		}
+		System.out.println("ModelSnapshotTest passed");
+	}
+
+	private static void checkRoundTrip(Random random, File file, int stateCount, int rowSize) throws IOException {
+		final SparseVariableOrderMarkovModel<CharacterToken> model = TestModels.randomModel(random, stateCount, rowSize);
+		ModelSnapshot.save(file, model, CHARACTER_TOKEN_CODEC, "fiction", "test", 100, 150);
+		check(!model.isFrozen(), "saving does not freeze the model");
+		final ModelSnapshot<CharacterToken> snapshot = ModelSnapshot.load(file, CHARACTER_TOKEN_CODEC);
+		check(snapshot.getOrder() == 1, "order is kept");
+		check(snapshot.getTrainingSource().equals("fiction"), "training source is kept");
+		check(snapshot.getConfiguration().equals("test"), "configuration is kept");
+		check(snapshot.getSentencesTrainedOn() == 100 && snapshot.getSentencePronunciationsTrainedOn() == 150, "counts are kept");
+
+		final SparseVariableOrderMarkovModel<CharacterToken> loaded = snapshot.getModel();
+		checkSameModel(model, loaded);
+
+		final List<int[]> sequences = TestModels.randomStateIDSequences(random, model, 6, 200);
+		final double[] expected = model.logProbabilities(sequences), actual = loaded.logProbabilities(sequences);
+		for (int i = 0; i < expected.length; i++) {
+			check(Double.compare(expected[i], actual[i]) == 0, "sequence " + i + " scores the same after loading");
+		}
+	}
+
+	private static void checkSyllableRoundTrip(Random random, File file) throws IOException {
+		final int order = 2;
+		final BidirectionalVariableOrderPrefixIDMap<SyllableToken> stateIndex = new BidirectionalVariableOrderPrefixIDMap<SyllableToken>(order);
+		final List<SyllableToken> vocabulary = new ArrayList<SyllableToken>();
+		for (int i = 0; i < 8; i++) {
+			vocabulary.add(TokenFactory.getSyllableToken("w" + i, Arrays.asList(PhonemeEnum.values()[i], PhonemeEnum.values()[i + 1]), Pos.values()[i], 1, 0, i % 3));
+		}
+
+		final Map<Integer, Double> priors = new HashMap<Integer, Double>();
+		final Map<Integer, Map<Integer, Double>> transitions = new HashMap<Integer, Map<Integer, Double>>();
+		final List<SyllableToken> sentence = new ArrayList<SyllableToken>();
+		for (int s = 0; s < 100; s++) {
+			sentence.clear();
+			for (int i = 0; i < 6; i++) {
+				sentence.add(vocabulary.get(random.nextInt(vocabulary.size())));
+			}
+			final int[] tokenIDs = stateIndex.addTokens(sentence);
+			int fromID = stateIndex.addPrefix(tokenIDs, 0), toID;
+			priors.put(fromID, 1.0);
+			for (int i = 1; i + order <= sentence.size(); i++) {
+				toID = stateIndex.addPrefix(tokenIDs, i);
+				Map<Integer, Double> row = transitions.get(fromID);
+				if (row == null) {
+					row = new HashMap<Integer, Double>();
+					transitions.put(fromID, row);
+				}
+				row.put(toID, 1.0);
+				fromID = toID;
+			}
+		}
+		normalize(priors);
+		for (Map<Integer, Double> row : transitions.values()) {
+			normalize(row);
+		}
+
+		final SparseVariableOrderMarkovModel<SyllableToken> model = new SparseVariableOrderMarkovModel<SyllableToken>(stateIndex, priors, transitions);
+		ModelSnapshot.save(file, model, TokenFactory.SYLLABLE_TOKEN_CODEC, "spoken", "syllables", 100, 100);
+		final SparseVariableOrderMarkovModel<SyllableToken> loaded = ModelSnapshot.load(file, TokenFactory.SYLLABLE_TOKEN_CODEC).getModel();
+		checkSameModel(model, loaded);
+	}
+
+	private static void checkRejectsMismatches(Random random, File file) throws IOException {
+		final SparseVariableOrderMarkovModel<CharacterToken> model = TestModels.randomModel(random, 10, 3);
+		ModelSnapshot.save(file, model, CHARACTER_TOKEN_CODEC, "fiction", "test", 100, 100);
+		final ModelSnapshot<CharacterToken> snapshot = ModelSnapshot.load(file, CHARACTER_TOKEN_CODEC);
+		snapshot.checkMatches(1, "fiction", "test");
+		check(!matches(snapshot, 2, "fiction", "test"), "a different order is rejected");
+		check(!matches(snapshot, 1, "spoken", "test"), "a different training source is rejected");
+		check(!matches(snapshot, 1, "fiction", "other"), "a different configuration is rejected");
+
+		ModelSnapshot.save(file, model, CHARACTER_TOKEN_CODEC, "fiction", "test", 0, 0);
+		check(!matches(ModelSnapshot.load(file, CHARACTER_TOKEN_CODEC), 1, "fiction", "test"), "a snapshot trained on no sentences is rejected");
+	}
+
+	private static void checkRejectsCorruption(Random random, File file) throws IOException {
+		ModelSnapshot.save(file, TestModels.randomModel(random, 20, 4), CHARACTER_TOKEN_CODEC, "fiction", "test", 100, 100);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			final long position = raf.length() / 2;
+			raf.seek(position);
+			final int value = raf.read();
+			raf.seek(position);
+			raf.write(value ^ 1);
+		}
+		try {
+			ModelSnapshot.load(file, CHARACTER_TOKEN_CODEC);
+			check(false, "a corrupt snapshot fails its checksum");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Saving over a snapshot that is loaded (and so mapped) must leave the loaded model readable, and must not leave
+	 * temporary files behind
+	 */
+	private static void checkReplacesLoadedSnapshot(Random random, File file) throws IOException {
+		final SparseVariableOrderMarkovModel<CharacterToken> first = TestModels.randomModel(random, 30, 4);
+		ModelSnapshot.save(file, first, CHARACTER_TOKEN_CODEC, "fiction", "test", 100, 100);
+		final SparseVariableOrderMarkovModel<CharacterToken> loaded = ModelSnapshot.load(file, CHARACTER_TOKEN_CODEC).getModel();
+
+		ModelSnapshot.save(file, TestModels.randomModel(random, 12, 2), CHARACTER_TOKEN_CODEC, "fiction", "test", 100, 100);
+		checkSameModel(first, loaded);
+		check(ModelSnapshot.load(file, CHARACTER_TOKEN_CODEC).getModel().stateIndex.getPrefixCount() == 12, "the new snapshot replaces the old one");
+
+		final String temporaryPrefix = "." + file.getName() + ".";
+		for (String name : file.getAbsoluteFile().getParentFile().list()) {
+			check(!name.startsWith(temporaryPrefix), "no temporary file is left behind");
+		}
+	}
+
+	private static boolean matches(ModelSnapshot<?> snapshot, int order, String trainingSource, String configuration) {
+		try {
+			snapshot.checkMatches(order, trainingSource, configuration);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static <T extends Token> void checkSameModel(SparseVariableOrderMarkovModel<T> expected, SparseVariableOrderMarkovModel<T> actual) {
+		final BidirectionalVariableOrderPrefixIDMap<T> expectedIndex = expected.stateIndex, actualIndex = actual.stateIndex;
+		check(expectedIndex.getTokenCount() == actualIndex.getTokenCount(), "token count is kept");
+		for (int i = 0; i < expectedIndex.getTokenCount(); i++) {
+			check(expectedIndex.getToken(i).equals(actualIndex.getToken(i)), "token " + i + " is kept");
+		}
+		check(expectedIndex.getPrefixCount() == actualIndex.getPrefixCount(), "prefix count is kept");
+		for (int i = 0; i < expectedIndex.getPrefixCount(); i++) {
+			check(expectedIndex.getPrefixForID(i).equals(actualIndex.getPrefixForID(i)), "prefix " + i + " is kept");
+		}
+
+		check(expected.logPriors.equals(actual.logPriors), "priors are kept");
+
+		expected.freeze();
+		final CompressedSparseRowMatrix expectedTransitions = expected.getFrozenLogTransitions(), actualTransitions = actual.getFrozenLogTransitions();
+		check(expectedTransitions.getRowCount() == actualTransitions.getRowCount(), "row count is kept");
+		check(expectedTransitions.getNonZeroCount() == actualTransitions.getNonZeroCount(), "transition count is kept");
+		for (int row = 0; row < expectedTransitions.getRowCount(); row++) {
+			check(expectedTransitions.rowStart(row) == actualTransitions.rowStart(row) && expectedTransitions.rowEnd(row) == actualTransitions.rowEnd(row), "row " + row + " is kept");
+			for (int k = expectedTransitions.rowStart(row); k < expectedTransitions.rowEnd(row); k++) {
+				check(expectedTransitions.columnAt(k) == actualTransitions.columnAt(k), "column " + k + " is kept");
+				check(Double.compare(expectedTransitions.valueAt(k), actualTransitions.valueAt(k)) == 0, "value " + k + " is kept");
+			}
+		}
+	}
+
+	private static void normalize(Map<Integer, Double> weights) {
+		double total = 0;
+		for (Double weight : weights.values()) {
+			total += weight;
+		}
+		for (Map.Entry<Integer, Double> entry : weights.entrySet()) {
+			entry.setValue(entry.getValue() / total);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package dbtb.markov;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import dbtb.markov.SparseVariableOrderMarkovModel.CharacterToken;
+
+/**
+ * Small random models and checks shared by the tests. Tests are plain classes with a main method that throws on the
+ * first failed check (see the test target in build.xml).
+ */
+public class TestModels {
+
+	/**
+	 * @return a first-order model over the letters 'a' onwards in which every state has up to rowSize successors and
+	 * a nonzero prior, with probabilities drawn from random
+	 */
+	public static SparseVariableOrderMarkovModel<CharacterToken> randomModel(Random random, int stateCount, int rowSize) {
+		return randomModel(random, stateCount, rowSize, 1);
+	}
+
+	/**
+	 * @return a model of the given order over tokenCount letters, with a state for every sequence of order letters
+	 * (numbered as base-tokenCount numbers, most significant letter first), each with up to rowSize successors and a
+	 * nonzero prior
+	 */
+	public static SparseVariableOrderMarkovModel<CharacterToken> randomModel(Random random, int tokenCount, int rowSize, int order) {
+		final BidirectionalVariableOrderPrefixIDMap<CharacterToken> stateIndex = new BidirectionalVariableOrderPrefixIDMap<CharacterToken>(order);
+		final int stateCount = (int) Math.pow(tokenCount, order);
+		LinkedList<CharacterToken> prefix;
+		for (int i = 0; i < stateCount; i++) {
+			prefix = new LinkedList<CharacterToken>();
+			for (int v = i, j = 0; j < order; j++, v /= tokenCount) {
+				prefix.addFirst(new CharacterToken((char) ('a' + v % tokenCount)));
+			}
+			stateIndex.addPrefix(prefix);
+		}
+
+		final Map<Integer, Double> priors = new HashMap<Integer, Double>();
+		final Map<Integer, Map<Integer, Double>> transitions = new HashMap<Integer, Map<Integer, Double>>();
+		double priorTotal = 0, rowTotal;
+		Map<Integer, Double> row;
+		for (int i = 0; i < stateCount; i++) {
+			priors.put(i, random.nextDouble() + .1);
+			priorTotal += priors.get(i);
+			row = new HashMap<Integer, Double>();
+			for (int j = 0; j < rowSize; j++) {
+				// the successor drops the first letter of i and appends a random one
+				row.put((i * tokenCount) % stateCount + random.nextInt(tokenCount), random.nextDouble() + .1);
+			}
+			rowTotal = 0;
+			for (Double value : row.values()) {
+				rowTotal += value;
+			}
+			for (Map.Entry<Integer, Double> entry : row.entrySet()) {
+				entry.setValue(entry.getValue() / rowTotal);
+			}
+			transitions.put(i, row);
+		}
+		for (Map.Entry<Integer, Double> entry : priors.entrySet()) {
+			entry.setValue(entry.getValue() / priorTotal);
+		}
+
+		return new SparseVariableOrderMarkovModel<CharacterToken>(stateIndex, priors, transitions);
+	}
+
+	/**
+	 * @return count random sequences of state IDs of the given length; most are possible under a model from
+	 * {@link #randomModel} with the same number of states, but some are not
+	 */
+	public static List<int[]> randomStateIDSequences(Random random, SparseVariableOrderMarkovModel<CharacterToken> model, int length, int count) {
+		final List<int[]> sequences = new ArrayList<int[]>(count);
+		final int stateCount = model.stateIndex.getPrefixCount();
+		int[] sequence;
+		Map<Integer, Double> row;
+		for (int s = 0; s < count; s++) {
+			sequence = new int[length];
+			sequence[0] = random.nextInt(stateCount);
+			for (int i = 1; i < length; i++) {
+				row = model.logTransitions.get(sequence[i - 1]);
+				if (row == null || row.isEmpty() || random.nextInt(10) == 0) {
+					sequence[i] = random.nextInt(stateCount);
+				} else {
+					final List<Integer> successors = new ArrayList<Integer>(row.keySet());
+					sequence[i] = successors.get(random.nextInt(successors.size()));
+				}
+			}
+			sequences.add(sequence);
+		}
+		return sequences;
+	}
+
+	public static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new RuntimeException("Check failed: " + message);
+		}
+	}
+}